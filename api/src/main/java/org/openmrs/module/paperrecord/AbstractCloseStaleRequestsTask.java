@@ -0,0 +1,106 @@
+package org.openmrs.module.paperrecord;
+
+import org.apache.commons.lang.time.DateUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+import java.util.Date;
+
+/**
+ * Base class for the tasks that close out stale pending requests
+ * <p/>
+ * Requests are expired in chunks of (at most) chunkSize requests (default 500), each in its own transaction, so that a
+ * single run never holds locks on the request table for long; after each chunk the session is cleared. A run stops
+ * once there are no more stale requests, or once it has been running for more than maxRunTimeSeconds (default 300);
+ * any stale requests that are left are still pending, so the next run simply picks up where this one stopped.
+ */
+public abstract class AbstractCloseStaleRequestsTask extends AbstractTask {
+
+    public static final String CHUNK_SIZE_PROPERTY = "chunkSize";
+
+    public static final String MAX_RUN_TIME_SECONDS_PROPERTY = "maxRunTimeSeconds";
+
+    private static Integer DEFAULT_CHUNK_SIZE = 500;
+
+    private static Integer DEFAULT_MAX_RUN_TIME_SECONDS = 300;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    @Override
+    public void execute() {
+
+        Date expireDate = DateUtils.addHours(new Date(), -getIntegerProperty(getExpireHoursProperty(), getDefaultExpireHours()));
+        Integer chunkSize = getIntegerProperty(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE);
+
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Task property " + CHUNK_SIZE_PROPERTY + " must be positive: " + chunkSize);
+        }
+
+        long stopTime = System.currentTimeMillis() + getIntegerProperty(MAX_RUN_TIME_SECONDS_PROPERTY, DEFAULT_MAX_RUN_TIME_SECONDS) * 1000L;
+
+        PaperRecordService paperRecordService = Context.getService(PaperRecordService.class);
+
+        int totalFound = 0;
+
+        while (true) {
+
+            long chunkStartTime = System.currentTimeMillis();
+
+            // each call to the service is a separate transaction, so each chunk is committed as we go; we stop once a
+            // chunk comes back short (a full chunk may still have expired fewer requests, if some changed status meanwhile)
+            int found = expireRequests(paperRecordService, expireDate, chunkSize);
+            Context.clearSession();
+
+            totalFound += found;
+
+            if (log.isInfoEnabled()) {
+                long elapsed = System.currentTimeMillis() - chunkStartTime;
+                log.info("Expired a chunk of " + found + " stale requests in " + elapsed + " ms ("
+                        + (elapsed > 0 ? found * 1000L / elapsed : found) + " requests/second)");
+            }
+
+            if (found < chunkSize) {
+                break;
+            }
+
+            if (System.currentTimeMillis() >= stopTime) {
+                log.info("Reached maximum run time after expiring " + totalFound + " stale requests, remaining stale requests will be expired on the next run");
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the name of the task property that specifies the number of hours after which a request expires
+     */
+    protected abstract String getExpireHoursProperty();
+
+    /**
+     * @return the number of hours after which a request expires if the task property is not set
+     */
+    protected abstract Integer getDefaultExpireHours();
+
+    /**
+     * Expires (at most) one chunk of stale requests
+     *
+     * @param paperRecordService
+     * @param expireDate
+     * @param chunkSize
+     * @return the number of stale requests found in this chunk (fewer than chunkSize means there are no more)
+     */
+    protected abstract int expireRequests(PaperRecordService paperRecordService, Date expireDate, Integer chunkSize);
+
+    private Integer getIntegerProperty(String property, Integer defaultValue) {
+
+        if (taskDefinition.getProperty(property) != null
+                && StringUtils.isNotBlank(taskDefinition.getProperty(property))) {
+            return Integer.valueOf(taskDefinition.getProperty(property));
+        }
+
+        return defaultValue;
+    }
+
+}
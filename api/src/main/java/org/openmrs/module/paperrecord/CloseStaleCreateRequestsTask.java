@@ -1,10 +1,5 @@
 package org.openmrs.module.paperrecord;
 
-import org.apache.commons.lang.time.DateUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.openmrs.api.context.Context;
-import org.openmrs.scheduler.tasks.AbstractTask;
-
 import java.util.Date;
 
 /**
@@ -12,27 +7,28 @@ import java.util.Date;
  * created that is more than createRecordExpireHours old (default is to close out requests more than forty-eight
  * hours old).
  * <p/>
+ * Requests are expired in chunks, with a limit on the run time; see AbstractCloseStaleRequestsTask
+ * <p/>
  * Note that this task is not scheduled by default, but can be scheduled in a customization module (see the
  * Mirebalais module for an example of this)
  */
-public class CloseStaleCreateRequestsTask extends AbstractTask {
+public class CloseStaleCreateRequestsTask extends AbstractCloseStaleRequestsTask {
 
     private static Integer DEFAULT_CREATE_RECORD_EXPIRE_HOURS = 48;
 
     @Override
-    public void execute() {
-
-        Integer createRecordExpireHours = DEFAULT_CREATE_RECORD_EXPIRE_HOURS;
-
-        if (taskDefinition.getProperty("createRecordExpireHours") != null
-                && StringUtils.isNotBlank(taskDefinition.getProperty("createRecordExpireHours"))) {
-            createRecordExpireHours = Integer.valueOf(taskDefinition.getProperty("createRecordExpireHours"));
-        }
-
-        Date expireDate = DateUtils.addHours(new Date(), -createRecordExpireHours);
+    protected String getExpireHoursProperty() {
+        return "createRecordExpireHours";
+    }
 
-        Context.getService(PaperRecordService.class).expirePendingCreateRequests(expireDate);
+    @Override
+    protected Integer getDefaultExpireHours() {
+        return DEFAULT_CREATE_RECORD_EXPIRE_HOURS;
     }
 
+    @Override
+    protected int expireRequests(PaperRecordService paperRecordService, Date expireDate, Integer chunkSize) {
+        return paperRecordService.expirePendingCreateRequests(expireDate, chunkSize);
+    }
 
 }
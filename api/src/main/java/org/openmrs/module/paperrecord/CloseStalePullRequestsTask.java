@@ -1,10 +1,5 @@
 package org.openmrs.module.paperrecord;
 
-import org.apache.commons.lang.time.DateUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.openmrs.api.context.Context;
-import org.openmrs.scheduler.tasks.AbstractTask;
-
 import java.util.Date;
 
 /**
@@ -12,26 +7,29 @@ import java.util.Date;
  * created that is more than pullRecordExpireHours old (default is to close out requests more than twelve
  * hours old).
  * <p/>
+ * Requests are expired in chunks, with a limit on the run time; see AbstractCloseStaleRequestsTask
+ * <p/>
  * Note that this task is not scheduled by default, but can be scheduled in a customization module (see the
  * Mirebalais module for an example of this)
  */
 
-public class CloseStalePullRequestsTask extends AbstractTask {
+public class CloseStalePullRequestsTask extends AbstractCloseStaleRequestsTask {
 
     private static Integer DEFAULT_PULL_RECORD_EXPIRE_HOURS = 12;
 
     @Override
-    public void execute() {
-
-        Integer pullRecordExpireHours = DEFAULT_PULL_RECORD_EXPIRE_HOURS;
-
-        if (taskDefinition.getProperty("pullRecordExpireHours") != null
-                && StringUtils.isNotBlank(taskDefinition.getProperty("pullRecordExpireHours"))) {
-            pullRecordExpireHours = Integer.valueOf(taskDefinition.getProperty("pullRecordExpireHours"));
-        }
+    protected String getExpireHoursProperty() {
+        return "pullRecordExpireHours";
+    }
 
-        Date expireDate = DateUtils.addHours(new Date(), -pullRecordExpireHours);
+    @Override
+    protected Integer getDefaultExpireHours() {
+        return DEFAULT_PULL_RECORD_EXPIRE_HOURS;
+    }
 
-        Context.getService(PaperRecordService.class).expirePendingPullRequests(expireDate);
+    @Override
+    protected int expireRequests(PaperRecordService paperRecordService, Date expireDate, Integer chunkSize) {
+        return paperRecordService.expirePendingPullRequests(expireDate, chunkSize);
     }
+
 }
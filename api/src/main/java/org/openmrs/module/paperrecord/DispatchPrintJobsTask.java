@@ -0,0 +1,44 @@
+package org.openmrs.module.paperrecord;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Task that can be scheduled to send any pending label print jobs to the printers
+ * <p/>
+ * Labels are normally printed as soon as the transaction that queued them has committed, so this task just picks up
+ * any jobs that failed (ie, because the printer was offline) and retries them, up to
+ * PaperRecordConstants.MAX_PRINT_JOB_ATTEMPTS times; at most maxJobs (default 100) jobs are dispatched per run
+ * <p/>
+ * Note that this task is not scheduled by default, but can be scheduled in a customization module (see the
+ * Mirebalais module for an example of this)
+ */
+public class DispatchPrintJobsTask extends AbstractTask {
+
+    public static final String MAX_JOBS_PROPERTY = "maxJobs";
+
+    private static Integer DEFAULT_MAX_JOBS = 100;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    @Override
+    public void execute() {
+
+        Integer maxJobs = DEFAULT_MAX_JOBS;
+
+        if (taskDefinition.getProperty(MAX_JOBS_PROPERTY) != null
+                && StringUtils.isNotBlank(taskDefinition.getProperty(MAX_JOBS_PROPERTY))) {
+            maxJobs = Integer.valueOf(taskDefinition.getProperty(MAX_JOBS_PROPERTY));
+        }
+
+        int printed = Context.getService(PaperRecordService.class).dispatchPendingPrintJobs(maxJobs);
+
+        if (printed > 0) {
+            log.info("Printed " + printed + " pending print jobs");
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.Patient;
+
+/**
+ * Patient lock provider backed by a StripedPatientLock; only prevents duplicates within a single JVM, so should
+ * only be used when OpenMRS is running on a single node
+ */
+public class InMemoryPatientLockProvider implements PatientLockProvider {
+
+    private final StripedPatientLock stripedPatientLock = new StripedPatientLock();
+
+    @Override
+    public void lock(Patient patient) {
+        stripedPatientLock.getLock(patient).lock();
+    }
+
+    @Override
+    public void unlock(Patient patient) {
+        stripedPatientLock.getLock(patient).unlock();
+    }
+
+}
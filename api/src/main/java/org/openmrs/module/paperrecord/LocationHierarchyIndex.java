@@ -0,0 +1,169 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.Location;
+import org.openmrs.LocationTag;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the location hierarchy, mapping each location (by id) to its medical record location (the
+ * nearest location up the hierarchy, including itself, tagged as a Medical Record Location) and to the archives
+ * location of that medical record location (the first location, searching down the hierarchy from the medical record
+ * location through non-retired locations, tagged as an Archives Location)
+ * <p/>
+ * Walking the hierarchy means loading every location on the way (and looking up the location tags); since the
+ * hierarchy changes rarely but is consulted on nearly every paper record service call, the paper record service
+ * resolves locations through this index instead, and rebuilds it whenever a location or location tag is saved (see
+ * LocationHierarchyIndexAdvice), as well as once it is older than
+ * PaperRecordConstants.LOCATION_HIERARCHY_INDEX_MAX_AGE_MINUTES (since a location may have been saved on another node)
+ */
+public class LocationHierarchyIndex {
+
+    // null values mean the location is in the index, but has no medical record (or archives) location
+    private final Map<Integer, Integer> medicalRecordLocations;
+
+    private final Map<Integer, Integer> archivesLocations;
+
+    private final long dateBuilt;
+
+    private LocationHierarchyIndex(Map<Integer, Integer> medicalRecordLocations, Map<Integer, Integer> archivesLocations) {
+        this.medicalRecordLocations = Collections.unmodifiableMap(medicalRecordLocations);
+        this.archivesLocations = Collections.unmodifiableMap(archivesLocations);
+        this.dateBuilt = System.currentTimeMillis();
+    }
+
+    /**
+     * @param locations all locations (including retired ones)
+     * @param medicalRecordLocationTag
+     * @param archivesLocationTag
+     * @return the index of the specified locations
+     */
+    public static LocationHierarchyIndex build(Collection<Location> locations, LocationTag medicalRecordLocationTag,
+                                               LocationTag archivesLocationTag) {
+
+        Map<Integer, Integer> medicalRecordLocations = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> archivesLocations = new HashMap<Integer, Integer>();
+
+        for (Location location : locations) {
+            if (location.getId() != null) {
+                medicalRecordLocations.put(location.getId(), findMedicalRecordLocationId(location, medicalRecordLocationTag));
+            }
+        }
+
+        // the archives location is the same for all the locations under a medical record location, so only search for
+        // it once per medical record location
+        Map<Integer, Integer> archivesLocationsByMedicalRecordLocation = new HashMap<Integer, Integer>();
+
+        for (Location location : locations) {
+
+            Integer medicalRecordLocationId = medicalRecordLocations.get(location.getId());
+
+            if (medicalRecordLocationId != null && !archivesLocationsByMedicalRecordLocation.containsKey(medicalRecordLocationId)) {
+                archivesLocationsByMedicalRecordLocation.put(medicalRecordLocationId,
+                        findArchivesLocationId(getAncestor(location, medicalRecordLocationId), archivesLocationTag));
+            }
+
+            if (location.getId() != null) {
+                archivesLocations.put(location.getId(), medicalRecordLocationId != null ?
+                        archivesLocationsByMedicalRecordLocation.get(medicalRecordLocationId) : null);
+            }
+        }
+
+        return new LocationHierarchyIndex(medicalRecordLocations, archivesLocations);
+    }
+
+    /**
+     * @param locationId
+     * @return true if the specified location was part of the hierarchy when the index was built
+     */
+    public boolean contains(Integer locationId) {
+        return medicalRecordLocations.containsKey(locationId);
+    }
+
+    /**
+     * @param locationId
+     * @return the id of the medical record location of the specified location, or null if it has none (or isn't in the index)
+     */
+    public Integer getMedicalRecordLocationId(Integer locationId) {
+        return medicalRecordLocations.get(locationId);
+    }
+
+    /**
+     * @param locationId
+     * @return the id of the archives location of the specified location, or null if it has none (or isn't in the index)
+     */
+    public Integer getArchivesLocationId(Integer locationId) {
+        return archivesLocations.get(locationId);
+    }
+
+    public int size() {
+        return medicalRecordLocations.size();
+    }
+
+    /**
+     * @param maxAgeMillis
+     * @return true if the index was built more than maxAgeMillis ago
+     */
+    public boolean isOlderThan(long maxAgeMillis) {
+        return System.currentTimeMillis() - dateBuilt > maxAgeMillis;
+    }
+
+    private static Integer findMedicalRecordLocationId(Location location, LocationTag medicalRecordLocationTag) {
+
+        while (location != null) {
+            if (hasTag(location, medicalRecordLocationTag)) {
+                return location.getId();
+            }
+            location = location.getParentLocation();
+        }
+
+        return null;
+    }
+
+    private static Integer findArchivesLocationId(Location location, LocationTag archivesLocationTag) {
+
+        if (hasTag(location, archivesLocationTag)) {
+            return location.getId();
+        }
+
+        if (location.getChildLocations(false) != null) {
+            for (Location child : location.getChildLocations(false)) {
+                Integer match = findArchivesLocationId(child, archivesLocationTag);
+                if (match != null) {
+                    return match;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static Location getAncestor(Location location, Integer ancestorId) {
+        while (!ancestorId.equals(location.getId())) {
+            location = location.getParentLocation();
+        }
+        return location;
+    }
+
+    private static boolean hasTag(Location location, LocationTag tag) {
+        return tag != null && location.hasTag(tag.getName());
+    }
+
+}
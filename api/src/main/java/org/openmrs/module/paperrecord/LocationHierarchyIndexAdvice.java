@@ -0,0 +1,78 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.api.context.Context;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Advice around the LocationService (see config.xml) that rebuilds the location hierarchy index of the paper record
+ * service whenever a location or location tag is saved, retired, unretired or purged
+ * <p/>
+ * The index is rebuilt once the transaction commits (and only once per transaction, however many locations it
+ * changes), since until then a new index would be built from locations other threads can't see yet
+ */
+public class LocationHierarchyIndexAdvice implements AfterReturningAdvice {
+
+    private static final Set<String> METHODS_CHANGING_LOCATIONS = new HashSet<String>(Arrays.asList(
+            "saveLocation", "retireLocation", "unretireLocation", "purgeLocation",
+            "saveLocationTag", "retireLocationTag", "unretireLocationTag", "purgeLocationTag"));
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+        if (METHODS_CHANGING_LOCATIONS.contains(method.getName())) {
+            rebuildLocationHierarchyIndexAfterCommit();
+        }
+    }
+
+    private void rebuildLocationHierarchyIndexAfterCommit() {
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            rebuildLocationHierarchyIndex();
+            return;
+        }
+
+        // already registered within this transaction
+        if (TransactionSynchronizationManager.hasResource(this)) {
+            return;
+        }
+
+        TransactionSynchronizationManager.bindResource(this, Boolean.TRUE);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+            @Override
+            public void afterCommit() {
+                rebuildLocationHierarchyIndex();
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(LocationHierarchyIndexAdvice.this);
+            }
+        });
+    }
+
+    private void rebuildLocationHierarchyIndex() {
+        Context.getService(PaperRecordService.class).rebuildLocationHierarchyIndex();
+    }
+
+}
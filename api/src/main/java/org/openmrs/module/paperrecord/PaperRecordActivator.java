@@ -18,6 +18,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
 import org.openmrs.module.emrapi.adt.AdtService;
 import org.openmrs.module.paperrecord.merge.FixPaperRecordsForMerge;
+import org.openmrs.module.paperrecord.template.AddressLayout;
 
 /**
  * This class contains the logic that is run every time this module is either started or stopped.
@@ -32,6 +33,17 @@ public class PaperRecordActivator extends BaseModuleActivator {
         Context.getService(AdtService.class)
                 .addPatientMergeAction(Context.getRegisteredComponent("fixPaperRecordsForMerge", FixPaperRecordsForMerge.class));
 
+        // throw away the snapshot of configured identifier types and location tags whenever the global properties change
+        Context.getAdministrationService()
+                .addGlobalPropertyListener(Context.getRegisteredComponent("paperRecordProperties", PaperRecordProperties.class));
+
+        // and recompile the address layout the labels are printed with whenever it changes
+        Context.getAdministrationService()
+                .addGlobalPropertyListener(Context.getRegisteredComponent("paperRecordAddressLayout", AddressLayout.class));
+
+        // build the index the service resolves medical record and archives locations through
+        Context.getService(PaperRecordService.class).rebuildLocationHierarchyIndex();
+
     }
 
     @Override
@@ -41,5 +53,10 @@ public class PaperRecordActivator extends BaseModuleActivator {
         Context.getService(AdtService.class)
                 .removePatientMergeAction(Context.getRegisteredComponent("fixPaperRecordsForMerge", FixPaperRecordsForMerge.class));
 
+        Context.getAdministrationService()
+                .removeGlobalPropertyListener(Context.getRegisteredComponent("paperRecordProperties", PaperRecordProperties.class));
+        Context.getAdministrationService()
+                .removeGlobalPropertyListener(Context.getRegisteredComponent("paperRecordAddressLayout", AddressLayout.class));
+
     }
 }
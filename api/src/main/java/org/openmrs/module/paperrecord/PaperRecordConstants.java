@@ -13,6 +13,18 @@ public class PaperRecordConstants {
 
     public static final String GP_EXTERNAL_DOSSIER_IDENTIFIER_TYPE = "emr.externalDossierIdentifierType";
 
+    public static final String GP_PATIENT_LOCK_PROVIDER = "paperrecord.patientLockProvider";
+
+    public static final String PATIENT_LOCK_PROVIDER_MEMORY = "memory";
+
+    public static final String PATIENT_LOCK_PROVIDER_DATABASE = "database";
+
+    public static final String GP_IDENTIFIER_POOL_BLOCK_SIZE = "paperrecord.identifierPool.blockSize";
+
+    public static final String GP_IDENTIFIER_POOL_LOW_WATER_MARK = "paperrecord.identifierPool.lowWaterMark";
+
+    public static final String GP_USE_STORED_LABEL_FORMATS = "paperrecord.labels.useStoredFormats";
+
     public static final String LOCATION_TAG_MEDICAL_RECORD_LOCATION = "Medical Record Location";
 
     public static final String LOCATION_TAG_ARCHIVES_LOCATION = "Archives Location";
@@ -25,6 +37,39 @@ public class PaperRecordConstants {
 
     public static final String TASK_CLOSE_STALE_CREATE_REQUESTS_DESCRIPTION = "Closes any pending create record requests older than a specified date";
 
+    public static final String TASK_DISPATCH_PRINT_JOBS = "Paper Records module - Dispatch Print Jobs";
+
+    public static final String TASK_DISPATCH_PRINT_JOBS_DESCRIPTION = "Sends any pending label print jobs to the printers";
+
+    public static final String TASK_REFILL_IDENTIFIER_POOLS = "Paper Records module - Refill Identifier Pools";
+
+    public static final String TASK_REFILL_IDENTIFIER_POOLS_DESCRIPTION = "Pre-allocates blocks of paper record identifiers for any medical record location running low";
+
     public final static int NUMBER_OF_FORM_LABELS_TO_PRINT = 3;
 
+    public final static int MAX_PRINT_JOB_ATTEMPTS = 5;
+
+    // the number of requests returned by a page of a paper record request queue, if no page size is given, and the most
+    // that can be asked for at once
+    public final static int DEFAULT_QUEUE_PAGE_SIZE = 100;
+
+    public final static int MAX_QUEUE_PAGE_SIZE = 500;
+
+    // a print job claimed by a dispatcher (see PaperRecordPrintJob) for longer than this is assumed to have been abandoned
+    public final static int PRINT_JOB_CLAIM_TIMEOUT_MINUTES = 10;
+
+    public final static int DEFAULT_IDENTIFIER_POOL_LOW_WATER_MARK = 10;
+
+    // the location hierarchy index is only rebuilt on the node where a location changed, so other nodes rebuild theirs
+    // once it is older than this
+    public final static int LOCATION_HIERARCHY_INDEX_MAX_AGE_MINUTES = 10;
+
+    public final static int CREATE_PAPER_RECORDS_BATCH_SIZE = 50;
+
+    public final static int RENDERED_LABEL_CACHE_SIZE = 500;
+
+    // a stored label format is sent to a printer again once it was last sent this long ago, since the printer loses it
+    // when it is switched off (see PrinterStoredFormats)
+    public final static int STORED_FORMAT_MAX_AGE_MINUTES = 5;
+
 }
@@ -0,0 +1,94 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.Location;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An in-memory pool of paper record identifiers, per medical record location, that have already been generated by
+ * idgen (and checked to not be in use), so that creating a paper record doesn't have to generate an identifier while
+ * holding the patient lock; the service checks identifiers again as it takes them, since one may have been assigned
+ * by hand in the meantime
+ * <p/>
+ * The pool is filled in blocks (see PaperRecordService.refillPaperRecordIdentifierPools), and identifiers are handed
+ * out in the order they were added. Since idgen never hands out the same identifier twice, this is safe to use with
+ * multiple nodes, each with their own pool; note, however, that any identifiers still in the pool when OpenMRS is
+ * shut down are never used, which leaves gaps in the sequence of dossier numbers
+ */
+public class PaperRecordIdentifierPool {
+
+    private final ConcurrentMap<Integer, Queue<String>> identifiers = new ConcurrentHashMap<Integer, Queue<String>>();
+
+    /**
+     * @param medicalRecordLocation
+     * @return the next identifier for the specified location, or null if the pool for the location is empty
+     */
+    public String take(Location medicalRecordLocation) {
+        if (medicalRecordLocation == null || medicalRecordLocation.getId() == null) {
+            return null;
+        }
+        return getIdentifiers(medicalRecordLocation).poll();
+    }
+
+    /**
+     * Adds identifiers to the pool for the specified location
+     *
+     * @param medicalRecordLocation
+     * @param identifiersToAdd
+     */
+    public void add(Location medicalRecordLocation, Collection<String> identifiersToAdd) {
+        if (medicalRecordLocation == null || medicalRecordLocation.getId() == null) {
+            throw new IllegalArgumentException("Can only pre-allocate identifiers for a saved location");
+        }
+        getIdentifiers(medicalRecordLocation).addAll(identifiersToAdd);
+    }
+
+    /**
+     * @param medicalRecordLocation
+     * @return the number of identifiers left in the pool for the specified location
+     */
+    public int size(Location medicalRecordLocation) {
+        if (medicalRecordLocation == null || medicalRecordLocation.getId() == null) {
+            return 0;
+        }
+        return getIdentifiers(medicalRecordLocation).size();
+    }
+
+    /**
+     * Empties the pool for all locations
+     */
+    public void clear() {
+        identifiers.clear();
+    }
+
+    private Queue<String> getIdentifiers(Location medicalRecordLocation) {
+
+        Queue<String> identifiersForLocation = identifiers.get(medicalRecordLocation.getId());
+
+        if (identifiersForLocation == null) {
+            identifiers.putIfAbsent(medicalRecordLocation.getId(), new ConcurrentLinkedQueue<String>());
+            identifiersForLocation = identifiers.get(medicalRecordLocation.getId());
+        }
+
+        return identifiersForLocation;
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.Location;
+import org.openmrs.User;
+
+import java.util.Date;
+
+/**
+ * A batch of (already generated) label data waiting to be sent to the label printer at a location
+ * <p/>
+ * Print jobs are written to the paperrecord_print_job "outbox" table in the same transaction as the change that
+ * requires the labels (ie, assigning a request), and are sent to the printer after that transaction has committed, so
+ * that we never hold a transaction open while talking to a printer. Print jobs can have the following states:
+ * <p/>
+ * PENDING--the job has not been printed yet (it may have been attempted, and failed, fewer than the maximum number of times)
+ * <p/>
+ * SENDING--the job has been claimed by a dispatcher, which is sending it to the printer; a job that stays in this state
+ * for longer than PaperRecordConstants.PRINT_JOB_CLAIM_TIMEOUT_MINUTES (ie, because the node sending it went down) is
+ * treated as pending again
+ * <p/>
+ * PRINTED--the job has been sent to the printer
+ * <p/>
+ * FAILED--the job has failed the maximum number of times, and will not be retried
+ */
+public class PaperRecordPrintJob extends BaseOpenmrsObject {
+
+    public enum Status {PENDING, SENDING, PRINTED, FAILED}
+
+    private Integer printJobId;
+
+    private Location location;
+
+    private String data;
+
+    private String encoding;
+
+    private Integer labelCount;
+
+    private Status status = Status.PENDING;
+
+    private Integer attempts = 0;
+
+    private String lastError;
+
+    private User creator;
+
+    private Date dateCreated;
+
+    private Date dateLastAttempted;
+
+    private Date datePrinted;
+
+    public PaperRecordPrintJob() {
+    }
+
+    @Override
+    public String toString() {
+        return "Paper Record Print Job: [" + printJobId + " " + status + " " + location + " (" + attempts + " attempts)]";
+    }
+
+    /**
+     * Records that a dispatcher has claimed this job, and is about to send it to the printer
+     */
+    public void markSending() {
+        this.dateLastAttempted = new Date();
+        this.status = Status.SENDING;
+    }
+
+    /**
+     * Records a successful attempt to print this job
+     */
+    public void markPrinted() {
+        Date now = new Date();
+        this.attempts = attempts + 1;
+        this.dateLastAttempted = now;
+        this.datePrinted = now;
+        this.lastError = null;
+        this.status = Status.PRINTED;
+    }
+
+    /**
+     * Records a failed attempt to print this job; the job is pending again, until it has failed maxAttempts times, at
+     * which point it is marked as FAILED
+     *
+     * @param error the message of the error the printer failed with
+     * @param maxAttempts the maximum number of times to attempt to print the job
+     */
+    public void markAttemptFailed(String error, int maxAttempts) {
+        this.attempts = attempts + 1;
+        this.dateLastAttempted = new Date();
+        this.lastError = error;
+        this.status = attempts >= maxAttempts ? Status.FAILED : Status.PENDING;
+    }
+
+    @Override
+    public Integer getId() {
+        return printJobId;
+    }
+
+    @Override
+    public void setId(Integer printJobId) {
+        this.printJobId = printJobId;
+    }
+
+    public Integer getPrintJobId() {
+        return printJobId;
+    }
+
+    public void setPrintJobId(Integer printJobId) {
+        this.printJobId = printJobId;
+    }
+
+    public Location getLocation() {
+        return location;
+    }
+
+    public void setLocation(Location location) {
+        this.location = location;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public void setData(String data) {
+        this.data = data;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    public Integer getLabelCount() {
+        return labelCount;
+    }
+
+    public void setLabelCount(Integer labelCount) {
+        this.labelCount = labelCount;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public User getCreator() {
+        return creator;
+    }
+
+    public void setCreator(User creator) {
+        this.creator = creator;
+    }
+
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    public void setDateCreated(Date dateCreated) {
+        this.dateCreated = dateCreated;
+    }
+
+    public Date getDateLastAttempted() {
+        return dateLastAttempted;
+    }
+
+    public void setDateLastAttempted(Date dateLastAttempted) {
+        this.dateLastAttempted = dateLastAttempted;
+    }
+
+    public Date getDatePrinted() {
+        return datePrinted;
+    }
+
+    public void setDatePrinted(Date datePrinted) {
+        this.datePrinted = datePrinted;
+    }
+
+}
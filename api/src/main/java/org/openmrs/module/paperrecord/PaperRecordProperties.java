@@ -1,30 +1,207 @@
 package org.openmrs.module.paperrecord;
 
+import org.openmrs.GlobalProperty;
 import org.openmrs.LocationTag;
 import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.emrapi.EmrApiConstants;
 import org.openmrs.module.emrapi.utils.ModuleProperties;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- *
+ * The identifier types and location tags that the paper record module is configured with, along with the settings
+ * read on every request or label (the patient lock provider, and whether to use stored label formats), are read through
+ * an immutable snapshot, rather than looking up the global property (and then the metadata) on every call (which, for
+ * the primary identifier type, happened once per row of the archives room queue). The snapshot is thrown away whenever
+ * one of its global properties changes (this is registered as a global property listener by the activator) or
+ * whenever a location tag may have been added or removed (see PaperRecordService.rebuildLocationHierarchyIndex), and
+ * is rebuilt on next use; since the identifier types show up on labels, a global property change also clears the
+ * rendered label cache
  */
 @Component("paperRecordProperties")
-public class PaperRecordProperties extends ModuleProperties {
+public class PaperRecordProperties extends ModuleProperties implements GlobalPropertyListener {
+
+    private static final List<String> SNAPSHOT_GLOBAL_PROPERTIES = Arrays.asList(EmrApiConstants.PRIMARY_IDENTIFIER_TYPE,
+            PaperRecordConstants.GP_PAPER_RECORD_IDENTIFIER_TYPE, PaperRecordConstants.GP_EXTERNAL_DOSSIER_IDENTIFIER_TYPE,
+            PaperRecordConstants.GP_PATIENT_LOCK_PROVIDER, PaperRecordConstants.GP_USE_STORED_LABEL_FORMATS);
+
+    private volatile Snapshot snapshot;
+
+    // incremented every time the snapshot is cleared, so that a snapshot that was being built at the time isn't kept
+    private final AtomicInteger snapshotVersion = new AtomicInteger();
+
+    private RenderedLabelCache renderedLabelCache;
+
+    @Autowired(required = false)
+    public void setRenderedLabelCache(RenderedLabelCache renderedLabelCache) {
+        this.renderedLabelCache = renderedLabelCache;
+    }
+
+    /**
+     * @return the primary identifier type, as configured in the emrapi module
+     * @throws IllegalStateException if no primary identifier type is configured
+     */
+    public PatientIdentifierType getPrimaryIdentifierType() {
+        PatientIdentifierType primaryIdentifierType = getSnapshot().primaryIdentifierType;
+        if (primaryIdentifierType == null) {
+            throw new IllegalStateException("Configuration required: " + EmrApiConstants.PRIMARY_IDENTIFIER_TYPE);
+        }
+        return primaryIdentifierType;
+    }
 
     public PatientIdentifierType getPaperRecordIdentifierType() {
-        return getPatientIdentifierTypeByGlobalProperty(PaperRecordConstants.GP_PAPER_RECORD_IDENTIFIER_TYPE, false);
+        return getSnapshot().paperRecordIdentifierType;
     }
 
     public PatientIdentifierType getExternalDossierIdentifierType() {
-        return getPatientIdentifierTypeByGlobalProperty(PaperRecordConstants.GP_EXTERNAL_DOSSIER_IDENTIFIER_TYPE, false);
+        return getSnapshot().externalDossierIdentifierType;
+    }
+
+    /**
+     * @return which patient lock provider to use, either "memory" (the default) or "database"
+     */
+    public String getPatientLockProvider() {
+        return getSnapshot().patientLockProvider;
+    }
+
+    /**
+     * @return how many paper record identifiers to pre-allocate for a medical record location at a time; zero (the
+     * default) means identifiers are not pre-allocated, but generated one at a time as records are created
+     */
+    public int getIdentifierPoolBlockSize() {
+        return getIntegerGlobalProperty(PaperRecordConstants.GP_IDENTIFIER_POOL_BLOCK_SIZE, 0);
+    }
+
+    /**
+     * @return the number of pre-allocated identifiers below which the pool for a medical record location is refilled
+     */
+    public int getIdentifierPoolLowWaterMark() {
+        return getIntegerGlobalProperty(PaperRecordConstants.GP_IDENTIFIER_POOL_LOW_WATER_MARK,
+                PaperRecordConstants.DEFAULT_IDENTIFIER_POOL_LOW_WATER_MARK);
+    }
+
+    /**
+     * @return whether to print labels against formats stored on the printers (see StoredFormatLabelTemplate), rather
+     * than sending the whole layout with every label
+     */
+    public boolean getUseStoredLabelFormats() {
+        return getSnapshot().useStoredLabelFormats;
     }
 
     public LocationTag getMedicalRecordLocationLocationTag() {
-        return locationService.getLocationTagByName(PaperRecordConstants.LOCATION_TAG_MEDICAL_RECORD_LOCATION);
+        return getSnapshot().medicalRecordLocationTag;
     }
 
     public LocationTag getArchivesLocationTag() {
-        return locationService.getLocationTagByName(PaperRecordConstants.LOCATION_TAG_ARCHIVES_LOCATION);
+        return getSnapshot().archivesLocationTag;
+    }
+
+    /**
+     * Throws away the snapshot of identifier types, location tags and settings, so that they are looked up again on
+     * next use
+     */
+    public synchronized void clearCache() {
+        snapshotVersion.incrementAndGet();
+        snapshot = null;
+    }
+
+    @Override
+    public boolean supportsPropertyName(String propertyName) {
+        return SNAPSHOT_GLOBAL_PROPERTIES.contains(propertyName);
+    }
+
+    @Override
+    public void globalPropertyChanged(GlobalProperty newValue) {
+        clearCache();
+        clearRenderedLabelCache();
+    }
+
+    @Override
+    public void globalPropertyDeleted(String propertyName) {
+        clearCache();
+        clearRenderedLabelCache();
+    }
+
+    private void clearRenderedLabelCache() {
+        if (renderedLabelCache != null) {
+            renderedLabelCache.clear();
+        }
+    }
+
+    private Snapshot getSnapshot() {
+
+        Snapshot current = snapshot;
+
+        if (current == null) {
+            int version = snapshotVersion.get();
+            String patientLockProvider = getGlobalProperty(PaperRecordConstants.GP_PATIENT_LOCK_PROVIDER, false);
+            String useStoredLabelFormats = getGlobalProperty(PaperRecordConstants.GP_USE_STORED_LABEL_FORMATS, false);
+            current = new Snapshot(
+                    getPatientIdentifierTypeByGlobalProperty(EmrApiConstants.PRIMARY_IDENTIFIER_TYPE, false),
+                    getPatientIdentifierTypeByGlobalProperty(PaperRecordConstants.GP_PAPER_RECORD_IDENTIFIER_TYPE, false),
+                    getPatientIdentifierTypeByGlobalProperty(PaperRecordConstants.GP_EXTERNAL_DOSSIER_IDENTIFIER_TYPE, false),
+                    locationService.getLocationTagByName(PaperRecordConstants.LOCATION_TAG_MEDICAL_RECORD_LOCATION),
+                    locationService.getLocationTagByName(PaperRecordConstants.LOCATION_TAG_ARCHIVES_LOCATION),
+                    patientLockProvider != null ? patientLockProvider.trim() : PaperRecordConstants.PATIENT_LOCK_PROVIDER_MEMORY,
+                    useStoredLabelFormats != null && Boolean.valueOf(useStoredLabelFormats.trim()));
+
+            // (if the snapshot was cleared while we were building it, we still use it for this call, but don't keep it)
+            synchronized (this) {
+                if (version == snapshotVersion.get()) {
+                    snapshot = current;
+                }
+            }
+        }
+
+        return current;
+    }
+
+    private int getIntegerGlobalProperty(String globalPropertyName, int defaultValue) {
+        String value = getGlobalProperty(globalPropertyName, false);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalStateException("Global property " + globalPropertyName + " must be an integer, but was " + value);
+        }
+    }
+
+    private static class Snapshot {
+
+        private final PatientIdentifierType primaryIdentifierType;
+
+        private final PatientIdentifierType paperRecordIdentifierType;
+
+        private final PatientIdentifierType externalDossierIdentifierType;
+
+        private final LocationTag medicalRecordLocationTag;
+
+        private final LocationTag archivesLocationTag;
+
+        private final String patientLockProvider;
+
+        private final boolean useStoredLabelFormats;
+
+        private Snapshot(PatientIdentifierType primaryIdentifierType, PatientIdentifierType paperRecordIdentifierType,
+                         PatientIdentifierType externalDossierIdentifierType, LocationTag medicalRecordLocationTag,
+                         LocationTag archivesLocationTag, String patientLockProvider, boolean useStoredLabelFormats) {
+            this.primaryIdentifierType = primaryIdentifierType;
+            this.paperRecordIdentifierType = paperRecordIdentifierType;
+            this.externalDossierIdentifierType = externalDossierIdentifierType;
+            this.medicalRecordLocationTag = medicalRecordLocationTag;
+            this.archivesLocationTag = archivesLocationTag;
+            this.patientLockProvider = patientLockProvider;
+            this.useStoredLabelFormats = useStoredLabelFormats;
+        }
+
     }
 
 }
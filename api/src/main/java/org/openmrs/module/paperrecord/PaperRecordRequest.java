@@ -77,6 +77,9 @@ public class PaperRecordRequest extends BaseOpenmrsObject {
 
     private Date dateStatusChanged;
 
+    // used by Hibernate for optimistic locking (see PaperRecordRequestDAO#assignPaperRecordRequest)
+    private Integer version;
+
     public PaperRecordRequest() {
     }
 
@@ -170,4 +173,30 @@ public class PaperRecordRequest extends BaseOpenmrsObject {
     public void setDateStatusChanged(Date dateStatusChanged) {
         this.dateStatusChanged = dateStatusChanged;
     }
+
+    /**
+     * The key that enforces, at the database level, that a paper record never has more than one pending request: while
+     * the request is pending (OPEN or ASSIGNED) this is the id of the paper record, otherwise it is null; the column
+     * has a unique index on it (and null values never collide)
+     * <p/>
+     * This is derived from the status and the paper record, so there is no public setter
+     *
+     * @return the pending key of this request
+     */
+    public Integer getPendingKey() {
+        return PENDING_STATUSES.contains(status) && paperRecord != null ? paperRecord.getId() : null;
+    }
+
+    // used by Hibernate only; the pending key is always recalculated from the status and the paper record
+    private void setPendingKey(Integer pendingKey) {
+    }
+
+    public Integer getVersion() {
+        return version;
+    }
+
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
+
 }
@@ -0,0 +1,101 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Date;
+
+/**
+ * Marks a position within a queue of paper record requests, so that the next page of the queue can be fetched
+ * <p/>
+ * Queues are ordered by date created and then by request id, so the position is simply the (dateCreated, requestId)
+ * pair of the last request on the previous page; the next page starts with the first request after that pair.
+ * <p/>
+ * The token can be passed to and from clients in its String form, "[dateCreated in millis]:[requestId]"
+ */
+public class PaperRecordRequestPageToken {
+
+    private static final String SEPARATOR = ":";
+
+    private Date dateCreated;
+
+    private Integer requestId;
+
+    public PaperRecordRequestPageToken(Date dateCreated, Integer requestId) {
+
+        if (dateCreated == null || requestId == null) {
+            throw new IllegalArgumentException("Date created and request id are both required");
+        }
+
+        this.dateCreated = dateCreated;
+        this.requestId = requestId;
+    }
+
+    /**
+     * @param request
+     * @return the token that will fetch the requests that come after the specified request in the queue
+     */
+    public static PaperRecordRequestPageToken after(PaperRecordRequest request) {
+        return new PaperRecordRequestPageToken(request.getDateCreated(), request.getRequestId());
+    }
+
+    /**
+     * @param row
+     * @return the token that will fetch the requests that come after the specified queue row in the queue
+     */
+    public static PaperRecordRequestPageToken after(PaperRecordRequestQueueRow row) {
+        return new PaperRecordRequestPageToken(row.getDateCreated(), row.getRequestId());
+    }
+
+    /**
+     * @param token
+     * @return the token parsed from its String form, or null if the token is blank
+     * @throws IllegalArgumentException if the token is not well-formed
+     */
+    public static PaperRecordRequestPageToken parse(String token) {
+
+        if (StringUtils.isBlank(token)) {
+            return null;
+        }
+
+        String[] parts = token.split(SEPARATOR);
+
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid paper record request page token: " + token);
+        }
+
+        try {
+            return new PaperRecordRequestPageToken(new Date(Long.valueOf(parts[0])), Integer.valueOf(parts[1]));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid paper record request page token: " + token, e);
+        }
+    }
+
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    public Integer getRequestId() {
+        return requestId;
+    }
+
+    @Override
+    public String toString() {
+        return dateCreated.getTime() + SEPARATOR + requestId;
+    }
+
+}
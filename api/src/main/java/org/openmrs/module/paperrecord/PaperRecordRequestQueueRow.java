@@ -0,0 +1,119 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.PersonName;
+
+import java.util.Date;
+
+/**
+ * A flattened view of a paper record request, holding just what is needed to display the request
+ * in one of the archives room queues
+ * <p/>
+ * These are fetched with a single projection query (see PaperRecordService#getPaperRecordRequestQueue) so that
+ * displaying a queue does not require walking (and lazy-loading) the request -> paper record -> patient identifier
+ * -> patient object graph for every row
+ */
+public class PaperRecordRequestQueueRow {
+
+    private Integer requestId;
+
+    private Date dateCreated;
+
+    private Date dateStatusChanged;
+
+    private Integer paperRecordId;
+
+    private String dossierNumber;
+
+    private PersonName patientName;
+
+    private String patientPrimaryIdentifier;
+
+    private String requestLocationName;
+
+    private String locationLastSent;
+
+    private Date dateLastSent;
+
+    public PaperRecordRequestQueueRow(Integer requestId, Date dateCreated, Date dateStatusChanged, Integer paperRecordId,
+                                      String dossierNumber, PersonName patientName, String patientPrimaryIdentifier,
+                                      String requestLocationName) {
+        this.requestId = requestId;
+        this.dateCreated = dateCreated;
+        this.dateStatusChanged = dateStatusChanged;
+        this.paperRecordId = paperRecordId;
+        this.dossierNumber = dossierNumber;
+        this.patientName = patientName;
+        this.patientPrimaryIdentifier = patientPrimaryIdentifier;
+        this.requestLocationName = requestLocationName;
+    }
+
+    public Integer getRequestId() {
+        return requestId;
+    }
+
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    public Date getDateStatusChanged() {
+        return dateStatusChanged;
+    }
+
+    public Integer getPaperRecordId() {
+        return paperRecordId;
+    }
+
+    public String getDossierNumber() {
+        return dossierNumber;
+    }
+
+    public PersonName getPatientName() {
+        return patientName;
+    }
+
+    /**
+     * @return the patient's primary identifier, or null if the patient does not have one
+     */
+    public String getPatientPrimaryIdentifier() {
+        return patientPrimaryIdentifier;
+    }
+
+    public String getRequestLocationName() {
+        return requestLocationName;
+    }
+
+    /**
+     * @return the name of the location this record was last sent to, or null if the record has never been sent
+     * (always null for records that have yet to be created)
+     */
+    public String getLocationLastSent() {
+        return locationLastSent;
+    }
+
+    public void setLocationLastSent(String locationLastSent) {
+        this.locationLastSent = locationLastSent;
+    }
+
+    public Date getDateLastSent() {
+        return dateLastSent;
+    }
+
+    public void setDateLastSent(Date dateLastSent) {
+        this.dateLastSent = dateLastSent;
+    }
+
+}
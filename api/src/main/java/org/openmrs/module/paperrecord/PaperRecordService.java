@@ -23,6 +23,7 @@ import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
 import org.openmrs.module.printer.PrinterService;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -100,6 +101,31 @@ public interface PaperRecordService extends OpenmrsService {
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
     PaperRecord createPaperRecordInternal(Patient patient, Location medicalRecordLocation);
 
+    /**
+     * Creates paper records for many patients at once at the specified location (ie, when registering a whole
+     * village, or migrating legacy dossiers); the result is the same as calling createPaperRecord for each patient,
+     * but patients are processed in batches of PaperRecordConstants.CREATE_PAPER_RECORDS_BATCH_SIZE, each batch in a
+     * single transaction, with the identifiers for the whole batch generated, and checked for collisions, at once
+     * <p/>
+     * Note that the Hibernate session is flushed and cleared after each batch, so any objects loaded before calling
+     * this method are detached once it returns
+     *
+     * @param patients
+     * @param medicalRecordLocation
+     * @return the paper record of each patient at the location (whether just created, or already existing), in the
+     * order the patients were passed in
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    Map<Patient, PaperRecord> createPaperRecords(Collection<Patient> patients, Location medicalRecordLocation);
+
+    /**
+     * This internal method should not be invoked directly! Use createPaperRecords instead
+     * <p/>
+     * Creates paper records for a single batch of patients, in a single transaction
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    Map<Patient, PaperRecord> createPaperRecordsInternal(List<Patient> patients, Location medicalRecordLocation);
+
     /**
      * Fetches the Paper Record Request with the specified id
      *
@@ -149,6 +175,31 @@ public interface PaperRecordService extends OpenmrsService {
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
     List<PaperRecordRequest> requestPaperRecordInternal(Patient patient, Location recordLocation, Location requestLocation);
 
+    /**
+     * Requests the paper records for a whole list of patients (ie, the patients expected at tomorrow's clinic session)
+     * for the specified location; the result is the same as calling requestPaperRecord for each patient, but the
+     * existing records and pending requests of all the patients are fetched with a couple of queries, any missing
+     * records are created in bulk (see createPaperRecords), and the requests are all created in a single transaction
+     *
+     * @param patients        the patients whose records we are requesting
+     * @param recordLocation  the location of the records (ie, "Mirebalais Hospital"); if the specified location is not
+     *                        a medical record location, will search up the location hierarchy for a valid medical
+     *                        record location
+     * @param requestLocation the location where the records are to be sent
+     * @return the requests for each patient, in the order the patients were passed in
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
+    Map<Patient, List<PaperRecordRequest>> requestPaperRecords(List<Patient> patients, Location recordLocation, Location requestLocation);
+
+    /**
+     * This internal method should not be invoked directly! Use requestPaperRecords instead
+     * <p/>
+     * Requests the paper records for a list of patients, in a single transaction
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
+    Map<Patient, List<PaperRecordRequest>> requestPaperRecordsInternal(List<Patient> patients, Location recordLocation,
+                                                                      Location requestLocation);
+
     /**
      * Gets all paper record requests in the OPEN state
      *
@@ -217,15 +268,25 @@ public interface PaperRecordService extends OpenmrsService {
 
     /**
      * Sets the status to ASSIGNED_TO_PULL and the assignee to the given value, for the given requests.
+     * <p/>
+     * Requests are claimed using optimistic locking: any request that someone else has modified (ie, claimed) since
+     * it was loaded is not assigned, and is instead reported in the "error" list of the returned map, as is any request
+     * that is not in the OPEN status
+     * <p/>
+     * The labels for the assigned requests are queued as print jobs as part of the assignment, and sent to the printer
+     * once the assignment has been committed; labels that can't be printed then stay queued, and printing them is
+     * retried, so the requests are still assigned, and the records are reported in the "printError" list of the
+     * returned map
      *
      * @param requests
      * @param assignee
      * @param location the location to print any required registration labels at
-     * @return the list that was passed in, but with assignees and status set
-     * @throws IllegalStateException if any of the requests are not in the OPEN status
+     * @return a map with the identifiers of the records successfully assigned under "success", and the identifiers of
+     * the records that someone else had already claimed, or that were no longer open, under "error", and the identifiers
+     * of the assigned records whose labels have not been printed yet under "printError"
      */
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
-    Map<String, List<String>> assignRequests(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException;
+    Map<String, List<String>> assignRequests(List<PaperRecordRequest> requests, Person assignee, Location location);
 
     /**
      * This internal method should not be invoked directly!
@@ -233,9 +294,12 @@ public interface PaperRecordService extends OpenmrsService {
      * Workaround because we need this method to be @Transactional and Spring won't handle calling a @Transactional
      * method from within the same class:
      * http://stackoverflow.com/questions/3423972/spring-transaction-method-call-by-the-method-within-the-same-class-does-not-wo
+     * <p/>
+     * Returns the ids of the print jobs queued for each of the requests, in the same order (or null for any request that
+     * wasn't assigned), so that the caller can dispatch just those jobs once the assignment has committed
      */
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
-    Map<String, List<String>> assignRequestsInternal(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException;
+    List<List<Integer>> assignRequestsInternal(List<PaperRecordRequest> requests, Person assignee, Location location);
 
     /**
      * Retrieves all record requests in the ASSIGNED state
@@ -287,6 +351,64 @@ public interface PaperRecordService extends OpenmrsService {
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
     List<PaperRecordRequest> getAssignedPaperRecordRequestsToCreate(Location medicalRecordLocation);
 
+    /**
+     * Retrieves a page of the record requests from the specified medical record location with ANY of the specified
+     * statuses, that are associated with records that either need to be created (pendingCreation = true) or need to
+     * be pulled (pendingCreation = false)
+     * <p/>
+     * Requests are ordered by date created (and then by request id); to fetch the next page, pass in the page token
+     * built from the last request of the current page (see PaperRecordRequestPageToken.after)
+     *
+     * @param statusList
+     * @param medicalRecordLocation
+     * @param pendingCreation
+     * @param pageToken the position to start after (null to start at the beginning of the queue)
+     * @param pageSize the maximum number of requests to return; null (or anything less than one) means
+     * PaperRecordConstants.DEFAULT_QUEUE_PAGE_SIZE, and anything more than PaperRecordConstants.MAX_QUEUE_PAGE_SIZE
+     * is capped at that
+     * @return the requested page of paper record requests
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordRequest> getPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Location medicalRecordLocation,
+                                                    boolean pendingCreation, PaperRecordRequestPageToken pageToken, Integer pageSize);
+
+    /**
+     * Returns the number of record requests from the specified medical record location with ANY of the specified
+     * statuses, that are associated with records that either need to be created (pendingCreation = true) or need to
+     * be pulled (pendingCreation = false)
+     * <p/>
+     * Use this rather than fetching a queue when only the size of the queue is needed
+     *
+     * @param statusList
+     * @param medicalRecordLocation
+     * @param pendingCreation
+     * @return the number of matching paper record requests
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    long countPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Location medicalRecordLocation, boolean pendingCreation);
+
+    /**
+     * Same as getPaperRecordRequests, but returns flattened queue rows (with the dossier number, patient name, primary
+     * identifier and request location name) fetched in a single query, rather than the requests themselves
+     * <p/>
+     * Rows for records that have already been created (ie, records to pull) also have the location and date the record
+     * was last sent to, fetched within the same transaction as the queue itself
+     * <p/>
+     * This is what should be used to display the archives room queues
+     *
+     * @param statusList
+     * @param medicalRecordLocation
+     * @param pendingCreation
+     * @param pageToken the position to start after (null to start at the beginning of the queue)
+     * @param pageSize the maximum number of rows to return; null (or anything less than one) means
+     * PaperRecordConstants.DEFAULT_QUEUE_PAGE_SIZE, and anything more than PaperRecordConstants.MAX_QUEUE_PAGE_SIZE
+     * is capped at that
+     * @return the requested page of queue rows
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordRequestQueueRow> getPaperRecordRequestQueue(List<PaperRecordRequest.Status> statusList, Location medicalRecordLocation,
+                                                                boolean pendingCreation, PaperRecordRequestPageToken pageToken, Integer pageSize);
+
     /**
      * Returns the pending (i.e, OPEN or ASSIGNED) paper record request (if any) for the record with the specified identifier and location
      * (there should only be one pending request per identifier & *location*)
@@ -333,6 +455,17 @@ public interface PaperRecordService extends OpenmrsService {
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
     PaperRecordRequest getMostRecentSentPaperRecordRequest(PaperRecord paperRecord);
 
+    /**
+     * Returns the most recent "sent" paper record request (if any) for each of the specified records, fetched in
+     * a single query
+     * "Most Recent" is the one with the most recent dateStatusChanged field
+     *
+     * @param paperRecords
+     * @return a map from paper record to the most recent "sent" request for that record; records with no sent requests are not included
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    Map<PaperRecord, PaperRecordRequest> getMostRecentSentPaperRecordRequests(Collection<PaperRecord> paperRecords);
+
     /**
      * Marks the specified paper record request as "sent"
      * Also, if the associated PaperRecord has a status of PENDING_CREATION, it's status is set to ACTIVE.
@@ -497,18 +630,124 @@ public interface PaperRecordService extends OpenmrsService {
      * Expires all pending pull requests (ie, those pull requests with status OPEN or ASSIGNED_TO_PULL) that
      * have a date_created before the specified expire date; Expires requests by setting the status
      * of those requests to CANCELLED
+     * <p/>
+     * The requests are expired with a single bulk update, rather than loading and saving each request
+     *
+     * @param expireDate
+     * @return the number of requests expired
+     */
+    int expirePendingPullRequests(Date expireDate);
+
+    /**
+     * Same as expirePendingPullRequests(Date), but expires at most maxRequests requests (the pending pull requests
+     * with the lowest request ids), so that the stale requests can be expired in a series of short transactions;
+     * calling this method repeatedly until it returns less than maxRequests expires all the stale requests
      *
      * @param expireDate
+     * @param maxRequests the maximum number of requests to expire (null to expire all)
+     * @return the number of stale requests found (any that changed status before they could be expired are skipped);
+     * if maxRequests is null, the number of requests expired
      */
-    void expirePendingPullRequests(Date expireDate);
+    int expirePendingPullRequests(Date expireDate, Integer maxRequests);
 
     /**
      * Expires all pending pull requests (ie, those create request with status OPEN or ASSIGNED_TO_CREATE) that
      * has a date_creaated before the specified expire date: Expires requests by setting the status
      * of those requests to CANCELLED
+     * <p/>
+     * The requests are expired with a single bulk update, rather than loading and saving each request
+     *
+     * @param expireDate
+     * @return the number of requests expired
+     */
+    int expirePendingCreateRequests(Date expireDate);
+
+    /**
+     * Same as expirePendingCreateRequests(Date), but expires at most maxRequests requests (the pending create requests
+     * with the lowest request ids), so that the stale requests can be expired in a series of short transactions;
+     * calling this method repeatedly until it returns less than maxRequests expires all the stale requests
+     *
      * @param expireDate
+     * @param maxRequests the maximum number of requests to expire (null to expire all)
+     * @return the number of stale requests found (any that changed status before they could be expired are skipped);
+     * if maxRequests is null, the number of requests expired
+     */
+    int expirePendingCreateRequests(Date expireDate, Integer maxRequests);
+
+    /**
+     * Sends (at most maxJobs) pending print jobs to the printer, in the order they were queued; the jobs for each
+     * printer are coalesced into as few writes as possible (see PrintSpooler), and a job that fails is retried the
+     * next time this is called, up to PaperRecordConstants.MAX_PRINT_JOB_ATTEMPTS times
+     *
+     * @param maxJobs the maximum number of jobs to dispatch (null to dispatch all)
+     * @return the number of jobs successfully printed
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    int dispatchPendingPrintJobs(Integer maxJobs);
+
+    /**
+     * This internal method should not be invoked directly! Use dispatchPendingPrintJobs instead
+     * <p/>
+     * Sends the specified print jobs (those that are still pending) to the printers, and records the outcome; the jobs
+     * are claimed in one short transaction (see claimPrintJobs), sent to the printers outside of any transaction, and
+     * the outcome of each write is recorded in a transaction of its own (see savePrintJobs), so that no locks are held
+     * while talking to a printer. Note that this must not be called within a transaction.
+     *
+     * @param printJobIds
+     * @return the number of the specified jobs that have been printed by this call, or that weren't this call's to
+     * print (ie, already printed, or claimed by another dispatcher)
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    int dispatchPrintJobs(List<Integer> printJobIds);
+
+    /**
+     * This internal method should not be invoked directly! Use dispatchPendingPrintJobs instead
+     * <p/>
+     * Claims those of the specified print jobs that are pending (or whose claim has timed out) for the caller, by
+     * marking them as SENDING
+     *
+     * @param printJobIds
+     * @return the jobs claimed
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordPrintJob> claimPrintJobs(List<Integer> printJobIds);
+
+    /**
+     * This internal method should not be invoked directly! Use dispatchPendingPrintJobs instead
+     * <p/>
+     * Records the outcome of sending the specified print jobs to the printer
+     *
+     * @param printJobs
      */
-    void expirePendingCreateRequests(Date expireDate);
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    void savePrintJobs(List<PaperRecordPrintJob> printJobs);
+
+    /**
+     * Pre-allocates a block of paper record identifiers (see PaperRecordProperties.getIdentifierPoolBlockSize) for each
+     * medical record location whose pool of pre-allocated identifiers has fallen below the low-water mark; createPaperRecord
+     * hands out identifiers from this pool before falling back to generating them one at a time
+     * <p/>
+     * Each location is refilled in its own transaction (see refillPaperRecordIdentifierPool); does nothing if the block
+     * size is zero (the default)
+     *
+     * @return the number of identifiers added to the pools
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    int refillPaperRecordIdentifierPools();
+
+    /**
+     * Pre-allocates a block of paper record identifiers for the specified medical record location, regardless of how
+     * many identifiers are left in its pool; identifiers that are already in use are discarded
+     * <p/>
+     * The identifiers are only added to the pool once the current transaction commits
+     * <p/>
+     * Does nothing if the block size is zero (the default)
+     *
+     * @param medicalRecordLocation
+     * @return the number of identifiers added to the pool
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    int refillPaperRecordIdentifierPool(Location medicalRecordLocation);
 
     /**
      * Finds the medical record location associated with the given location
@@ -521,6 +760,15 @@ public interface PaperRecordService extends OpenmrsService {
      */
     Location getMedicalRecordLocationAssociatedWith(Location location);
 
+    /**
+     * Rebuilds the index from each location to its medical record location and archives location that
+     * getMedicalRecordLocationAssociatedWith and getArchivesLocationAssociatedWith resolve locations through (see
+     * LocationHierarchyIndex); this is done at startup, after any transaction that changes a location or location tag
+     * commits, and once the index is older than PaperRecordConstants.LOCATION_HIERARCHY_INDEX_MAX_AGE_MINUTES, so there
+     * should be no need to call this directly
+     */
+    void rebuildLocationHierarchyIndex();
+
     /**
      * Finds the archives room associated with this location
      * Thie method first determines the medical record location associated with the given
@@ -14,44 +14,56 @@
 
 package org.openmrs.module.paperrecord;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.ListUtils;
-import org.apache.commons.collections.Predicate;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.DateUtils;
+import org.hibernate.exception.ConstraintViolationException;
 import org.openmrs.Location;
+import org.openmrs.LocationTag;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.Person;
 import org.openmrs.api.APIException;
+import org.openmrs.api.LocationService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
-import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.utils.GeneralUtils;
+import org.openmrs.module.idgen.AutoGenerationOption;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
 import org.openmrs.module.paperrecord.db.PaperRecordDAO;
 import org.openmrs.module.paperrecord.db.PaperRecordMergeRequestDAO;
+import org.openmrs.module.paperrecord.db.PaperRecordPrintJobDAO;
 import org.openmrs.module.paperrecord.db.PaperRecordRequestDAO;
 import org.openmrs.module.paperrecord.template.IdCardLabelTemplate;
 import org.openmrs.module.paperrecord.template.LabelTemplate;
 import org.openmrs.module.paperrecord.template.PaperFormLabelTemplate;
 import org.openmrs.module.paperrecord.template.PaperRecordLabelTemplate;
+import org.openmrs.module.paperrecord.template.StoredFormatLabelTemplate;
 import org.openmrs.module.printer.Printer;
 import org.openmrs.module.printer.PrinterService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.openmrs.module.paperrecord.PaperRecordRequest.PENDING_STATUSES;
 import static org.openmrs.module.paperrecord.PaperRecordRequest.Status;
@@ -64,9 +76,24 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     // TODO db changeset to remove location\
     // TODO merge request location?
 
-    // the methods to request and create a record use this method to make sure they have a lock on the patient before operating,
-    // so we can avoid creating duplicate requests and/or creates
-    private static Map<Integer, Object> patientLock = new HashMap<Integer, Object>();
+    // the methods to request and create a record lock the patient before operating, so we can avoid creating duplicate
+    // requests and/or creates; by default we use an in-memory lock, but in a multi-node deployment we need to use the
+    // database-backed lock (see getPatientLockProvider)
+    private static final PatientLockProvider inMemoryPatientLockProvider = new InMemoryPatientLockProvider();
+
+    private PatientLockProvider databasePatientLockProvider;
+
+    // paper record identifiers pre-allocated per medical record location (see refillPaperRecordIdentifierPools)
+    private PaperRecordIdentifierPool paperRecordIdentifierPool = new PaperRecordIdentifierPool();
+
+    // labels already rendered, so that reprinting labels for a patient doesn't mean rendering them again
+    private RenderedLabelCache renderedLabelCache = new RenderedLabelCache();
+
+    // the stored label formats already sent to each printer (see StoredFormatLabelTemplate)
+    private PrinterStoredFormats printerStoredFormats = new PrinterStoredFormats();
+
+    // coalesces and throttles the writes to each printer; wired, since it keeps track of the printers' queues
+    private PrintSpooler printSpooler;
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -76,14 +103,22 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
 
     private PaperRecordMergeRequestDAO paperRecordMergeRequestDAO;
 
+    private PaperRecordPrintJobDAO paperRecordPrintJobDAO;
+
     private PatientService patientService;
 
+    private LocationService locationService;
+
+    // resolves locations to their medical record location and archives location (see getLocationHierarchyIndex)
+    private volatile LocationHierarchyIndex locationHierarchyIndex;
+
+    // set while one thread rebuilds a stale location hierarchy index, so that other threads keep using the old one
+    private final AtomicBoolean rebuildingLocationHierarchyIndex = new AtomicBoolean(false);
+
     private IdentifierSourceService identifierSourceService;
 
     private PrinterService printerService;
 
-    private EmrApiProperties emrApiProperties;
-
     private PaperRecordProperties paperRecordProperties;
 
     private PaperRecordLabelTemplate paperRecordLabelTemplate;
@@ -104,12 +139,16 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         this.paperRecordMergeRequestDAO = paperRecordMergeRequestDAO;
     }
 
+    public void setPaperRecordPrintJobDAO(PaperRecordPrintJobDAO paperRecordPrintJobDAO) {
+        this.paperRecordPrintJobDAO = paperRecordPrintJobDAO;
+    }
+
     public void setPatientService(PatientService patientService) {
         this.patientService = patientService;
     }
 
-    public void setEmrApiProperties(EmrApiProperties emrApiProperties) {
-        this.emrApiProperties = emrApiProperties;
+    public void setLocationService(LocationService locationService) {
+        this.locationService = locationService;
     }
 
     public void setPaperRecordProperties(PaperRecordProperties paperRecordProperties) {
@@ -128,6 +167,26 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         this.idCardLabelTemplate = idCardLabelTemplate;
     }
 
+    public void setDatabasePatientLockProvider(PatientLockProvider databasePatientLockProvider) {
+        this.databasePatientLockProvider = databasePatientLockProvider;
+    }
+
+    public void setPaperRecordIdentifierPool(PaperRecordIdentifierPool paperRecordIdentifierPool) {
+        this.paperRecordIdentifierPool = paperRecordIdentifierPool;
+    }
+
+    public void setRenderedLabelCache(RenderedLabelCache renderedLabelCache) {
+        this.renderedLabelCache = renderedLabelCache;
+    }
+
+    public void setPrintSpooler(PrintSpooler printSpooler) {
+        this.printSpooler = printSpooler;
+    }
+
+    public void setPrinterStoredFormats(PrinterStoredFormats printerStoredFormats) {
+        this.printerStoredFormats = printerStoredFormats;
+    }
+
     @Override
     public void setPrinterService(PrinterService printerService) {
         this.printerService = printerService;
@@ -158,7 +217,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     @Transactional(readOnly = true)
     public boolean paperRecordExistsForPatientWithPrimaryIdentifier(String patientIdentifier, Location medicalRecordLocation) {
 
-        List<Patient> patients = patientService.getPatients(null, patientIdentifier, Collections.singletonList(emrApiProperties.getPrimaryIdentifierType()), true);
+        List<Patient> patients = patientService.getPatients(null, patientIdentifier, Collections.singletonList(paperRecordProperties.getPrimaryIdentifierType()), true);
 
         if (patients == null || patients.size() == 0) {
             return false;
@@ -214,13 +273,42 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         // medical record location)
         Location recordLocation = getMedicalRecordLocationAssociatedWith(medicalRecordLocation);
 
-        List<PaperRecordRequest> requests;
+        // the pending key on the request guarantees that a paper record never has more than one pending request, so we
+        // only need to lock the patient if we are going to have to create a paper record
+        if (getPaperRecords(patient, recordLocation).isEmpty()) {
+
+            PatientLockProvider patientLockProvider = getPatientLockProvider();
+            patientLockProvider.lock(patient);
 
-        synchronized(lockOnPatient(patient)) {
-            requests = Context.getService(PaperRecordService.class).requestPaperRecordInternal(patient, recordLocation,requestLocation);
+            try {
+                return requestPaperRecordWithRetry(patient, recordLocation, requestLocation);
+            }
+            finally {
+                patientLockProvider.unlock(patient);
+            }
         }
 
-        return requests;
+        return requestPaperRecordWithRetry(patient, recordLocation, requestLocation);
+    }
+
+    private List<PaperRecordRequest> requestPaperRecordWithRetry(Patient patient, Location recordLocation, Location requestLocation) {
+
+        try {
+            return Context.getService(PaperRecordService.class).requestPaperRecordInternal(patient, recordLocation, requestLocation);
+        }
+        catch (RuntimeException e) {
+
+            if (!isConstraintViolation(e) || TransactionSynchronizationManager.isActualTransactionActive()) {
+                throw e;
+            }
+
+            // someone else created a pending request for the record between our check and our insert, so our
+            // transaction has been rolled back; trying again will find (and update) their request instead (note that
+            // we can only retry if our transaction was the outermost one; if we were called within a caller's
+            // transaction, that transaction is now rollback-only, so it is up to the caller to retry)
+            log.debug("Pending request for patient " + patient.getId() + " created concurrently, retrying", e);
+            return Context.getService(PaperRecordService.class).requestPaperRecordInternal(patient, recordLocation, requestLocation);
+        }
     }
 
     @Override
@@ -237,25 +325,11 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         // if pending record request exists, simply update that request location and return it, and delet duplicates
         // TODO: support multiple requests for the same record from different locations at the same time, instead of this "LAST REQUEST WINS" scenario, and deleting duplicqtes
         if (requests.size() > 0) {
-
-            Iterator<PaperRecordRequest> i = requests.iterator();
-            PaperRecordRequest firstRequest = i.next();
-            firstRequest.setRequestLocation(requestLocation);
-            paperRecordRequestDAO.saveOrUpdate(firstRequest);
-
-            while (i.hasNext()) {
-                PaperRecordRequest request = i.next();
-                request.updateStatus(Status.CANCELLED);
-                paperRecordRequestDAO.saveOrUpdate(request);
-            }
-
-            return requests;
+            return updatePendingPaperRecordRequests(requests, requestLocation);
         }
         // if no pending record exists, create new requests
         else {
 
-            requests = new ArrayList<PaperRecordRequest>();
-
             // get records to create requests for
             List<PaperRecord> paperRecords = getPaperRecords(patient, recordLocation);
 
@@ -264,23 +338,155 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
                 paperRecords.add(createPaperRecord(patient, recordLocation));
             }
 
-            // now create requests for all paper records for patient at location
-            for (PaperRecord paperRecord : paperRecords) {
+            return createPaperRecordRequests(paperRecords, requestLocation);
+        }
+    }
+
+    @Override
+    public Map<Patient, List<PaperRecordRequest>> requestPaperRecords(List<Patient> patients, Location medicalRecordLocation,
+                                                                     Location requestLocation) {
+
+        if (patients == null || patients.contains(null)) {
+            throw new IllegalArgumentException("Patients cannot be null");
+        }
+
+        if (medicalRecordLocation == null) {
+            throw new IllegalArgumentException("Record Location cannot be null");
+        }
+
+        if (requestLocation == null) {
+            throw new IllegalArgumentException("Request Location cannot be null");
+        }
 
-                PaperRecordRequest request = new PaperRecordRequest();
-                request.setPaperRecord(paperRecord);
-                request.setCreator(Context.getAuthenticatedUser());
-                request.setDateCreated(new Date());
-                request.setRequestLocation(requestLocation);
-                paperRecordRequestDAO.saveOrUpdate(request);
+        Location recordLocation = getMedicalRecordLocationAssociatedWith(medicalRecordLocation);
+
+        // (a patient on the list more than once still only gets one request)
+        List<Patient> patientsToRequest = new ArrayList<Patient>(new LinkedHashSet<Patient>(patients));
+
+        // create the records of any patients that don't have one yet up front, in bulk (createPaperRecords locks these
+        // patients); as with requestPaperRecord, the pending key on the request guarantees that we don't create
+        // duplicate requests, so we don't need to lock the patients that already have a record
+        Set<Integer> patientsWithRecord = new HashSet<Integer>();
+        for (PaperRecord paperRecord : paperRecordDAO.findPaperRecords(getSavedPatients(patientsToRequest), recordLocation)) {
+            patientsWithRecord.add(paperRecord.getPatientIdentifier().getPatient().getId());
+        }
+
+        List<Patient> patientsWithoutRecord = new ArrayList<Patient>();
+        for (Patient patient : patientsToRequest) {
+            if (!patientsWithRecord.contains(patient.getId())) {
+                patientsWithoutRecord.add(patient);
+            }
+        }
 
-                requests.add(request);
+        if (!patientsWithoutRecord.isEmpty()) {
+            createPaperRecords(patientsWithoutRecord, recordLocation);
+        }
+
+        try {
+            return Context.getService(PaperRecordService.class).requestPaperRecordsInternal(patientsToRequest, recordLocation,
+                    requestLocation);
+        }
+        catch (RuntimeException e) {
+
+            if (!isConstraintViolation(e) || TransactionSynchronizationManager.isActualTransactionActive()) {
+                throw e;
             }
 
-            return requests;
+            // someone else created a pending request for one of the records between our check and our insert (see
+            // requestPaperRecordWithRetry, including why we can't retry within a caller's transaction); trying again
+            // will find (and update) their request instead
+            log.debug("Pending request for one of " + patientsToRequest.size() + " patients created concurrently, retrying", e);
+            return Context.getService(PaperRecordService.class).requestPaperRecordsInternal(patientsToRequest, recordLocation,
+                    requestLocation);
         }
     }
 
+    @Override
+    @Transactional
+    public Map<Patient, List<PaperRecordRequest>> requestPaperRecordsInternal(List<Patient> patients, Location recordLocation,
+                                                                             Location requestLocation) {
+
+        List<Patient> savedPatients = getSavedPatients(patients);
+
+        // fetch the pending requests and the records for the whole list at once
+        Map<Integer, List<PaperRecordRequest>> pendingRequests = new HashMap<Integer, List<PaperRecordRequest>>();
+        for (PaperRecordRequest request : paperRecordRequestDAO.findPaperRecordRequests(PENDING_STATUSES, savedPatients, recordLocation)) {
+            Integer patientId = request.getPaperRecord().getPatientIdentifier().getPatient().getId();
+            if (!pendingRequests.containsKey(patientId)) {
+                pendingRequests.put(patientId, new ArrayList<PaperRecordRequest>());
+            }
+            pendingRequests.get(patientId).add(request);
+        }
+
+        Map<Integer, List<PaperRecord>> paperRecords = new HashMap<Integer, List<PaperRecord>>();
+        for (PaperRecord paperRecord : paperRecordDAO.findPaperRecords(savedPatients, recordLocation)) {
+            Integer patientId = paperRecord.getPatientIdentifier().getPatient().getId();
+            if (!paperRecords.containsKey(patientId)) {
+                paperRecords.put(patientId, new ArrayList<PaperRecord>());
+            }
+            paperRecords.get(patientId).add(paperRecord);
+        }
+
+        Map<Patient, List<PaperRecordRequest>> requests = new LinkedHashMap<Patient, List<PaperRecordRequest>>();
+
+        for (Patient patient : patients) {
+
+            if (pendingRequests.containsKey(patient.getId())) {
+                requests.put(patient, updatePendingPaperRecordRequests(pendingRequests.get(patient.getId()), requestLocation));
+            }
+            else {
+                List<PaperRecord> paperRecordsForPatient = paperRecords.get(patient.getId());
+
+                // the records have normally been created by requestPaperRecords already
+                if (paperRecordsForPatient == null) {
+                    paperRecordsForPatient = new ArrayList<PaperRecord>();
+                    paperRecordsForPatient.add(createPaperRecord(patient, recordLocation));
+                }
+
+                requests.put(patient, createPaperRecordRequests(paperRecordsForPatient, requestLocation));
+            }
+        }
+
+        return requests;
+    }
+
+    // updates the request location of the first of the pending requests, and cancels the rest
+    private List<PaperRecordRequest> updatePendingPaperRecordRequests(List<PaperRecordRequest> requests, Location requestLocation) {
+
+        Iterator<PaperRecordRequest> i = requests.iterator();
+        PaperRecordRequest firstRequest = i.next();
+        firstRequest.setRequestLocation(requestLocation);
+        paperRecordRequestDAO.saveOrUpdate(firstRequest);
+
+        while (i.hasNext()) {
+            PaperRecordRequest request = i.next();
+            request.updateStatus(Status.CANCELLED);
+            paperRecordRequestDAO.saveOrUpdate(request);
+        }
+
+        return requests;
+    }
+
+    private List<PaperRecordRequest> createPaperRecordRequests(List<PaperRecord> paperRecords, Location requestLocation) {
+
+        List<PaperRecordRequest> requests = new ArrayList<PaperRecordRequest>();
+
+        // now create requests for all paper records for patient at location
+        for (PaperRecord paperRecord : paperRecords) {
+
+            PaperRecordRequest request = new PaperRecordRequest();
+            request.setPaperRecord(paperRecord);
+            request.setCreator(Context.getAuthenticatedUser());
+            request.setDateCreated(new Date());
+            request.setRequestLocation(requestLocation);
+            paperRecordRequestDAO.saveOrUpdate(request);
+
+            requests.add(request);
+        }
+
+        return requests;
+    }
+
     @Override
     @Transactional
     public PaperRecordRequest savePaperRecordRequest(PaperRecordRequest paperRecordRequest) {
@@ -305,54 +511,36 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getOpenPaperRecordRequestsToPull() {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getOpenPaperRecordRequests(), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ! ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
+                PaperRecord.Status.PENDING_CREATION, false);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getOpenPaperRecordRequestsToPull(Location medicalRecordLocation) {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getOpenPaperRecordRequests(medicalRecordLocation), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ! ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), getMedicalRecordLocationAssociatedWith(medicalRecordLocation),
+                PaperRecord.Status.PENDING_CREATION, false);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getOpenPaperRecordRequestsToCreate() {
-       return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getOpenPaperRecordRequests(), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
-
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
+                PaperRecord.Status.PENDING_CREATION, true);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getOpenPaperRecordRequestsToCreate(Location medicalRecordLocation) {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getOpenPaperRecordRequests(medicalRecordLocation), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
-
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), getMedicalRecordLocationAssociatedWith(medicalRecordLocation),
+                PaperRecord.Status.PENDING_CREATION, true);
     }
 
-    // we break this out into an external public and internal private method because we want the transaction to
-    // occur within the synchronized block
+    // note that this is not synchronized; requests are claimed using optimistic locking (see assignRequestsInternal),
+    // so archivists at different locations (or working on different requests) don't have to wait on each other
 
     @Override
-    public synchronized Map<String, List<String>> assignRequests(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException {
+    public Map<String, List<String>> assignRequests(List<PaperRecordRequest> requests, Person assignee, Location location) {
 
         if (requests == null) {
             throw new IllegalArgumentException("Requests cannot be null");
@@ -362,45 +550,87 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             throw new IllegalArgumentException("Assignee cannot be null");
         }
 
-        // this outer block allows us to synchronize outside of the @Transaction (I think?)
-
         // HACK: we need to reference the service here because an internal call won't pick up the @Transactional on the
         // internal method; we could potentially wire the bean into itself, but are unsure of that
         // see PaperRecordService.assignRequestsInternal(...  for more information
-        return Context.getService(PaperRecordService.class).assignRequestsInternal(requests, assignee, location);
+        List<List<Integer>> printJobIds = Context.getService(PaperRecordService.class).assignRequestsInternal(requests,
+                assignee, location);
+
+        Map<String, List<String>> response = new HashMap<String, List<String>>();
+        response.put("success", new LinkedList<String>());
+        response.put("error", new LinkedList<String>());
+        response.put("printError", new LinkedList<String>());
+
+        for (int i = 0; i < requests.size(); i++) {
+
+            String identifier = requests.get(i).getPaperRecord().getPatientIdentifier().getIdentifier();
+            List<Integer> requestPrintJobIds = printJobIds.get(i);
+
+            if (requestPrintJobIds == null) {
+                response.get("error").add(identifier);
+                continue;
+            }
+
+            response.get("success").add(identifier);
+
+            // the labels were queued as print jobs in the same transaction as the assignment; now that it has committed,
+            // send them to the printer; any that fail stay in the queue, and are retried by the DispatchPrintJobsTask, so
+            // the assignment stands, and we just report the records whose labels haven't been printed yet (note that we
+            // only send our own jobs, not any others that happen to be pending)
+            if (!requestPrintJobIds.isEmpty()
+                    && Context.getService(PaperRecordService.class).dispatchPrintJobs(requestPrintJobIds) < requestPrintJobIds.size()) {
+                log.warn("Unable to print labels for paper record " + identifier + " at location " + location
+                        + "; the request has been assigned, and printing will be retried");
+                response.get("printError").add(identifier);
+            }
+        }
+
+        return response;
     }
 
 
     // HACK; note that this method must be public in order for Spring to pick up the @Transactional annotation;
     // see PaperRecordService.assignRequestsInternal(...  for more information
-    @Transactional(rollbackFor = UnableToPrintLabelException.class)
-    public Map<String, List<String>> assignRequestsInternal(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException {
+    @Transactional
+    public List<List<Integer>> assignRequestsInternal(List<PaperRecordRequest> requests, Person assignee, Location location) {
 
-        Map<String, List<String>> response = new HashMap<String, List<String>>();
-        response.put("success", new LinkedList<String>());
-        response.put("error", new LinkedList<String>());
+        // the print jobs queued for each of the requests, or null for any request that wasn't assigned
+        List<List<Integer>> printJobIds = new ArrayList<List<Integer>>();
 
         for (PaperRecordRequest request : requests) {
 
-            // as a sanity check, ignore any requests that aren't open
-            if (request.getStatus() == Status.OPEN) {
+            // as a sanity check, don't assign any requests that aren't open (eg, that have been assigned, or cancelled,
+            // since the caller loaded them)
+            if (request.getStatus() != Status.OPEN) {
+                printJobIds.add(null);
+                continue;
+            }
 
-                // we chose a different printing scheme based on whether or not a paper record needs to be created
-                if (request.getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION)) {
-                    printPaperRecordLabelSet(request, location);
-                } else {
-                    printPaperFormLabels(request, location, PaperRecordConstants.NUMBER_OF_FORM_LABELS_TO_PRINT);
-                }
+            // claim the request before printing anything; this fails if someone else has claimed the request
+            // since it was loaded, in which case we move on to the next request
+            if (!paperRecordRequestDAO.assignPaperRecordRequest(request, assignee)) {
+                printJobIds.add(null);
+                continue;
+            }
 
-                request.updateStatus(Status.ASSIGNED);
-                request.setAssignee(assignee);
-                paperRecordRequestDAO.saveOrUpdate(request);
+            // we chose a different printing scheme based on whether or not a paper record needs to be created;
+            // the labels are only queued here, and actually printed once this transaction has committed
+            Patient patient = request.getPaperRecord().getPatientIdentifier().getPatient();
+            String identifier = request.getPaperRecord().getPatientIdentifier().getIdentifier();
+            List<Integer> requestPrintJobIds = new ArrayList<Integer>();
 
-                response.get("success").add(request.getPaperRecord().getPatientIdentifier().getIdentifier());
+            if (request.getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION)) {
+                queueLabels(patient, identifier, location, 1, paperRecordLabelTemplate, requestPrintJobIds);
+                queueLabels(patient, identifier, location, PaperRecordConstants.NUMBER_OF_FORM_LABELS_TO_PRINT, paperFormLabelTemplate, requestPrintJobIds);
+                queueLabels(patient, null, location, 1, idCardLabelTemplate, requestPrintJobIds);
+            } else {
+                queueLabels(patient, identifier, location, PaperRecordConstants.NUMBER_OF_FORM_LABELS_TO_PRINT, paperFormLabelTemplate, requestPrintJobIds);
             }
+
+            printJobIds.add(requestPrintJobIds);
         }
 
-        return response;
+        return printJobIds;
     }
 
     @Override
@@ -420,45 +650,94 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getAssignedPaperRecordRequestsToPull() {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getAssignedPaperRecordRequests(), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ! ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), null,
+                PaperRecord.Status.PENDING_CREATION, false);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getAssignedPaperRecordRequestsToPull(Location medicalRecordLocation) {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getAssignedPaperRecordRequests(medicalRecordLocation), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ! ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), getMedicalRecordLocationAssociatedWith(medicalRecordLocation),
+                PaperRecord.Status.PENDING_CREATION, false);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getAssignedPaperRecordRequestsToCreate(Location medicalRecordLocation) {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getAssignedPaperRecordRequests(medicalRecordLocation), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), getMedicalRecordLocationAssociatedWith(medicalRecordLocation),
+                PaperRecord.Status.PENDING_CREATION, true);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getAssignedPaperRecordRequestsToCreate() {
-    return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getAssignedPaperRecordRequests(), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), null,
+                PaperRecord.Status.PENDING_CREATION, true);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordRequest> getPaperRecordRequests(List<Status> statusList, Location medicalRecordLocation,
+                                                           boolean pendingCreation, PaperRecordRequestPageToken pageToken, Integer pageSize) {
+        return paperRecordRequestDAO.findPaperRecordRequests(statusList,
+                medicalRecordLocation != null ? getMedicalRecordLocationAssociatedWith(medicalRecordLocation) : null,
+                PaperRecord.Status.PENDING_CREATION, pendingCreation,
+                pageToken != null ? pageToken.getDateCreated() : null,
+                pageToken != null ? pageToken.getRequestId() : null,
+                getQueuePageSize(pageSize));
+    }
+
+    // a page of a queue is never unbounded, so that no single call can read the whole queue
+    private int getQueuePageSize(Integer pageSize) {
+        if (pageSize == null || pageSize <= 0) {
+            return PaperRecordConstants.DEFAULT_QUEUE_PAGE_SIZE;
+        }
+        return Math.min(pageSize, PaperRecordConstants.MAX_QUEUE_PAGE_SIZE);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public long countPaperRecordRequests(List<Status> statusList, Location medicalRecordLocation, boolean pendingCreation) {
+        return paperRecordRequestDAO.countPaperRecordRequests(statusList,
+                medicalRecordLocation != null ? getMedicalRecordLocationAssociatedWith(medicalRecordLocation) : null,
+                PaperRecord.Status.PENDING_CREATION, pendingCreation);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordRequestQueueRow> getPaperRecordRequestQueue(List<Status> statusList, Location medicalRecordLocation,
+                                                                       boolean pendingCreation, PaperRecordRequestPageToken pageToken, Integer pageSize) {
+
+        List<PaperRecordRequestQueueRow> rows = paperRecordRequestDAO.findPaperRecordRequestQueueRows(statusList,
+                medicalRecordLocation != null ? getMedicalRecordLocationAssociatedWith(medicalRecordLocation) : null,
+                PaperRecord.Status.PENDING_CREATION, pendingCreation,
+                paperRecordProperties.getPrimaryIdentifierType(),
+                pageToken != null ? pageToken.getDateCreated() : null,
+                pageToken != null ? pageToken.getRequestId() : null,
+                getQueuePageSize(pageSize));
+
+        // add the location and date last sent to any rows for records that have already been created; we fetch these
+        // in bulk, and in the same transaction as the queue itself, so that we don't see a request that was marked
+        // as sent in another thread in the meantime as the last sent request for its own row
+        if (!pendingCreation && rows.size() > 0) {
+
+            List<Integer> paperRecordIds = new ArrayList<Integer>();
+            for (PaperRecordRequestQueueRow row : rows) {
+                paperRecordIds.add(row.getPaperRecordId());
             }
-        }));
+
+            Map<Integer, PaperRecordRequest> lastSentRequests = getMostRecentSentPaperRecordRequestsById(paperRecordIds);
+
+            for (PaperRecordRequestQueueRow row : rows) {
+                PaperRecordRequest lastSentRequest = lastSentRequests.get(row.getPaperRecordId());
+                if (lastSentRequest != null && !lastSentRequest.getRequestId().equals(row.getRequestId())) {
+                    row.setLocationLastSent(lastSentRequest.getRequestLocation().getName());
+                    row.setDateLastSent(lastSentRequest.getDateStatusChanged());
+                }
+            }
+        }
+
+        return rows;
     }
 
     @Override
@@ -508,7 +787,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
 
         // if no requests, see if this is another type of patient identifier (note tha this appears to be computationally expensive)
         if ((requests == null || requests.size() == 0)) {
-            List<Patient> patients = patientService.getPatients(null, identifier, Collections.singletonList(emrApiProperties.getPrimaryIdentifierType()), true);
+            List<Patient> patients = patientService.getPatients(null, identifier, Collections.singletonList(paperRecordProperties.getPrimaryIdentifierType()), true);
             if (patients != null && patients.size() > 0) {
                 if (patients.size() > 1) {
                     throw new IllegalStateException("Duplicate patients exist with identifier " + identifier);
@@ -531,23 +810,38 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     @Override
     @Transactional(readOnly = true)
     public PaperRecordRequest getMostRecentSentPaperRecordRequest(PaperRecord paperRecord) {
+        return getMostRecentSentPaperRecordRequests(Collections.singleton(paperRecord)).get(paperRecord);
+    }
 
-        List<PaperRecordRequest> requests = paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.SENT),
-                paperRecord);
+    @Override
+    @Transactional(readOnly = true)
+    public Map<PaperRecord, PaperRecordRequest> getMostRecentSentPaperRecordRequests(Collection<PaperRecord> paperRecords) {
 
-        if (requests == null || requests.size() == 0) {
-            return null;
-        } else {
-            Collections.sort(requests, new Comparator<PaperRecordRequest>() {
-                @Override
-                public int compare(PaperRecordRequest request1, PaperRecordRequest request2) {
-                    // get date status changed should never be null, but just to be safe
-                    return request1.getDateStatusChanged() == null ? 1 : request2.getDateStatusChanged() == null ? -1
-                            : request1.getDateStatusChanged().compareTo(request2.getDateStatusChanged());
-                }
-            });
-            return requests.get(requests.size() - 1);  // most recent is last one in list
+        Map<Integer, PaperRecord> paperRecordsById = new HashMap<Integer, PaperRecord>();
+        for (PaperRecord paperRecord : paperRecords) {
+            paperRecordsById.put(paperRecord.getRecordId(), paperRecord);
+        }
+
+        Map<PaperRecord, PaperRecordRequest> mostRecentSentRequests = new HashMap<PaperRecord, PaperRecordRequest>();
+
+        for (Map.Entry<Integer, PaperRecordRequest> entry : getMostRecentSentPaperRecordRequestsById(paperRecordsById.keySet()).entrySet()) {
+            mostRecentSentRequests.put(paperRecordsById.get(entry.getKey()), entry.getValue());
+        }
+
+        return mostRecentSentRequests;
+    }
+
+    // the most recent sent request for each of the specified paper records, keyed by paper record id
+    private Map<Integer, PaperRecordRequest> getMostRecentSentPaperRecordRequestsById(Collection<Integer> paperRecordIds) {
+
+        Map<Integer, PaperRecordRequest> mostRecentSentRequests = new HashMap<Integer, PaperRecordRequest>();
+
+        // requests are ordered by id, so if two requests for the same record have the same date status changed, the later one wins
+        for (PaperRecordRequest request : paperRecordRequestDAO.findMostRecentPaperRecordRequests(Status.SENT, paperRecordIds)) {
+            mostRecentSentRequests.put(request.getPaperRecord().getRecordId(), request);
         }
+
+        return mostRecentSentRequests;
     }
 
     @Override
@@ -646,8 +940,66 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             return;  // just do nothing if we don't have a count
         }
 
-        String data = template.generateLabel(patient, identifier);
-        String encoding = template.getEncoding();
+        // if we're using stored formats, only send the format to the printer if we haven't already
+        StoredFormatLabelTemplate storedFormatTemplate = getStoredFormatTemplate(template);
+        Printer printer = storedFormatTemplate != null ? printerService.getDefaultPrinter(location, Printer.Type.LABEL) : null;
+
+        String data;
+        if (printer != null) {
+            data = generateLabels(patient, identifier, count, template, true);
+            if (!printerStoredFormats.isStored(printer, storedFormatTemplate.getStoredFormatName())) {
+                data = storedFormatTemplate.getStoredFormat() + data;
+            }
+        }
+        else {
+            data = generateLabels(patient, identifier, count, template, false);
+        }
+
+        // send the labels via the spooler, so that they are throttled along with any queued print jobs for the same printer
+        PaperRecordPrintJob printJob = new PaperRecordPrintJob();
+        printJob.setLocation(location);
+        printJob.setData(data);
+        printJob.setEncoding(template.getEncoding());
+        printJob.setLabelCount(count);
+        PrintSpooler.Spool spool = printSpooler.spool(Collections.singletonList(printJob)).get(0);
+
+        try {
+            printerService.printViaSocket(spool.getData(), Printer.Type.LABEL, location, spool.getEncoding(), false, spool.queue());
+            if (printer != null) {
+                printerStoredFormats.stored(printer, storedFormatTemplate.getStoredFormatName());
+            }
+        } catch (Exception e) {
+            if (printer != null) {
+                printerStoredFormats.forget(printer);
+            }
+            throw new UnableToPrintLabelException("Unable to print paper record label at location " + location + " for patient " + patient, e);
+        }
+    }
+
+    // the id of the queued job is added to printJobIds
+    private void queueLabels(Patient patient, String identifier, Location location, Integer count, LabelTemplate template,
+                             List<Integer> printJobIds) {
+        if (count == null || count == 0) {
+            return;  // just do nothing if we don't have a count
+        }
+
+        // we don't know which printer this will go to until it is dispatched, so the stored format (if any) is only
+        // added then, if needed (see dispatchPrintJobs)
+        PaperRecordPrintJob printJob = new PaperRecordPrintJob();
+        printJob.setLocation(location);
+        printJob.setData(generateLabels(patient, identifier, count, template, getStoredFormatTemplate(template) != null));
+        printJob.setEncoding(template.getEncoding());
+        printJob.setLabelCount(count);
+        printJob.setCreator(Context.getAuthenticatedUser());
+        printJob.setDateCreated(new Date());
+        paperRecordPrintJobDAO.saveOrUpdate(printJob);
+        printJobIds.add(printJob.getPrintJobId());
+    }
+
+    private String generateLabels(Patient patient, String identifier, Integer count, LabelTemplate template, boolean storedFormat) {
+
+        String data = storedFormat ? renderedLabelCache.getStoredFormatLabel((StoredFormatLabelTemplate) template, patient, identifier)
+                : renderedLabelCache.getLabel(template, patient, identifier);
 
         // just duplicate the data if we are printing multiple labels
         StringBuffer dataBuffer = new StringBuffer();
@@ -660,10 +1012,197 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             countDown--;
         }
 
-        try {
-            printerService.printViaSocket(dataBuffer.toString(), Printer.Type.LABEL, location, encoding, false, 500 + (count * 100));   // add a slight delay to avoid overloading a single printer
-        } catch (Exception e) {
-            throw new UnableToPrintLabelException("Unable to print paper record label at location " + location + " for patient " + patient, e);
+        return dataBuffer.toString();
+    }
+
+    /**
+     * @param template
+     * @return the template, if we're printing labels against stored formats and it supports them, otherwise null
+     */
+    private StoredFormatLabelTemplate getStoredFormatTemplate(LabelTemplate template) {
+        return template instanceof StoredFormatLabelTemplate && paperRecordProperties.getUseStoredLabelFormats() ?
+                (StoredFormatLabelTemplate) template : null;
+    }
+
+    /**
+     * @param data labels queued for a printer
+     * @param printer
+     * @return the stored formats recalled by the labels that haven't already been sent to the printer
+     */
+    private List<StoredFormatLabelTemplate> getStoredFormatsToSend(String data, Printer printer) {
+        List<StoredFormatLabelTemplate> storedFormatTemplates = new ArrayList<StoredFormatLabelTemplate>();
+        for (LabelTemplate template : Arrays.asList(paperRecordLabelTemplate, paperFormLabelTemplate, idCardLabelTemplate)) {
+            if (template instanceof StoredFormatLabelTemplate) {
+                StoredFormatLabelTemplate storedFormatTemplate = (StoredFormatLabelTemplate) template;
+                if (data.contains("^XF" + storedFormatTemplate.getStoredFormatName())
+                        && (printer == null || !printerStoredFormats.isStored(printer, storedFormatTemplate.getStoredFormatName()))) {
+                    storedFormatTemplates.add(storedFormatTemplate);
+                }
+            }
+        }
+        return storedFormatTemplates;
+    }
+
+    @Override
+    public int dispatchPendingPrintJobs(Integer maxJobs) {
+        List<Integer> printJobIds = paperRecordPrintJobDAO.findPendingPrintJobIds(null, maxJobs);
+        return printJobIds.isEmpty() ? 0 : Context.getService(PaperRecordService.class).dispatchPrintJobs(printJobIds);
+    }
+
+    @Override
+    public int dispatchPrintJobs(List<Integer> printJobIds) {
+
+        // claim the jobs in a short transaction of their own, so that no locks are held while we talk to the printers;
+        // any jobs we don't get to claim have already been printed (or are being printed) by someone else
+        List<PaperRecordPrintJob> printJobs = Context.getService(PaperRecordService.class).claimPrintJobs(printJobIds);
+
+        int printed = printJobIds.size() - printJobs.size();
+
+        // send all the jobs for each printer in as few writes as possible
+        for (PrintSpooler.Spool spool : printSpooler.spool(printJobs)) {
+
+            // jobs queued as recalls of stored formats need those formats sent first, unless the printer already has them
+            String data = spool.getData();
+            Printer printer = null;
+            List<StoredFormatLabelTemplate> storedFormatTemplates = Collections.emptyList();
+            if (data.contains("^XF")) {
+                printer = printerService.getDefaultPrinter(spool.getLocation(), Printer.Type.LABEL);
+                storedFormatTemplates = getStoredFormatsToSend(data, printer);
+                if (!storedFormatTemplates.isEmpty()) {
+                    StringBuilder formats = new StringBuilder();
+                    for (StoredFormatLabelTemplate storedFormatTemplate : storedFormatTemplates) {
+                        formats.append(storedFormatTemplate.getStoredFormat());
+                    }
+                    data = formats.append(data).toString();
+                }
+            }
+
+            try {
+                printerService.printViaSocket(data, Printer.Type.LABEL, spool.getLocation(), spool.getEncoding(),
+                        false, spool.queue());
+                if (printer != null) {
+                    for (StoredFormatLabelTemplate storedFormatTemplate : storedFormatTemplates) {
+                        printerStoredFormats.stored(printer, storedFormatTemplate.getStoredFormatName());
+                    }
+                }
+                for (PaperRecordPrintJob printJob : spool.getPrintJobs()) {
+                    printJob.markPrinted();
+                }
+                printed += spool.getPrintJobs().size();
+            }
+            catch (Exception e) {
+                if (printer != null) {
+                    printerStoredFormats.forget(printer);
+                }
+                log.warn("Unable to print " + spool.getPrintJobs().size() + " print jobs at location " + spool.getLocation(), e);
+                for (PaperRecordPrintJob printJob : spool.getPrintJobs()) {
+                    printJob.markAttemptFailed(StringUtils.abbreviate(e.toString(), 1024), PaperRecordConstants.MAX_PRINT_JOB_ATTEMPTS);
+                }
+            }
+
+            // record the outcome of each write as soon as we know it, each in its own transaction
+            Context.getService(PaperRecordService.class).savePrintJobs(spool.getPrintJobs());
+        }
+
+        return printed;
+    }
+
+    @Override
+    @Transactional
+    public List<PaperRecordPrintJob> claimPrintJobs(List<Integer> printJobIds) {
+
+        Date claimedBefore = DateUtils.addMinutes(new Date(), -PaperRecordConstants.PRINT_JOB_CLAIM_TIMEOUT_MINUTES);
+
+        // lock the jobs (in order, so that two dispatchers can't deadlock) while we claim them, so that they aren't sent
+        // to the printer twice if another thread is dispatching at the same time; the locks are released once we commit
+        List<PaperRecordPrintJob> printJobs = new ArrayList<PaperRecordPrintJob>();
+        for (Integer printJobId : printJobIds) {
+            PaperRecordPrintJob printJob = paperRecordPrintJobDAO.getByIdForUpdate(printJobId);
+            if (printJob != null && (printJob.getStatus() == PaperRecordPrintJob.Status.PENDING
+                    || (printJob.getStatus() == PaperRecordPrintJob.Status.SENDING && printJob.getDateLastAttempted() != null
+                        && printJob.getDateLastAttempted().before(claimedBefore)))) {
+                printJob.markSending();
+                paperRecordPrintJobDAO.saveOrUpdate(printJob);
+                printJobs.add(printJob);
+            }
+        }
+
+        return printJobs;
+    }
+
+    @Override
+    @Transactional
+    public void savePrintJobs(List<PaperRecordPrintJob> printJobs) {
+        for (PaperRecordPrintJob printJob : printJobs) {
+            paperRecordPrintJobDAO.saveOrUpdate(printJob);
+        }
+    }
+
+    @Override
+    public int refillPaperRecordIdentifierPools() {
+
+        int added = 0;
+
+        if (paperRecordProperties.getIdentifierPoolBlockSize() <= 0) {
+            return added;
+        }
+
+        LocationTag medicalRecordLocationTag = paperRecordProperties.getMedicalRecordLocationLocationTag();
+        if (medicalRecordLocationTag == null) {
+            return added;
+        }
+
+        int lowWaterMark = paperRecordProperties.getIdentifierPoolLowWaterMark();
+
+        for (Location medicalRecordLocation : Context.getLocationService().getLocationsByTag(medicalRecordLocationTag)) {
+            if (!medicalRecordLocation.isRetired() && paperRecordIdentifierPool.size(medicalRecordLocation) < lowWaterMark) {
+                // each location in its own transaction, so that a failure at one location doesn't roll back the others
+                added += Context.getService(PaperRecordService.class).refillPaperRecordIdentifierPool(medicalRecordLocation);
+            }
+        }
+
+        return added;
+    }
+
+    @Override
+    @Transactional
+    public int refillPaperRecordIdentifierPool(Location medicalRecordLocation) {
+
+        int blockSize = paperRecordProperties.getIdentifierPoolBlockSize();
+
+        if (blockSize <= 0) {
+            return 0;
+        }
+
+        medicalRecordLocation = getMedicalRecordLocationAssociatedWith(medicalRecordLocation);
+
+        List<String> identifiers = generateUnusedPaperRecordIdentifiers(medicalRecordLocation, blockSize,
+                "pre-allocating paper record identifier numbers");
+
+        if (identifiers == null) {
+            log.warn("No identifier source configured for paper record identifiers at " + medicalRecordLocation
+                    + ", unable to pre-allocate paper record identifiers");
+            return 0;
+        }
+
+        addToPaperRecordIdentifierPool(medicalRecordLocation, identifiers);
+
+        return identifiers.size();
+    }
+
+    // the identifiers only go in the pool once the transaction that generated them has committed; if it rolls back,
+    // idgen may hand them out again
+    private void addToPaperRecordIdentifierPool(final Location medicalRecordLocation, final List<String> identifiers) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    paperRecordIdentifierPool.add(medicalRecordLocation, identifiers);
+                }
+            });
+        }
+        else {
+            paperRecordIdentifierPool.add(medicalRecordLocation, identifiers);
         }
     }
 
@@ -704,6 +1243,10 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         // void the non-preferred identifier; we do this now (instead of when the merge is confirmed)
         // so that all new requests for records for this patient use the right identifier
         patientService.voidPatientIdentifier(notPreferredPaperRecord.getPatientIdentifier(), "voided during paper record merge");
+
+        // the non-preferred record is now effectively voided, so make sure we don't keep serving it from the cache
+        paperRecordDAO.evictFromCache(preferredPaperRecord);
+        paperRecordDAO.evictFromCache(notPreferredPaperRecord);
     }
 
     @Override
@@ -724,41 +1267,30 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
 
     @Override
     @Transactional
-    public void expirePendingPullRequests(Date expireDate) {
-
-        List<PaperRecordRequest> pullRequests = new ArrayList<PaperRecordRequest>();
-
-        // note that since we are calling the other service methods directly, they
-        // won't be transactional, so we need to make sure this method is transactional
-
-        pullRequests.addAll(getOpenPaperRecordRequestsToPull());
-        pullRequests.addAll(getAssignedPaperRecordRequestsToPull());
-
-        for (PaperRecordRequest request : pullRequests) {
-            if (request.getDateCreated().before(expireDate)) {
-                markPaperRecordRequestAsCancelled(request);
-            }
-        }
+    public int expirePendingPullRequests(Date expireDate) {
+        return paperRecordRequestDAO.cancelPaperRecordRequestsCreatedBefore(PENDING_STATUSES,
+                PaperRecord.Status.PENDING_CREATION, false, expireDate);
     }
 
     @Override
     @Transactional
-    public void expirePendingCreateRequests(Date expireDate) {
-
-        List<PaperRecordRequest> createRequests = new ArrayList<PaperRecordRequest>();
-
-        // note that since we are calling the other service methods directly, they
-        // won't be transactional, so we need to make sure this method is transactional
-
-        createRequests.addAll(getOpenPaperRecordRequestsToCreate());
-        createRequests.addAll(getAssignedPaperRecordRequestsToCreate());
+    public int expirePendingPullRequests(Date expireDate, Integer maxRequests) {
+        return paperRecordRequestDAO.cancelPaperRecordRequestsCreatedBefore(PENDING_STATUSES,
+                PaperRecord.Status.PENDING_CREATION, false, expireDate, maxRequests);
+    }
 
-        for (PaperRecordRequest request : createRequests) {
-            if (request.getDateCreated().before(expireDate)) {
-                markPaperRecordRequestAsCancelled(request);
-            }
-        }
+    @Override
+    @Transactional
+    public int expirePendingCreateRequests(Date expireDate) {
+        return paperRecordRequestDAO.cancelPaperRecordRequestsCreatedBefore(PENDING_STATUSES,
+                PaperRecord.Status.PENDING_CREATION, true, expireDate);
+    }
 
+    @Override
+    @Transactional
+    public int expirePendingCreateRequests(Date expireDate, Integer maxRequests) {
+        return paperRecordRequestDAO.cancelPaperRecordRequestsCreatedBefore(PENDING_STATUSES,
+                PaperRecord.Status.PENDING_CREATION, true, expireDate, maxRequests);
     }
 
     @Override
@@ -772,9 +1304,15 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
 
         Location medicalRecordLocation = getMedicalRecordLocationAssociatedWith(location);
 
-        synchronized(lockOnPatient(patient)) {
+        PatientLockProvider patientLockProvider = getPatientLockProvider();
+        patientLockProvider.lock(patient);
+
+        try {
             paperRecord = Context.getService(PaperRecordService.class).createPaperRecordInternal(patient, medicalRecordLocation);
         }
+        finally {
+            patientLockProvider.unlock(patient);
+        }
 
         return paperRecord;
     }
@@ -792,21 +1330,10 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         if (paperRecordIdentifier == null) {
             PatientIdentifierType paperRecordIdentifierType = paperRecordProperties.getPaperRecordIdentifierType();
 
-            String paperRecordId = "";
+            // use a pre-allocated identifier if there is one
+            List<String> pooled = takePooledPaperRecordIdentifiers(medicalRecordLocation, 1);
 
-            paperRecordId = identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation,
-                    "generating a new paper record identifier number");
-
-            if (paperRecordId == null) {
-                throw new APIException("Unable to generate paper record identifier for patient " + patient);
-            }
-
-            // double check to make sure this identifier is not in use
-            while (paperRecordIdentifierInUse(paperRecordId, medicalRecordLocation)) {
-                log.error("Attempted to generate duplicate paper record identifier " + paperRecordId );
-                paperRecordId = identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation,
-                        "generating a new paper record identifier number");
-            }
+            String paperRecordId = pooled.isEmpty() ? generatePaperRecordIdentifier(medicalRecordLocation) : pooled.get(0);
 
             paperRecordIdentifier = new PatientIdentifier(paperRecordId, paperRecordIdentifierType,
                     medicalRecordLocation);
@@ -832,6 +1359,119 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
 
 
 
+    @Override
+    public Map<Patient, PaperRecord> createPaperRecords(Collection<Patient> patients, Location location) {
+
+        if (patients == null || patients.contains(null)) {
+            throw new IllegalArgumentException("Patients shouldn't be null");
+        }
+
+        Location medicalRecordLocation = getMedicalRecordLocationAssociatedWith(location);
+
+        // (a patient passed in more than once still only gets one record)
+        List<Patient> patientsToProcess = new ArrayList<Patient>(new LinkedHashSet<Patient>(patients));
+
+        Map<Patient, PaperRecord> paperRecords = new LinkedHashMap<Patient, PaperRecord>();
+
+        PatientLockProvider patientLockProvider = getPatientLockProvider();
+
+        for (int i = 0; i < patientsToProcess.size(); i += PaperRecordConstants.CREATE_PAPER_RECORDS_BATCH_SIZE) {
+
+            List<Patient> batch = new ArrayList<Patient>(patientsToProcess.subList(i,
+                    Math.min(i + PaperRecordConstants.CREATE_PAPER_RECORDS_BATCH_SIZE, patientsToProcess.size())));
+
+            // lock the whole batch in patient id order, so that two bulk creations over the same patients can't deadlock
+            List<Patient> lockOrder = new ArrayList<Patient>(batch);
+            Collections.sort(lockOrder, new Comparator<Patient>() {
+                @Override
+                public int compare(Patient patient, Patient otherPatient) {
+                    Integer patientId = patient.getId() != null ? patient.getId() : 0;
+                    Integer otherPatientId = otherPatient.getId() != null ? otherPatient.getId() : 0;
+                    return patientId.compareTo(otherPatientId);
+                }
+            });
+
+            List<Patient> lockedPatients = new ArrayList<Patient>();
+
+            try {
+                for (Patient patient : lockOrder) {
+                    patientLockProvider.lock(patient);
+                    lockedPatients.add(patient);
+                }
+
+                paperRecords.putAll(Context.getService(PaperRecordService.class).createPaperRecordsInternal(batch,
+                        medicalRecordLocation));
+            }
+            finally {
+                for (int j = lockedPatients.size() - 1; j >= 0; j--) {
+                    patientLockProvider.unlock(lockedPatients.get(j));
+                }
+            }
+        }
+
+        return paperRecords;
+    }
+
+    @Override
+    @Transactional
+    public Map<Patient, PaperRecord> createPaperRecordsInternal(List<Patient> patients, Location medicalRecordLocation) {
+
+        Map<Patient, PaperRecord> paperRecords = new LinkedHashMap<Patient, PaperRecord>();
+
+        // fetch the existing records for the whole batch at once
+        Map<Integer, PaperRecord> existingPaperRecords = new HashMap<Integer, PaperRecord>();
+        for (PaperRecord paperRecord : paperRecordDAO.findPaperRecords(getSavedPatients(patients), medicalRecordLocation)) {
+            existingPaperRecords.put(paperRecord.getPatientIdentifier().getPatient().getId(), paperRecord);
+        }
+
+        int identifiersNeeded = 0;
+        for (Patient patient : patients) {
+            if (!existingPaperRecords.containsKey(patient.getId()) && getPaperRecordIdentifier(patient, medicalRecordLocation) == null) {
+                identifiersNeeded++;
+            }
+        }
+
+        // generate the identifiers for the whole batch at once
+        PatientIdentifierType paperRecordIdentifierType = paperRecordProperties.getPaperRecordIdentifierType();
+        Iterator<String> paperRecordIds = allocatePaperRecordIdentifiers(medicalRecordLocation, identifiersNeeded).iterator();
+
+        for (Patient patient : patients) {
+
+            PaperRecord paperRecord = patient.getId() != null ? existingPaperRecords.get(patient.getId()) : null;
+
+            if (paperRecord != null) {
+                log.warn("createPaperRecords called for patient " + patient + " who already has record at " + medicalRecordLocation);
+            }
+            else {
+                PatientIdentifier paperRecordIdentifier = getPaperRecordIdentifier(patient, medicalRecordLocation);
+
+                if (paperRecordIdentifier == null) {
+                    paperRecordIdentifier = new PatientIdentifier(paperRecordIds.next(), paperRecordIdentifierType,
+                            medicalRecordLocation);
+                    patient.addIdentifier(paperRecordIdentifier);
+                    patientService.savePatientIdentifier(paperRecordIdentifier);
+                }
+
+                paperRecord = new PaperRecord();
+                paperRecord.updateStatus(PaperRecord.Status.PENDING_CREATION);
+                paperRecord.setPatientIdentifier(paperRecordIdentifier);
+                paperRecord.setRecordLocation(medicalRecordLocation);
+                paperRecordDAO.saveOrUpdate(paperRecord);
+            }
+
+            paperRecords.put(patient, paperRecord);
+        }
+
+        // evict the cached queries once per batch (rather than once per record, as savePaperRecord does), and keep
+        // the session from growing over the course of a large bulk creation; only this batch's records are evicted,
+        // since the session may be shared with a caller's transaction (the patients and their identifiers are still
+        // referenced by the caller, so evicting them wouldn't free anything)
+        paperRecordDAO.evictFromCache(null);
+        paperRecordDAO.flushAndEvict(paperRecords.values());
+
+        return paperRecords;
+    }
+
     @Override
     @Transactional
     public List<PaperRecord> getPaperRecords(Patient patient) {
@@ -857,28 +1497,55 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
 
     @Override
     public PaperRecord savePaperRecord(PaperRecord paperRecord) {
-        return paperRecordDAO.saveOrUpdate(paperRecord);
+        paperRecord = paperRecordDAO.saveOrUpdate(paperRecord);
+        paperRecordDAO.evictFromCache(paperRecord);
+        return paperRecord;
     }
 
     @Override
     public Location getMedicalRecordLocationAssociatedWith(Location location) {
 
-        if (location != null) {
-            if (location.hasTag(paperRecordProperties.getMedicalRecordLocationLocationTag().toString())) {
+        LocationHierarchyIndex index = getLocationHierarchyIndex();
+
+        if (index != null && location != null) {
+            Location medicalRecordLocation = getIndexedLocation(location, index.getMedicalRecordLocationId(location.getId()),
+                    PaperRecordConstants.LOCATION_TAG_MEDICAL_RECORD_LOCATION);
+            if (medicalRecordLocation != null) {
+                return medicalRecordLocation;
+            }
+        }
+
+        // locations saved since the index was last built (or not saved at all) aren't in the index, so we walk up the
+        // hierarchy for them instead
+        String medicalRecordLocationTag = paperRecordProperties.getMedicalRecordLocationLocationTag().toString();
+
+        while (location != null) {
+            if (location.hasTag(medicalRecordLocationTag)) {
                 return location;
-            } else {
-                return getMedicalRecordLocationAssociatedWith(location.getParentLocation());
             }
+            location = location.getParentLocation();
         }
 
-        throw new IllegalStateException(
-                "There is no matching location with the tag: " + paperRecordProperties.getMedicalRecordLocationLocationTag().toString());
+        throw new IllegalStateException("There is no matching location with the tag: " + medicalRecordLocationTag);
     }
 
     @Override
     public Location getArchivesLocationAssociatedWith(Location location) {
 
-        Location l = getArchivesLocationHelper(getMedicalRecordLocationAssociatedWith(location));
+        Location medicalRecordLocation = getMedicalRecordLocationAssociatedWith(location);
+
+        LocationHierarchyIndex index = getLocationHierarchyIndex();
+
+        Location l = null;
+
+        if (index != null) {
+            l = getIndexedLocation(medicalRecordLocation, index.getArchivesLocationId(medicalRecordLocation.getId()),
+                    PaperRecordConstants.LOCATION_TAG_ARCHIVES_LOCATION);
+        }
+
+        if (l == null) {
+            l = getArchivesLocationHelper(medicalRecordLocation, paperRecordProperties.getArchivesLocationTag().toString());
+        }
 
         if (l == null) {
             throw new IllegalStateException("No archives room location found for location " + location);
@@ -887,15 +1554,67 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         return l;
     }
 
-    private Location getArchivesLocationHelper(Location location) {
+    @Override
+    @Transactional(readOnly = true)
+    public void rebuildLocationHierarchyIndex() {
+
+        if (locationService == null) {
+            return;
+        }
+
+        // a location tag may have been added or removed too, so look up the tags again rather than using the snapshot
+        paperRecordProperties.clearCache();
+
+        locationHierarchyIndex = LocationHierarchyIndex.build(locationService.getAllLocations(true),
+                paperRecordProperties.getMedicalRecordLocationLocationTag(), paperRecordProperties.getArchivesLocationTag());
+
+        log.debug("Rebuilt location hierarchy index of " + locationHierarchyIndex.size() + " locations");
+    }
 
-        if (location.hasTag(paperRecordProperties.getArchivesLocationTag().toString())) {
+    private LocationHierarchyIndex getLocationHierarchyIndex() {
+
+        // normally built by the activator at startup; note that the index is immutable, so we never need to lock it,
+        // and just swap in a new one whenever the location hierarchy changes
+        if (locationHierarchyIndex == null) {
+            rebuildLocationHierarchyIndex();
+        }
+        // a location may have been changed on another node, which only rebuilds its own index
+        else if (locationHierarchyIndex.isOlderThan(PaperRecordConstants.LOCATION_HIERARCHY_INDEX_MAX_AGE_MINUTES * 60 * 1000L)
+                && rebuildingLocationHierarchyIndex.compareAndSet(false, true)) {
+            try {
+                rebuildLocationHierarchyIndex();
+            }
+            finally {
+                rebuildingLocationHierarchyIndex.set(false);
+            }
+        }
+
+        return locationHierarchyIndex;
+    }
+
+    // returns the indexed location with the specified id, as long as it (still) has the specified tag; returns null
+    // if there is no indexed location, in which case the caller should walk the hierarchy instead (since the index
+    // may be out of date, ie if a location was saved within a transaction that hasn't committed yet)
+    private Location getIndexedLocation(Location location, Integer indexedLocationId, String tag) {
+
+        if (indexedLocationId == null) {
+            return null;
+        }
+
+        Location indexedLocation = indexedLocationId.equals(location.getId()) ? location : locationService.getLocation(indexedLocationId);
+
+        return indexedLocation != null && indexedLocation.hasTag(tag) ? indexedLocation : null;
+    }
+
+    private Location getArchivesLocationHelper(Location location, String archivesLocationTag) {
+
+        if (location.hasTag(archivesLocationTag)) {
             return location;
         }
 
         if (location.getChildLocations(false) != null) {
             for (Location l : location.getChildLocations(false)) {
-                Location match = getArchivesLocationHelper(l);
+                Location match = getArchivesLocationHelper(l, archivesLocationTag);
                 if (match != null) {
                     return match;
                 }
@@ -905,13 +1624,147 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         return null;
     }
 
-    private Object lockOnPatient(Patient patient) {
+    private PatientLockProvider getPatientLockProvider() {
+
+        if (PaperRecordConstants.PATIENT_LOCK_PROVIDER_DATABASE.equals(paperRecordProperties.getPatientLockProvider())) {
+            if (databasePatientLockProvider == null) {
+                throw new IllegalStateException("Database patient lock provider has not been configured");
+            }
+            return databasePatientLockProvider;
+        }
+
+        return inMemoryPatientLockProvider;
+    }
+
+    private boolean isConstraintViolation(Throwable e) {
+
+        // depending on when the insert is flushed, the violation is either thrown directly by Hibernate, or wrapped
+        // by Spring when the transaction is committed
+        while (e != null) {
+            if (e instanceof ConstraintViolationException) {
+                return true;
+            }
+            e = e.getCause();
+        }
+
+        return false;
+    }
+
+    // unsaved patients can't have any records or requests yet, so we leave them out of the bulk queries
+    private List<Patient> getSavedPatients(Collection<Patient> patients) {
+        List<Patient> savedPatients = new ArrayList<Patient>();
+        for (Patient patient : patients) {
+            if (patient.getId() != null) {
+                savedPatients.add(patient);
+            }
+        }
+        return savedPatients;
+    }
+
+    // returns up to count pre-allocated identifiers from the pool; these were checked when the pool was filled, but are
+    // checked again here since an identifier may have been assigned by hand (or by another node) in the meantime
+    private List<String> takePooledPaperRecordIdentifiers(Location medicalRecordLocation, int count) {
+
+        List<String> identifiers = new ArrayList<String>();
+
+        while (identifiers.size() < count) {
+
+            List<String> taken = new ArrayList<String>();
+
+            String identifier;
+            while (identifiers.size() + taken.size() < count
+                    && (identifier = paperRecordIdentifierPool.take(medicalRecordLocation)) != null) {
+                taken.add(identifier);
+            }
+
+            if (taken.isEmpty()) {
+                break;
+            }
+
+            List<String> identifiersInUse = paperRecordDAO.findPaperRecordIdentifiersInUse(taken,
+                    paperRecordProperties.getPaperRecordIdentifierType(), medicalRecordLocation);
+
+            if (!identifiersInUse.isEmpty()) {
+                log.warn("Discarding pre-allocated paper record identifiers that are now in use " + identifiersInUse);
+                taken.removeAll(identifiersInUse);
+            }
+
+            identifiers.addAll(taken);
+        }
+
+        return identifiers;
+    }
+
+    // returns count paper record identifiers that aren't in use yet, taking any pre-allocated identifiers first
+    private List<String> allocatePaperRecordIdentifiers(Location medicalRecordLocation, int count) {
+
+        List<String> identifiers = takePooledPaperRecordIdentifiers(medicalRecordLocation, count);
+
+        while (identifiers.size() < count) {
+
+            List<String> generated = generateUnusedPaperRecordIdentifiers(medicalRecordLocation, count - identifiers.size(),
+                    "generating new paper record identifier numbers");
+
+            if (generated != null) {
+                identifiers.addAll(generated);
+            }
+            else {
+                // we can't get at the identifier source directly, so fall back to letting idgen pick it, one at a time
+                identifiers.add(generatePaperRecordIdentifier(medicalRecordLocation));
+            }
+        }
+
+        return identifiers;
+    }
+
+    // generates a single paper record identifier that isn't in use yet
+    private String generatePaperRecordIdentifier(Location medicalRecordLocation) {
+
+        PatientIdentifierType paperRecordIdentifierType = paperRecordProperties.getPaperRecordIdentifierType();
+
+        String paperRecordId = identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation,
+                "generating a new paper record identifier number");
+
+        if (paperRecordId == null) {
+            throw new APIException("Unable to generate paper record identifier at " + medicalRecordLocation);
+        }
+
+        // double check to make sure this identifier is not in use
+        while (paperRecordIdentifierInUse(paperRecordId, medicalRecordLocation)) {
+            log.error("Attempted to generate duplicate paper record identifier " + paperRecordId );
+            paperRecordId = identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation,
+                    "generating a new paper record identifier number");
+        }
+
+        return paperRecordId;
+    }
+
+    // generates a block of paper record identifiers, and discards any that are already in use; returns null if there
+    // is no identifier source configured for paper record identifiers at the location
+    private List<String> generateUnusedPaperRecordIdentifiers(Location medicalRecordLocation, int count, String comment) {
+
+        PatientIdentifierType paperRecordIdentifierType = paperRecordProperties.getPaperRecordIdentifierType();
+
+        AutoGenerationOption autoGenerationOption = identifierSourceService.getAutoGenerationOption(paperRecordIdentifierType,
+                medicalRecordLocation);
+
+        if (autoGenerationOption == null || autoGenerationOption.getSource() == null) {
+            return null;
+        }
+
+        List<String> identifiers = new ArrayList<String>(identifierSourceService.generateIdentifiers(autoGenerationOption.getSource(),
+                count, comment));
+
+        // check the whole block in one query, rather than one identifier at a time
+        List<String> identifiersInUse = paperRecordDAO.findPaperRecordIdentifiersInUse(identifiers, paperRecordIdentifierType,
+                medicalRecordLocation);
 
-        if (!patientLock.containsKey(patient.getId())) {
-            patientLock.put(patient.getId(), new Object());
+        if (!identifiersInUse.isEmpty()) {
+            log.error("Attempted to generate duplicate paper record identifiers " + identifiersInUse);
+            identifiers.removeAll(identifiersInUse);
         }
 
-        return patientLock.get(patient.getId());
+        return identifiers;
     }
 
     private PatientIdentifier getPaperRecordIdentifier(Patient patient, Location medicalRecordLocation) {
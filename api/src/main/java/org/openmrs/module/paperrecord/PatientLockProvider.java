@@ -0,0 +1,45 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.Patient;
+
+/**
+ * Provides the per-patient lock that the paper record service holds while requesting or creating a paper record,
+ * so that we don't create duplicate requests and/or records for the same patient
+ * <p/>
+ * The lock is acquired *before* the transaction that does the work starts and released *after* that transaction has
+ * completed, so the next holder of the lock always sees the committed results. Locks must be reentrant, since
+ * requesting a record may in turn create a record for the same patient.
+ * <p/>
+ * Which provider is used is determined by the paperrecord.patientLockProvider global property (see
+ * PaperRecordConstants)
+ */
+public interface PatientLockProvider {
+
+    /**
+     * Blocks until the current thread holds the lock on the specified patient
+     *
+     * @param patient
+     */
+    void lock(Patient patient);
+
+    /**
+     * Releases the current thread's hold on the lock on the specified patient
+     *
+     * @param patient
+     */
+    void unlock(Patient patient);
+
+}
@@ -0,0 +1,226 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.Location;
+import org.openmrs.module.printer.Printer;
+import org.openmrs.module.printer.PrinterService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces queued print jobs into as few writes to each printer as possible, and throttles the writes to each
+ * printer based on how many labels it still has queued
+ * <p/>
+ * Jobs are grouped by the (default label) printer of their location, and by encoding, and the jobs in each group are
+ * concatenated, in the order they were queued, into writes of at most maxLabelsPerWrite labels.
+ * <p/>
+ * Rather than pausing a fixed amount of time after every write, we keep track of the (estimated) number of labels each
+ * printer still has queued, assuming it prints one label every millisPerLabel; we only pause after a write if it has
+ * left more than maxQueuedLabels labels queued, and then only long enough for the printer to get back down to
+ * maxQueuedLabels (up to maxWait). So an occasional set of labels is sent to the printer without any pause at all, and
+ * only a burst of labels is slowed down to the speed of the printer.
+ * <p/>
+ * Since the queue depths need to be tracked across calls, there is a single spooler (see moduleApplicationContext.xml)
+ */
+public class PrintSpooler {
+
+    public static final int DEFAULT_MILLIS_PER_LABEL = 100;
+
+    public static final int DEFAULT_MAX_QUEUED_LABELS = 30;
+
+    public static final int DEFAULT_MAX_WAIT = 3000;
+
+    public static final int DEFAULT_MAX_LABELS_PER_WRITE = 30;
+
+    private PrinterService printerService;
+
+    private int millisPerLabel = DEFAULT_MILLIS_PER_LABEL;
+
+    private int maxQueuedLabels = DEFAULT_MAX_QUEUED_LABELS;
+
+    private int maxWait = DEFAULT_MAX_WAIT;
+
+    private int maxLabelsPerWrite = DEFAULT_MAX_LABELS_PER_WRITE;
+
+    // the time at which each printer (by printer key) is expected to have printed all the labels sent to it so far
+    private final Map<String, Long> printerBusyUntil = new HashMap<String, Long>();
+
+    public PrintSpooler(PrinterService printerService) {
+        this.printerService = printerService;
+    }
+
+    /**
+     * @param printJobs the jobs to print, in the order they should be printed
+     * @return the writes to send to the printers; all jobs for the same printer (and encoding) end up in consecutive
+     * writes, in their original order
+     */
+    public List<Spool> spool(List<PaperRecordPrintJob> printJobs) {
+
+        Map<String, List<Spool>> spoolsByPrinter = new LinkedHashMap<String, List<Spool>>();
+
+        // most jobs in a batch are for the same few locations, so only look up the printer for each location once
+        Map<Location, String> printerKeys = new HashMap<Location, String>();
+
+        for (PaperRecordPrintJob printJob : printJobs) {
+
+            if (!printerKeys.containsKey(printJob.getLocation())) {
+                printerKeys.put(printJob.getLocation(), getPrinterKey(printJob.getLocation()));
+            }
+
+            String key = printerKeys.get(printJob.getLocation()) + ":" + printJob.getEncoding();
+
+            List<Spool> spools = spoolsByPrinter.get(key);
+            if (spools == null) {
+                spools = new ArrayList<Spool>();
+                spoolsByPrinter.put(key, spools);
+            }
+
+            // start a new write if this job would push the current one over the limit (but never split a job)
+            Spool spool = spools.isEmpty() ? null : spools.get(spools.size() - 1);
+            if (spool == null || (spool.getLabelCount() > 0 && spool.getLabelCount() + getLabelCount(printJob) > maxLabelsPerWrite)) {
+                spool = new Spool(printerKeys.get(printJob.getLocation()), printJob.getLocation(), printJob.getEncoding());
+                spools.add(spool);
+            }
+
+            spool.add(printJob, getLabelCount(printJob));
+        }
+
+        List<Spool> spools = new ArrayList<Spool>();
+        for (List<Spool> spoolsForPrinter : spoolsByPrinter.values()) {
+            spools.addAll(spoolsForPrinter);
+        }
+        return spools;
+    }
+
+    /**
+     * Records that labelCount labels are being sent to the specified printer
+     *
+     * @param printerKey
+     * @param labelCount
+     * @return the time to wait after sending the labels, so that the printer doesn't end up with more than
+     * maxQueuedLabels labels queued
+     */
+    public synchronized int queueLabels(String printerKey, int labelCount) {
+
+        long now = System.currentTimeMillis();
+
+        Long busyUntil = printerBusyUntil.get(printerKey);
+        long newBusyUntil = Math.max(busyUntil != null ? busyUntil : now, now) + (long) labelCount * millisPerLabel;
+        printerBusyUntil.put(printerKey, newBusyUntil);
+
+        long wait = newBusyUntil - now - (long) maxQueuedLabels * millisPerLabel;
+        return (int) Math.max(0, Math.min(maxWait, wait));
+    }
+
+    private String getPrinterKey(Location location) {
+
+        // locations without a printer are kept separate, so that they fail on their own
+        Printer printer = printerService.getDefaultPrinter(location, Printer.Type.LABEL);
+        if (printer != null) {
+            return "printer-" + printer.getId();
+        }
+
+        return "location-" + (location != null ? location.getId() : null);
+    }
+
+    private int getLabelCount(PaperRecordPrintJob printJob) {
+        return printJob.getLabelCount() != null ? printJob.getLabelCount() : 1;
+    }
+
+    public void setMillisPerLabel(int millisPerLabel) {
+        this.millisPerLabel = millisPerLabel;
+    }
+
+    public void setMaxQueuedLabels(int maxQueuedLabels) {
+        this.maxQueuedLabels = maxQueuedLabels;
+    }
+
+    public void setMaxWait(int maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public void setMaxLabelsPerWrite(int maxLabelsPerWrite) {
+        this.maxLabelsPerWrite = maxLabelsPerWrite;
+    }
+
+    /**
+     * A single write to a printer: the concatenated data of one or more print jobs
+     */
+    public class Spool {
+
+        private String printerKey;
+
+        private Location location;
+
+        private String encoding;
+
+        private List<PaperRecordPrintJob> printJobs = new ArrayList<PaperRecordPrintJob>();
+
+        private StringBuilder data = new StringBuilder();
+
+        private int labelCount = 0;
+
+        private Spool(String printerKey, Location location, String encoding) {
+            this.printerKey = printerKey;
+            this.location = location;
+            this.encoding = encoding;
+        }
+
+        private void add(PaperRecordPrintJob printJob, int labelCount) {
+            this.printJobs.add(printJob);
+            this.data.append(printJob.getData());
+            this.labelCount += labelCount;
+        }
+
+        /**
+         * @return the location to print at (the location of the first job; all jobs in the spool share its printer)
+         */
+        public Location getLocation() {
+            return location;
+        }
+
+        public String getEncoding() {
+            return encoding;
+        }
+
+        public List<PaperRecordPrintJob> getPrintJobs() {
+            return printJobs;
+        }
+
+        public String getData() {
+            return data.toString();
+        }
+
+        public int getLabelCount() {
+            return labelCount;
+        }
+
+        /**
+         * Records that this spool is being sent to its printer; should be called once, just before sending it
+         *
+         * @return the time to wait after sending this spool to the printer
+         */
+        public int queue() {
+            return queueLabels(printerKey, labelCount);
+        }
+
+    }
+
+}
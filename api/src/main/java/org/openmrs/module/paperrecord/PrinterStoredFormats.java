@@ -0,0 +1,91 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.module.printer.Printer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of which stored label formats (see StoredFormatLabelTemplate) have been uploaded to which printers, so
+ * that each format is only uploaded to each printer every so often, rather than with every label
+ * <p/>
+ * We only ever write to the printers, so we can't ask a printer which formats it has; and since formats are stored in
+ * the printer's memory, a printer that has been switched off, reset or replaced has lost them. So a format is only
+ * trusted to still be on a printer for PaperRecordConstants.STORED_FORMAT_MAX_AGE_MINUTES after it was uploaded, and
+ * is then uploaded again with the next labels; a printer is tracked by its address as well as its id, so that
+ * pointing a printer at a different device forgets its formats straight away, as does failing to print to it. This is
+ * only kept in memory, so every format is also uploaded again after a restart
+ */
+public class PrinterStoredFormats {
+
+    private final long maxAgeMillis;
+
+    // when each format was uploaded, by format name, by printer
+    private final Map<String, Map<String, Long>> formatsByPrinter = new HashMap<String, Map<String, Long>>();
+
+    public PrinterStoredFormats() {
+        this(PaperRecordConstants.STORED_FORMAT_MAX_AGE_MINUTES * 60 * 1000L);
+    }
+
+    /**
+     * @param maxAgeMillis how long after uploading a format to trust that the printer still has it
+     */
+    public PrinterStoredFormats(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param printer
+     * @param formatName
+     * @return whether the specified format has been uploaded to the specified printer recently enough to trust that the
+     * printer still has it
+     */
+    public synchronized boolean isStored(Printer printer, String formatName) {
+        Map<String, Long> formats = formatsByPrinter.get(getKey(printer));
+        Long dateStored = formats != null ? formats.get(formatName) : null;
+        return dateStored != null && System.currentTimeMillis() - dateStored < maxAgeMillis;
+    }
+
+    /**
+     * Records that the specified format has just been uploaded to the specified printer
+     *
+     * @param printer
+     * @param formatName
+     */
+    public synchronized void stored(Printer printer, String formatName) {
+        Map<String, Long> formats = formatsByPrinter.get(getKey(printer));
+        if (formats == null) {
+            formats = new HashMap<String, Long>();
+            formatsByPrinter.put(getKey(printer), formats);
+        }
+        formats.put(formatName, System.currentTimeMillis());
+    }
+
+    /**
+     * Forgets all the formats uploaded to the specified printer
+     *
+     * @param printer
+     */
+    public synchronized void forget(Printer printer) {
+        formatsByPrinter.remove(getKey(printer));
+    }
+
+    private String getKey(Printer printer) {
+        return printer.getId() + "@" + printer.getIpAddress() + ":" + printer.getPort();
+    }
+
+}
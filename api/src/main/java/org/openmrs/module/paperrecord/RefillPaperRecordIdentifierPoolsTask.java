@@ -0,0 +1,30 @@
+package org.openmrs.module.paperrecord;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Task that can be scheduled to pre-allocate blocks of paper record identifiers for any medical record location whose
+ * pool of identifiers has fallen below the low-water mark (see the paperrecord.identifierPool.* global properties), so
+ * that creating a paper record doesn't have to wait on idgen
+ * <p/>
+ * Note that this task is not scheduled by default, but can be scheduled in a customization module (see the
+ * Mirebalais module for an example of this); if it isn't, paper record identifiers are just generated one at a time
+ */
+public class RefillPaperRecordIdentifierPoolsTask extends AbstractTask {
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    @Override
+    public void execute() {
+
+        int added = Context.getService(PaperRecordService.class).refillPaperRecordIdentifierPools();
+
+        if (added > 0) {
+            log.info("Pre-allocated " + added + " paper record identifiers");
+        }
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.BaseOpenmrsData;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.appframework.feature.FeatureToggleProperties;
+import org.openmrs.module.paperrecord.template.LabelTemplate;
+import org.openmrs.module.paperrecord.template.StoredFormatLabelTemplate;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used cache of rendered labels, so that reprinting the labels of a patient (which archivists
+ * do all the time) doesn't mean rendering them again from the whole patient
+ * <p/>
+ * Labels are cached by template (and whether they recall its stored format), patient, paper record identifier, locale
+ * and the "cdi" feature toggle, and by the "version" of the patient: the latest date any of the patient, or the
+ * patient's names, identifiers or addresses, were created, changed or voided (along with how many of each there are,
+ * to catch any that were purged). So any change to the patient that shows up on a label means the label is rendered
+ * again. Labels of unsaved patients are never cached
+ * <p/>
+ * The configuration the labels are rendered with (the address layout, and the identifier types in PaperRecordProperties)
+ * isn't part of the key; instead, their global property listeners clear the cache whenever it changes
+ */
+public class RenderedLabelCache {
+
+    private final int maxSize;
+
+    private final Map<Key, String> labels;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    // incremented every time the cache is cleared, so that a label that was being rendered at the time isn't kept
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private FeatureToggleProperties featureToggles;
+
+    public RenderedLabelCache() {
+        this(PaperRecordConstants.RENDERED_LABEL_CACHE_SIZE);
+    }
+
+    /**
+     * @param maxSize the maximum number of labels to keep; zero means nothing is cached
+     */
+    public RenderedLabelCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.labels = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                return size() > RenderedLabelCache.this.maxSize;
+            }
+        };
+    }
+
+    public void setFeatureToggles(FeatureToggleProperties featureToggles) {
+        this.featureToggles = featureToggles;
+    }
+
+    /**
+     * @param template
+     * @param patient
+     * @param paperRecordIdentifier
+     * @return the label for the specified patient, from the cache if it has already been rendered (and the patient
+     * hasn't changed since), otherwise rendered with the specified template
+     */
+    public String getLabel(LabelTemplate template, Patient patient, String paperRecordIdentifier) {
+        return getLabel(template, patient, paperRecordIdentifier, false);
+    }
+
+    /**
+     * @param template
+     * @param patient
+     * @param paperRecordIdentifier
+     * @return the label for the specified patient, as a recall of the template's stored format, from the cache if it
+     * has already been rendered (and the patient hasn't changed since)
+     */
+    public String getStoredFormatLabel(StoredFormatLabelTemplate template, Patient patient, String paperRecordIdentifier) {
+        return getLabel(template, patient, paperRecordIdentifier, true);
+    }
+
+    private String getLabel(LabelTemplate template, Patient patient, String paperRecordIdentifier, boolean storedFormat) {
+
+        if (maxSize <= 0 || patient.getPatientId() == null) {
+            misses.incrementAndGet();
+            return render(template, patient, paperRecordIdentifier, storedFormat);
+        }
+
+        Key key = new Key(template, storedFormat, patient, paperRecordIdentifier, Context.getLocale(),
+                featureToggles != null && featureToggles.isFeatureEnabled("cdi"));
+
+        String label;
+        synchronized (labels) {
+            label = labels.get(key);
+        }
+
+        if (label != null) {
+            hits.incrementAndGet();
+            return label;
+        }
+
+        misses.incrementAndGet();
+
+        int renderedGeneration = generation.get();
+
+        // (rendered outside the lock; two threads may both render the same label, but that's harmless)
+        label = render(template, patient, paperRecordIdentifier, storedFormat);
+
+        // (if the cache was cleared while we were rendering, the label may have been rendered with the old configuration)
+        synchronized (labels) {
+            if (renderedGeneration == generation.get()) {
+                labels.put(key, label);
+            }
+        }
+
+        return label;
+    }
+
+    /**
+     * @return the number of labels currently cached
+     */
+    public int size() {
+        synchronized (labels) {
+            return labels.size();
+        }
+    }
+
+    /**
+     * @return the number of labels found in the cache since it was created (or last cleared)
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of labels that had to be rendered since the cache was created (or last cleared)
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Empties the cache (ie if the layout of the labels, or the messages on them, have changed), and resets the counters
+     */
+    public void clear() {
+        synchronized (labels) {
+            generation.incrementAndGet();
+            labels.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private String render(LabelTemplate template, Patient patient, String paperRecordIdentifier, boolean storedFormat) {
+        return storedFormat ? ((StoredFormatLabelTemplate) template).generateStoredFormatLabel(patient, paperRecordIdentifier)
+                : template.generateLabel(patient, paperRecordIdentifier);
+    }
+
+    private static class Key {
+
+        private final LabelTemplate template;
+
+        private final boolean storedFormat;
+
+        private final Integer patientId;
+
+        private final String paperRecordIdentifier;
+
+        private final Locale locale;
+
+        private final boolean cdi;
+
+        private final String patientVersion;
+
+        private Key(LabelTemplate template, boolean storedFormat, Patient patient, String paperRecordIdentifier, Locale locale,
+                    boolean cdi) {
+            this.template = template;
+            this.storedFormat = storedFormat;
+            this.patientId = patient.getPatientId();
+            this.paperRecordIdentifier = paperRecordIdentifier;
+            this.locale = locale;
+            this.cdi = cdi;
+            this.patientVersion = getVersion(patient);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return template == other.template
+                    && storedFormat == other.storedFormat
+                    && patientId.equals(other.patientId)
+                    && (paperRecordIdentifier != null ? paperRecordIdentifier.equals(other.paperRecordIdentifier) : other.paperRecordIdentifier == null)
+                    && (locale != null ? locale.equals(other.locale) : other.locale == null)
+                    && cdi == other.cdi
+                    && patientVersion.equals(other.patientVersion);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(template);
+            result = 31 * result + (storedFormat ? 1 : 0);
+            result = 31 * result + patientId.hashCode();
+            result = 31 * result + (paperRecordIdentifier != null ? paperRecordIdentifier.hashCode() : 0);
+            result = 31 * result + (locale != null ? locale.hashCode() : 0);
+            result = 31 * result + (cdi ? 1 : 0);
+            result = 31 * result + patientVersion.hashCode();
+            return result;
+        }
+
+        private static String getVersion(Patient patient) {
+            long latest = getLatest(patient, 0);
+            latest = getLatest(patient.getNames(), latest);
+            latest = getLatest(patient.getIdentifiers(), latest);
+            latest = getLatest(patient.getAddresses(), latest);
+            return latest + ":" + size(patient.getNames()) + ":" + size(patient.getIdentifiers()) + ":" + size(patient.getAddresses());
+        }
+
+        private static long getLatest(Collection<? extends BaseOpenmrsData> data, long latest) {
+            if (data != null) {
+                for (BaseOpenmrsData item : data) {
+                    latest = getLatest(item, latest);
+                }
+            }
+            return latest;
+        }
+
+        private static long getLatest(BaseOpenmrsData data, long latest) {
+            latest = getLatest(data.getDateCreated(), latest);
+            latest = getLatest(data.getDateChanged(), latest);
+            return getLatest(data.getDateVoided(), latest);
+        }
+
+        private static long getLatest(Date date, long latest) {
+            return date != null && date.getTime() > latest ? date.getTime() : latest;
+        }
+
+        private static int size(Collection<?> collection) {
+            return collection != null ? collection.size() : 0;
+        }
+
+    }
+
+}
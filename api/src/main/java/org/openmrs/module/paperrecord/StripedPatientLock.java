@@ -0,0 +1,84 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.Patient;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of (reentrant) locks that patients are mapped onto by patient id, used to make sure only one thread at a time
+ * requests or creates a record for a given patient
+ * <p/>
+ * The same patient always maps to the same lock, so two threads working on the same patient always contend; two
+ * different patients *may* share a lock, which just means they are (very occasionally) serialized unnecessarily.
+ * Since the locks are all created up front, this is safe to use from multiple threads without any further
+ * synchronization, and its memory footprint does not grow with the number of patients
+ */
+public class StripedPatientLock {
+
+    public static final int DEFAULT_NUMBER_OF_STRIPES = 256;
+
+    private final Lock[] locks;
+
+    public StripedPatientLock() {
+        this(DEFAULT_NUMBER_OF_STRIPES);
+    }
+
+    public StripedPatientLock(int numberOfStripes) {
+
+        if (numberOfStripes < 1) {
+            throw new IllegalArgumentException("Number of stripes must be at least one");
+        }
+
+        locks = new Lock[numberOfStripes];
+
+        for (int i = 0; i < numberOfStripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @param patient
+     * @return the lock for the specified patient (all unsaved patients share the same lock)
+     */
+    public Lock getLock(Patient patient) {
+        return getLock(patient.getId());
+    }
+
+    /**
+     * @param patientId
+     * @return the lock for the specified patient id
+     */
+    public Lock getLock(Integer patientId) {
+
+        if (patientId == null) {
+            return locks[0];
+        }
+
+        // spread the bits of the id, so that sequential ids don't all land in neighbouring stripes
+        int hash = patientId.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return locks[(hash & Integer.MAX_VALUE) % locks.length];
+    }
+
+    public int getNumberOfStripes() {
+        return locks.length;
+    }
+
+}
@@ -1,17 +1,24 @@
 package org.openmrs.module.paperrecord.db;
 
-import org.hibernate.Criteria;
-import org.hibernate.criterion.Restrictions;
+import org.hibernate.Query;
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.module.emrapi.db.HibernateSingleClassDAO;
 import org.openmrs.module.paperrecord.PaperRecord;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public class HibernatePaperRecordDAO  extends HibernateSingleClassDAO<PaperRecord> implements PaperRecordDAO {
 
+    // the cache region for the paper record named queries (see PaperRecord.hbm.xml)
+    private static final String PAPER_RECORD_QUERY_CACHE_REGION = "paperrecord.paperRecordQueries";
+
     public HibernatePaperRecordDAO() {
         super(PaperRecord.class);
     }
@@ -19,83 +26,115 @@ public class HibernatePaperRecordDAO  extends HibernateSingleClassDAO<PaperRecor
     @Override
     public List<PaperRecord> findPaperRecords(Patient patient, Location paperRecordLocation) {
 
-        Criteria criteria = createPaperRecordCriteria();
-
-        if (patient != null) {
-            addPatientRestriction(criteria, patient);
+        if (patient == null) {
+            return new ArrayList<PaperRecord>();
         }
 
-        if (paperRecordLocation != null) {
-            addRecordLocationRestriction(criteria, paperRecordLocation);
-        }
+        Query query = createQuery("paperrecord.findPaperRecordsByPatient", paperRecordLocation);
+        query.setParameter("patient", patient);
+        return (List<PaperRecord>) query.list();
+    }
 
-        addExcludeVoidedRestriction(criteria);
+    @Override
+    public List<PaperRecord> findPaperRecords(Collection<Patient> patients, Location paperRecordLocation) {
 
-        return (List<PaperRecord>)  criteria.list();
-    }
+        if (patients == null || patients.isEmpty()) {
+            return new ArrayList<PaperRecord>();
+        }
 
+        Query query = sessionFactory.getCurrentSession().getNamedQuery("paperrecord.findPaperRecordsByPatients");
+        query.setParameterList("patients", patients);
+        query.setParameter("recordLocation", paperRecordLocation);
+        return (List<PaperRecord>) query.list();
+    }
 
     @Override
     public PaperRecord findPaperRecord(PatientIdentifier paperRecordIdentifier, Location paperRecordLocation) {
 
-        Criteria criteria = createPaperRecordCriteria();
-
-        if (paperRecordIdentifier != null) {
-            addPatientIdentifierAsStringRestriction(criteria, paperRecordIdentifier);
-        }
-
-        if (paperRecordLocation != null) {
-            addRecordLocationRestriction(criteria, paperRecordLocation);
+        if (paperRecordIdentifier == null) {
+            return null;
         }
 
-        addExcludeVoidedRestriction(criteria);
+        Query query = createQuery("paperrecord.findPaperRecordByPatientIdentifier", paperRecordLocation);
+        query.setParameter("patientIdentifier", paperRecordIdentifier);
 
         // TODO: since we aren't allowing more than one record per patient identifier, how do we assure that duplicate records don't get created?
-        return (PaperRecord)  criteria.uniqueResult();
+        return (PaperRecord) query.uniqueResult();
     }
 
     @Override
     public PaperRecord findPaperRecord(String paperRecordIdentifier, Location paperRecordLocation) {
 
-        Criteria criteria = createPaperRecordCriteria();
-
-        if (paperRecordIdentifier != null) {
-            addPatientIdentifierAsStringRestriction(criteria, paperRecordIdentifier);
-        }
-
-        if (paperRecordLocation != null) {
-            addRecordLocationRestriction(criteria, paperRecordLocation);
+        if (paperRecordIdentifier == null) {
+            return null;
         }
 
-        addExcludeVoidedRestriction(criteria);
+        Query query = createQuery("paperrecord.findPaperRecordByIdentifier", paperRecordLocation);
+        query.setString("identifier", paperRecordIdentifier);
 
         // TODO: since we aren't allowing more than one record per patient identifier, how do we assure that duplicate records don't get created?
-        return (PaperRecord)  criteria.uniqueResult();
+        return (PaperRecord) query.uniqueResult();
     }
 
-    private Criteria createPaperRecordCriteria() {
-        return sessionFactory.getCurrentSession().createCriteria(PaperRecord.class)
-                .createAlias("patientIdentifier", "pi");
+    @Override
+    public void evictFromCache(PaperRecord paperRecord) {
+
+        final Integer recordId = paperRecord != null ? paperRecord.getRecordId() : null;
+
+        // if we evicted now, another transaction could put the old (still committed) state back into the cache
+        // before we commit, so we wait until after the commit
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    evictFromCache(recordId);
+                }
+            });
+        }
+        else {
+            evictFromCache(recordId);
+        }
     }
 
-    private void addPatientRestriction(Criteria criteria, Patient patient) {
-        criteria.add(Restrictions.eq("pi.patient", patient));
-    }
+    @Override
+    public List<String> findPaperRecordIdentifiersInUse(Collection<String> identifiers, PatientIdentifierType paperRecordIdentifierType,
+                                                        Location medicalRecordLocation) {
+
+        if (identifiers == null || identifiers.isEmpty()) {
+            return new ArrayList<String>();
+        }
 
-    private void addPatientIdentifierAsStringRestriction(Criteria criteria, PatientIdentifier patientIdentifier) {
-        criteria.add(Restrictions.eq("patientIdentifier", patientIdentifier));
+        Query query = sessionFactory.getCurrentSession().getNamedQuery("paperrecord.findPaperRecordIdentifiersInUse");
+        query.setParameterList("identifiers", identifiers);
+        query.setParameter("identifierType", paperRecordIdentifierType);
+        query.setParameter("location", medicalRecordLocation);
+        return (List<String>) query.list();
     }
 
-    private void addPatientIdentifierAsStringRestriction(Criteria criteria, String patientIdentifier) {
-        criteria.add(Restrictions.eq("pi.identifier", patientIdentifier));
+    @Override
+    public void flushAndEvict(Collection<PaperRecord> paperRecords) {
+        sessionFactory.getCurrentSession().flush();
+        for (PaperRecord paperRecord : paperRecords) {
+            sessionFactory.getCurrentSession().evict(paperRecord);
+        }
     }
 
-    private void addRecordLocationRestriction(Criteria criteria, Location paperRecordLocation) {
-        criteria.add(Restrictions.eq("recordLocation", paperRecordLocation));
+    // each query comes in two shapes, for a record location, or (with the AllLocations suffix) for all locations
+    private Query createQuery(String queryName, Location paperRecordLocation) {
+
+        if (paperRecordLocation == null) {
+            return sessionFactory.getCurrentSession().getNamedQuery(queryName + "AllLocations");
+        }
+
+        Query query = sessionFactory.getCurrentSession().getNamedQuery(queryName);
+        query.setParameter("recordLocation", paperRecordLocation);
+        return query;
     }
 
-    // note that we tie whether or not a paper record is voided to whether or not the associated patient identifier is voided
-    private void addExcludeVoidedRestriction(Criteria criteria) {
-        criteria.add(Restrictions.eq("pi.voided", false));
+    private void evictFromCache(Integer recordId) {
+        if (recordId != null) {
+            sessionFactory.evict(PaperRecord.class, recordId);
+        }
+        sessionFactory.evictQueries(PAPER_RECORD_QUERY_CACHE_REGION);
     }
 }
@@ -14,14 +14,12 @@
 
 package org.openmrs.module.paperrecord.db;
 
-import org.hibernate.Criteria;
-import org.hibernate.criterion.Disjunction;
-import org.hibernate.criterion.Order;
-import org.hibernate.criterion.Restrictions;
+import org.hibernate.Query;
 import org.openmrs.Location;
 import org.openmrs.module.emrapi.db.HibernateSingleClassDAO;
 import org.openmrs.module.paperrecord.PaperRecordMergeRequest;
 
+import java.util.EnumSet;
 import java.util.List;
 
 public class HibernatePaperRecordMergeRequestDAO extends HibernateSingleClassDAO<PaperRecordMergeRequest> implements PaperRecordMergeRequestDAO {
@@ -34,59 +32,19 @@ public class HibernatePaperRecordMergeRequestDAO extends HibernateSingleClassDAO
     public List<PaperRecordMergeRequest> findPaperRecordMergeRequest(List<PaperRecordMergeRequest.Status> statusList,
                                                                      Location medicaRecordLocation) {
 
-        Criteria criteria = createPaperRecordRequestCriteria();
+        // each query shape (for a record location, or for all locations) is a named query
+        Query query = sessionFactory.getCurrentSession().getNamedQuery(medicaRecordLocation != null ?
+                "paperrecord.findPaperRecordMergeRequestsByLocation" : "paperrecord.findPaperRecordMergeRequestsAllLocations");
 
-        if (statusList != null) {
-            addStatusDisjunctionRestriction(criteria, statusList);
-        }
+        // the status property is mapped with a custom enum type, so we need to tell Hibernate about it explicitly
+        query.setParameterList("statuses", statusList != null && !statusList.isEmpty() ? statusList : EnumSet.allOf(PaperRecordMergeRequest.Status.class),
+                sessionFactory.getClassMetadata(PaperRecordMergeRequest.class).getPropertyType("status"));
 
         if (medicaRecordLocation != null) {
-            addLocationRestriction(criteria,medicaRecordLocation);
-        }
-
-        addOrderByDateCreated(criteria);
-
-        return (List<PaperRecordMergeRequest>) criteria.list();
-    }
-
-    private Criteria createPaperRecordRequestCriteria() {
-        return sessionFactory.getCurrentSession().createCriteria(PaperRecordMergeRequest.class);
-    }
-
-    private void addStatusDisjunctionRestriction(Criteria criteria, List<PaperRecordMergeRequest.Status> statusList) {
-
-        if (statusList.size() == 1) {
-            criteria.add(Restrictions.eq("status", statusList.get(0)));
-        } else {
-            Disjunction statusDisjunction = Restrictions.disjunction();
-
-            for (PaperRecordMergeRequest.Status status : statusList) {
-                statusDisjunction.add(Restrictions.eq("status", status));
-            }
-
-            criteria.add(statusDisjunction);
+            query.setParameter("recordLocation", medicaRecordLocation);
         }
-    }
-
-    private void addLocationRestriction(Criteria criteria, Location medicalRecordLocation) {
-
-        // in our current workflow, both paper records should always have the same record location, but, just in case,
-        // we fetch any merge reqeusts where *either* of the records are associated with the specified record location
-        criteria.createAlias("preferredPaperRecord", "ppr");
-        criteria.createAlias("notPreferredPaperRecord", "nppr");
-
-        Disjunction locationDisjunction = Restrictions.disjunction();
-        locationDisjunction.add(Restrictions.eq("ppr.recordLocation", medicalRecordLocation));
-        locationDisjunction.add(Restrictions.eq("nppr.recordLocation", medicalRecordLocation));
-
-        criteria.add(locationDisjunction);
 
+        return (List<PaperRecordMergeRequest>) query.list();
     }
 
-
-    private void addOrderByDateCreated(Criteria criteria) {
-        criteria.addOrder(Order.asc("dateCreated"));
-    }
-
-
 }
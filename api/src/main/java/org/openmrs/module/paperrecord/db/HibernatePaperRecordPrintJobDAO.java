@@ -0,0 +1,52 @@
+package org.openmrs.module.paperrecord.db;
+
+import org.apache.commons.lang.time.DateUtils;
+import org.hibernate.LockMode;
+import org.hibernate.Query;
+import org.hibernate.type.Type;
+import org.openmrs.Location;
+import org.openmrs.module.emrapi.db.HibernateSingleClassDAO;
+import org.openmrs.module.paperrecord.PaperRecordConstants;
+import org.openmrs.module.paperrecord.PaperRecordPrintJob;
+
+import java.util.Date;
+import java.util.List;
+
+public class HibernatePaperRecordPrintJobDAO extends HibernateSingleClassDAO<PaperRecordPrintJob> implements PaperRecordPrintJobDAO {
+
+    public HibernatePaperRecordPrintJobDAO() {
+        super(PaperRecordPrintJob.class);
+    }
+
+    @Override
+    public List<Integer> findPendingPrintJobIds(Location location, Integer maxResults) {
+
+        Query query;
+
+        if (location != null) {
+            query = sessionFactory.getCurrentSession().getNamedQuery("paperrecord.findPrintJobIdsByLocation");
+            query.setParameter("location", location);
+        }
+        else {
+            query = sessionFactory.getCurrentSession().getNamedQuery("paperrecord.findPrintJobIds");
+        }
+
+        // the status property is mapped with a custom enum type, so we need to tell Hibernate about it explicitly
+        Type statusType = sessionFactory.getClassMetadata(PaperRecordPrintJob.class).getPropertyType("status");
+        query.setParameter("pendingStatus", PaperRecordPrintJob.Status.PENDING, statusType);
+        query.setParameter("sendingStatus", PaperRecordPrintJob.Status.SENDING, statusType);
+        query.setTimestamp("claimedBefore", DateUtils.addMinutes(new Date(), -PaperRecordConstants.PRINT_JOB_CLAIM_TIMEOUT_MINUTES));
+
+        if (maxResults != null) {
+            query.setMaxResults(maxResults);
+        }
+
+        return (List<Integer>) query.list();
+    }
+
+    @Override
+    public PaperRecordPrintJob getByIdForUpdate(Integer printJobId) {
+        return (PaperRecordPrintJob) sessionFactory.getCurrentSession().get(PaperRecordPrintJob.class, printJobId, LockMode.UPGRADE);
+    }
+
+}
@@ -14,20 +14,62 @@
 
 package org.openmrs.module.paperrecord.db;
 
-import org.hibernate.Criteria;
-import org.hibernate.criterion.Disjunction;
-import org.hibernate.criterion.Order;
-import org.hibernate.criterion.Restrictions;
+import org.hibernate.Query;
+import org.hibernate.type.Type;
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
 import org.openmrs.module.emrapi.db.HibernateSingleClassDAO;
 import org.openmrs.module.paperrecord.PaperRecord;
 import org.openmrs.module.paperrecord.PaperRecordRequest;
-
+import org.openmrs.module.paperrecord.PaperRecordRequestQueueRow;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 
 public class HibernatePaperRecordRequestDAO extends HibernateSingleClassDAO<PaperRecordRequest> implements PaperRecordRequestDAO {
 
+    // the most ids we bind to a single IN list
+    private static final int MAX_PARAMETER_LIST_SIZE = 500;
+
+    // the archives room queues (see PaperRecordService.getPaperRecordRequestQueue) only differ in what they select, so
+    // these are completed with the same criteria by createQueueQuery, rather than kept as a named query per combination of
+    // record location and page position
+
+    static final String QUEUE_SELECT = "select request from PaperRecordRequest request join request.paperRecord pr";
+
+    static final String QUEUE_COUNT = "select count(request) from PaperRecordRequest request join request.paperRecord pr";
+
+    // just the columns displayed, rather than the request and paper record entities; the primary identifier and name are
+    // picked via subqueries, so that a patient with more than one of either doesn't result in duplicate rows, and the name
+    // is the preferred one, falling back to any other unvoided name (as Person.getPersonName does), with the left join so
+    // that a patient without any name isn't dropped
+    static final String QUEUE_ROWS_SELECT = "select request.requestId, request.dateCreated, request.dateStatusChanged,"
+            + " pr.recordId, dossier.identifier, name.givenName, name.middleName, name.familyName,"
+            + " (select min(primaryIdentifier.identifier) from PatientIdentifier primaryIdentifier"
+            + " where primaryIdentifier.patient = patient and primaryIdentifier.identifierType = :primaryIdentifierType"
+            + " and primaryIdentifier.voided = false),"
+            + " requestLocation.name"
+            + " from PaperRecordRequest request"
+            + " join request.paperRecord pr"
+            + " join pr.patientIdentifier dossier"
+            + " join dossier.patient patient"
+            + " join request.requestLocation requestLocation"
+            + " left join patient.names name with name.voided = false";
+
+    static final String QUEUE_ROWS_NAME_CRITERIA = "(name.personNameId is null"
+            + " or name.personNameId = (select min(displayName.personNameId) from PersonName displayName"
+            + " where displayName.person = patient and displayName.voided = false"
+            + " and (displayName.preferred = true or not exists (select preferredName from PersonName preferredName"
+            + " where preferredName.person = patient and preferredName.preferred = true and preferredName.voided = false))))";
+
     public HibernatePaperRecordRequestDAO() {
         super(PaperRecordRequest.class);
     }
@@ -35,95 +77,301 @@ public class HibernatePaperRecordRequestDAO extends HibernateSingleClassDAO<Pape
     @Override
     public List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Patient patient, Location recordLocation, String identifier) {
 
-        Criteria criteria = createPaperRecordRequestCriteria();
+        if (patient != null && identifier != null) {
+            throw new IllegalArgumentException("Cannot find paper record requests by both patient and identifier");
+        }
+
+        String queryName = patient != null ? "paperrecord.findPaperRecordRequestsByPatient"
+                : identifier != null ? "paperrecord.findPaperRecordRequestsByIdentifier"
+                : "paperrecord.findPaperRecordRequests";
+
+        Query query = createQuery(queryName, recordLocation, false, statusList);
 
-        // only add the aliases/joins if necessary
-        if (patient != null || identifier !=null || recordLocation != null) {
-            addAliases(criteria);
+        if (patient != null) {
+            query.setParameter("patient", patient);
         }
 
-        if (statusList != null) {
-            addStatusDisjunctionRestriction(criteria, statusList);
+        if (identifier != null) {
+            query.setString("identifier", identifier);
         }
 
-        if (patient != null) {
-            addPatientRestriction(criteria, patient);
+        return (List<PaperRecordRequest>) query.list();
+    }
+
+    @Override
+    public List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Collection<Patient> patients,
+                                                            Location recordLocation) {
+
+        if (patients == null || patients.isEmpty()) {
+            return new ArrayList<PaperRecordRequest>();
         }
 
-        if (recordLocation != null) {
-            addRecordLocationRestriction(criteria, recordLocation);
+        Query query = createQuery("paperrecord.findPaperRecordRequestsByPatients", allStatusesIfEmpty(statusList));
+        query.setParameterList("patients", patients);
+        query.setParameter("recordLocation", recordLocation);
+        return (List<PaperRecordRequest>) query.list();
+    }
+
+    @Override
+    public List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, PaperRecord paperRecord) {
+
+        if (paperRecord == null) {
+            return new ArrayList<PaperRecordRequest>();
         }
 
-        if (identifier != null) {
-            addIdentifierRestriction(criteria, identifier);
+        Query query = createQuery("paperrecord.findPaperRecordRequestsByPaperRecord", allStatusesIfEmpty(statusList));
+        query.setParameter("paperRecord", paperRecord);
+        return (List<PaperRecordRequest>) query.list();
+    }
+
+    @Override
+    public List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Location recordLocation,
+                                                            PaperRecord.Status paperRecordStatus, boolean includePaperRecordStatus) {
+        return findPaperRecordRequests(statusList, recordLocation, paperRecordStatus, includePaperRecordStatus, null, null, null);
+    }
+
+    @Override
+    public List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Location recordLocation,
+                                                            PaperRecord.Status paperRecordStatus, boolean includePaperRecordStatus,
+                                                            Date afterDateCreated, Integer afterRequestId, Integer maxResults) {
+
+        Query query = createQueueQuery(QUEUE_SELECT, null, statusList, recordLocation, paperRecordStatus, includePaperRecordStatus,
+                afterDateCreated, afterRequestId, true);
+
+        if (maxResults != null) {
+            query.setMaxResults(maxResults);
         }
 
-        addOrderByDateCreated(criteria);
+        return (List<PaperRecordRequest>) query.list();
+    }
 
-        return (List<PaperRecordRequest>) criteria.list();
+    @Override
+    public long countPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Location recordLocation,
+                                         PaperRecord.Status paperRecordStatus, boolean includePaperRecordStatus) {
+
+        Query query = createQueueQuery(QUEUE_COUNT, null, statusList, recordLocation, paperRecordStatus, includePaperRecordStatus,
+                null, null, false);
+        return ((Number) query.uniqueResult()).longValue();
     }
 
     @Override
-    public List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, PaperRecord paperRecord) {
+    public List<PaperRecordRequestQueueRow> findPaperRecordRequestQueueRows(List<PaperRecordRequest.Status> statusList, Location recordLocation,
+                                                                            PaperRecord.Status paperRecordStatus, boolean includePaperRecordStatus,
+                                                                            PatientIdentifierType primaryIdentifierType,
+                                                                            Date afterDateCreated, Integer afterRequestId, Integer maxResults) {
 
-        Criteria criteria = createPaperRecordRequestCriteria();
+        Query query = createQueueQuery(QUEUE_ROWS_SELECT, QUEUE_ROWS_NAME_CRITERIA, statusList, recordLocation, paperRecordStatus, includePaperRecordStatus,
+                afterDateCreated, afterRequestId, true);
+        query.setParameter("primaryIdentifierType", primaryIdentifierType);
 
-        if (statusList != null) {
-            addStatusDisjunctionRestriction(criteria, statusList);
+        if (maxResults != null) {
+            query.setMaxResults(maxResults);
         }
 
-        if (paperRecord != null) {
-            addPaperRecordRestriction(criteria, paperRecord);
+        List<PaperRecordRequestQueueRow> rows = new ArrayList<PaperRecordRequestQueueRow>();
+
+        for (Object[] result : (List<Object[]>) query.list()) {
+            rows.add(new PaperRecordRequestQueueRow((Integer) result[0], (Date) result[1], (Date) result[2], (Integer) result[3],
+                    (String) result[4], new PersonName((String) result[5], (String) result[6], (String) result[7]),
+                    (String) result[8], (String) result[9]));
         }
 
-        return (List<PaperRecordRequest>) criteria.list();
+        return rows;
     }
 
-    private Criteria createPaperRecordRequestCriteria() {
-        return sessionFactory.getCurrentSession().createCriteria(PaperRecordRequest.class);
+    @Override
+    public List<PaperRecordRequest> findMostRecentPaperRecordRequests(PaperRecordRequest.Status status, Collection<Integer> paperRecordIds) {
 
+        if (paperRecordIds == null || paperRecordIds.isEmpty()) {
+            return new ArrayList<PaperRecordRequest>();
+        }
+
+        // the ids are looked up in chunks, so that a large (or unpaged) queue doesn't produce an unbounded IN list
+        List<Integer> ids = new ArrayList<Integer>(paperRecordIds);
+        List<PaperRecordRequest> requests = new ArrayList<PaperRecordRequest>();
+
+        for (int i = 0; i < ids.size(); i += MAX_PARAMETER_LIST_SIZE) {
+            Query query = sessionFactory.getCurrentSession().getNamedQuery("paperrecord.findMostRecentPaperRecordRequests");
+            query.setParameter("status", status, sessionFactory.getClassMetadata(PaperRecordRequest.class).getPropertyType("status"));
+            query.setParameterList("paperRecordIds", ids.subList(i, Math.min(i + MAX_PARAMETER_LIST_SIZE, ids.size())));
+            requests.addAll((List<PaperRecordRequest>) query.list());
+        }
+
+        // each chunk is ordered by request id, but the caller relies on the whole list being ordered that way
+        if (ids.size() > MAX_PARAMETER_LIST_SIZE) {
+            Collections.sort(requests, new Comparator<PaperRecordRequest>() {
+                @Override
+                public int compare(PaperRecordRequest request, PaperRecordRequest otherRequest) {
+                    return request.getRequestId().compareTo(otherRequest.getRequestId());
+                }
+            });
+        }
+
+        return requests;
     }
 
-    private void addAliases(Criteria criteria) {
-        criteria.createAlias("paperRecord", "pr")
-                .createAlias("pr.patientIdentifier", "pi");
+    @Override
+    public int cancelPaperRecordRequestsCreatedBefore(List<PaperRecordRequest.Status> statusList, PaperRecord.Status paperRecordStatus,
+                                                      boolean includePaperRecordStatus, Date expireDate) {
+
+        Query query = createQuery("paperrecord.cancelPaperRecordRequestsCreatedBefore", statusList);
+        query.setParameter("cancelledStatus", PaperRecordRequest.Status.CANCELLED,
+                sessionFactory.getClassMetadata(PaperRecordRequest.class).getPropertyType("status"));
+        query.setTimestamp("dateStatusChanged", new Date());
+        query.setTimestamp("expireDate", expireDate);
+        setPaperRecordStatusParameterList(query, paperRecordStatus, includePaperRecordStatus);
+
+        return query.executeUpdate();
     }
 
-    private void addStatusDisjunctionRestriction(Criteria criteria, List<PaperRecordRequest.Status> statusList) {
+    @Override
+    public int cancelPaperRecordRequestsCreatedBefore(List<PaperRecordRequest.Status> statusList, PaperRecord.Status paperRecordStatus,
+                                                      boolean includePaperRecordStatus, Date expireDate, Integer maxResults) {
+
+        if (maxResults == null) {
+            return cancelPaperRecordRequestsCreatedBefore(statusList, paperRecordStatus, includePaperRecordStatus, expireDate);
+        }
 
-        if (statusList.size() == 1) {
-            criteria.add(Restrictions.eq("status", statusList.get(0)));
-        } else {
-            Disjunction statusDisjunction = Restrictions.disjunction();
+        if (maxResults <= 0) {
+            throw new IllegalArgumentException("Max results must be positive: " + maxResults);
+        }
+
+        // HQL updates can't be limited, so we first fetch the ids of the requests in this chunk
+        Query idQuery = createQuery("paperrecord.findPaperRecordRequestIdsCreatedBefore", statusList);
+        idQuery.setTimestamp("expireDate", expireDate);
+        setPaperRecordStatusParameterList(idQuery, paperRecordStatus, includePaperRecordStatus);
+        idQuery.setMaxResults(maxResults);
 
-            for (PaperRecordRequest.Status status : statusList) {
-                statusDisjunction.add(Restrictions.eq("status", status));
-            }
+        List<Integer> requestIds = (List<Integer>) idQuery.list();
 
-            criteria.add(statusDisjunction);
+        if (requestIds.isEmpty()) {
+            return 0;
         }
+
+        // we check the status again in case any of the requests have changed status since we fetched the ids
+        Query query = createQuery("paperrecord.cancelPaperRecordRequestsById", statusList);
+        query.setParameter("cancelledStatus", PaperRecordRequest.Status.CANCELLED,
+                sessionFactory.getClassMetadata(PaperRecordRequest.class).getPropertyType("status"));
+        query.setTimestamp("dateStatusChanged", new Date());
+        query.setParameterList("requestIds", requestIds);
+        query.executeUpdate();
+
+        // the caller keeps going while full chunks are found, so we return the number found rather than the number cancelled
+        return requestIds.size();
     }
 
-    private void addPatientRestriction(Criteria criteria, Patient patient) {
-        criteria.add(Restrictions.eq("pi.patient", patient));
+    @Override
+    public boolean assignPaperRecordRequest(PaperRecordRequest request, Person assignee) {
+
+        if (request.getRequestId() == null || request.getVersion() == null) {
+            throw new IllegalArgumentException("Request must be saved before it can be assigned: " + request);
+        }
+
+        Type statusType = sessionFactory.getClassMetadata(PaperRecordRequest.class).getPropertyType("status");
+
+        Query query = sessionFactory.getCurrentSession().getNamedQuery("paperrecord.assignPaperRecordRequest");
+        query.setParameter("assignedStatus", PaperRecordRequest.Status.ASSIGNED, statusType);
+        query.setParameter("openStatus", PaperRecordRequest.Status.OPEN, statusType);
+        query.setParameter("assignee", assignee);
+        query.setTimestamp("dateStatusChanged", new Date());
+        query.setInteger("requestId", request.getRequestId());
+        query.setInteger("version", request.getVersion());
+
+        if (query.executeUpdate() == 0) {
+            return false;
+        }
+
+        // the update bypasses the session, so we need to pick up the new status, assignee and version
+        sessionFactory.getCurrentSession().refresh(request);
+        return true;
+    }
+
+    private Query createQuery(String queryName, Collection<PaperRecordRequest.Status> statusList) {
+        Query query = sessionFactory.getCurrentSession().getNamedQuery(queryName);
+        setStatusParameterList(query, "statuses", statusList, PaperRecordRequest.class);
+        return query;
+    }
+
+    // picks the variant of the named query for the given record location (or all locations, if null) and page position
+    // (from the start, or after the previous page); not filtering on status is the same as including all of them
+    private Query createQuery(String queryName, Location recordLocation, boolean afterPosition, List<PaperRecordRequest.Status> statusList) {
+
+        Query query = createQuery(queryName + (recordLocation != null ? "" : "AllLocations") + (afterPosition ? "After" : ""),
+                allStatusesIfEmpty(statusList));
+
+        if (recordLocation != null) {
+            query.setParameter("recordLocation", recordLocation);
+        }
+
+        return query;
     }
 
-    private void addRecordLocationRestriction(Criteria criteria, Location recordLocation) {
-        criteria.add(Restrictions.eq("pr.recordLocation", recordLocation));
+    // completes one of the queue selects (and any criteria of its own) with the criteria on request status, paper record
+    // status, record location (or all locations, if null) and page position (from the start, or after the previous page),
+    // and optionally the queue order
+    private Query createQueueQuery(String select, String criteria, List<PaperRecordRequest.Status> statusList, Location recordLocation,
+                                   PaperRecord.Status paperRecordStatus, boolean includePaperRecordStatus,
+                                   Date afterDateCreated, Integer afterRequestId, boolean ordered) {
 
+        boolean afterPosition = afterDateCreated != null && afterRequestId != null;
+
+        Query query = sessionFactory.getCurrentSession().createQuery(queueHql(select, criteria, recordLocation != null, afterPosition, ordered));
+        setStatusParameterList(query, "statuses", allStatusesIfEmpty(statusList), PaperRecordRequest.class);
+        setPaperRecordStatusParameterList(query, paperRecordStatus, includePaperRecordStatus);
+
+        if (recordLocation != null) {
+            query.setParameter("recordLocation", recordLocation);
+        }
+
+        if (afterPosition) {
+            query.setTimestamp("afterDateCreated", afterDateCreated);
+            query.setInteger("afterRequestId", afterRequestId);
+        }
+
+        return query;
     }
 
-    private void addPaperRecordRestriction(Criteria criteria, PaperRecord paperRecord) {
-        criteria.add(Restrictions.eq("paperRecord", paperRecord));
+    // package-private so that the index usage test can explain exactly the HQL we run
+    static String queueHql(String select, String criteria, boolean byRecordLocation, boolean afterPosition, boolean ordered) {
+
+        StringBuilder hql = new StringBuilder(select);
+        hql.append(" where request.status in (:statuses) and pr.status in (:paperRecordStatuses)");
+
+        if (criteria != null) {
+            hql.append(" and ").append(criteria);
+        }
+
+        if (byRecordLocation) {
+            hql.append(" and pr.recordLocation = :recordLocation");
+        }
+
+        if (afterPosition) {
+            hql.append(" and (request.dateCreated > :afterDateCreated")
+                    .append(" or (request.dateCreated = :afterDateCreated and request.requestId > :afterRequestId))");
+        }
+
+        if (ordered) {
+            hql.append(" order by request.dateCreated, request.requestId");
+        }
+
+        return hql.toString();
     }
 
+    // excluding a paper record status is the same as including all the other statuses, which lets us use a single query shape for both
+    // (and not filtering on paper record status at all is the same as including all of them)
+    private void setPaperRecordStatusParameterList(Query query, PaperRecord.Status paperRecordStatus, boolean includePaperRecordStatus) {
+        setStatusParameterList(query, "paperRecordStatuses", paperRecordStatus == null ? EnumSet.allOf(PaperRecord.Status.class)
+                : includePaperRecordStatus ? EnumSet.of(paperRecordStatus)
+                : EnumSet.complementOf(EnumSet.of(paperRecordStatus)), PaperRecord.class);
+    }
 
-    private void addIdentifierRestriction(Criteria criteria, String identifier) {
-        criteria.add(Restrictions.eq("pi.identifier", identifier));
+    // the status properties are mapped with a custom enum type, so we need to tell Hibernate about it explicitly
+    private void setStatusParameterList(Query query, String name, Collection<? extends Enum> statuses, Class<?> entityClass) {
+        query.setParameterList(name, statuses, sessionFactory.getClassMetadata(entityClass).getPropertyType("status"));
     }
 
-    private void addOrderByDateCreated(Criteria criteria) {
-        criteria.addOrder(Order.asc("dateCreated"));
+    private Collection<PaperRecordRequest.Status> allStatusesIfEmpty(List<PaperRecordRequest.Status> statusList) {
+        return statusList == null || statusList.isEmpty() ? EnumSet.allOf(PaperRecordRequest.Status.class) : statusList;
     }
 
 }
@@ -0,0 +1,201 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.paperrecord.db;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.LockMode;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openmrs.Patient;
+import org.openmrs.api.APIException;
+import org.openmrs.module.paperrecord.PatientLockProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Patient lock provider that locks the patient's row in the paperrecord_patient_lock table (via SELECT ... FOR UPDATE),
+ * so that the lock holds across all the OpenMRS nodes that share the database
+ * <p/>
+ * All the locks held by a thread are held by a single lock session (and therefore a single connection and transaction),
+ * separate from the session doing the actual work, so that the locks can be held until after the work has been
+ * committed; the locks are released by committing that session's transaction once the thread has released all of
+ * them. Note that this means a patient's row stays locked until the thread releases its *last* lock, which is never
+ * less safe than releasing it earlier.
+ * <p/>
+ * The first time a patient is locked there is no row to lock yet, so we insert one in its own short transaction (if
+ * another node inserts the same row at the same time, one of the inserts fails, which is fine) and then lock it. The row
+ * has to exist before we lock it: on MySQL, a locking read of a missing row takes a gap lock, which the insert (on its
+ * own connection) would then wait on forever, so we only check for the row with a plain, non-locking read. The
+ * table deliberately has no foreign key to the patient table, since the patient may have been saved by a transaction
+ * that has not yet committed, which a separate connection can't see (or would have to wait on).
+ * <p/>
+ * Unsaved patients (ie, without a patient id) can't have any existing requests or records, so they aren't locked
+ */
+public class HibernatePatientLockProvider implements PatientLockProvider {
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private SessionFactory sessionFactory;
+
+    // the lock session of the current thread, if it holds any locks
+    private final ThreadLocal<LockSession> lockSession = new ThreadLocal<LockSession>();
+
+    public void setSessionFactory(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    @Override
+    public void lock(Patient patient) {
+
+        if (patient.getId() == null) {
+            return;
+        }
+
+        LockSession currentLockSession = lockSession.get();
+
+        if (currentLockSession != null && currentLockSession.holdCounts.containsKey(patient.getId())) {
+            currentLockSession.holdCounts.put(patient.getId(), currentLockSession.holdCounts.get(patient.getId()) + 1);
+            return;
+        }
+
+        if (currentLockSession == null) {
+            currentLockSession = new LockSession(sessionFactory.openSession());
+            lockSession.set(currentLockSession);
+        }
+
+        try {
+            acquire(currentLockSession.session, patient.getId());
+        }
+        catch (HibernateException e) {
+            // if this was the thread's first lock there is nothing else to hold on to; otherwise the locks already
+            // held stay in place until the caller releases them
+            if (currentLockSession.holdCounts.isEmpty()) {
+                lockSession.remove();
+                rollbackAndClose(currentLockSession.session);
+            }
+            throw new APIException("Unable to acquire lock on patient " + patient.getId(), e);
+        }
+
+        currentLockSession.holdCounts.put(patient.getId(), 1);
+    }
+
+    @Override
+    public void unlock(Patient patient) {
+
+        if (patient.getId() == null) {
+            return;
+        }
+
+        LockSession currentLockSession = lockSession.get();
+
+        if (currentLockSession == null || !currentLockSession.holdCounts.containsKey(patient.getId())) {
+            throw new IllegalStateException("Patient " + patient.getId() + " is not locked by the current thread");
+        }
+
+        int holdCount = currentLockSession.holdCounts.get(patient.getId()) - 1;
+
+        if (holdCount > 0) {
+            currentLockSession.holdCounts.put(patient.getId(), holdCount);
+            return;
+        }
+
+        currentLockSession.holdCounts.remove(patient.getId());
+
+        if (currentLockSession.holdCounts.isEmpty()) {
+            lockSession.remove();
+            release(currentLockSession.session);
+        }
+    }
+
+    private void acquire(Session session, Integer patientId) {
+
+        if (!session.getTransaction().isActive()) {
+            session.beginTransaction();
+        }
+
+        Query query = session.getNamedQuery("paperrecord.countPatientLocks");
+        query.setInteger("patientId", patientId);
+
+        if (((Number) query.uniqueResult()).intValue() == 0) {
+            insertLockRow(patientId);
+        }
+
+        if (session.get(PaperRecordPatientLock.class, patientId, LockMode.UPGRADE) == null) {
+            throw new HibernateException("No lock row for patient " + patientId);
+        }
+    }
+
+    private void insertLockRow(Integer patientId) {
+
+        Session session = sessionFactory.openSession();
+
+        try {
+            session.beginTransaction();
+            session.save(new PaperRecordPatientLock(patientId));
+            session.getTransaction().commit();
+            session.close();
+        }
+        catch (HibernateException e) {
+            // most likely another thread or node inserted the same row first, which is all we need
+            log.debug("Unable to insert lock row for patient " + patientId, e);
+            rollbackAndClose(session);
+        }
+    }
+
+    private void release(Session session) {
+        try {
+            session.getTransaction().commit();
+        }
+        catch (HibernateException e) {
+            log.error("Unable to commit patient lock transaction", e);
+            rollbackAndClose(session);
+            return;
+        }
+        session.close();
+    }
+
+    private void rollbackAndClose(Session session) {
+        try {
+            if (session.getTransaction().isActive()) {
+                session.getTransaction().rollback();
+            }
+        }
+        catch (HibernateException e) {
+            log.error("Unable to roll back patient lock transaction", e);
+        }
+        finally {
+            if (session.isOpen()) {
+                session.close();
+            }
+        }
+    }
+
+    private static class LockSession {
+
+        private Session session;
+
+        // the number of holds on each patient locked by the thread, by patient id, so that we can support reentrant locking
+        private Map<Integer, Integer> holdCounts = new HashMap<Integer, Integer>();
+
+        private LockSession(Session session) {
+            this.session = session;
+        }
+
+    }
+
+}
@@ -3,16 +3,56 @@ package org.openmrs.module.paperrecord.db;
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.module.emrapi.db.SingleClassDAO;
 import org.openmrs.module.paperrecord.PaperRecord;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface PaperRecordDAO extends SingleClassDAO<PaperRecord> {
 
     List<PaperRecord> findPaperRecords(Patient patient, Location paperRecordLocation);
 
+    /**
+     * Fetches the (non-voided) paper records of a batch of patients at the specified location with a single query (the
+     * identifier and patient of each record are fetched along with it)
+     *
+     * @param patients
+     * @param paperRecordLocation
+     * @return the paper records of any of the specified patients at the specified location
+     */
+    List<PaperRecord> findPaperRecords(Collection<Patient> patients, Location paperRecordLocation);
+
     PaperRecord findPaperRecord(PatientIdentifier paperRecordIdentifier, Location paperRecordLocation);
 
     PaperRecord findPaperRecord(String paperRecordIdentifier, Location paperRecordLocation);
+
+    /**
+     * Evicts the specified paper record, and any cached paper record query results, from the second-level cache; if
+     * called within a transaction, the eviction happens once the transaction has committed (and not at all on rollback)
+     *
+     * @param paperRecord
+     */
+    void evictFromCache(PaperRecord paperRecord);
+
+    /**
+     * Checks a batch of candidate paper record identifiers with a single query
+     *
+     * @param identifiers the candidate identifiers
+     * @param paperRecordIdentifierType
+     * @param medicalRecordLocation
+     * @return those of the specified identifiers that are already in use (including by voided identifiers)
+     */
+    List<String> findPaperRecordIdentifiersInUse(Collection<String> identifiers, PatientIdentifierType paperRecordIdentifierType,
+                                                 Location medicalRecordLocation);
+
+    /**
+     * Flushes any pending changes to the database, and then evicts the specified paper records from the session, so that
+     * the session doesn't keep growing while processing large numbers of records; anything else in the session
+     * (including the caller's own objects, if this runs within a larger transaction) is left alone
+     *
+     * @param paperRecords
+     */
+    void flushAndEvict(Collection<PaperRecord> paperRecords);
 }
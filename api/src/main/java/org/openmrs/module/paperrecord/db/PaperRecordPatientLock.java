@@ -0,0 +1,52 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.paperrecord.db;
+
+import java.util.Date;
+
+/**
+ * A row in the paperrecord_patient_lock table; the row for a patient is what gets locked (via SELECT ... FOR UPDATE)
+ * by the HibernatePatientLockProvider (note that patientId is not a foreign key, see HibernatePatientLockProvider)
+ */
+public class PaperRecordPatientLock {
+
+    private Integer patientId;
+
+    private Date dateCreated;
+
+    public PaperRecordPatientLock() {
+    }
+
+    public PaperRecordPatientLock(Integer patientId) {
+        this.patientId = patientId;
+        this.dateCreated = new Date();
+    }
+
+    public Integer getPatientId() {
+        return patientId;
+    }
+
+    public void setPatientId(Integer patientId) {
+        this.patientId = patientId;
+    }
+
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    public void setDateCreated(Date dateCreated) {
+        this.dateCreated = dateCreated;
+    }
+
+}
@@ -0,0 +1,31 @@
+package org.openmrs.module.paperrecord.db;
+
+import org.openmrs.Location;
+import org.openmrs.module.emrapi.db.SingleClassDAO;
+import org.openmrs.module.paperrecord.PaperRecordPrintJob;
+
+import java.util.List;
+
+public interface PaperRecordPrintJobDAO extends SingleClassDAO<PaperRecordPrintJob> {
+
+    /**
+     * Returns the ids (rather than the jobs themselves, which may be large) of the pending print jobs, in the order they
+     * were queued; this includes any jobs claimed by a dispatcher more than PaperRecordConstants.PRINT_JOB_CLAIM_TIMEOUT_MINUTES
+     * ago that are still not printed
+     *
+     * @param location if not null, only return jobs for this location
+     * @param maxResults the maximum number of ids to return, or null to return all of them
+     * @return the ids of the pending print jobs
+     */
+    List<Integer> findPendingPrintJobIds(Location location, Integer maxResults);
+
+    /**
+     * Fetches the specified print job, locking its row (SELECT ... FOR UPDATE) until the end of the current transaction,
+     * so that the same job is never claimed by two threads (or nodes) at once
+     *
+     * @param printJobId
+     * @return the print job, or null if there is no such job
+     */
+    PaperRecordPrintJob getByIdForUpdate(Integer printJobId);
+
+}
@@ -16,26 +16,178 @@ package org.openmrs.module.paperrecord.db;
 
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Person;
 import org.openmrs.module.emrapi.db.SingleClassDAO;
 import org.openmrs.module.paperrecord.PaperRecord;
 import org.openmrs.module.paperrecord.PaperRecordRequest;
+import org.openmrs.module.paperrecord.PaperRecordRequestQueueRow;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 public interface PaperRecordRequestDAO extends SingleClassDAO<PaperRecordRequest> {
 
     /**
-     * Returns all the paper record requests for the given patient and given location with ANY of the specified statuses
+     * Returns all the paper record requests for the given patient (or identifier) and given location with ANY of the
+     * specified statuses; a null location matches all locations, and a null or empty status list matches all statuses
      *
      * @param statusList
      * @param patient
      * @param recordLocation
      * @param identifier
      * @return the paper record requests for the given patient and given record location with ANY of the specified statuses
+     * @throws IllegalArgumentException if both a patient and an identifier are given
      */
     List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Patient patient,
                                                      Location recordLocation, String identifier);
 
+    /**
+     * Returns all the paper record requests for any of the given patients at the given location with ANY of the
+     * specified statuses, with a single query (the paper record and identifier of each request are fetched along with it)
+     *
+     * @param statusList
+     * @param patients
+     * @param recordLocation
+     * @return the paper record requests for the given patients and given record location with ANY of the specified
+     * statuses, ordered by date created
+     */
+    List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Collection<Patient> patients,
+                                                     Location recordLocation);
+
     List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, PaperRecord paperRecord);
 
+    /**
+     * Returns all the paper record requests for the given record location with ANY of the specified statuses, filtered
+     * on the status of the associated paper record
+     *
+     * @param statusList
+     * @param recordLocation
+     * @param paperRecordStatus the paper record status to filter on
+     * @param includePaperRecordStatus if true, only return requests whose paper record has the given status; if false,
+     *                                 only return requests whose paper record does *not* have the given status
+     * @return the paper record requests for the given record location with ANY of the specified statuses, filtered on paper record status
+     */
+    List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Location recordLocation,
+                                                     PaperRecord.Status paperRecordStatus, boolean includePaperRecordStatus);
+
+    /**
+     * Returns a page of the paper record requests for the given record location with ANY of the specified statuses,
+     * filtered on the status of the associated paper record
+     * <p/>
+     * Results are ordered by date created, and then by request id; a page consists of (at most) maxResults requests
+     * that come *after* the specified (dateCreated, requestId) position in that ordering
+     *
+     * @param statusList
+     * @param recordLocation
+     * @param paperRecordStatus the paper record status to filter on
+     * @param includePaperRecordStatus if true, only return requests whose paper record has the given status; if false,
+     *                                 only return requests whose paper record does *not* have the given status
+     * @param afterDateCreated the date created of the last request on the previous page (null to start at the beginning)
+     * @param afterRequestId the id of the last request on the previous page (null to start at the beginning)
+     * @param maxResults the maximum number of requests to return (null to return all remaining requests)
+     * @return the requested page of paper record requests
+     */
+    List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Location recordLocation,
+                                                     PaperRecord.Status paperRecordStatus, boolean includePaperRecordStatus,
+                                                     Date afterDateCreated, Integer afterRequestId, Integer maxResults);
+
+    /**
+     * Returns the number of paper record requests for the given record location with ANY of the specified statuses,
+     * filtered on the status of the associated paper record (ie, the size of the list that the corresponding
+     * findPaperRecordRequests method would return, computed with a count query)
+     *
+     * @param statusList
+     * @param recordLocation
+     * @param paperRecordStatus the paper record status to filter on
+     * @param includePaperRecordStatus if true, only count requests whose paper record has the given status; if false,
+     *                                 only count requests whose paper record does *not* have the given status
+     * @return the number of matching paper record requests
+     */
+    long countPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Location recordLocation,
+                                  PaperRecord.Status paperRecordStatus, boolean includePaperRecordStatus);
+
+    /**
+     * Same as the above paging findPaperRecordRequests method, but rather than returning the requests themselves,
+     * returns flattened queue rows fetched in a single projection query, with the dossier number, patient name,
+     * primary identifier and request location name already joined in
+     *
+     * @param statusList
+     * @param recordLocation
+     * @param paperRecordStatus the paper record status to filter on
+     * @param includePaperRecordStatus if true, only return requests whose paper record has the given status; if false,
+     *                                 only return requests whose paper record does *not* have the given status
+     * @param primaryIdentifierType the identifier type of the patient identifier to return as the primary identifier
+     * @param afterDateCreated the date created of the last request on the previous page (null to start at the beginning)
+     * @param afterRequestId the id of the last request on the previous page (null to start at the beginning)
+     * @param maxResults the maximum number of rows to return (null to return all remaining rows)
+     * @return the requested page of queue rows
+     */
+    List<PaperRecordRequestQueueRow> findPaperRecordRequestQueueRows(List<PaperRecordRequest.Status> statusList, Location recordLocation,
+                                                                     PaperRecord.Status paperRecordStatus, boolean includePaperRecordStatus,
+                                                                     PatientIdentifierType primaryIdentifierType,
+                                                                     Date afterDateCreated, Integer afterRequestId, Integer maxResults);
+
+    /**
+     * For each of the specified paper records, returns the request with the specified status that has the most recent
+     * date status changed, fetched in a single query per 500 paper records (the request location of each request is
+     * fetched as well)
+     * <p/>
+     * Note that if two requests for the same paper record have the exact same date status changed, both will be
+     * returned; requests are ordered by request id, so the most recently created request comes last
+     *
+     * @param status
+     * @param paperRecordIds the ids of the paper records
+     * @return the most recent requests with the given status for the given paper records
+     */
+    List<PaperRecordRequest> findMostRecentPaperRecordRequests(PaperRecordRequest.Status status, Collection<Integer> paperRecordIds);
+
+    /**
+     * Cancels, in a single bulk update, all the paper record requests with ANY of the specified statuses that were
+     * created before the specified expire date, filtered on the status of the associated paper record
+     * <p/>
+     * Note that this is executed directly against the database, so any of the affected requests that have already been
+     * loaded into the current session will not reflect the update
+     *
+     * @param statusList
+     * @param paperRecordStatus the paper record status to filter on
+     * @param includePaperRecordStatus if true, only cancel requests whose paper record has the given status; if false,
+     *                                 only cancel requests whose paper record does *not* have the given status
+     * @param expireDate requests created before this date are cancelled
+     * @return the number of requests cancelled
+     */
+    int cancelPaperRecordRequestsCreatedBefore(List<PaperRecordRequest.Status> statusList, PaperRecord.Status paperRecordStatus,
+                                               boolean includePaperRecordStatus, Date expireDate);
+
+    /**
+     * Same as the above method, but cancels at most maxResults requests (the matching requests with the lowest
+     * request ids), so that a large number of requests can be cancelled in a series of smaller chunks; note that this
+     * returns the number of matching requests found, rather than the number cancelled, since a request that changes
+     * status between being found and being cancelled is skipped, and a chunk is only the last one if fewer than
+     * maxResults requests are found
+     *
+     * @param statusList
+     * @param paperRecordStatus the paper record status to filter on
+     * @param includePaperRecordStatus if true, only cancel requests whose paper record has the given status; if false,
+     *                                 only cancel requests whose paper record does *not* have the given status
+     * @param expireDate requests created before this date are cancelled
+     * @param maxResults the maximum number of requests to cancel (null to cancel all matching requests)
+     * @return the number of matching requests found (or, if maxResults is null, the number of requests cancelled)
+     * @throws IllegalArgumentException if maxResults is not positive
+     */
+    int cancelPaperRecordRequestsCreatedBefore(List<PaperRecordRequest.Status> statusList, PaperRecord.Status paperRecordStatus,
+                                               boolean includePaperRecordStatus, Date expireDate, Integer maxResults);
+
+    /**
+     * Assigns the given request to the given assignee (setting its status to ASSIGNED), but only if the request is
+     * still OPEN and has not been modified by anyone else since it was loaded (based on its version); on success,
+     * the request is refreshed to reflect its new state
+     *
+     * @param request
+     * @param assignee
+     * @return true if the request was assigned, false if it had been modified (ie, most likely, claimed) by someone else
+     */
+    boolean assignPaperRecordRequest(PaperRecordRequest request, Person assignee);
+
 }
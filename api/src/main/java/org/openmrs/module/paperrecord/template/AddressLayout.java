@@ -0,0 +1,339 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord.template;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.PersonAddress;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.layout.web.address.AddressSupport;
+import org.openmrs.layout.web.address.AddressTemplate;
+import org.openmrs.module.paperrecord.RenderedLabelCache;
+import org.openmrs.util.OpenmrsConstants;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The address layout (see AddressSupport), compiled into the getter of each address property on each line, so that
+ * printing an address on a label doesn't mean walking the layout's lines and tokens, and looking up each property by
+ * name, for every label
+ * <p/>
+ * The layout is compiled on first use, and again after the address layout global property changes (this is registered
+ * as a global property listener by the activator), which also clears the rendered label cache
+ */
+public class AddressLayout implements GlobalPropertyListener {
+
+    private static final Log log = LogFactory.getLog(AddressLayout.class);
+
+    private static final String SEPARATOR = ", ";
+
+    // the address properties an address layout normally refers to; any other property is looked up by reflection
+    private static final Map<String, AddressGetter> GETTERS = new HashMap<String, AddressGetter>();
+
+    static {
+        GETTERS.put("address1", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getAddress1();
+            }
+        });
+        GETTERS.put("address2", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getAddress2();
+            }
+        });
+        GETTERS.put("address3", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getAddress3();
+            }
+        });
+        GETTERS.put("address4", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getAddress4();
+            }
+        });
+        GETTERS.put("address5", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getAddress5();
+            }
+        });
+        GETTERS.put("address6", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getAddress6();
+            }
+        });
+        GETTERS.put("cityVillage", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getCityVillage();
+            }
+        });
+        GETTERS.put("countyDistrict", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getCountyDistrict();
+            }
+        });
+        GETTERS.put("stateProvince", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getStateProvince();
+            }
+        });
+        GETTERS.put("country", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getCountry();
+            }
+        });
+        GETTERS.put("postalCode", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getPostalCode();
+            }
+        });
+        GETTERS.put("latitude", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getLatitude();
+            }
+        });
+        GETTERS.put("longitude", new AddressGetter() {
+            @Override
+            public String get(PersonAddress address) {
+                return address.getLongitude();
+            }
+        });
+    }
+
+    private volatile Compiled compiled;
+
+    // incremented every time the compiled layout is thrown away, so that a layout that was being compiled at the time
+    // isn't kept
+    private final AtomicInteger compiledVersion = new AtomicInteger();
+
+    private RenderedLabelCache renderedLabelCache;
+
+    public void setRenderedLabelCache(RenderedLabelCache renderedLabelCache) {
+        this.renderedLabelCache = renderedLabelCache;
+    }
+
+    /**
+     * @param address
+     * @return the lines of the address, laid out according to the address layout: the non-blank properties on each
+     * line of the layout, separated by commas, leaving out any lines that are blank
+     */
+    public List<String> getLines(PersonAddress address) {
+
+        AddressGetter[][] lines = getCompiled().lines;
+
+        if (lines == null || address == null) {
+            return Collections.emptyList();
+        }
+
+        List<String> output = new ArrayList<String>(lines.length);
+        StringBuilder line = new StringBuilder();
+
+        for (AddressGetter[] getters : lines) {
+            line.setLength(0);
+            for (AddressGetter getter : getters) {
+                String property = getter.get(address);
+                if (StringUtils.isNotBlank(property)) {
+                    if (line.length() > 0) {
+                        line.append(SEPARATOR);
+                    }
+                    line.append(property);
+                }
+            }
+            if (line.length() > 0) {
+                output.add(line.toString());
+            }
+        }
+
+        return output;
+    }
+
+    /**
+     * Throws away the compiled layout, so that it is compiled again on next use
+     */
+    public synchronized void clearCache() {
+        compiledVersion.incrementAndGet();
+        compiled = null;
+    }
+
+    @Override
+    public boolean supportsPropertyName(String propertyName) {
+        return OpenmrsConstants.GLOBAL_PROPERTY_ADDRESS_TEMPLATE.equals(propertyName);
+    }
+
+    @Override
+    public void globalPropertyChanged(GlobalProperty newValue) {
+        clearCache();
+        clearRenderedLabelCache();
+    }
+
+    @Override
+    public void globalPropertyDeleted(String propertyName) {
+        clearCache();
+        clearRenderedLabelCache();
+    }
+
+    private void clearRenderedLabelCache() {
+        if (renderedLabelCache != null) {
+            renderedLabelCache.clear();
+        }
+    }
+
+    private Compiled getCompiled() {
+
+        Compiled current = compiled;
+
+        if (current == null) {
+            int version = compiledVersion.get();
+            current = compile(getLayoutTemplate());
+
+            // (if the layout changed while we were compiling it, we still use it for this call, but don't keep it)
+            synchronized (this) {
+                if (version == compiledVersion.get()) {
+                    compiled = current;
+                }
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * @return the address layout to compile (broken out so that it can be overridden in tests)
+     */
+    protected AddressTemplate getLayoutTemplate() {
+        return AddressSupport.getInstance().getDefaultLayoutTemplate();
+    }
+
+    private Compiled compile(AddressTemplate layout) {
+
+        List<List<Map<String, String>>> layoutLines = layout != null ? layout.getLines() : null;
+
+        if (layoutLines == null) {
+            log.error("Address template not properly configured");
+            return new Compiled(null);
+        }
+
+        List<AddressGetter[]> lines = new ArrayList<AddressGetter[]>();
+
+        for (List<Map<String, String>> line : layoutLines) {
+
+            List<AddressGetter> getters = new ArrayList<AddressGetter>();
+
+            // only the tokens on each line are address properties; anything else is just a label
+            for (Map<String, String> token : line) {
+                if (layout.getLayoutToken() != null && layout.getLayoutToken().equals(token.get("isToken"))) {
+                    AddressGetter getter = getGetter(token.get("codeName"));
+                    if (getter != null) {
+                        getters.add(getter);
+                    }
+                }
+            }
+
+            if (getters.size() > 0) {
+                lines.add(getters.toArray(new AddressGetter[getters.size()]));
+            }
+        }
+
+        return new Compiled(lines.toArray(new AddressGetter[lines.size()][]));
+    }
+
+    private AddressGetter getGetter(String property) {
+
+        if (StringUtils.isBlank(property)) {
+            return null;
+        }
+
+        if (GETTERS.containsKey(property)) {
+            return GETTERS.get(property);
+        }
+
+        try {
+            for (PropertyDescriptor descriptor : Introspector.getBeanInfo(PersonAddress.class).getPropertyDescriptors()) {
+                if (descriptor.getName().equals(property) && descriptor.getReadMethod() != null) {
+                    return new ReflectiveAddressGetter(descriptor.getReadMethod());
+                }
+            }
+        }
+        catch (IntrospectionException e) {
+            log.error("Unable to look up address property " + property, e);
+            return null;
+        }
+
+        log.warn("Address layout refers to unknown address property " + property);
+        return null;
+    }
+
+    private interface AddressGetter {
+
+        String get(PersonAddress address);
+
+    }
+
+    private static class ReflectiveAddressGetter implements AddressGetter {
+
+        private final Method getter;
+
+        private ReflectiveAddressGetter(Method getter) {
+            this.getter = getter;
+        }
+
+        @Override
+        public String get(PersonAddress address) {
+            try {
+                Object value = getter.invoke(address);
+                return value != null ? value.toString() : null;
+            }
+            catch (Exception e) {
+                log.error("Unable to get address property " + getter.getName(), e);
+                return null;
+            }
+        }
+
+    }
+
+    private static class Compiled {
+
+        // one array of getters per line of the layout, or null if the layout isn't properly configured
+        private final AddressGetter[][] lines;
+
+        private Compiled(AddressGetter[][] lines) {
+            this.lines = lines;
+        }
+
+    }
+
+}
@@ -7,16 +7,73 @@ import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.appframework.feature.FeatureToggleProperties;
-import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.paperrecord.PaperRecordProperties;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
-public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
+/**
+ * Renders ID card labels from the ZPL templates in idCardLabel.zpl, which are compiled once, when this is instantiated;
+ * labels can also be printed against the stored format defined there
+ */
+public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate, StoredFormatLabelTemplate {
+
+    // the number of paper record and external dossier identifiers the stored format has room for
+    private static final int STORED_FORMAT_IDENTIFIERS = 7;
 
     private final Log log = LogFactory.getLog(getClass());
 
-    private EmrApiProperties emrApiProperties;
+    private final ZplTemplate label;
+
+    private final ZplTemplate identifierField;
+
+    private final ZplTemplate identifierLocationField;
+
+    private final int nameSlot;
+
+    private final int primaryIdentifierSlot;
+
+    private final int identifiersSlot;
+
+    private final int identifierHorizontalPositionSlot;
+
+    private final int identifierVerticalPositionSlot;
+
+    private final int identifierSlot;
+
+    private final int locationHorizontalPositionSlot;
+
+    private final int locationVerticalPositionSlot;
+
+    private final int locationSlot;
+
+    private final int locationLabelSlot;
+
+    private final StoredFormat storedFormat;
+
+    public DefaultZplIdCardLabelTemplate() {
+
+        Map<String, ZplTemplate> templates = ZplTemplate.load("idCardLabel.zpl");
+
+        label = ZplTemplate.get(templates, "label");
+        nameSlot = label.getSlot("name");
+        primaryIdentifierSlot = label.getSlot("primaryIdentifier");
+        identifiersSlot = label.getSlot("identifiers");
+
+        identifierField = ZplTemplate.get(templates, "identifier");
+        identifierHorizontalPositionSlot = identifierField.getSlot("horizontalPosition");
+        identifierVerticalPositionSlot = identifierField.getSlot("verticalPosition");
+        identifierSlot = identifierField.getSlot("identifier");
+
+        identifierLocationField = ZplTemplate.get(templates, "identifierLocation");
+        locationHorizontalPositionSlot = identifierLocationField.getSlot("horizontalPosition");
+        locationVerticalPositionSlot = identifierLocationField.getSlot("verticalPosition");
+        locationSlot = identifierLocationField.getSlot("location");
+        locationLabelSlot = identifierLocationField.getSlot("label");
+
+        storedFormat = StoredFormat.load(templates, "ID");
+    }
 
     private PaperRecordProperties paperRecordProperties;
 
@@ -24,10 +81,6 @@ public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
 
     private FeatureToggleProperties featureToggles;
 
-    public void setEmrApiProperties(EmrApiProperties emrApiProperties) {
-        this.emrApiProperties = emrApiProperties;
-    }
-
     public void setPaperRecordProperties(PaperRecordProperties paperRecordProperties) {
         this.paperRecordProperties = paperRecordProperties;
     }
@@ -43,72 +96,120 @@ public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
     @Override
     public String generateLabel(Patient patient, String paperRecordIdentifier) {
 
+        Fields fields = getFields(patient);
+        CharSequence[] values = label.newValues();
+
+        values[nameSlot] = fields.name;
+        values[primaryIdentifierSlot] = fields.primaryIdentifier;
+
+        /* Print patient record identifiers in two columns*/
+        StringBuilder identifiers = new StringBuilder();
+        CharSequence[] identifierValues = identifierField.newValues();
+        CharSequence[] locationValues = identifierLocationField.newValues();
+        int verticalPosition = 110;
+        int horizontalPosition = 100;
+        for (int i = 0; i < fields.identifiers.size(); i++) {
+
+            identifierValues[identifierHorizontalPositionSlot] = Integer.toString(horizontalPosition);
+            identifierValues[identifierVerticalPositionSlot] = Integer.toString(verticalPosition);
+            identifierValues[identifierSlot] = fields.identifiers.get(i);
+            identifierField.render(identifiers, identifierValues);
+
+            if (fields.locations.get(i) != null) {
+                locationValues[locationHorizontalPositionSlot] = identifierValues[identifierHorizontalPositionSlot];
+                locationValues[locationVerticalPositionSlot] = Integer.toString(verticalPosition + 50);
+                locationValues[locationSlot] = fields.locations.get(i);
+                locationValues[locationLabelSlot] = fields.locationLabels.get(i);
+                identifierLocationField.render(identifiers, locationValues);
+            }
+            verticalPosition = verticalPosition + 100;
+
+            // switch to second column if needed
+            if (verticalPosition == 410) {
+                verticalPosition = 110;
+                horizontalPosition = 550;
+            }
+        }
+        values[identifiersSlot] = identifiers;
+
+        /* The "tear line" is part of the template */
+
+        return label.render(values);
+    }
+
+    @Override
+    public String getStoredFormatName() {
+        return storedFormat.getName();
+    }
+
+    @Override
+    public String getStoredFormat() {
+        return storedFormat.getDefinition();
+    }
+
+    @Override
+    public String generateStoredFormatLabel(Patient patient, String paperRecordIdentifier) {
+
+        Fields fields = getFields(patient);
+        CharSequence[] values = storedFormat.newFields();
+
+        // (see the field numbers in the storedFormat template)
+        values[1] = fields.name;
+        values[2] = fields.primaryIdentifier;
+        for (int i = 0; i < fields.identifiers.size() && i < STORED_FORMAT_IDENTIFIERS; i++) {
+            values[3 + i] = fields.identifiers.get(i);
+            if (fields.locations.get(i) != null) {
+                values[3 + STORED_FORMAT_IDENTIFIERS + i] = fields.locations.get(i) + " " + fields.locationLabels.get(i);
+            }
+        }
+
+        return storedFormat.render(values);
+    }
+
+    private Fields getFields(Patient patient) {
+
         if (patient.getPersonName() == null) {
             throw new IllegalArgumentException("Patient needs to have at least one name");
         }
 
-        PatientIdentifier primaryIdentifier = patient.getPatientIdentifier(emrApiProperties.getPrimaryIdentifierType());
+        PatientIdentifier primaryIdentifier = patient.getPatientIdentifier(paperRecordProperties.getPrimaryIdentifierType());
 
         if (primaryIdentifier == null) {
             throw new IllegalArgumentException("No primary identifier for this patient");
         }
 
-        // TODO: potentially pull this formatting code into a configurable template?
-        // build the command to send to the printer -- written in ZPL
-        StringBuilder data = new StringBuilder();
-        data.append("^XA");
-        data.append("^CI28");   // specify Unicode encoding
-        data.append("^PW1300");  // set print width
-        data.append("^MTT");   // set thermal transfer type
-
-        String patientName = null;
-        if(patient.getPersonName() != null ){
-            patientName = (patient.getPersonName().getFamilyName() != null ? patient.getPersonName().getFamilyName() : "") + ", "
-                    + (patient.getPersonName().getGivenName() != null ? patient.getPersonName().getGivenName() : "");
-        }
-         /* Name (Only print first and last name) */
-        if (patientName != null) {
-            if (patientName.length() > PaperRecordLabelTemplate.LABEL_PRINTER_LINE_MAX_SIZE){
-                patientName = StringUtils.substring(patientName,  0, PaperRecordLabelTemplate.LABEL_PRINTER_LINE_MAX_SIZE -1);
-            }
-            data.append("^FO100,40^AUN^FD" + patientName + "^FS");
+        Fields fields = new Fields();
+
+        /* Name (Only print first and last name) */
+        String patientName = (patient.getPersonName().getFamilyName() != null ? patient.getPersonName().getFamilyName() : "") + ", "
+                + (patient.getPersonName().getGivenName() != null ? patient.getPersonName().getGivenName() : "");
+        if (patientName.length() > PaperRecordLabelTemplate.LABEL_PRINTER_LINE_MAX_SIZE){
+            patientName = StringUtils.substring(patientName,  0, PaperRecordLabelTemplate.LABEL_PRINTER_LINE_MAX_SIZE -1);
         }
+        fields.name = patientName;
 
         /* Primary identifier */
-        data.append("^FO480,40^FB520,1,0,R,0^AUN^FD" + primaryIdentifier.getIdentifier() + "^FS");
+        fields.primaryIdentifier = primaryIdentifier.getIdentifier();
 
         List<PatientIdentifier> paperRecordIdentifiers = patient.getPatientIdentifiers(paperRecordProperties.getPaperRecordIdentifierType());
         List<PatientIdentifier> externalIdentifiers = patient.getPatientIdentifiers(paperRecordProperties.getExternalDossierIdentifierType());
-        /* Print patient record identifiers in two columns*/
         int count = 0;
-        int verticalPosition = 110;
-        int horizontalPosition = 100;
         if (paperRecordIdentifiers != null && paperRecordIdentifiers.size() > 0) {
+
+            boolean cdi = featureToggles.isFeatureEnabled("cdi");
+
             for (PatientIdentifier identifier : paperRecordIdentifiers) {
 
-                if (featureToggles.isFeatureEnabled("cdi")) {
-                    data.append("^FO" + horizontalPosition + "," + verticalPosition + "^AUN^FD"
-                            + identifier.getIdentifier().substring(0, identifier.getIdentifier().length() - 6) + " "
-                            + identifier.getIdentifier().substring(identifier.getIdentifier().length() - 6)
-                            + "^FS");
+                if (cdi) {
+                    fields.addIdentifier(identifier.getIdentifier().substring(0, identifier.getIdentifier().length() - 6) + " "
+                            + identifier.getIdentifier().substring(identifier.getIdentifier().length() - 6), identifier,
+                            "emr.archivesRoom.recordNumber.label");
                 }
                 else {
-                    data.append("^FO" + horizontalPosition + "," + verticalPosition + "^AUN^FD" + identifier.getIdentifier() + "^FS");
+                    fields.addIdentifier(identifier.getIdentifier(), identifier, "emr.archivesRoom.recordNumber.label");
                 }
-
-                if (identifier.getLocation() != null) {
-                    data.append("^FO" + horizontalPosition + "," + (verticalPosition + 50) + "^ATN^FD" + identifier.getLocation().getName() + " "
-                            + messageSourceService.getMessage("emr.archivesRoom.recordNumber.label") + "^FS");
-                }
-                verticalPosition = verticalPosition + 100;
                 count++;
 
-                // switch to second column if needed
-                if (verticalPosition == 410) {
-                    verticalPosition = 110;
-                    horizontalPosition = 550;
-                }
-
                 // we can't fit more than 6 dossier numbers on a label--this is a real edge case
                 if (count > 6) {
                     break;
@@ -121,30 +222,43 @@ public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
                     break;
                 }
                 count++;
-                data.append("^FO" + horizontalPosition + "," + verticalPosition + "^AUN^FD" + externalIdentifier.getIdentifier() + "^FS");
-                if (externalIdentifier.getLocation() != null) {
-                    data.append("^FO" + horizontalPosition + "," + (verticalPosition + 50) + "^ATN^FD" + externalIdentifier.getLocation().getName() + " "
-                            + messageSourceService.getMessage("ui.i18n.PatientIdentifierType.name." + externalIdentifier.getIdentifierType().getUuid()) + "^FS");
-                }
-                verticalPosition = verticalPosition + 100;
+                fields.addIdentifier(externalIdentifier.getIdentifier(), externalIdentifier,
+                        "ui.i18n.PatientIdentifierType.name." + externalIdentifier.getIdentifierType().getUuid());
                 count++;
-
-                // switch to second column if needed
-                if (verticalPosition == 410) {
-                    verticalPosition = 110;
-                    horizontalPosition = 550;
-                }
             }
         }
 
+        return fields;
+    }
+
+    /**
+     * The variable fields of a label, which are the same whether it is printed in full or as a stored format
+     */
+    private class Fields {
 
-        /* Draw the "tear line" */
-        data.append("^FO1025,10^GB0,590,10^FS");
+        private String name;
 
-        /* Print command */
-        data.append("^XZ");
+        private String primaryIdentifier;
+
+        // the paper record and external dossier identifiers to print, and (if known) the location and label of each
+        private List<String> identifiers = new ArrayList<String>();
+
+        private List<String> locations = new ArrayList<String>();
+
+        private List<String> locationLabels = new ArrayList<String>();
+
+        private void addIdentifier(String printedIdentifier, PatientIdentifier identifier, String locationLabelCode) {
+            identifiers.add(printedIdentifier);
+            if (identifier.getLocation() != null) {
+                locations.add(identifier.getLocation().getName());
+                locationLabels.add(messageSourceService.getMessage(locationLabelCode));
+            }
+            else {
+                locations.add(null);
+                locationLabels.add(null);
+            }
+        }
 
-        return data.toString();
     }
 
     @Override
@@ -153,5 +267,3 @@ public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
     }
 
 }
-
-
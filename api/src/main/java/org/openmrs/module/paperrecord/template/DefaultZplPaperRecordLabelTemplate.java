@@ -1,179 +1,275 @@
 package org.openmrs.module.paperrecord.template;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
+import org.apache.commons.lang.time.FastDateFormat;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.api.context.Context;
-import org.openmrs.layout.web.address.AddressSupport;
 import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.appframework.feature.FeatureToggleProperties;
-import org.openmrs.module.emrapi.EmrApiProperties;
-import org.openmrs.module.emrapi.utils.GeneralUtils;
+import org.openmrs.module.paperrecord.PaperRecordProperties;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 
-public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTemplate {
+/**
+ * Renders paper record labels from the ZPL templates in paperRecordLabel.zpl, which are compiled once, when this is
+ * instantiated; labels can also be printed against the stored format defined there
+ */
+public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTemplate, StoredFormatLabelTemplate {
 
-    private final Log log = LogFactory.getLog(getClass());
+    private static final String DATE_FORMAT = "dd/MMM/yyyy";
+
+    // the number of address lines the stored format has room for
+    private static final int STORED_FORMAT_ADDRESS_LINES = 6;
+
+    private final ZplTemplate label;
+
+    private final ZplTemplate addressLine;
+
+    private final ZplTemplate paperRecordIdentifierField;
+
+    private final int nameFontSlot;
+
+    private final int nameSlot;
+
+    private final int primaryIdentifierSlot;
+
+    private final int birthdateAndGenderSlot;
+
+    private final int addressSlot;
+
+    private final int paperRecordIdentifierSlot;
+
+    private final int addressLineVerticalPositionSlot;
+
+    private final int addressLineSlot;
+
+    private final int paperRecordIdentifierFieldSlot;
+
+    private final StoredFormat storedFormat;
 
     protected MessageSourceService messageSourceService;
 
-    protected EmrApiProperties emrApiProperties;
+    protected PaperRecordProperties paperRecordProperties;
 
     protected FeatureToggleProperties featureToggles;
 
+    protected AddressLayout addressLayout = new AddressLayout();
+
+    public DefaultZplPaperRecordLabelTemplate() {
+        this("paperRecordLabel.zpl", "PR");
+    }
+
+    /**
+     * @param templateResource the resource (relative to this package) with the label, addressLine and
+     * paperRecordIdentifier templates to render labels with (and the stored format templates, see StoredFormat)
+     * @param storedFormatPrefix the prefix of the stored format's name, unique to each template
+     */
+    protected DefaultZplPaperRecordLabelTemplate(String templateResource, String storedFormatPrefix) {
+
+        Map<String, ZplTemplate> templates = ZplTemplate.load(templateResource);
+
+        label = ZplTemplate.get(templates, "label");
+        nameFontSlot = label.getSlot("nameFont");
+        nameSlot = label.getSlot("name");
+        primaryIdentifierSlot = label.getSlot("primaryIdentifier");
+        birthdateAndGenderSlot = label.getSlot("birthdateAndGender");
+        addressSlot = label.getSlot("address");
+        paperRecordIdentifierSlot = label.getSlot("paperRecordIdentifier");
+
+        addressLine = ZplTemplate.get(templates, "addressLine");
+        addressLineVerticalPositionSlot = addressLine.getSlot("verticalPosition");
+        addressLineSlot = addressLine.getSlot("line");
+
+        paperRecordIdentifierField = ZplTemplate.get(templates, "paperRecordIdentifier");
+        paperRecordIdentifierFieldSlot = paperRecordIdentifierField.getSlot("paperRecordIdentifier");
+
+        storedFormat = StoredFormat.load(templates, storedFormatPrefix);
+    }
+
     public void setFeatureToggles(FeatureToggleProperties featureToggles) {
         this.featureToggles = featureToggles;
     }
 
+    public void setAddressLayout(AddressLayout addressLayout) {
+        this.addressLayout = addressLayout;
+    }
+
     public void setMessageSourceService(MessageSourceService messageSourceService) {
         this.messageSourceService = messageSourceService;
     }
 
-    public void setEmrApiProperties(EmrApiProperties emrApiProperties) {
-        this.emrApiProperties = emrApiProperties;
+    public void setPaperRecordProperties(PaperRecordProperties paperRecordProperties) {
+        this.paperRecordProperties = paperRecordProperties;
     }
 
     @Override
     public String generateLabel(Patient patient, String paperRecordIdentifier) {
 
+        Fields fields = getFields(patient, paperRecordIdentifier);
+        CharSequence[] values = label.newValues();
+
+        /* LEFT COLUMN */
+
+        values[nameFontSlot] = fields.smallNameFont ? "U" : "V"; // smaller : large font
+        values[nameSlot] = fields.name;
+        values[primaryIdentifierSlot] = fields.primaryIdentifier;
+        values[birthdateAndGenderSlot] = fields.birthdateAndGender;
+
+        /* Address (using address template) */
+        if (!fields.addressLines.isEmpty()) {
+            values[addressSlot] = generateAddress(fields.addressLines);
+        }
+
+        /* RIGHT COLUMN */
+
+        /* Print the patient's paper record identifier, if it exists */
+        if (fields.paperRecordIdentifier != null) {
+            CharSequence[] fieldValues = paperRecordIdentifierField.newValues();
+            fieldValues[paperRecordIdentifierFieldSlot] = fields.paperRecordIdentifier;
+            values[paperRecordIdentifierSlot] = paperRecordIdentifierField.render(fieldValues);
+        }
+
+        /* The bar code is based on the primary identifier, which is already filled in */
+
+        return label.render(values);
+    }
+
+    @Override
+    public String getStoredFormatName() {
+        return storedFormat.getName();
+    }
+
+    @Override
+    public String getStoredFormat() {
+        return storedFormat.getDefinition();
+    }
+
+    @Override
+    public String generateStoredFormatLabel(Patient patient, String paperRecordIdentifier) {
+
+        Fields fields = getFields(patient, paperRecordIdentifier);
+        CharSequence[] values = storedFormat.newFields();
+
+        // (see the field numbers in the storedFormat template)
+        values[fields.smallNameFont ? 2 : 1] = fields.name;
+        values[3] = fields.primaryIdentifier;
+        values[4] = fields.birthdateAndGender;
+        for (int i = 0; i < fields.addressLines.size() && i < STORED_FORMAT_ADDRESS_LINES; i++) {
+            values[5 + i] = fields.addressLines.get(i);
+        }
+        values[11] = fields.paperRecordIdentifier;
+        values[12] = fields.primaryIdentifier;
+
+        return storedFormat.render(values);
+    }
+
+    @Override
+    public String getEncoding() {
+        return "UTF-8";
+    }
+
+    /**
+     * We break this out into a separate method so that we can override it in the DefaultZplPaperFormLabelTemplate
+     *
+     * @param paperRecordIdentifier
+     * @param cdi whether the "cdi" feature toggle is enabled
+     * @return the paper record identifier as printed on the label, with the digits in groups of three
+     */
+    protected String formatPaperRecordIdentifier(String paperRecordIdentifier, boolean cdi) {
+        if (cdi) {
+            return paperRecordIdentifier.substring(0, paperRecordIdentifier.length() - 6) + " "
+                    + paperRecordIdentifier.substring(paperRecordIdentifier.length() - 6, paperRecordIdentifier.length() - 3) + " "
+                    + paperRecordIdentifier.substring(paperRecordIdentifier.length() - 3);
+        }
+        else {
+            return paperRecordIdentifier.substring(0, paperRecordIdentifier.length() - 3) + " "
+                    + paperRecordIdentifier.substring(paperRecordIdentifier.length() - 3);
+        }
+    }
+
+    private Fields getFields(Patient patient, String paperRecordIdentifier) {
+
         if (patient.getPersonName() == null) {
             throw new IllegalArgumentException("Patient needs to have at least one name");
         }
 
-        PatientIdentifier primaryIdentifier = patient.getPatientIdentifier(emrApiProperties.getPrimaryIdentifierType());
+        PatientIdentifier primaryIdentifier = patient.getPatientIdentifier(paperRecordProperties.getPrimaryIdentifierType());
 
         if (primaryIdentifier == null) {
             throw new IllegalArgumentException("No primary identifier for this patient");
         }
 
-        DateFormat df = new SimpleDateFormat("dd/MMM/yyyy", Context.getLocale());
+        Fields fields = new Fields();
 
-        // TODO: potentially pull this formatting code into a configurable template?
-        // build the command to send to the printer -- written in ZPL
-        StringBuilder data = new StringBuilder();
-        data.append("^XA");
-        data.append("^CI28");   // specify Unicode encoding
-        data.append("^PW1300");  // set print width
-        data.append("^MTT");   // set thermal transfer type
-
-        /* LEFT COLUMN */
-
-        String patientName = null;
-        if(patient.getPersonName() != null ){
-            patientName = (patient.getPersonName().getFamilyName() != null ? patient.getPersonName().getFamilyName() : "") + ", "
-                    + (patient.getPersonName().getGivenName() != null ? patient.getPersonName().getGivenName() : "");
-        }
-        String fontHeight = "V"; //large font
         /* Name (Only print first and last name) */
-        if (patientName != null) {
-            if (patientName.length() > PaperRecordLabelTemplate.CHARTLABEL_PRINTER_LINE_MAX_SIZE){
-                fontHeight ="U"; //smaller font
-            }
-            if (patientName.length() > PaperRecordLabelTemplate.CHARTLABEL_LOWER_FONT_PRINTER_LINE_MAX_SIZE){
-                patientName = StringUtils.substring(patientName,  0, PaperRecordLabelTemplate.CHARTLABEL_LOWER_FONT_PRINTER_LINE_MAX_SIZE);
-            }
-            data.append("^FO080,40^A" + fontHeight + "N^FD" + patientName + "^FS");
-        }
+        String patientName = (patient.getPersonName().getFamilyName() != null ? patient.getPersonName().getFamilyName() : "") + ", "
+                + (patient.getPersonName().getGivenName() != null ? patient.getPersonName().getGivenName() : "");
 
-        /* Primary identifier */
-        data.append("^FO080,120^AUN^FD" + primaryIdentifier.getIdentifier() + "^FS");
+        fields.smallNameFont = patientName.length() > PaperRecordLabelTemplate.CHARTLABEL_PRINTER_LINE_MAX_SIZE;
+        fields.name = StringUtils.substring(patientName, 0, PaperRecordLabelTemplate.CHARTLABEL_LOWER_FONT_PRINTER_LINE_MAX_SIZE);
 
+        /* Primary identifier */
+        fields.primaryIdentifier = primaryIdentifier.getIdentifier();
 
         /* Birthdate & Gender */
-        data.append("^FO080,190^ATN^FD");
+        StringBuilder birthdateAndGender = new StringBuilder();
         if (patient.getBirthdate() != null) {
-            data.append(df.format(patient.getBirthdate()) + (patient.getBirthdateEstimated() ? " (*)" : "") + ", ");
+            birthdateAndGender.append(FastDateFormat.getInstance(DATE_FORMAT, Context.getLocale()).format(patient.getBirthdate()))
+                    .append(patient.getBirthdateEstimated() ? " (*)" : "").append(", ");
         }
         if (patient.getGender() != null) {
-            data.append(messageSourceService.getMessage("coreapps.gender." + patient.getGender()));
+            birthdateAndGender.append(messageSourceService.getMessage("coreapps.gender." + patient.getGender()));
         }
-        data.append("^FS");
+        fields.birthdateAndGender = birthdateAndGender;
 
-        /* Address (using address template) */
+        /* Address (using the compiled address layout) */
         if (patient.getPersonAddress() != null) {
+            fields.addressLines = addressLayout.getLines(patient.getPersonAddress());
+        }
 
-            int verticalPosition = 250;
-
-            // print out the address using the layout format
-            // first iterate through all the lines in the format
-            if (AddressSupport.getInstance().getDefaultLayoutTemplate() != null && AddressSupport.getInstance().getDefaultLayoutTemplate().getLines() != null) {
-
-                List<List<Map<String, String>>> lines = AddressSupport.getInstance().getDefaultLayoutTemplate().getLines();
-                ListIterator<List<Map<String, String>>> iter = lines.listIterator();
-
-                while (iter.hasNext()) {
-                    List<Map<String, String>> line = iter.next();
-                    // now iterate through all the tokens in the line and build the string to print
-                    StringBuffer output = new StringBuffer();
-                    for (Map<String, String> token : line) {
-                        // find all the tokens on this line, and then add them to that output line
-                        if (token.get("isToken").equals(AddressSupport.getInstance().getDefaultLayoutTemplate().getLayoutToken())) {
-
-                            String property = GeneralUtils.getPersonAddressProperty(patient.getPersonAddress(), token.get("codeName"));
-
-                            if (!StringUtils.isBlank(property)) {
-                                output.append(property + ", ");
-                            }
-                        }
-                    }
-
-                    if (output.length() > 2) {
-                        // drop the trailing comma and space from the last token on the line
-                        output.replace(output.length() - 2, output.length(), "");
-                    }
-
-                    if (!StringUtils.isBlank(output.toString())) {
-                        data.append("^FO080," + verticalPosition + "^ATN^FD" + output.toString() + "^FS");
-                        verticalPosition = verticalPosition + 50;
-                    }
-                }
-            } else {
-                log.error("Address template not properly configured");
-            }
+        /* Paper record identifier, if it exists */
+        if (StringUtils.isNotBlank(paperRecordIdentifier)) {
+            fields.paperRecordIdentifier = formatPaperRecordIdentifier(paperRecordIdentifier, featureToggles.isFeatureEnabled("cdi"));
         }
 
-        /* RIGHT COLUMN */
-        generateBarCodeAndIdentifier(data, paperRecordIdentifier, primaryIdentifier);
+        return fields;
+    }
 
-        /* Print command */
-        data.append("^XZ");
+    private StringBuilder generateAddress(List<String> addressLines) {
 
-        return data.toString();
-    }
+        StringBuilder address = new StringBuilder();
+        int verticalPosition = 250;
 
-    @Override
-    public String getEncoding() {
-        return "UTF-8";
+        CharSequence[] lineValues = addressLine.newValues();
+        for (String line : addressLines) {
+            lineValues[addressLineVerticalPositionSlot] = Integer.toString(verticalPosition);
+            lineValues[addressLineSlot] = line;
+            addressLine.render(address, lineValues);
+            verticalPosition = verticalPosition + 50;
+        }
+
+        return address;
     }
 
-    // we break this out into a separate method so that we can override it in the DefaultZplPaperFormLabelTempalte
-    protected void generateBarCodeAndIdentifier(StringBuilder data, String paperRecordIdentifier, PatientIdentifier primaryIdentifier) {
+    /**
+     * The variable fields of a label, which are the same whether it is printed in full or as a stored format
+     */
+    private static class Fields {
 
-        /* Print the patient's paper record identifier, if it exists  (h x w set to 120, 110, not sure if this is accurate) */
-        if (StringUtils.isNotBlank(paperRecordIdentifier)) {
+        private boolean smallNameFont;
 
-            if (featureToggles.isFeatureEnabled("cdi")) {
-                data.append("^FO680,40^FB520,1,0,R,0^AUN,140,110^FD"
-                        + paperRecordIdentifier.substring(0, paperRecordIdentifier.length() - 6) + " "
-                        + paperRecordIdentifier.substring(paperRecordIdentifier.length() - 6, paperRecordIdentifier.length() - 3) + " "
-                        + paperRecordIdentifier.substring(paperRecordIdentifier.length() - 3) + "^FS");
-            }
-            else {
-                data.append("^FO680,40^FB520,1,0,R,0^AUN,140,110^FD"
-                        + paperRecordIdentifier.substring(0, paperRecordIdentifier.length() - 3) + " "
-                        + paperRecordIdentifier.substring(paperRecordIdentifier.length() - 3) + "^FS");
-            }
-        }
+        private String name;
+
+        private String primaryIdentifier;
+
+        private CharSequence birthdateAndGender;
+
+        private List<String> addressLines = Collections.emptyList();
 
-        /* Print the bar code, based on the primary identifier */
-        data.append("^FO780,160^ATN^BY4^BCN,150,N^FD" + primaryIdentifier.getIdentifier() + "^FS");    // print barcode & identifier
+        private String paperRecordIdentifier;
 
     }
 }
@@ -0,0 +1,173 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord.template;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A ZPL stored format: the static layout of a label, uploaded to (and kept by) the printer with ^DF, so that each label
+ * only needs to recall the format with ^XF and send the data of its numbered (^FN) fields
+ * <p/>
+ * Stored formats are loaded from the same resources as the ZplTemplates they stand in for, from three templates:
+ * <ul>
+ * <li>storedFormat: the layout, starting with ^DF${formatName}^FS, with a ^FN for each variable field</li>
+ * <li>storedFormatLabel: a label, which recalls the format with ^XF${formatName}^FS and fills in its ${fields}</li>
+ * <li>storedFormatField: a single field, ie ^FN${number}^FD${data}^FS</li>
+ * </ul>
+ * The format is stored in the printer's memory (R:) rather than in flash (E:), so that uploading formats doesn't wear
+ * out the flash, and so that formats are never left behind for good; this means the printer loses the format when it
+ * is switched off (see PrinterStoredFormats). The format is named after its template (a two letter prefix) and a
+ * checksum of the layout, so that a printer never prints with a stale layout after the template changes, and every
+ * upload first deletes (^ID) any format stored under the same prefix, so that superseded layouts don't pile up
+ */
+public class StoredFormat {
+
+    private static final Pattern FIELD_NUMBER = Pattern.compile("\\^FN(\\d+)");
+
+    private static final String DEVICE = "R:";
+
+    private static final String EXTENSION = ".ZPL";
+
+    private static final Pattern PREFIX = Pattern.compile("[A-Z]{2}");
+
+    private final String name;
+
+    private final String definition;
+
+    private final ZplTemplate label;
+
+    private final int labelFormatNameSlot;
+
+    private final int labelFieldsSlot;
+
+    private final ZplTemplate field;
+
+    private final int fieldNumberSlot;
+
+    private final int fieldDataSlot;
+
+    // the number of each field, as rendered, by field number
+    private final String[] fieldNumbers;
+
+    private StoredFormat(String prefix, ZplTemplate format, ZplTemplate label, ZplTemplate field) {
+
+        if (prefix == null || !PREFIX.matcher(prefix).matches()) {
+            throw new IllegalArgumentException("Stored format prefix must be two capital letters: " + prefix);
+        }
+
+        int formatNameSlot = format.getSlot("formatName");
+        CharSequence[] values = format.newValues();
+
+        // the layout is the same whatever the name, so checksum it without one (object names on the printer are at
+        // most eight characters, so this only keeps the last six digits of the checksum)
+        String layout = format.render(values);
+        this.name = DEVICE + prefix + getChecksum(layout).substring(2) + EXTENSION;
+
+        values[formatNameSlot] = name;
+        this.definition = "^XA^ID" + DEVICE + prefix + "*" + EXTENSION + "^FS^XZ" + format.render(values);
+
+        this.label = label;
+        this.labelFormatNameSlot = label.getSlot("formatName");
+        this.labelFieldsSlot = label.getSlot("fields");
+
+        this.field = field;
+        this.fieldNumberSlot = field.getSlot("number");
+        this.fieldDataSlot = field.getSlot("data");
+
+        int fieldCount = 0;
+        Matcher matcher = FIELD_NUMBER.matcher(layout);
+        while (matcher.find()) {
+            fieldCount = Math.max(fieldCount, Integer.parseInt(matcher.group(1)));
+        }
+
+        this.fieldNumbers = new String[fieldCount + 1];
+        for (int i = 1; i <= fieldCount; i++) {
+            fieldNumbers[i] = Integer.toString(i);
+        }
+    }
+
+    /**
+     * @param templates the templates loaded from a resource
+     * @param prefix two capital letters, unique to the label template, that the format's name starts with
+     * @return the stored format defined by the storedFormat, storedFormatLabel and storedFormatField templates
+     * @throws IllegalArgumentException if any of those templates (or any of their placeholders) are missing, or the
+     * prefix isn't two capital letters
+     */
+    public static StoredFormat load(Map<String, ZplTemplate> templates, String prefix) {
+        return new StoredFormat(prefix, ZplTemplate.get(templates, "storedFormat"),
+                ZplTemplate.get(templates, "storedFormatLabel"), ZplTemplate.get(templates, "storedFormatField"));
+    }
+
+    /**
+     * @return the name the format is stored under on the printer, ie R:PR2B3C4D.ZPL
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the ZPL to delete any earlier version of the format from a printer, and upload this one
+     */
+    public String getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @return an empty array of field data for a label, to be filled in by field number (there is no field 0)
+     */
+    public CharSequence[] newFields() {
+        return new CharSequence[fieldNumbers.length];
+    }
+
+    /**
+     * @param fields the data of each field, by field number; fields that are null or empty are left out of the label,
+     * so print nothing
+     * @return a label, which recalls this format and fills in the specified fields
+     */
+    public String render(CharSequence[] fields) {
+
+        StringBuilder fieldData = new StringBuilder();
+        CharSequence[] fieldValues = field.newValues();
+
+        for (int i = 1; i < fieldNumbers.length; i++) {
+            if (fields[i] != null && fields[i].length() > 0) {
+                fieldValues[fieldNumberSlot] = fieldNumbers[i];
+                fieldValues[fieldDataSlot] = fields[i];
+                field.render(fieldData, fieldValues);
+            }
+        }
+
+        CharSequence[] values = label.newValues();
+        values[labelFormatNameSlot] = name;
+        values[labelFieldsSlot] = fieldData;
+        return label.render(values);
+    }
+
+    private String getChecksum(String layout) {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(layout.getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return String.format("%08X", crc.getValue());
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord.template;
+
+import org.openmrs.Patient;
+
+/**
+ * A label template that can also print its labels against a format stored on the printer (see StoredFormat), so that
+ * the layout is only sent to each printer once, and each label only sends its variable fields
+ */
+public interface StoredFormatLabelTemplate extends LabelTemplate {
+
+    /**
+     * @return the name the format is stored under on the printer
+     */
+    String getStoredFormatName();
+
+    /**
+     * @return the ZPL to upload the format to a printer (replacing any earlier version of it); this must be sent before
+     * any labels generated by generateStoredFormatLabel
+     */
+    String getStoredFormat();
+
+    /**
+     * @param patient
+     * @param paperRecordIdentifier
+     * @return the same label as generateLabel, as a recall of the stored format
+     */
+    String generateStoredFormatLabel(Patient patient, String paperRecordIdentifier);
+
+}
@@ -0,0 +1,263 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord.template;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A ZPL template with named placeholders (ie ${patientName}), compiled once into a list of literal segments and
+ * placeholder slots, so that rendering a label is just a matter of copying the segments and the values into a single
+ * buffer, sized up front to fit the label exactly
+ * <p/>
+ * Callers look up the slot of each placeholder once (see getSlot), and then, for each label, fill in an array of
+ * values indexed by slot (see newValues); a placeholder may appear more than once in a template, and a null value
+ * renders as nothing
+ * <p/>
+ * Templates are usually loaded from a resource (see load), which may contain several named templates, each starting
+ * with a [name] line, eg:
+ * <pre>
+ * # a comment
+ * [label]
+ * ^XA
+ * ^FO100,40^AUN^FD${patientName}^FS
+ * ^XZ
+ * </pre>
+ * Each line is trimmed, and the line breaks are dropped, so every ZPL command can go on a line of its own; blank lines,
+ * and lines starting with #, are ignored
+ */
+public class ZplTemplate {
+
+    private static final String PLACEHOLDER_START = "${";
+
+    private static final String PLACEHOLDER_END = "}";
+
+    // literals[i] is rendered before the placeholder in slots[i]; the last literal is rendered after the last placeholder
+    private final String[] literals;
+
+    private final int[] slots;
+
+    private final List<String> placeholders;
+
+    private final int literalLength;
+
+    private ZplTemplate(List<String> literals, List<Integer> slots, List<String> placeholders) {
+
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.slots = new int[slots.size()];
+        for (int i = 0; i < slots.size(); i++) {
+            this.slots[i] = slots.get(i);
+        }
+        this.placeholders = Collections.unmodifiableList(placeholders);
+
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * @param source the template
+     * @return the compiled template
+     * @throws IllegalArgumentException if a placeholder isn't terminated, or has no name
+     */
+    public static ZplTemplate compile(String source) {
+
+        List<String> literals = new ArrayList<String>();
+        List<Integer> slots = new ArrayList<Integer>();
+        List<String> placeholders = new ArrayList<String>();
+
+        int position = 0;
+        int start;
+
+        while ((start = source.indexOf(PLACEHOLDER_START, position)) >= 0) {
+
+            int end = source.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated placeholder in template at position " + start);
+            }
+
+            String placeholder = source.substring(start + PLACEHOLDER_START.length(), end).trim();
+            if (placeholder.length() == 0) {
+                throw new IllegalArgumentException("Placeholder without a name in template at position " + start);
+            }
+
+            int slot = placeholders.indexOf(placeholder);
+            if (slot < 0) {
+                slot = placeholders.size();
+                placeholders.add(placeholder);
+            }
+
+            literals.add(source.substring(position, start));
+            slots.add(slot);
+            position = end + PLACEHOLDER_END.length();
+        }
+
+        literals.add(source.substring(position));
+
+        return new ZplTemplate(literals, slots, placeholders);
+    }
+
+    /**
+     * Loads and compiles all the templates in the specified resource (see the class comment for the format)
+     *
+     * @param resource the name of the resource, relative to this package
+     * @return the compiled templates, by name
+     * @throws IllegalArgumentException if the resource doesn't exist, or any of the templates in it can't be compiled
+     */
+    public static Map<String, ZplTemplate> load(String resource) {
+
+        InputStream in = ZplTemplate.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IllegalArgumentException("No template resource " + resource);
+        }
+
+        Map<String, StringBuilder> sources = new LinkedHashMap<String, StringBuilder>();
+        StringBuilder source = null;
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.startsWith("[") && line.endsWith("]")) {
+                    source = new StringBuilder();
+                    sources.put(line.substring(1, line.length() - 1).trim(), source);
+                }
+                else if (source == null) {
+                    throw new IllegalArgumentException("Template resource " + resource + " must start with a [name] line");
+                }
+                else {
+                    source.append(line);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read template resource " + resource, e);
+        }
+        finally {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                // ignore
+            }
+        }
+
+        Map<String, ZplTemplate> templates = new LinkedHashMap<String, ZplTemplate>();
+        for (Map.Entry<String, StringBuilder> entry : sources.entrySet()) {
+            try {
+                templates.put(entry.getKey(), compile(entry.getValue().toString()));
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unable to compile template " + entry.getKey() + " in " + resource, e);
+            }
+        }
+        return templates;
+    }
+
+    /**
+     * @param templates the templates loaded from a resource
+     * @param name
+     * @return the template with the specified name
+     * @throws IllegalArgumentException if there is no template with the specified name
+     */
+    public static ZplTemplate get(Map<String, ZplTemplate> templates, String name) {
+        ZplTemplate template = templates.get(name);
+        if (template == null) {
+            throw new IllegalArgumentException("No template named " + name);
+        }
+        return template;
+    }
+
+    /**
+     * @param placeholder
+     * @return the index of the value for the specified placeholder in the values passed to render
+     * @throws IllegalArgumentException if the template has no such placeholder
+     */
+    public int getSlot(String placeholder) {
+        int slot = placeholders.indexOf(placeholder);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Template has no placeholder " + placeholder);
+        }
+        return slot;
+    }
+
+    /**
+     * @return the names of the placeholders in this template, in slot order
+     */
+    public List<String> getPlaceholders() {
+        return placeholders;
+    }
+
+    /**
+     * @return an empty array of values for this template, to be filled in by slot
+     */
+    public CharSequence[] newValues() {
+        return new CharSequence[placeholders.size()];
+    }
+
+    /**
+     * @param values the values of the placeholders, by slot
+     * @return the length of the template, rendered with the specified values
+     */
+    public int getLength(CharSequence[] values) {
+        int length = literalLength;
+        for (int slot : slots) {
+            if (values[slot] != null) {
+                length += values[slot].length();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @param values the values of the placeholders, by slot
+     * @return the rendered template
+     */
+    public String render(CharSequence[] values) {
+        StringBuilder out = new StringBuilder(getLength(values));
+        render(out, values);
+        return out.toString();
+    }
+
+    /**
+     * Renders this template onto the end of the specified buffer
+     *
+     * @param out
+     * @param values the values of the placeholders, by slot
+     */
+    public void render(StringBuilder out, CharSequence[] values) {
+        for (int i = 0; i < slots.length; i++) {
+            out.append(literals[i]);
+            if (values[slots[i]] != null) {
+                out.append(values[slots[i]]);
+            }
+        }
+        out.append(literals[slots.length]);
+    }
+
+}
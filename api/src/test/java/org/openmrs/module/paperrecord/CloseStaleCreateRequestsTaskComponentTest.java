@@ -88,7 +88,7 @@ public class CloseStaleCreateRequestsTaskComponentTest extends BaseModuleContext
 
         List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToCreate();
         assertThat(requests.size(), is(1));
-        assertThat(requests.get(0), is(afterExpireDate));
+        assertThat(requests.get(0).getRequestId(), is(afterExpireDate.getRequestId()));
     }
 
     @Test
@@ -146,7 +146,7 @@ public class CloseStaleCreateRequestsTaskComponentTest extends BaseModuleContext
 
         List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToCreate();
         assertThat(requests.size(), is(1));
-        assertThat(requests.get(0), is(afterExpireDate));
+        assertThat(requests.get(0).getRequestId(), is(afterExpireDate.getRequestId()));
     }
 
 }
@@ -102,7 +102,7 @@ public class CloseStalePullRequestsTaskComponentTest extends BaseModuleContextSe
 
         List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToPull();
         assertThat(requests.size(), is(1));
-        assertThat(requests.get(0), is(afterExpireDate));
+        assertThat(requests.get(0).getRequestId(), is(afterExpireDate.getRequestId()));
     }
 
     @Test
@@ -160,7 +160,106 @@ public class CloseStalePullRequestsTaskComponentTest extends BaseModuleContextSe
 
         List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToPull();
         assertThat(requests.size(), is(1));
-        assertThat(requests.get(0), is(afterExpireDate));
+        assertThat(requests.get(0).getRequestId(), is(afterExpireDate.getRequestId()));
+    }
+
+    @Test
+    public void shouldNotCloseCreateRequests() {
+
+        // some data from standard test dataset
+        Person person = personService.getPerson(3);
+        Location recordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+
+        // from the custom data set
+        PatientIdentifier identifier = patientService.getPatientIdentifier(2001);
+
+        Date now = new Date();
+
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setPatientIdentifier(identifier);
+        paperRecord.setRecordLocation(recordLocation);
+        paperRecord.updateStatus(PaperRecord.Status.PENDING_CREATION);
+        paperRecordService.savePaperRecord(paperRecord);
+
+        PaperRecordRequest createRequest = new PaperRecordRequest();
+        createRequest.setPaperRecord(paperRecord);
+        createRequest.setRequestLocation(requestLocation);
+        createRequest.setAssignee(person);
+        createRequest.updateStatus(PaperRecordRequest.Status.ASSIGNED);
+        paperRecordService.savePaperRecordRequest(createRequest);
+
+        // change the date created (which we can't do when we first persist it since it is set automatically)
+        createRequest.setDateCreated(DateUtils.addHours(now, -13));
+        paperRecordService.savePaperRecordRequest(createRequest);
+
+        // now test the scheduler
+        CloseStalePullRequestsTask closeStalePullRequestsTask = new CloseStalePullRequestsTask();
+        closeStalePullRequestsTask.initialize(new TaskDefinition());
+        closeStalePullRequestsTask.execute();
+
+        List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToCreate();
+        assertThat(requests.size(), is(1));
+        assertThat(requests.get(0).getRequestId(), is(createRequest.getRequestId()));
+    }
+
+    @Test
+    public void shouldCloseAllStalePullRequestsInChunks() {
+
+        // some data from standard test dataset
+        Person person = personService.getPerson(3);
+        Location recordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+
+        // from the custom data set
+        PatientIdentifier identifier = patientService.getPatientIdentifier(2001);
+
+        Date now = new Date();
+
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setPatientIdentifier(identifier);
+        paperRecord.setRecordLocation(recordLocation);
+        paperRecord.updateStatus(PaperRecord.Status.ACTIVE);
+        paperRecordService.savePaperRecord(paperRecord);
+
+        for (int i = 0; i < 3; i++) {
+            PaperRecordRequest request = new PaperRecordRequest();
+            request.setPaperRecord(paperRecord);
+            request.setRequestLocation(requestLocation);
+            request.setAssignee(person);
+            request.updateStatus(PaperRecordRequest.Status.ASSIGNED);
+            paperRecordService.savePaperRecordRequest(request);
+
+            // change the date created (which we can't do when we first persist it since it is set automatically)
+            request.setDateCreated(DateUtils.addHours(now, -13));
+            paperRecordService.savePaperRecordRequest(request);
+        }
+
+        // sanity check
+        assertThat(paperRecordService.getAssignedPaperRecordRequestsToPull().size(), is(3));
+
+        // now test the scheduler, expiring one request per chunk
+        CloseStalePullRequestsTask closeStalePullRequestsTask = new CloseStalePullRequestsTask();
+
+        TaskDefinition taskDefinition = new TaskDefinition();
+        taskDefinition.setProperty(AbstractCloseStaleRequestsTask.CHUNK_SIZE_PROPERTY, "1");
+        closeStalePullRequestsTask.initialize(taskDefinition);
+
+        closeStalePullRequestsTask.execute();
+
+        assertThat(paperRecordService.getAssignedPaperRecordRequestsToPull().size(), is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNonPositiveChunkSize() {
+
+        CloseStalePullRequestsTask closeStalePullRequestsTask = new CloseStalePullRequestsTask();
+
+        TaskDefinition taskDefinition = new TaskDefinition();
+        taskDefinition.setProperty(AbstractCloseStaleRequestsTask.CHUNK_SIZE_PROPERTY, "0");
+        closeStalePullRequestsTask.initialize(taskDefinition);
+
+        closeStalePullRequestsTask.execute();
     }
 
 }
@@ -0,0 +1,184 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonName;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.PatientService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.idgen.AutoGenerationOption;
+import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.SequentialIdentifierGenerator;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.patient.impl.LuhnIdentifierValidator;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the throughput of creating paper records one patient at a time (createPaperRecord) with creating them in
+ * bulk (createPaperRecords)
+ * <p/>
+ * This is skipped as part of the normal build; to run it:
+ * mvn test -Dtest=CreatePaperRecordsBenchmarkTest -Dpaperrecord.benchmark=true [-Dpaperrecord.benchmark.patients=1000]
+ * <p/>
+ * Note that this runs against the in-memory test database, so the absolute numbers don't mean much, but the ratio
+ * between the two gives an idea of how much the bulk path saves
+ */
+public class CreatePaperRecordsBenchmarkTest extends BaseModuleContextSensitiveTest {
+
+    private static final int DEFAULT_NUMBER_OF_PATIENTS = 500;
+
+    @Autowired
+    private PaperRecordService paperRecordService;
+
+    @Autowired
+    private PatientService patientService;
+
+    @Autowired
+    private LocationService locationService;
+
+    @Autowired
+    private PaperRecordProperties paperRecordProperties;
+
+    private int numberOfPatients;
+
+    private int nextIdentifier = 1;
+
+    @Before
+    public void setup() throws Exception {
+
+        Assume.assumeTrue(Boolean.getBoolean("paperrecord.benchmark"));
+
+        executeDataSet("paperRecordTestDataset.xml");
+
+        numberOfPatients = Integer.getInteger("paperrecord.benchmark.patients", DEFAULT_NUMBER_OF_PATIENTS);
+
+        // stub out idgen with a sequence of identifiers, shared by both paths
+        IdentifierSourceService mockIdentifierSourceService = mock(IdentifierSourceService.class);
+        paperRecordService.setIdentifierSourceService(mockIdentifierSourceService);
+
+        IdentifierSource source = new SequentialIdentifierGenerator();
+        AutoGenerationOption autoGenerationOption = new AutoGenerationOption();
+        autoGenerationOption.setSource(source);
+
+        when(mockIdentifierSourceService.getAutoGenerationOption(eq(paperRecordProperties.getPaperRecordIdentifierType()), any(Location.class)))
+                .thenReturn(autoGenerationOption);
+
+        when(mockIdentifierSourceService.generateIdentifier(eq(paperRecordProperties.getPaperRecordIdentifierType()), any(Location.class), anyString()))
+                .thenAnswer(new Answer<String>() {
+                    @Override
+                    public String answer(InvocationOnMock invocation) throws Throwable {
+                        return nextIdentifier();
+                    }
+                });
+
+        when(mockIdentifierSourceService.generateIdentifiers(eq(source), anyInt(), anyString()))
+                .thenAnswer(new Answer<List<String>>() {
+                    @Override
+                    public List<String> answer(InvocationOnMock invocation) throws Throwable {
+                        List<String> identifiers = new ArrayList<String>();
+                        for (int i = 0; i < (Integer) invocation.getArguments()[1]; i++) {
+                            identifiers.add(nextIdentifier());
+                        }
+                        return identifiers;
+                    }
+                });
+    }
+
+    @Test
+    public void compareSinglePatientAndBulkThroughput() throws Exception {
+
+        Location medicalRecordLocation = locationService.getLocation(1);
+
+        List<Patient> patients = createPatients(numberOfPatients);
+        long start = System.nanoTime();
+        for (Patient patient : patients) {
+            paperRecordService.createPaperRecord(patient, medicalRecordLocation);
+        }
+        Context.flushSession();
+        long singlePatientNanos = System.nanoTime() - start;
+
+        patients = createPatients(numberOfPatients);
+        start = System.nanoTime();
+        Map<Patient, PaperRecord> paperRecords = paperRecordService.createPaperRecords(patients, medicalRecordLocation);
+        Context.flushSession();
+        long bulkNanos = System.nanoTime() - start;
+
+        assertThat(paperRecords.size(), is(numberOfPatients));
+
+        System.out.println(String.format("createPaperRecord:  %d records in %d ms (%.1f records/s)", numberOfPatients,
+                singlePatientNanos / 1000000, numberOfPatients * 1e9 / singlePatientNanos));
+        System.out.println(String.format("createPaperRecords: %d records in %d ms (%.1f records/s)", numberOfPatients,
+                bulkNanos / 1000000, numberOfPatients * 1e9 / bulkNanos));
+    }
+
+    private List<Patient> createPatients(int count) {
+
+        PatientIdentifierType primaryIdentifierType = patientService.getPatientIdentifierType(1);
+        Location location = locationService.getLocation(1);
+        LuhnIdentifierValidator validator = new LuhnIdentifierValidator();
+
+        List<Patient> patients = new ArrayList<Patient>();
+
+        for (int i = 0; i < count; i++) {
+            Patient patient = new Patient();
+            patient.setGender("F");
+            patient.addName(new PersonName("Benchmark", null, "Patient" + i));
+
+            PatientIdentifier identifier = new PatientIdentifier(validator.getValidIdentifier("9" + nextIdentifier++),
+                    primaryIdentifierType, location);
+            identifier.setPreferred(true);
+            patient.addIdentifier(identifier);
+
+            patients.add(patientService.savePatient(patient));
+        }
+
+        Context.flushSession();
+        Context.clearSession();
+
+        List<Patient> reloaded = new ArrayList<Patient>();
+        for (Patient patient : patients) {
+            reloaded.add(patientService.getPatient(patient.getId()));
+        }
+        return reloaded;
+    }
+
+    private String nextIdentifier() {
+        return "B" + (nextIdentifier++);
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.openmrs.module.paperrecord;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.PatientService;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class DatabasePatientLockSynchronizationTest extends BaseModuleContextSensitiveTest {
+
+    public static final int NUM_THREADS = 25;
+
+    @Autowired
+    private PaperRecordService paperRecordService;
+
+    @Autowired
+    private PatientService patientService;
+
+    @Autowired
+    private LocationService locationService;
+
+    @Autowired
+    private PaperRecordProperties paperRecordProperties;
+
+    @Before
+    public void beforeAllTests() throws Exception {
+        executeDataSet("paperRecordTestDataset.xml");
+        executeDataSet("databasePatientLockTestDataset.xml");
+
+        // the dataset sets the lock provider global property directly, so the global property listener never hears of it
+        paperRecordProperties.clearCache();
+    }
+
+    @Test
+    public void shouldNotCreateMultiplePaperRecordsWhenUsingDatabaseLock() {
+
+        // the database lock provider doesn't hold any in-memory lock, so each thread (and its session) behaves
+        // just like a separate node would; only the lock on the patient's row in the database keeps them apart
+
+        // sanity check
+        assertThat(paperRecordProperties.getPatientLockProvider(), is(PaperRecordConstants.PATIENT_LOCK_PROVIDER_DATABASE));
+        Patient patient = patientService.getPatient(2);
+        Location medicalRecordLocation = locationService.getLocation(1);
+        assertThat(paperRecordService.getPaperRecords(patient, medicalRecordLocation).size(), is(0));
+
+        // an exception thrown by a thread wouldn't fail the test, so each thread hands its exception back to us instead
+        final List<Exception> exceptions = Collections.synchronizedList(new ArrayList<Exception>());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < NUM_THREADS; ++i) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Context.openSession();
+                    try {
+
+                        authenticate();
+
+                        Patient patient = patientService.getPatient(2);
+                        Location medicalRecordLocation = locationService.getLocation(1);
+
+                        paperRecordService.createPaperRecord(patient, medicalRecordLocation);
+
+                    } catch (Exception e) {
+                        exceptions.add(e);
+                    } finally {
+                        Context.closeSession();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // pass
+            }
+        }
+
+        assertThat(exceptions.toString(), exceptions.isEmpty(), is(true));
+
+        // only one paper record should have been created
+        assertThat(paperRecordService.getPaperRecords(patient, medicalRecordLocation).size(), is(1));
+
+    }
+
+}
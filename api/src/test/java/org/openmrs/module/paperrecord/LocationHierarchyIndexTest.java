@@ -0,0 +1,141 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.LocationTag;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class LocationHierarchyIndexTest {
+
+    private LocationTag medicalRecordLocationTag;
+
+    private LocationTag archivesLocationTag;
+
+    private Location hospital;
+
+    private Location archives;
+
+    private Location outpatientClinic;
+
+    private Location dental;
+
+    private Location retiredArchives;
+
+    private Location anotherHospital;
+
+    private Location anotherClinic;
+
+    private Location untaggedLocation;
+
+    private LocationHierarchyIndex index;
+
+    @Before
+    public void setup() {
+
+        medicalRecordLocationTag = new LocationTag(PaperRecordConstants.LOCATION_TAG_MEDICAL_RECORD_LOCATION, null);
+        archivesLocationTag = new LocationTag(PaperRecordConstants.LOCATION_TAG_ARCHIVES_LOCATION, null);
+
+        hospital = createLocation(1, medicalRecordLocationTag);
+        outpatientClinic = createLocation(2);
+        dental = createLocation(3);
+        archives = createLocation(4, archivesLocationTag);
+        hospital.addChildLocation(outpatientClinic);
+        hospital.addChildLocation(dental);
+        outpatientClinic.addChildLocation(archives);
+
+        // a medical record location whose only archives location is retired
+        anotherHospital = createLocation(5, medicalRecordLocationTag);
+        anotherClinic = createLocation(6);
+        retiredArchives = createLocation(7, archivesLocationTag);
+        retiredArchives.setRetired(true);
+        anotherHospital.addChildLocation(anotherClinic);
+        anotherHospital.addChildLocation(retiredArchives);
+
+        untaggedLocation = createLocation(8);
+
+        index = LocationHierarchyIndex.build(Arrays.asList(hospital, outpatientClinic, dental, archives, anotherHospital,
+                anotherClinic, retiredArchives, untaggedLocation), medicalRecordLocationTag, archivesLocationTag);
+    }
+
+    @Test
+    public void shouldMapEachLocationToNearestMedicalRecordLocation() {
+        assertThat(index.getMedicalRecordLocationId(1), is(1));
+        assertThat(index.getMedicalRecordLocationId(2), is(1));
+        assertThat(index.getMedicalRecordLocationId(3), is(1));
+        assertThat(index.getMedicalRecordLocationId(4), is(1));
+        assertThat(index.getMedicalRecordLocationId(6), is(5));
+        assertThat(index.getMedicalRecordLocationId(7), is(5));
+        assertThat(index.getMedicalRecordLocationId(8), nullValue());
+    }
+
+    @Test
+    public void shouldMapEachLocationToArchivesLocationOfItsMedicalRecordLocation() {
+        assertThat(index.getArchivesLocationId(1), is(4));
+        assertThat(index.getArchivesLocationId(3), is(4));
+        assertThat(index.getArchivesLocationId(4), is(4));
+        assertThat(index.getArchivesLocationId(8), nullValue());
+    }
+
+    @Test
+    public void shouldIgnoreRetiredArchivesLocations() {
+        assertThat(index.getArchivesLocationId(5), nullValue());
+        assertThat(index.getArchivesLocationId(6), nullValue());
+    }
+
+    @Test
+    public void shouldOnlyContainIndexedLocations() {
+        assertTrue(index.contains(8));
+        assertFalse(index.contains(9));
+        assertFalse(index.contains(null));
+        assertThat(index.getMedicalRecordLocationId(9), nullValue());
+        assertThat(index.size(), is(8));
+    }
+
+    @Test
+    public void shouldNotMatchAnythingIfTagsDoNotExist() {
+
+        index = LocationHierarchyIndex.build(Arrays.asList(hospital, outpatientClinic, archives), null, null);
+
+        assertTrue(index.contains(2));
+        assertThat(index.getMedicalRecordLocationId(2), nullValue());
+        assertThat(index.getArchivesLocationId(2), nullValue());
+    }
+
+    @Test
+    public void shouldKnowWhetherItIsOlderThanMaxAge() {
+        assertFalse(index.isOlderThan(60 * 1000));
+        assertTrue(index.isOlderThan(-1));
+    }
+
+    private Location createLocation(int locationId, LocationTag... tags) {
+        Location location = new Location();
+        location.setId(locationId);
+        for (LocationTag tag : tags) {
+            location.addTag(tag);
+        }
+        return location;
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.junit.Test;
+import org.openmrs.Location;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PaperRecordIdentifierPoolTest {
+
+    private static final int NUM_THREADS = 10;
+
+    private static final int NUM_IDENTIFIERS = 10000;
+
+    @Test
+    public void shouldHandOutIdentifiersInOrderPerLocation() {
+
+        PaperRecordIdentifierPool pool = new PaperRecordIdentifierPool();
+        Location mirebalais = new Location(1);
+        Location lacolline = new Location(2);
+
+        pool.add(mirebalais, Arrays.asList("A000001", "A000002"));
+        pool.add(lacolline, Arrays.asList("B000001"));
+
+        assertThat(pool.size(mirebalais), is(2));
+        assertThat(pool.take(mirebalais), is("A000001"));
+        assertThat(pool.take(lacolline), is("B000001"));
+        assertThat(pool.take(mirebalais), is("A000002"));
+        assertThat(pool.take(mirebalais), nullValue());
+        assertThat(pool.take(lacolline), nullValue());
+        assertThat(pool.size(mirebalais), is(0));
+    }
+
+    @Test
+    public void shouldReturnNothingForUnsavedLocation() {
+
+        PaperRecordIdentifierPool pool = new PaperRecordIdentifierPool();
+
+        assertThat(pool.take(new Location()), nullValue());
+        assertThat(pool.size(new Location()), is(0));
+    }
+
+    @Test
+    public void shouldEmptyPoolWhenCleared() {
+
+        PaperRecordIdentifierPool pool = new PaperRecordIdentifierPool();
+        Location mirebalais = new Location(1);
+
+        pool.add(mirebalais, Collections.singletonList("A000001"));
+        pool.clear();
+
+        assertThat(pool.take(mirebalais), nullValue());
+    }
+
+    @Test
+    public void shouldNeverHandOutTheSameIdentifierTwice() throws Exception {
+
+        final PaperRecordIdentifierPool pool = new PaperRecordIdentifierPool();
+        final Location mirebalais = new Location(1);
+
+        List<String> identifiers = new ArrayList<String>();
+        for (int i = 0; i < NUM_IDENTIFIERS; i++) {
+            identifiers.add("A" + i);
+        }
+        pool.add(mirebalais, identifiers);
+
+        final Set<String> taken = Collections.synchronizedSet(new HashSet<String>());
+        final int[] duplicates = new int[1];
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < NUM_THREADS; ++i) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    String identifier;
+                    while ((identifier = pool.take(mirebalais)) != null) {
+                        if (!taken.add(identifier)) {
+                            synchronized (duplicates) {
+                                duplicates[0]++;
+                            }
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(duplicates[0], is(0));
+        assertThat(taken.size(), is(NUM_IDENTIFIERS));
+    }
+
+}
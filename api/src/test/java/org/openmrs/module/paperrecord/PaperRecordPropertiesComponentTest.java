@@ -0,0 +1,93 @@
+package org.openmrs.module.paperrecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.LocationTag;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.LocationService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class PaperRecordPropertiesComponentTest extends BaseModuleContextSensitiveTest {
+
+    @Autowired
+    private PaperRecordProperties paperRecordProperties;
+
+    @Autowired
+    @Qualifier("adminService")
+    private AdministrationService administrationService;
+
+    @Autowired
+    private LocationService locationService;
+
+    @Autowired
+    private PaperRecordService paperRecordService;
+
+    @Before
+    public void setup() throws Exception {
+        executeDataSet("paperRecordTestDataset.xml");
+        paperRecordProperties.clearCache();
+        administrationService.addGlobalPropertyListener(paperRecordProperties);
+    }
+
+    @After
+    public void tearDown() {
+        administrationService.removeGlobalPropertyListener(paperRecordProperties);
+        paperRecordProperties.clearCache();
+    }
+
+    @Test
+    public void shouldReturnSameIdentifierTypesAndLocationTagsUntilChanged() {
+
+        assertThat(paperRecordProperties.getPaperRecordIdentifierType().getId(), is(2));
+        assertThat(paperRecordProperties.getPrimaryIdentifierType().getId(), is(1));
+        assertThat(paperRecordProperties.getMedicalRecordLocationLocationTag().getName(), is(PaperRecordConstants.LOCATION_TAG_MEDICAL_RECORD_LOCATION));
+
+        assertThat(paperRecordProperties.getPaperRecordIdentifierType(), sameInstance(paperRecordProperties.getPaperRecordIdentifierType()));
+        assertThat(paperRecordProperties.getMedicalRecordLocationLocationTag(), sameInstance(paperRecordProperties.getMedicalRecordLocationLocationTag()));
+    }
+
+    @Test
+    public void shouldPickUpChangedGlobalProperty() {
+
+        assertThat(paperRecordProperties.getPaperRecordIdentifierType().getId(), is(2));
+
+        GlobalProperty gp = administrationService.getGlobalPropertyObject(PaperRecordConstants.GP_PAPER_RECORD_IDENTIFIER_TYPE);
+        gp.setPropertyValue("1a339fe9-38bc-4ab3-b180-320988c0b968");
+        administrationService.saveGlobalProperty(gp);
+
+        assertThat(paperRecordProperties.getPaperRecordIdentifierType().getId(), is(1));
+    }
+
+    @Test
+    public void shouldPickUpChangedSettingGlobalProperty() {
+
+        assertThat(paperRecordProperties.getUseStoredLabelFormats(), is(false));
+
+        administrationService.saveGlobalProperty(new GlobalProperty(PaperRecordConstants.GP_USE_STORED_LABEL_FORMATS, "true"));
+
+        assertThat(paperRecordProperties.getUseStoredLabelFormats(), is(true));
+    }
+
+    @Test
+    public void shouldPickUpLocationTagAddedAfterSnapshotWasTaken() {
+
+        assertThat(paperRecordProperties.getArchivesLocationTag(), nullValue());
+
+        locationService.saveLocationTag(new LocationTag(PaperRecordConstants.LOCATION_TAG_ARCHIVES_LOCATION, null));
+
+        // location tags aren't configured by global property; the snapshot is cleared when the location hierarchy index
+        // is rebuilt (which normally happens automatically, on saving the tag, but the advice isn't active in tests)
+        paperRecordService.rebuildLocationHierarchyIndex();
+        assertThat(paperRecordProperties.getArchivesLocationTag().getName(), is(PaperRecordConstants.LOCATION_TAG_ARCHIVES_LOCATION));
+    }
+
+}
@@ -15,31 +15,51 @@
 package org.openmrs.module.paperrecord;
 
 import junit.framework.Assert;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.stat.Statistics;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.Person;
+import org.openmrs.PersonName;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.PersonService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.idgen.AutoGenerationOption;
+import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.SequentialIdentifierGenerator;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.printer.Printer;
 import org.openmrs.module.printer.PrinterService;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveTest {
@@ -59,10 +79,23 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
     @Autowired
     PaperRecordProperties paperRecordProperties;
 
+    @Autowired
+    SessionFactory sessionFactory;
+
     private IdentifierSourceService mockIdentifierSourceService;
 
     private PrinterService mockPrinterService;
 
+    // the paper record queries are meant to be served from the query cache, so these tests run with it (and the second
+    // level cache it depends on) enabled, as they are in production
+    @Override
+    public Properties getRuntimeProperties() {
+        Properties runtimeProperties = super.getRuntimeProperties();
+        runtimeProperties.setProperty("hibernate.cache.use_second_level_cache", "true");
+        runtimeProperties.setProperty("hibernate.cache.use_query_cache", "true");
+        return runtimeProperties;
+    }
+
     @Before
     public void beforeAllTests() throws Exception {
         executeDataSet("paperRecordTestDataset.xml");
@@ -213,6 +246,96 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
 
     }
 
+    @Test
+    public void testRequestPaperRecordsShouldRequestRecordsForAllPatients() {
+
+        // patient 7 has a record at location 1 (from the paper record test dataset), patients 2 and 6 don't
+        Patient patientWithRecord = patientService.getPatient(7);
+        Patient patient1 = patientService.getPatient(2);
+        Patient patient2 = patientService.getPatient(6);
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(3);
+
+        Map<Patient, List<PaperRecordRequest>> requests = paperRecordService.requestPaperRecords(
+                Arrays.asList(patientWithRecord, patient1, patient2), medicalRecordLocation, requestLocation);
+
+        assertThat(requests.size(), is(3));
+        assertThat(requests.get(patientWithRecord).size(), is(1));
+        assertThat(requests.get(patientWithRecord).get(0).getPaperRecord().getId(), is(1));
+        assertThat(requests.get(patient1).get(0).getPaperRecord().getPatientIdentifier().getIdentifier(), is("101"));
+        assertThat(requests.get(patient2).get(0).getPaperRecord().getPatientIdentifier().getIdentifier(), is("A00001"));
+
+        List<PaperRecordRequest> requestsToPull = paperRecordService.getOpenPaperRecordRequestsToPull(medicalRecordLocation);
+        assertThat(requestsToPull.size(), is(1));
+        assertThat(requestsToPull.get(0).getRequestLocation().getId(), is(3));
+
+        List<PaperRecordRequest> requestsToCreate = paperRecordService.getOpenPaperRecordRequestsToCreate(medicalRecordLocation);
+        assertThat(requestsToCreate.size(), is(2));
+        for (PaperRecordRequest request : requestsToCreate) {
+            assertThat(request.getStatus(), is(PaperRecordRequest.Status.OPEN));
+            assertThat(request.getPaperRecord().getStatus(), is(PaperRecord.Status.PENDING_CREATION));
+            assertThat(request.getRequestLocation().getId(), is(3));
+        }
+    }
+
+    @Test
+    public void testRequestPaperRecordsShouldUpdatePendingRequestsInsteadOfCreatingNewOnes() {
+
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(3);
+        Location anotherRequestLocation = locationService.getLocation(2);
+
+        PaperRecordRequest request = paperRecordService.requestPaperRecord(patientService.getPatient(7), medicalRecordLocation,
+                requestLocation).get(0);
+
+        Map<Patient, List<PaperRecordRequest>> requests = paperRecordService.requestPaperRecords(
+                Arrays.asList(patientService.getPatient(7)), medicalRecordLocation, anotherRequestLocation);
+
+        assertThat(requests.values().iterator().next().get(0).getId(), is(request.getId()));
+
+        List<PaperRecordRequest> requestsToPull = paperRecordService.getOpenPaperRecordRequestsToPull(medicalRecordLocation);
+        assertThat(requestsToPull.size(), is(1));
+        assertThat(requestsToPull.get(0).getRequestLocation().getId(), is(2));
+    }
+
+    @Test
+    public void testGetMedicalRecordLocationShouldResolveLocationsAddedAfterIndexWasBuilt() {
+
+        paperRecordService.rebuildLocationHierarchyIndex();
+
+        Location parent = locationService.getLocation(1001);
+        Location newLocation = new Location();
+        newLocation.setName("New location");
+        newLocation.setParentLocation(parent);
+        locationService.saveLocation(newLocation);
+
+        // not in the index yet, so resolved by walking up the hierarchy
+        assertThat(paperRecordService.getMedicalRecordLocationAssociatedWith(newLocation).getId(), is(1));
+
+        // and then through the index, once it has been rebuilt
+        paperRecordService.rebuildLocationHierarchyIndex();
+        assertThat(paperRecordService.getMedicalRecordLocationAssociatedWith(newLocation).getId(), is(1));
+        assertThat(paperRecordService.getMedicalRecordLocationAssociatedWith(locationService.getLocation(2)).getId(), is(2));
+    }
+
+    @Test
+    public void testGetMedicalRecordLocationShouldNotTrustIndexOnceTagRemoved() {
+
+        paperRecordService.rebuildLocationHierarchyIndex();
+
+        // location 1 is no longer a medical record location, and location 1001 has no other medical record location above it
+        Location location = locationService.getLocation(1);
+        location.removeTag(paperRecordProperties.getMedicalRecordLocationLocationTag());
+
+        try {
+            paperRecordService.getMedicalRecordLocationAssociatedWith(locationService.getLocation(1001));
+            Assert.fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testRequestPaperRecordFromChildLocation() {
 
@@ -306,6 +429,148 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
         Assert.assertEquals(2, paperRecordService.getOpenPaperRecordRequestsToCreate(medicalRecordLocation).size());
     }
 
+    @Test
+    public void testGetPaperRecordRequestsShouldPageThroughQueue() {
+
+        // all these are from the standard test dataset (neither patient have medical record identifiers at location 2)
+        Patient patient = patientService.getPatient(2);
+        Patient anotherPatient = patientService.getPatient(8);
+        Location medicalRecordLocation = locationService.getLocation(2);
+        Location requestLocation = locationService.getLocation(3);
+
+        paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+        paperRecordService.requestPaperRecord(anotherPatient, medicalRecordLocation, requestLocation);
+
+        List<PaperRecordRequest> allRequests = paperRecordService.getOpenPaperRecordRequestsToCreate(medicalRecordLocation);
+        Assert.assertEquals(2, allRequests.size());
+
+        List<PaperRecordRequest> firstPage = paperRecordService.getPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                medicalRecordLocation, true, null, 1);
+        Assert.assertEquals(1, firstPage.size());
+        Assert.assertEquals(allRequests.get(0), firstPage.get(0));
+
+        List<PaperRecordRequest> secondPage = paperRecordService.getPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                medicalRecordLocation, true, PaperRecordRequestPageToken.after(firstPage.get(0)), 1);
+        Assert.assertEquals(1, secondPage.size());
+        Assert.assertEquals(allRequests.get(1), secondPage.get(0));
+
+        List<PaperRecordRequest> thirdPage = paperRecordService.getPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                medicalRecordLocation, true, PaperRecordRequestPageToken.after(secondPage.get(0)), 1);
+        Assert.assertEquals(0, thirdPage.size());
+
+        // and none of these are in the queue of records to pull
+        Assert.assertEquals(0, paperRecordService.getPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                medicalRecordLocation, false, null, 10).size());
+    }
+
+    @Test
+    public void testCountPaperRecordRequests() {
+
+        // all these are from the standard test dataset (neither patient have medical record identifiers at location 2)
+        Patient patient = patientService.getPatient(2);
+        Patient anotherPatient = patientService.getPatient(8);
+        Location medicalRecordLocation = locationService.getLocation(2);
+        Location requestLocation = locationService.getLocation(3);
+
+        List<PaperRecordRequest.Status> open = Collections.singletonList(PaperRecordRequest.Status.OPEN);
+
+        Assert.assertEquals(0, paperRecordService.countPaperRecordRequests(open, medicalRecordLocation, true));
+
+        paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+        paperRecordService.requestPaperRecord(anotherPatient, medicalRecordLocation, requestLocation);
+
+        Assert.assertEquals(2, paperRecordService.countPaperRecordRequests(open, medicalRecordLocation, true));
+        Assert.assertEquals(paperRecordService.getOpenPaperRecordRequestsToCreate(medicalRecordLocation).size(),
+                paperRecordService.countPaperRecordRequests(open, medicalRecordLocation, true));
+        Assert.assertEquals(0, paperRecordService.countPaperRecordRequests(open, medicalRecordLocation, false));
+        Assert.assertEquals(0, paperRecordService.countPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED),
+                medicalRecordLocation, true));
+    }
+
+    @Test
+    public void testGetPaperRecordRequestQueueShouldReturnFlattenedRows() {
+
+        // all these are from the standard test dataset (neither patient have medical record identifiers at location 2)
+        Patient patient = patientService.getPatient(2);
+        Patient anotherPatient = patientService.getPatient(8);
+        Location medicalRecordLocation = locationService.getLocation(2);
+        Location requestLocation = locationService.getLocation(3);
+
+        paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+        paperRecordService.requestPaperRecord(anotherPatient, medicalRecordLocation, requestLocation);
+
+        List<PaperRecordRequest> requests = paperRecordService.getOpenPaperRecordRequestsToCreate(medicalRecordLocation);
+        List<PaperRecordRequestQueueRow> rows = paperRecordService.getPaperRecordRequestQueue(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                medicalRecordLocation, true, null, null);
+
+        Assert.assertEquals(2, rows.size());
+
+        for (int i = 0; i < rows.size(); i++) {
+            PaperRecordRequest request = requests.get(i);
+            PaperRecordRequestQueueRow row = rows.get(i);
+            Patient requestPatient = request.getPaperRecord().getPatientIdentifier().getPatient();
+            PatientIdentifier primaryIdentifier = requestPatient.getPatientIdentifier(patientService.getPatientIdentifierTypeByUuid("1a339fe9-38bc-4ab3-b180-320988c0b968"));
+
+            Assert.assertEquals(request.getRequestId(), row.getRequestId());
+            Assert.assertEquals(request.getDateCreated(), row.getDateCreated());
+            Assert.assertEquals(request.getPaperRecord().getRecordId(), row.getPaperRecordId());
+            Assert.assertEquals(request.getPaperRecord().getPatientIdentifier().getIdentifier(), row.getDossierNumber());
+            Assert.assertEquals(requestPatient.getGivenName(), row.getPatientName().getGivenName());
+            Assert.assertEquals(requestPatient.getFamilyName(), row.getPatientName().getFamilyName());
+            Assert.assertEquals(primaryIdentifier != null ? primaryIdentifier.getIdentifier() : null, row.getPatientPrimaryIdentifier());
+            Assert.assertEquals(requestLocation.getName(), row.getRequestLocationName());
+        }
+
+        // none of these records have been created, so they should not be in the queue of records to pull
+        Assert.assertEquals(0, paperRecordService.getPaperRecordRequestQueue(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                medicalRecordLocation, false, null, null).size());
+    }
+
+    @Test
+    public void testGetPaperRecordRequestQueueShouldReturnOneRowForPatientWithSeveralPreferredNames() {
+
+        Patient patient = patientService.getPatient(2);
+        Location medicalRecordLocation = locationService.getLocation(2);
+        Location requestLocation = locationService.getLocation(3);
+
+        // shouldn't happen, but the data model doesn't prevent it
+        PersonName anotherPreferredName = new PersonName("Another", null, "Name");
+        anotherPreferredName.setPreferred(true);
+        patient.addName(anotherPreferredName);
+        patient.getPersonName().setPreferred(true);
+        patientService.savePatient(patient);
+
+        paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+
+        List<PaperRecordRequestQueueRow> rows = paperRecordService.getPaperRecordRequestQueue(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                medicalRecordLocation, true, null, null);
+
+        Assert.assertEquals(1, rows.size());
+        Assert.assertNotNull(rows.get(0).getPatientName().getFamilyName());
+    }
+
+    @Test
+    public void testGetPaperRecordRequestQueueShouldFallBackToNameNotMarkedPreferred() {
+
+        Patient patient = patientService.getPatient(2);
+        Location medicalRecordLocation = locationService.getLocation(2);
+        Location requestLocation = locationService.getLocation(3);
+
+        patient.addName(new PersonName("Another", null, "Name"));
+        for (PersonName name : patient.getNames()) {
+            name.setPreferred(false);
+        }
+        patientService.savePatient(patient);
+
+        paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+
+        List<PaperRecordRequestQueueRow> rows = paperRecordService.getPaperRecordRequestQueue(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                medicalRecordLocation, true, null, null);
+
+        Assert.assertEquals(1, rows.size());
+        Assert.assertNotNull(rows.get(0).getPatientName().getFamilyName());
+    }
+
     @Test
     public void testGetPaperRecordRequestById() {
 
@@ -355,6 +620,34 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
 
     }
 
+    @Test
+    public void testAssignRequestShouldQueueLabelsAndPrintThemOnceAssigned() throws Exception {
+
+        Patient patient = patientService.getPatient(2);
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(3);
+
+        // remove the address associated with this patient, so that we can avoid having to configure the Address template
+        patient.removeAddress(patient.getPersonAddress());
+
+        paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+        List<PaperRecordRequest> paperRecordRequests = paperRecordService.getOpenPaperRecordRequestsToCreate(medicalRecordLocation);
+
+        paperRecordService.assignRequests(paperRecordRequests, personService.getPerson(7), medicalRecordLocation);
+
+        // a record needs to be created, so the whole label set is queued (record label, form labels and id card label),
+        // and then sent to the printer in a single write
+        verify(mockPrinterService, times(1)).printViaSocket(anyString(), eq(Printer.Type.LABEL), eq(medicalRecordLocation),
+                anyString(), eq(false), anyInt());
+
+        List<PaperRecordPrintJob> printJobs = sessionFactory.getCurrentSession().createCriteria(PaperRecordPrintJob.class).list();
+        assertThat(printJobs.size(), is(3));
+        for (PaperRecordPrintJob printJob : printJobs) {
+            assertThat(printJob.getStatus(), is(PaperRecordPrintJob.Status.PRINTED));
+            assertThat(printJob.getAttempts(), is(1));
+        }
+    }
+
     @Test
     public void testRequestPaperRecordWithDuplicateRequest() {
 
@@ -514,6 +807,47 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
         Assert.assertNull(request.getAssignee());
     }
 
+    @Test
+    public void testPendingKeyShouldBeSetWhilePendingAndClearedOnceSent() throws UnableToPrintLabelException {
+
+        Patient patient = patientService.getPatient(7);
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+
+        PaperRecordRequest request = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation).get(0);
+        Assert.assertEquals(new Integer(1), request.getPendingKey());
+
+        paperRecordService.assignRequests(Collections.singletonList(request), personService.getPerson(1), null);
+        Assert.assertEquals(new Integer(1), request.getPendingKey());
+
+        paperRecordService.markPaperRecordRequestAsSent(request);
+        Assert.assertNull(request.getPendingKey());
+
+        // now that the first request is no longer pending, we can create a new request for the same record
+        paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+        Context.flushSession();
+    }
+
+    @Test(expected = ConstraintViolationException.class)
+    public void testShouldNotBeAbleToSaveTwoPendingRequestsForTheSamePaperRecord() {
+
+        Patient patient = patientService.getPatient(7);
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+
+        PaperRecordRequest request = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation).get(0);
+
+        // bypass requestPaperRecord (which would just update the existing request) and save a duplicate directly
+        PaperRecordRequest duplicateRequest = new PaperRecordRequest();
+        duplicateRequest.setPaperRecord(request.getPaperRecord());
+        duplicateRequest.setRequestLocation(requestLocation);
+        duplicateRequest.setCreator(Context.getAuthenticatedUser());
+        duplicateRequest.setDateCreated(new Date());
+        paperRecordService.savePaperRecordRequest(duplicateRequest);
+
+        Context.flushSession();
+    }
+
     @Test
     public void testGetAssignedRequestByIdentifierShouldNotReturnOpenRequest() {
 
@@ -693,6 +1027,44 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
         Assert.assertNotNull(retrievedRequest.getDateStatusChanged());
     }
 
+    @Test
+    public void testCreatePaperRecordsShouldCreateRecordsForPatientsWithoutRecordAndReturnExistingRecords() throws Exception {
+
+        IdentifierSource source = new SequentialIdentifierGenerator();
+        AutoGenerationOption autoGenerationOption = new AutoGenerationOption();
+        autoGenerationOption.setSource(source);
+
+        when(mockIdentifierSourceService.getAutoGenerationOption(eq(paperRecordProperties.getPaperRecordIdentifierType()), any(Location.class)))
+                .thenReturn(autoGenerationOption);
+        when(mockIdentifierSourceService.generateIdentifiers(source, 2, "generating new paper record identifier numbers"))
+                .thenReturn(Arrays.asList("A00101", "A00102"));
+
+        // patient 7 already has a record at location 1 (from the paper record test dataset), patients 2 and 6 don't
+        Patient patientWithRecord = patientService.getPatient(7);
+        Patient patient1 = patientService.getPatient(2);
+        Patient patient2 = patientService.getPatient(6);
+
+        Location paperRecordLocation = locationService.getLocation(1);
+
+        Map<Patient, PaperRecord> paperRecords = paperRecordService.createPaperRecords(
+                Arrays.asList(patientWithRecord, patient1, patient2, patient1), paperRecordLocation);
+
+        assertThat(paperRecords.size(), is(3));
+        assertThat(paperRecords.get(patientWithRecord).getId(), is(1));
+        assertThat(paperRecords.get(patient1).getPatientIdentifier().getIdentifier(), is("A00101"));
+        assertThat(paperRecords.get(patient2).getPatientIdentifier().getIdentifier(), is("A00102"));
+
+        // the identifiers were generated for the whole batch at once
+        verify(mockIdentifierSourceService, never()).generateIdentifier(any(PatientIdentifierType.class), any(Location.class), anyString());
+
+        // the session was cleared once the batch was done, so these come straight from the database
+        List<PaperRecord> paperRecordsForPatient1 = paperRecordService.getPaperRecords(patientService.getPatient(2), paperRecordLocation);
+        assertThat(paperRecordsForPatient1.size(), is(1));
+        assertThat(paperRecordsForPatient1.get(0).getStatus(), is(PaperRecord.Status.PENDING_CREATION));
+        assertThat(paperRecordService.getPaperRecords(patientService.getPatient(6), paperRecordLocation).size(), is(1));
+        assertThat(paperRecordService.getPaperRecords(patientService.getPatient(7), paperRecordLocation).size(), is(1));
+    }
+
     @Test
     public void testMarkPapersRecordForMergeShouldCreatePaperRecordMergeRequest() throws Exception {
 
@@ -880,4 +1252,88 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
 
     }
 
+    @Test
+    public void testGetMostRecentSentPaperRecordRequests() {
+
+        Patient patient = patientService.getPatient(7);
+        Patient anotherPatient = patientService.getPatient(2);
+
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+
+        PaperRecordRequest paperRecordRequest1 = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation).get(0);
+        paperRecordService.markPaperRecordRequestAsSent(paperRecordRequest1);
+
+        PaperRecordRequest paperRecordRequest2 = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation).get(0);
+        paperRecordService.markPaperRecordRequestAsSent(paperRecordRequest2);
+
+        // this patient's record has never been sent
+        paperRecordService.requestPaperRecord(anotherPatient, medicalRecordLocation, requestLocation);
+
+        PaperRecord paperRecord = paperRecordService.getPaperRecords(patient, medicalRecordLocation).get(0);
+        PaperRecord anotherPaperRecord = paperRecordService.getPaperRecords(anotherPatient, medicalRecordLocation).get(0);
+
+        Map<PaperRecord, PaperRecordRequest> mostRecentSentRequests = paperRecordService.getMostRecentSentPaperRecordRequests(Arrays.asList(paperRecord, anotherPaperRecord));
+
+        assertThat(mostRecentSentRequests.size(), is(1));
+        assertThat(mostRecentSentRequests.get(paperRecord), is(paperRecordRequest2));
+        Assert.assertNull(mostRecentSentRequests.get(anotherPaperRecord));
+    }
+
+    @Test
+    public void testGetPaperRecordRequestQueueShouldIncludeLastSentForRecordsToPull() {
+
+        Patient patient = patientService.getPatient(7);
+
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+        Location anotherRequestLocation = locationService.getLocation(3);
+
+        PaperRecordRequest paperRecordRequest = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation).get(0);
+        paperRecordService.markPaperRecordRequestAsSent(paperRecordRequest);
+
+        // now request the record again, from another location
+        PaperRecordRequest anotherPaperRecordRequest = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, anotherRequestLocation).get(0);
+
+        List<PaperRecordRequestQueueRow> rows = paperRecordService.getPaperRecordRequestQueue(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                medicalRecordLocation, false, null, null);
+
+        assertThat(rows.size(), is(1));
+        assertThat(rows.get(0).getRequestId(), is(anotherPaperRecordRequest.getRequestId()));
+        assertThat(rows.get(0).getRequestLocationName(), is(anotherRequestLocation.getName()));
+        assertThat(rows.get(0).getLocationLastSent(), is(requestLocation.getName()));
+        assertThat(rows.get(0).getDateLastSent(), is(paperRecordRequest.getDateStatusChanged()));
+    }
+
+    @Test
+    public void testGetPaperRecordsShouldBeServedFromQueryCacheOnRepeatedCalls() {
+
+        assertTrue("the query cache should be enabled by getRuntimeProperties",
+                ((SessionFactoryImplementor) sessionFactory).getSettings().isQueryCacheEnabled());
+
+        Patient patient = patientService.getPatient(7);
+        Location medicalRecordLocation = locationService.getLocation(1);
+
+        Statistics statistics = sessionFactory.getStatistics();
+        boolean statisticsEnabled = statistics.isStatisticsEnabled();
+        statistics.setStatisticsEnabled(true);
+
+        try {
+            statistics.clear();
+
+            List<PaperRecord> paperRecords = paperRecordService.getPaperRecords(patient, medicalRecordLocation);
+            Context.clearSession();
+            List<PaperRecord> cachedPaperRecords = paperRecordService.getPaperRecords(patient, medicalRecordLocation);
+
+            assertThat(paperRecords.size(), is(1));
+            assertThat(cachedPaperRecords.size(), is(1));
+            assertThat(cachedPaperRecords.get(0).getRecordId(), is(paperRecords.get(0).getRecordId()));
+            assertThat(statistics.getQueryExecutionCount(), is(1L));
+            assertThat(statistics.getQueryCacheHitCount(), is(1L));
+        }
+        finally {
+            statistics.setStatisticsEnabled(statisticsEnabled);
+        }
+    }
+
 }
@@ -14,10 +14,15 @@
 
 package org.openmrs.module.paperrecord;
 
+import org.apache.commons.lang.time.DateUtils;
+import org.hibernate.exception.ConstraintViolationException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.openmrs.Location;
 import org.openmrs.LocationTag;
 import org.openmrs.Patient;
@@ -27,25 +32,32 @@ import org.openmrs.Person;
 import org.openmrs.User;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.emrapi.EmrApiProperties;
+import org.openmrs.module.idgen.AutoGenerationOption;
+import org.openmrs.module.idgen.IdentifierSource;
+import org.openmrs.module.idgen.SequentialIdentifierGenerator;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
 import org.openmrs.module.paperrecord.PaperRecordRequest.Status;
 import org.openmrs.module.paperrecord.db.PaperRecordDAO;
 import org.openmrs.module.paperrecord.db.PaperRecordMergeRequestDAO;
+import org.openmrs.module.paperrecord.db.PaperRecordPrintJobDAO;
 import org.openmrs.module.paperrecord.db.PaperRecordRequestDAO;
 import org.openmrs.module.paperrecord.template.IdCardLabelTemplate;
 import org.openmrs.module.paperrecord.template.PaperFormLabelTemplate;
 import org.openmrs.module.paperrecord.template.PaperRecordLabelTemplate;
+import org.openmrs.module.paperrecord.template.StoredFormatLabelTemplate;
 import org.openmrs.module.printer.Printer;
 import org.openmrs.module.printer.PrinterService;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -56,14 +68,22 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.openmrs.module.paperrecord.PaperRecordRequest.PENDING_STATUSES;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -80,14 +100,14 @@ public class PaperRecordServiceTest {
 
     private PaperRecordMergeRequestDAO mockPaperRecordMergeRequestDAO;
 
+    private PaperRecordPrintJobDAO mockPaperRecordPrintJobDAO;
+
     private IdentifierSourceService mockIdentifierSourceService;
 
     private PatientService mockPatientService;
 
     private PrinterService mockPrinterService;
 
-    private EmrApiProperties mockEmrApiProperties;
-
     private PaperRecordProperties mockPaperRecordProperties;
 
     private PaperRecordLabelTemplate mockPaperRecordLabelTemplate;
@@ -112,10 +132,10 @@ public class PaperRecordServiceTest {
         mockPaperRecordDAO = mock(PaperRecordDAO.class);
         mockPaperRecordRequestDAO = mock(PaperRecordRequestDAO.class);
         mockPaperRecordMergeRequestDAO = mock(PaperRecordMergeRequestDAO.class);
+        mockPaperRecordPrintJobDAO = mock(PaperRecordPrintJobDAO.class);
         mockIdentifierSourceService = mock(IdentifierSourceService.class);
         mockPatientService = mock(PatientService.class);
         mockPrinterService = mock(PrinterService.class);
-        mockEmrApiProperties = mock(EmrApiProperties.class);
         mockPaperRecordProperties = mock(PaperRecordProperties.class);
         mockPaperRecordLabelTemplate = mock(PaperRecordLabelTemplate.class);
         mockPaperFormLabelTemplate = mock(PaperFormLabelTemplate.class);
@@ -127,16 +147,17 @@ public class PaperRecordServiceTest {
 
         primaryIdentifierType = new PatientIdentifierType();
         primaryIdentifierType.setId(3);
-        when(mockEmrApiProperties.getPrimaryIdentifierType()).thenReturn(primaryIdentifierType);
+        when(mockPaperRecordProperties.getPrimaryIdentifierType()).thenReturn(primaryIdentifierType);
 
         paperRecordService = new PaperRecordServiceStub(paperRecordIdentifierType);
         paperRecordService.setPaperRecordDAO(mockPaperRecordDAO);
         paperRecordService.setPaperRecordRequestDAO(mockPaperRecordRequestDAO);
         paperRecordService.setPaperRecordMergeRequestDAO(mockPaperRecordMergeRequestDAO);
+        paperRecordService.setPaperRecordPrintJobDAO(mockPaperRecordPrintJobDAO);
         paperRecordService.setIdentifierSourceService(mockIdentifierSourceService);
         paperRecordService.setPatientService(mockPatientService);
         paperRecordService.setPrinterService(mockPrinterService);
-        paperRecordService.setEmrApiProperties(mockEmrApiProperties);
+        paperRecordService.setPrintSpooler(new PrintSpooler(mockPrinterService));
         paperRecordService.setPaperRecordProperties(mockPaperRecordProperties);
         paperRecordService.setPaperRecordLabelTemplate(mockPaperRecordLabelTemplate);
         paperRecordService.setPaperFormLabelTemplate(mockPaperFormLabelTemplate);
@@ -241,6 +262,135 @@ public class PaperRecordServiceTest {
         return createLocation(3, "Mirebalais");
     }
 
+    @Test
+    public void testRequestPaperRecordShouldUseDatabasePatientLockProviderIfConfigured() throws Exception {
+
+        PatientLockProvider mockDatabasePatientLockProvider = mock(PatientLockProvider.class);
+        paperRecordService.setDatabasePatientLockProvider(mockDatabasePatientLockProvider);
+        when(mockPaperRecordProperties.getPatientLockProvider()).thenReturn(PaperRecordConstants.PATIENT_LOCK_PROVIDER_DATABASE);
+
+        Patient patient = new Patient();
+        patient.setId(15);
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+        Location requestLocation = createLocation(4, "Outpatient Clinic");
+
+        // the patient doesn't have a paper record yet, so one will be created, which requires locking the patient
+        when(mockIdentifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation, "generating a new paper record identifier number")).thenReturn("A000001");
+
+        paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+
+        // (the patient is locked again, reentrantly, when the record itself is created)
+        InOrder inOrder = inOrder(mockDatabasePatientLockProvider, mockPaperRecordRequestDAO);
+        inOrder.verify(mockDatabasePatientLockProvider, atLeastOnce()).lock(patient);
+        inOrder.verify(mockPaperRecordRequestDAO).saveOrUpdate(any(PaperRecordRequest.class));
+        inOrder.verify(mockDatabasePatientLockProvider).unlock(patient);
+    }
+
+    @Test
+    public void testRequestPaperRecordShouldNotLockPatientIfPaperRecordAlreadyExists() throws Exception {
+
+        PatientLockProvider mockDatabasePatientLockProvider = mock(PatientLockProvider.class);
+        paperRecordService.setDatabasePatientLockProvider(mockDatabasePatientLockProvider);
+        when(mockPaperRecordProperties.getPatientLockProvider()).thenReturn(PaperRecordConstants.PATIENT_LOCK_PROVIDER_DATABASE);
+
+        Patient patient = new Patient();
+        patient.setId(15);
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+        Location requestLocation = createLocation(4, "Outpatient Clinic");
+
+        PatientIdentifier identifier = createIdentifier(medicalRecordLocation, "ABCZYX");
+        patient.addIdentifier(identifier);
+
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setRecordLocation(medicalRecordLocation);
+        paperRecord.setPatientIdentifier(identifier);
+        when(mockPaperRecordDAO.findPaperRecords(patient, medicalRecordLocation)).thenReturn(Collections.singletonList(paperRecord));
+
+        paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+
+        verify(mockPaperRecordRequestDAO).saveOrUpdate(any(PaperRecordRequest.class));
+        verifyZeroInteractions(mockDatabasePatientLockProvider);
+    }
+
+    @Test
+    public void testRequestPaperRecordShouldUpdateExistingRequestIfPendingRequestCreatedConcurrently() throws Exception {
+
+        Patient patient = new Patient();
+        patient.setId(15);
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+        Location requestLocation = createLocation(4, "Outpatient Clinic");
+
+        PatientIdentifier identifier = createIdentifier(medicalRecordLocation, "ABCZYX");
+        patient.addIdentifier(identifier);
+
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setRecordLocation(medicalRecordLocation);
+        paperRecord.setPatientIdentifier(identifier);
+        when(mockPaperRecordDAO.findPaperRecords(patient, medicalRecordLocation)).thenReturn(Collections.singletonList(paperRecord));
+
+        // another thread creates a pending request between our check and our insert, so our insert violates the pending key
+        PaperRecordRequest concurrentRequest = createPaperRecordRequest(patient, medicalRecordLocation, "ABCZYX");
+        concurrentRequest.setRequestLocation(createLocation(5, "ER"));
+
+        when(mockPaperRecordRequestDAO.findPaperRecordRequests(argThat(new StatusListOf(PENDING_STATUSES)),
+                eq(patient), eq(medicalRecordLocation), argThat(new NullString())))
+                .thenReturn(new ArrayList<PaperRecordRequest>())
+                .thenReturn(Collections.singletonList(concurrentRequest));
+        when(mockPaperRecordRequestDAO.saveOrUpdate(any(PaperRecordRequest.class)))
+                .thenThrow(new DataIntegrityViolationException("Duplicate pending request",
+                        new ConstraintViolationException("Duplicate entry for key", new SQLException(), "idx_paper_record_request_pending_key")))
+                .thenReturn(concurrentRequest);
+
+        List<PaperRecordRequest> returnedRequests = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+
+        assertThat(returnedRequests.size(), is(1));
+        assertThat(returnedRequests.get(0), is(concurrentRequest));
+        assertThat(concurrentRequest.getRequestLocation(), is(requestLocation));
+        verify(mockPaperRecordRequestDAO, times(2)).saveOrUpdate(any(PaperRecordRequest.class));
+    }
+
+    @Test
+    public void testRequestPaperRecordShouldNotRetryWithinCallersTransaction() throws Exception {
+
+        Patient patient = new Patient();
+        patient.setId(15);
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+        Location requestLocation = createLocation(4, "Outpatient Clinic");
+
+        PatientIdentifier identifier = createIdentifier(medicalRecordLocation, "ABCZYX");
+        patient.addIdentifier(identifier);
+
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setRecordLocation(medicalRecordLocation);
+        paperRecord.setPatientIdentifier(identifier);
+        when(mockPaperRecordDAO.findPaperRecords(patient, medicalRecordLocation)).thenReturn(Collections.singletonList(paperRecord));
+
+        when(mockPaperRecordRequestDAO.findPaperRecordRequests(argThat(new StatusListOf(PENDING_STATUSES)),
+                eq(patient), eq(medicalRecordLocation), argThat(new NullString())))
+                .thenReturn(new ArrayList<PaperRecordRequest>());
+        when(mockPaperRecordRequestDAO.saveOrUpdate(any(PaperRecordRequest.class)))
+                .thenThrow(new DataIntegrityViolationException("Duplicate pending request",
+                        new ConstraintViolationException("Duplicate entry for key", new SQLException(), "idx_paper_record_request_pending_key")));
+
+        // the caller's transaction is rollback-only once the insert fails, so the violation should be passed on
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+
+        try {
+            paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
+            fail("Expected the constraint violation to be rethrown");
+        }
+        catch (DataIntegrityViolationException e) {
+            verify(mockPaperRecordRequestDAO, times(1)).saveOrUpdate(any(PaperRecordRequest.class));
+        }
+        finally {
+            TransactionSynchronizationManager.setActualTransactionActive(false);
+        }
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testRequestPaperRecordShouldThrowExceptionIfPatientNull() throws Exception {
 
@@ -350,11 +500,253 @@ public class PaperRecordServiceTest {
         requests.add(createPaperRecordRequest(patient, location, "ABC"));
         requests.add(createPaperRecordRequest(patient, location, "ABC"));
 
+        when(mockPaperRecordRequestDAO.assignPaperRecordRequest(any(PaperRecordRequest.class), eq(assignTo))).thenReturn(true);
+
         Map<String, List<String>> response = paperRecordService.assignRequests(requests, assignTo, null);
 
         assertThat(response.get("success").size(), is(3));
+        assertThat(response.get("error").size(), is(0));
+
+        for (PaperRecordRequest request : requests) {
+            verify(mockPaperRecordRequestDAO).assignPaperRecordRequest(request, assignTo);
+        }
+
+        // these are all pull requests, so we just queue the form labels for each, and don't print anything within the transaction
+        verify(mockPaperRecordPrintJobDAO, times(3)).saveOrUpdate(any(PaperRecordPrintJob.class));
+        verify(mockPrinterService, never()).printViaSocket(anyString(), any(Printer.Type.class), any(Location.class), anyString(), anyBoolean(), anyInt());
+    }
+
+    @Test
+    public void testAssignRequestsShouldQueueFullLabelSetForCreateRequest() throws Exception {
+
+        Person assignTo = new Person(15);
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+
+        PaperRecordRequest request = createPaperRecordRequest(patient, location, "ABC", null, Status.OPEN, PaperRecord.Status.PENDING_CREATION);
+
+        when(mockPaperRecordRequestDAO.assignPaperRecordRequest(request, assignTo)).thenReturn(true);
+        when(mockPaperRecordLabelTemplate.generateLabel(patient, "ABC")).thenReturn("record\n");
+        when(mockPaperFormLabelTemplate.generateLabel(patient, "ABC")).thenReturn("form\n");
+        when(mockIdCardLabelTemplate.generateLabel(patient, null)).thenReturn("card\n");
+        when(mockPaperFormLabelTemplate.getEncoding()).thenReturn("UTF-8");
+
+        paperRecordService.assignRequests(Collections.singletonList(request), assignTo, location);
+
+        verify(mockPaperRecordPrintJobDAO).saveOrUpdate(argThat(new IsPrintJob(location, "record\n", 1)));
+        verify(mockPaperRecordPrintJobDAO).saveOrUpdate(argThat(new IsPrintJob(location, "form\nform\nform\n", 3)));
+        verify(mockPaperRecordPrintJobDAO).saveOrUpdate(argThat(new IsPrintJob(location, "card\n", 1)));
+    }
+
+    @Test
+    public void testAssignRequestsShouldDispatchOnlyItsOwnPrintJobsAfterAssigning() throws Exception {
+
+        Person assignTo = new Person(15);
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+
+        PaperRecordRequest request = createPaperRecordRequest(patient, location, "ABC");
+
+        when(mockPaperRecordRequestDAO.assignPaperRecordRequest(request, assignTo)).thenReturn(true);
+        when(mockPaperFormLabelTemplate.generateLabel(patient, "ABC")).thenReturn("form\n");
+        when(mockPaperFormLabelTemplate.getEncoding()).thenReturn("UTF-8");
+        Map<Integer, PaperRecordPrintJob> printJobs = stubPrintJobQueue();
+
+        Map<String, List<String>> response = paperRecordService.assignRequests(Collections.singletonList(request), assignTo, location);
+
+        assertThat(response.get("printError").size(), is(0));
+
+        verify(mockPrinterService).printViaSocket("form\nform\nform\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
+        assertThat(printJobs.get(1).getStatus(), is(PaperRecordPrintJob.Status.PRINTED));
+        assertThat(printJobs.get(1).getAttempts(), is(1));
+
+        // any other pending jobs are left to the DispatchPrintJobsTask
+        verify(mockPaperRecordPrintJobDAO, never()).findPendingPrintJobIds(any(Location.class), anyInt());
+    }
+
+    @Test
+    public void testAssignRequestsShouldReportButLeaveJobPendingIfUnableToPrint() throws Exception {
+
+        Person assignTo = new Person(15);
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+
+        PaperRecordRequest request = createPaperRecordRequest(patient, location, "ABC");
+
+        when(mockPaperRecordRequestDAO.assignPaperRecordRequest(request, assignTo)).thenReturn(true);
+        when(mockPaperFormLabelTemplate.generateLabel(patient, "ABC")).thenReturn("form\n");
+        when(mockPaperFormLabelTemplate.getEncoding()).thenReturn("UTF-8");
+        Map<Integer, PaperRecordPrintJob> printJobs = stubPrintJobQueue();
+        doThrow(new RuntimeException("printer offline")).when(mockPrinterService)
+                .printViaSocket("form\nform\nform\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
+
+        Map<String, List<String>> response = paperRecordService.assignRequests(Collections.singletonList(request), assignTo, location);
+
+        // the request is still assigned, and printing is left to the DispatchPrintJobsTask
+        assertThat(response.get("success"), is(Collections.singletonList("ABC")));
+        assertThat(response.get("printError"), is(Collections.singletonList("ABC")));
+        assertThat(printJobs.get(1).getStatus(), is(PaperRecordPrintJob.Status.PENDING));
+        assertThat(printJobs.get(1).getAttempts(), is(1));
+        assertThat(printJobs.get(1).getLastError(), is("java.lang.RuntimeException: printer offline"));
+    }
+
+    @Test
+    public void testDispatchPendingPrintJobsShouldMarkJobFailedAfterMaxAttempts() throws Exception {
+
+        Location location = new Location(1);
+
+        PaperRecordPrintJob printJob = new PaperRecordPrintJob();
+        printJob.setLocation(location);
+        printJob.setData("data\n");
+        printJob.setEncoding("UTF-8");
+        printJob.setLabelCount(3);
+        printJob.setAttempts(PaperRecordConstants.MAX_PRINT_JOB_ATTEMPTS - 1);
+
+        when(mockPaperRecordPrintJobDAO.findPendingPrintJobIds(null, 100)).thenReturn(Collections.singletonList(1));
+        when(mockPaperRecordPrintJobDAO.getByIdForUpdate(1)).thenReturn(printJob);
+        doThrow(new RuntimeException("printer offline")).when(mockPrinterService)
+                .printViaSocket("data\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
+
+        assertThat(paperRecordService.dispatchPendingPrintJobs(100), is(0));
+        assertThat(printJob.getStatus(), is(PaperRecordPrintJob.Status.FAILED));
+        assertThat(printJob.getAttempts(), is(PaperRecordConstants.MAX_PRINT_JOB_ATTEMPTS));
+    }
+
+    @Test
+    public void testDispatchPendingPrintJobsShouldCoalesceJobsForSamePrinterIntoOneWrite() throws Exception {
+
+        Location location = new Location(1);
+
+        PaperRecordPrintJob firstPrintJob = new PaperRecordPrintJob();
+        firstPrintJob.setLocation(location);
+        firstPrintJob.setData("first\n");
+        firstPrintJob.setEncoding("UTF-8");
+        firstPrintJob.setLabelCount(1);
+
+        PaperRecordPrintJob secondPrintJob = new PaperRecordPrintJob();
+        secondPrintJob.setLocation(location);
+        secondPrintJob.setData("second\nsecond\nsecond\n");
+        secondPrintJob.setEncoding("UTF-8");
+        secondPrintJob.setLabelCount(3);
+
+        when(mockPaperRecordPrintJobDAO.findPendingPrintJobIds(null, null)).thenReturn(Arrays.asList(1, 2));
+        when(mockPaperRecordPrintJobDAO.getByIdForUpdate(1)).thenReturn(firstPrintJob);
+        when(mockPaperRecordPrintJobDAO.getByIdForUpdate(2)).thenReturn(secondPrintJob);
+
+        assertThat(paperRecordService.dispatchPendingPrintJobs(null), is(2));
+
+        // one write, waiting in proportion to the number of labels sent
+        verify(mockPrinterService).printViaSocket("first\nsecond\nsecond\nsecond\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
+        verify(mockPrinterService, times(1)).printViaSocket(anyString(), any(Printer.Type.class), any(Location.class), anyString(), anyBoolean(), anyInt());
+        assertThat(firstPrintJob.getStatus(), is(PaperRecordPrintJob.Status.PRINTED));
+        assertThat(secondPrintJob.getStatus(), is(PaperRecordPrintJob.Status.PRINTED));
+    }
+
+    @Test
+    public void testDispatchPendingPrintJobsShouldNotReprintJobAlreadyPrinted() throws Exception {
+
+        PaperRecordPrintJob printJob = new PaperRecordPrintJob();
+        printJob.markPrinted();
+
+        when(mockPaperRecordPrintJobDAO.findPendingPrintJobIds(null, null)).thenReturn(Collections.singletonList(1));
+        when(mockPaperRecordPrintJobDAO.getByIdForUpdate(1)).thenReturn(printJob);
+
+        assertThat(paperRecordService.dispatchPendingPrintJobs(null), is(1));
+        verify(mockPrinterService, never()).printViaSocket(anyString(), any(Printer.Type.class), any(Location.class), anyString(), anyBoolean(), anyInt());
+    }
+
+    @Test
+    public void testDispatchPendingPrintJobsShouldNotSendJobClaimedByAnotherDispatcher() throws Exception {
+
+        PaperRecordPrintJob printJob = new PaperRecordPrintJob();
+        printJob.setLocation(new Location(1));
+        printJob.setData("data\n");
+        printJob.setLabelCount(1);
+        printJob.markSending();
+
+        when(mockPaperRecordPrintJobDAO.findPendingPrintJobIds(null, null)).thenReturn(Collections.singletonList(1));
+        when(mockPaperRecordPrintJobDAO.getByIdForUpdate(1)).thenReturn(printJob);
+
+        assertThat(paperRecordService.dispatchPendingPrintJobs(null), is(1));
+        assertThat(printJob.getStatus(), is(PaperRecordPrintJob.Status.SENDING));
+        verify(mockPrinterService, never()).printViaSocket(anyString(), any(Printer.Type.class), any(Location.class), anyString(), anyBoolean(), anyInt());
+    }
+
+    @Test
+    public void testDispatchPendingPrintJobsShouldReclaimJobWhoseClaimHasTimedOut() throws Exception {
+
+        Location location = new Location(1);
+
+        PaperRecordPrintJob printJob = new PaperRecordPrintJob();
+        printJob.setLocation(location);
+        printJob.setData("data\n");
+        printJob.setEncoding("UTF-8");
+        printJob.setLabelCount(1);
+        printJob.markSending();
+        printJob.setDateLastAttempted(DateUtils.addMinutes(new Date(), -PaperRecordConstants.PRINT_JOB_CLAIM_TIMEOUT_MINUTES - 1));
+
+        when(mockPaperRecordPrintJobDAO.findPendingPrintJobIds(null, null)).thenReturn(Collections.singletonList(1));
+        when(mockPaperRecordPrintJobDAO.getByIdForUpdate(1)).thenReturn(printJob);
 
-        verify(mockPaperRecordRequestDAO, times(3)).saveOrUpdate(argThat(new IsAssignedTo(assignTo, Status.ASSIGNED)));
+        assertThat(paperRecordService.dispatchPendingPrintJobs(null), is(1));
+        assertThat(printJob.getStatus(), is(PaperRecordPrintJob.Status.PRINTED));
+        verify(mockPrinterService).printViaSocket("data\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
+    }
+
+    @Test
+    public void testAssignRequestsShouldReportRequestsAlreadyClaimedBySomeoneElse() throws Exception {
+
+        Person assignTo = new Person(15);
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+
+        PatientIdentifier identifier = new PatientIdentifier();
+        identifier.setPatient(patient);
+        identifier.setLocation(location);
+        identifier.setIdentifierType(paperRecordIdentifierType);
+        identifier.setIdentifier("ABC");
+        patient.addIdentifier(identifier);
+
+        PaperRecordRequest request = createPaperRecordRequest(patient, location, "ABC");
+        PaperRecordRequest alreadyClaimedRequest = createPaperRecordRequest(patient, location, "DEF");
+
+        when(mockPaperRecordRequestDAO.assignPaperRecordRequest(request, assignTo)).thenReturn(true);
+        when(mockPaperRecordRequestDAO.assignPaperRecordRequest(alreadyClaimedRequest, assignTo)).thenReturn(false);
+
+        Map<String, List<String>> response = paperRecordService.assignRequests(Arrays.asList(request, alreadyClaimedRequest), assignTo, null);
+
+        assertThat(response.get("success"), is(Collections.singletonList("ABC")));
+        assertThat(response.get("error"), is(Collections.singletonList("DEF")));
+
+        // we should only queue labels for the request we actually claimed
+        verify(mockPaperRecordPrintJobDAO, times(1)).saveOrUpdate(any(PaperRecordPrintJob.class));
+    }
+
+    @Test
+    public void testAssignRequestsShouldReportRequestsThatAreNotOpen() throws Exception {
+
+        Person assignTo = new Person(15);
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+
+        PatientIdentifier identifier = new PatientIdentifier();
+        identifier.setPatient(patient);
+        identifier.setLocation(location);
+        identifier.setIdentifierType(paperRecordIdentifierType);
+        identifier.setIdentifier("ABC");
+        patient.addIdentifier(identifier);
+
+        PaperRecordRequest request = createPaperRecordRequest(patient, location, "ABC");
+        PaperRecordRequest cancelledRequest = createPaperRecordRequest(patient, location, "DEF");
+        cancelledRequest.updateStatus(Status.CANCELLED);
+
+        when(mockPaperRecordRequestDAO.assignPaperRecordRequest(request, assignTo)).thenReturn(true);
+
+        Map<String, List<String>> response = paperRecordService.assignRequests(Arrays.asList(request, cancelledRequest), assignTo, null);
+
+        assertThat(response.get("success"), is(Collections.singletonList("ABC")));
+        assertThat(response.get("error"), is(Collections.singletonList("DEF")));
+        verify(mockPaperRecordRequestDAO, never()).assignPaperRecordRequest(cancelledRequest, assignTo);
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -399,6 +791,51 @@ public class PaperRecordServiceTest {
     }
 
 
+    @Test
+    public void testRequestPaperRecordsShouldFetchRecordsAndPendingRequestsForAllPatientsAtOnce() throws Exception {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+        Location requestLocation = createLocation(4, "Outpatient Clinic");
+
+        Patient patientWithPendingRequest = new Patient();
+        patientWithPendingRequest.setId(15);
+        Patient patientWithRecord = new Patient();
+        patientWithRecord.setId(16);
+
+        PaperRecordRequest pendingRequest = createPaperRecordRequest(patientWithPendingRequest, medicalRecordLocation, "ABC123");
+        pendingRequest.setId(10);
+
+        // we only need the paper record here, not the request
+        PaperRecord paperRecord = createPaperRecordRequest(patientWithRecord, medicalRecordLocation, "ABC456").getPaperRecord();
+
+        List<Patient> patients = Arrays.asList(patientWithPendingRequest, patientWithRecord);
+
+        when(mockPaperRecordRequestDAO.findPaperRecordRequests(PENDING_STATUSES, patients, medicalRecordLocation))
+                .thenReturn(Collections.singletonList(pendingRequest));
+        when(mockPaperRecordDAO.findPaperRecords(patients, medicalRecordLocation))
+                .thenReturn(Arrays.asList(pendingRequest.getPaperRecord(), paperRecord));
+
+        Map<Patient, List<PaperRecordRequest>> requests = paperRecordService.requestPaperRecords(patients, medicalRecordLocation, requestLocation);
+
+        assertThat(requests.size(), is(2));
+
+        // the pending request is updated...
+        assertThat(requests.get(patientWithPendingRequest).get(0), is(pendingRequest));
+        assertThat(pendingRequest.getRequestLocation(), is(requestLocation));
+        verify(mockPaperRecordRequestDAO).saveOrUpdate(pendingRequest);
+
+        // ...and a request is created for the other record
+        PaperRecordRequest newRequest = requests.get(patientWithRecord).get(0);
+        assertThat(newRequest.getPaperRecord(), is(paperRecord));
+        assertThat(newRequest.getRequestLocation(), is(requestLocation));
+        verify(mockPaperRecordRequestDAO).saveOrUpdate(newRequest);
+
+        // without querying patient by patient, or creating any records
+        verify(mockPaperRecordRequestDAO, never()).findPaperRecordRequests(any(List.class), any(Patient.class), any(Location.class), anyString());
+        verify(mockPaperRecordDAO, never()).findPaperRecords(any(Patient.class), any(Location.class));
+        verify(mockPaperRecordDAO, never()).saveOrUpdate(any(PaperRecord.class));
+    }
+
     @Test
     public void whenDuplicateRequestIsMadeNoNewRequestShouldBeGenerated() throws Exception {
 
@@ -838,6 +1275,20 @@ public class PaperRecordServiceTest {
 
         verify(mockPaperRecordMergeRequestDAO).saveOrUpdate(argThat(expectedMergeRequestMatcher));
         verify(mockPatientService).voidPatientIdentifier(identifier2, "voided during paper record merge");
+        verify(mockPaperRecordDAO).evictFromCache(paperRecord1);
+        verify(mockPaperRecordDAO).evictFromCache(paperRecord2);
+    }
+
+    @Test
+    public void testSavePaperRecordShouldEvictPaperRecordFromCache() throws Exception {
+
+        PaperRecord paperRecord = new PaperRecord();
+        when(mockPaperRecordDAO.saveOrUpdate(paperRecord)).thenReturn(paperRecord);
+
+        paperRecordService.savePaperRecord(paperRecord);
+
+        verify(mockPaperRecordDAO).saveOrUpdate(paperRecord);
+        verify(mockPaperRecordDAO).evictFromCache(paperRecord);
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -1278,7 +1729,7 @@ public class PaperRecordServiceTest {
 
         paperRecordService.printPaperRecordLabel(request, location);
 
-        verify(mockPrinterService).printViaSocket("data\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 600);
+        verify(mockPrinterService).printViaSocket("data\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
 
     }
 
@@ -1296,7 +1747,7 @@ public class PaperRecordServiceTest {
         paperRecordService.printPaperRecordLabels(request, location, 3);
 
         verify(mockPrinterService).printViaSocket("data\nlines\ndata\n" +
-                "lines\ndata\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 800);
+                "lines\ndata\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
 
     }
 
@@ -1322,7 +1773,7 @@ public class PaperRecordServiceTest {
 
         paperRecordService.printPaperRecordLabels(patient, location, 1);
 
-        verify(mockPrinterService).printViaSocket("data\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 600);
+        verify(mockPrinterService).printViaSocket("data\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
     }
 
     @Test
@@ -1339,7 +1790,7 @@ public class PaperRecordServiceTest {
         paperRecordService.printPaperFormLabels(request, location, 3);
 
         verify(mockPrinterService).printViaSocket("data\nlines\ndata\n" +
-                "lines\ndata\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 800);
+                "lines\ndata\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
 
     }
 
@@ -1368,7 +1819,7 @@ public class PaperRecordServiceTest {
         paperRecordService.printPaperFormLabels(patient, location, 3);
 
         verify(mockPrinterService).printViaSocket("data\nlines\ndata\n" +
-                "lines\ndata\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 800);
+                "lines\ndata\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
 
     }
 
@@ -1389,227 +1840,318 @@ public class PaperRecordServiceTest {
 
         paperRecordService.printIdCardLabel(patient, location);
 
-        verify(mockPrinterService).printViaSocket("data\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 600);
+        verify(mockPrinterService).printViaSocket("data\nlines\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
     }
 
     @Test
-    public void testExpirePullRequestsShouldCancelPullRequestsBeforeSpecifiedDate() throws Exception {
+    public void testPrintIdLabelShouldOnlySendStoredFormatToPrinterOnceWhenUsingStoredFormats() throws Exception {
 
-        Calendar cal = Calendar.getInstance();
-        cal.set(2012, 1, 22);
-        cal.set(Calendar.HOUR_OF_DAY, 4);
-        cal.set(Calendar.MINUTE, 40);
-        Date beforeExpireDate = cal.getTime();
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+        Printer printer = new Printer();
+        printer.setId(1);
 
-        cal.set(Calendar.MINUTE, 50);
+        StoredFormatIdCardLabelTemplate storedFormatTemplate = mock(StoredFormatIdCardLabelTemplate.class);
+        when(storedFormatTemplate.getStoredFormatName()).thenReturn("R:FORMAT.ZPL");
+        when(storedFormatTemplate.getStoredFormat()).thenReturn("format\n");
+        when(storedFormatTemplate.generateStoredFormatLabel(eq(patient), anyString())).thenReturn("^XFR:FORMAT.ZPL\n");
+        when(storedFormatTemplate.getEncoding()).thenReturn("UTF-8");
+        paperRecordService.setIdCardLabelTemplate(storedFormatTemplate);
 
-        Date afterExpireDate = cal.getTime();
+        when(mockPaperRecordProperties.getUseStoredLabelFormats()).thenReturn(true);
+        when(mockPrinterService.getDefaultPrinter(location, Printer.Type.LABEL)).thenReturn(printer);
 
-        cal.set(Calendar.MINUTE, 45);
-        Date expireDate = cal.getTime();
+        paperRecordService.printIdCardLabel(patient, location);
+        paperRecordService.printIdCardLabel(patient, location);
 
-        Patient patient1 = new Patient(1);
-        Patient patient2 = new Patient(2);
-        Patient patient3 = new Patient(3);
-        Patient patient4 = new Patient(4);
-        Location requestLocation = new Location(1);
-        Location recordLocation = new Location(1);
+        verify(mockPrinterService).printViaSocket("format\n^XFR:FORMAT.ZPL\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
+        verify(mockPrinterService).printViaSocket("^XFR:FORMAT.ZPL\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
+        verify(storedFormatTemplate, never()).generateLabel(any(Patient.class), anyString());
+    }
 
-        PaperRecordRequest request1 = createPaperRecordRequest(patient1, recordLocation, "ABC", requestLocation,
-                Status.ASSIGNED);
-        request1.setDateCreated(beforeExpireDate);
+    @Test
+    public void testPrintIdLabelShouldSendStoredFormatAgainAfterFailingToPrint() throws Exception {
 
-        PaperRecordRequest request2 = createPaperRecordRequest(patient2, recordLocation, "DEF", requestLocation,
-                Status.ASSIGNED);
-        request2.setDateCreated(afterExpireDate);
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+        Printer printer = new Printer();
+        printer.setId(1);
 
-        PaperRecordRequest request3 = createPaperRecordRequest(patient3, recordLocation, "GHI", requestLocation,
-                Status.OPEN);
-        request3.setDateCreated(beforeExpireDate);
+        StoredFormatIdCardLabelTemplate storedFormatTemplate = mock(StoredFormatIdCardLabelTemplate.class);
+        when(storedFormatTemplate.getStoredFormatName()).thenReturn("R:FORMAT.ZPL");
+        when(storedFormatTemplate.getStoredFormat()).thenReturn("format\n");
+        when(storedFormatTemplate.generateStoredFormatLabel(eq(patient), anyString())).thenReturn("^XFR:FORMAT.ZPL\n");
+        when(storedFormatTemplate.getEncoding()).thenReturn("UTF-8");
+        paperRecordService.setIdCardLabelTemplate(storedFormatTemplate);
 
-        PaperRecordRequest request4 = createPaperRecordRequest(patient4, recordLocation, "JKL", requestLocation,
-                Status.OPEN);
-        request4.setDateCreated(afterExpireDate);
+        when(mockPaperRecordProperties.getUseStoredLabelFormats()).thenReturn(true);
+        when(mockPrinterService.getDefaultPrinter(location, Printer.Type.LABEL)).thenReturn(printer);
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), null,
-                null, null)).thenReturn(Arrays.asList(request1, request2));
+        paperRecordService.printIdCardLabel(patient, location);
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
-                null, null)).thenReturn(Arrays.asList(request3, request4));
+        doThrow(new RuntimeException()).when(mockPrinterService)
+                .printViaSocket("^XFR:FORMAT.ZPL\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
+        try {
+            paperRecordService.printIdCardLabel(patient, location);
+        }
+        catch (UnableToPrintLabelException e) {
+            // expected
+        }
 
-        paperRecordService.expirePendingPullRequests(expireDate);
+        paperRecordService.printIdCardLabel(patient, location);
 
-        verify(mockPaperRecordRequestDAO).saveOrUpdate(request1);
-        verify(mockPaperRecordRequestDAO).saveOrUpdate(request3);
+        verify(mockPrinterService, times(2)).printViaSocket("format\n^XFR:FORMAT.ZPL\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
+    }
 
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request2);
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request4);
+    @Test
+    public void testDispatchPendingPrintJobsShouldSendStoredFormatsRecalledByJobs() throws Exception {
 
-        assertThat(request1.getStatus(), is(Status.CANCELLED));
-        assertThat(request3.getStatus(), is(Status.CANCELLED));
+        Location location = new Location(1);
+        Printer printer = new Printer();
+        printer.setId(1);
 
-        assertThat(request2.getStatus(), is(Status.ASSIGNED));
-        assertThat(request4.getStatus(), is(Status.OPEN));
-    }
+        StoredFormatIdCardLabelTemplate storedFormatTemplate = mock(StoredFormatIdCardLabelTemplate.class);
+        when(storedFormatTemplate.getStoredFormatName()).thenReturn("R:FORMAT.ZPL");
+        when(storedFormatTemplate.getStoredFormat()).thenReturn("format\n");
+        paperRecordService.setIdCardLabelTemplate(storedFormatTemplate);
 
-    @Test
-    public void testExpirePullRequestsShouldNotCancelRequestsPendingCreation() throws Exception {
+        when(mockPrinterService.getDefaultPrinter(location, Printer.Type.LABEL)).thenReturn(printer);
 
-        Calendar cal = Calendar.getInstance();
-        cal.set(2012, 1, 22);
-        cal.set(Calendar.HOUR_OF_DAY, 4);
-        cal.set(Calendar.MINUTE, 40);
-        Date beforeExpireDate = cal.getTime();
+        PaperRecordPrintJob firstPrintJob = new PaperRecordPrintJob();
+        firstPrintJob.setLocation(location);
+        firstPrintJob.setData("^XFR:FORMAT.ZPL\n");
+        firstPrintJob.setEncoding("UTF-8");
+        firstPrintJob.setLabelCount(1);
 
-        cal.set(Calendar.MINUTE, 45);
-        Date expireDate = cal.getTime();
+        PaperRecordPrintJob secondPrintJob = new PaperRecordPrintJob();
+        secondPrintJob.setLocation(location);
+        secondPrintJob.setData("^XFR:FORMAT.ZPL\n");
+        secondPrintJob.setEncoding("UTF-8");
+        secondPrintJob.setLabelCount(1);
 
-        Patient patient1 = new Patient(1);
-        Patient patient2 = new Patient(2);
-        Location requestLocation = new Location(1);
-        Location recordLocation = new Location(1);
+        when(mockPaperRecordPrintJobDAO.findPendingPrintJobIds(null, null)).thenReturn(Arrays.asList(1), Arrays.asList(2));
+        when(mockPaperRecordPrintJobDAO.getByIdForUpdate(1)).thenReturn(firstPrintJob);
+        when(mockPaperRecordPrintJobDAO.getByIdForUpdate(2)).thenReturn(secondPrintJob);
 
-        PaperRecordRequest request1 = createPaperRecordRequest(patient1, recordLocation, "ABC", requestLocation,
-                Status.ASSIGNED, PaperRecord.Status.PENDING_CREATION);
-        request1.setDateCreated(beforeExpireDate);
+        assertThat(paperRecordService.dispatchPendingPrintJobs(null), is(1));
+        assertThat(paperRecordService.dispatchPendingPrintJobs(null), is(1));
 
-        PaperRecordRequest request2 = createPaperRecordRequest(patient2, recordLocation, null, requestLocation,
-                Status.OPEN, PaperRecord.Status.PENDING_CREATION);
-        request2.setDateCreated(beforeExpireDate);
+        verify(mockPrinterService).printViaSocket("format\n^XFR:FORMAT.ZPL\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
+        verify(mockPrinterService).printViaSocket("^XFR:FORMAT.ZPL\n", Printer.Type.LABEL, location, "UTF-8", false, 0);
+    }
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), null,
-                null, null)).thenReturn(Collections.singletonList(request1));
+    @Test
+    public void testExpirePullRequestsShouldCancelPendingPullRequestsWithSingleBulkUpdate() throws Exception {
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
-                null, null)).thenReturn(Collections.singletonList(request2));
+        Date expireDate = new Date();
 
-        paperRecordService.expirePendingPullRequests(expireDate);
+        when(mockPaperRecordRequestDAO.cancelPaperRecordRequestsCreatedBefore(PaperRecordRequest.PENDING_STATUSES,
+                PaperRecord.Status.PENDING_CREATION, false, expireDate)).thenReturn(2);
 
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request1);
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request2);
+        assertThat(paperRecordService.expirePendingPullRequests(expireDate), is(2));
 
-        assertThat(request1.getStatus(), is(Status.ASSIGNED));
-        assertThat(request2.getStatus(), is(Status.OPEN));
+        verify(mockPaperRecordRequestDAO).cancelPaperRecordRequestsCreatedBefore(PaperRecordRequest.PENDING_STATUSES,
+                PaperRecord.Status.PENDING_CREATION, false, expireDate);
+        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(any(PaperRecordRequest.class));
     }
 
-
     @Test
-    public void testExpireCreateRequestsShouldCancelCreateRequestsBeforeSpecifiedDate() throws Exception {
-
-        Calendar cal = Calendar.getInstance();
-        cal.set(2012, 1, 22);
-        cal.set(Calendar.HOUR_OF_DAY, 4);
-        cal.set(Calendar.MINUTE, 40);
-        Date beforeExpireDate = cal.getTime();
+    public void testExpirePullRequestsShouldCancelAtMostMaxRequests() throws Exception {
 
-        cal.set(Calendar.MINUTE, 50);
+        Date expireDate = new Date();
 
-        Date afterExpireDate = cal.getTime();
+        when(mockPaperRecordRequestDAO.cancelPaperRecordRequestsCreatedBefore(PaperRecordRequest.PENDING_STATUSES,
+                PaperRecord.Status.PENDING_CREATION, false, expireDate, 100)).thenReturn(100);
 
-        cal.set(Calendar.MINUTE, 45);
-        Date expireDate = cal.getTime();
+        assertThat(paperRecordService.expirePendingPullRequests(expireDate, 100), is(100));
 
-        Patient patient1 = new Patient(1);
-        Patient patient2 = new Patient(2);
-        Patient patient3 = new Patient(3);
-        Patient patient4 = new Patient(4);
-        Location requestLocation = new Location(1);
-        Location recordLocation = new Location(1);
+        verify(mockPaperRecordRequestDAO).cancelPaperRecordRequestsCreatedBefore(PaperRecordRequest.PENDING_STATUSES,
+                PaperRecord.Status.PENDING_CREATION, false, expireDate, 100);
+    }
 
-        PaperRecordRequest request1 = createPaperRecordRequest(patient1, recordLocation, "ABC", requestLocation,
-                Status.ASSIGNED, PaperRecord.Status.PENDING_CREATION);
-        request1.setDateCreated(beforeExpireDate);
+    @Test
+    public void testExpireCreateRequestsShouldCancelPendingCreateRequestsWithSingleBulkUpdate() throws Exception {
 
-        PaperRecordRequest request2 = createPaperRecordRequest(patient2, recordLocation, "DEF", requestLocation,
-                Status.ASSIGNED, PaperRecord.Status.PENDING_CREATION);
-        request2.setDateCreated(afterExpireDate);
+        Date expireDate = new Date();
 
-        PaperRecordRequest request3 = createPaperRecordRequest(patient3, recordLocation, "GHI", requestLocation,
-                Status.OPEN, PaperRecord.Status.PENDING_CREATION);
-        request3.setDateCreated(beforeExpireDate);
+        when(mockPaperRecordRequestDAO.cancelPaperRecordRequestsCreatedBefore(PaperRecordRequest.PENDING_STATUSES,
+                PaperRecord.Status.PENDING_CREATION, true, expireDate)).thenReturn(3);
 
-        PaperRecordRequest request4 = createPaperRecordRequest(patient4, recordLocation, "KLM", requestLocation,
-                Status.OPEN, PaperRecord.Status.PENDING_CREATION);
-        request4.setDateCreated(afterExpireDate);
+        assertThat(paperRecordService.expirePendingCreateRequests(expireDate), is(3));
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), null,
-                null, null)).thenReturn(Arrays.asList(request1, request2));
+        verify(mockPaperRecordRequestDAO).cancelPaperRecordRequestsCreatedBefore(PaperRecordRequest.PENDING_STATUSES,
+                PaperRecord.Status.PENDING_CREATION, true, expireDate);
+        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(any(PaperRecordRequest.class));
+    }
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
-                null, null)).thenReturn(Arrays.asList(request3, request4));
+    @Test
+    public void createPaperMedicalRecordNumber_shouldSkipIdentifiersAlreadyInUse() {
 
-        paperRecordService.expirePendingCreateRequests(expireDate);
+        Location medicalRecordLocation = createMedicalRecordLocation();
+        PatientIdentifier identifier = createIdentifier(medicalRecordLocation, "A00001");
 
-        verify(mockPaperRecordRequestDAO).saveOrUpdate(request1);
-        verify(mockPaperRecordRequestDAO).saveOrUpdate(request3);
+        when(mockPatientService.getPatientIdentifiers("A00001", Collections.singletonList(paperRecordIdentifierType),
+                Collections.singletonList(medicalRecordLocation), null, null))
+                .thenReturn(Collections.singletonList(identifier));
 
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request2);
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request4);
+        when(mockIdentifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation, "generating a new paper record identifier number")).thenReturn("A00001", "A00002");
 
-        assertThat(request1.getStatus(), is(Status.CANCELLED));
-        assertThat(request3.getStatus(), is(Status.CANCELLED));
+        PatientIdentifier paperMedicalRecordIdentifier = paperRecordService.createPaperRecord(new Patient(), medicalRecordLocation).getPatientIdentifier();
 
-        assertThat(request2.getStatus(), is(Status.ASSIGNED));
-        assertThat(request4.getStatus(), is(Status.OPEN));
+        assertThat(paperMedicalRecordIdentifier.getIdentifier(), is("A00002"));
     }
 
+    @Test
+    public void getPaperRecordRequests_shouldApplyDefaultPageSizeAndCapIt() {
+
+        List<PaperRecordRequest.Status> statusList = Collections.singletonList(PaperRecordRequest.Status.OPEN);
+
+        paperRecordService.getPaperRecordRequests(statusList, null, false, null, null);
+        paperRecordService.getPaperRecordRequests(statusList, null, false, null, -1);
+        paperRecordService.getPaperRecordRequests(statusList, null, false, null, PaperRecordConstants.MAX_QUEUE_PAGE_SIZE + 1);
+
+        verify(mockPaperRecordRequestDAO, times(2)).findPaperRecordRequests(statusList, null, PaperRecord.Status.PENDING_CREATION,
+                false, null, null, PaperRecordConstants.DEFAULT_QUEUE_PAGE_SIZE);
+        verify(mockPaperRecordRequestDAO).findPaperRecordRequests(statusList, null, PaperRecord.Status.PENDING_CREATION,
+                false, null, null, PaperRecordConstants.MAX_QUEUE_PAGE_SIZE);
+    }
 
     @Test
-    public void testExpireCreateRequestsShouldNotCancelPullRequests() throws Exception {
+    public void createPaperMedicalRecordNumber_shouldUsePreAllocatedIdentifierIfAvailable() {
 
-        Calendar cal = Calendar.getInstance();
-        cal.set(2012, 1, 22);
-        cal.set(Calendar.HOUR_OF_DAY, 4);
-        cal.set(Calendar.MINUTE, 40);
-        Date beforeExpireDate = cal.getTime();
+        Location medicalRecordLocation = createMedicalRecordLocation();
 
-        cal.set(Calendar.MINUTE, 45);
-        Date expireDate = cal.getTime();
+        PaperRecordIdentifierPool paperRecordIdentifierPool = new PaperRecordIdentifierPool();
+        paperRecordIdentifierPool.add(medicalRecordLocation, Collections.singletonList("A00007"));
+        paperRecordService.setPaperRecordIdentifierPool(paperRecordIdentifierPool);
 
-        Patient patient1 = new Patient(1);
-        Patient patient2 = new Patient(2);
-        Location requestLocation = new Location(1);
-        Location recordLocation = new Location(1);
+        PatientIdentifier paperMedicalRecordIdentifier = paperRecordService.createPaperRecord(new Patient(), medicalRecordLocation).getPatientIdentifier();
 
-        PaperRecordRequest request1 = createPaperRecordRequest(patient1, recordLocation, "ABC", requestLocation,
-                Status.ASSIGNED, PaperRecord.Status.ACTIVE);
-        request1.setDateCreated(beforeExpireDate);
+        assertThat(paperMedicalRecordIdentifier.getIdentifier(), is("A00007"));
+        verify(mockIdentifierSourceService, never()).generateIdentifier(any(PatientIdentifierType.class), any(Location.class), anyString());
+        assertThat(paperRecordIdentifierPool.size(medicalRecordLocation), is(0));
+    }
 
-        PaperRecordRequest request2 = createPaperRecordRequest(patient2, recordLocation, "DEF", requestLocation,
-                Status.OPEN);
-        request2.setDateCreated(beforeExpireDate);
+    @Test
+    public void createPaperMedicalRecordNumber_shouldSkipPreAllocatedIdentifierNowInUse() {
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), null,
-                null, null)).thenReturn(Collections.singletonList(request1));
+        Location medicalRecordLocation = createMedicalRecordLocation();
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
-                null, null)).thenReturn(Collections.singletonList(request2));
+        PaperRecordIdentifierPool paperRecordIdentifierPool = new PaperRecordIdentifierPool();
+        paperRecordIdentifierPool.add(medicalRecordLocation, Arrays.asList("A00007", "A00008"));
+        paperRecordService.setPaperRecordIdentifierPool(paperRecordIdentifierPool);
 
-        paperRecordService.expirePendingCreateRequests(expireDate);
+        when(mockPaperRecordDAO.findPaperRecordIdentifiersInUse(Collections.singletonList("A00007"),
+                paperRecordIdentifierType, medicalRecordLocation)).thenReturn(Collections.singletonList("A00007"));
 
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request1);
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request2);
+        PatientIdentifier paperMedicalRecordIdentifier = paperRecordService.createPaperRecord(new Patient(), medicalRecordLocation).getPatientIdentifier();
 
-        assertThat(request1.getStatus(), is(Status.ASSIGNED));
-        assertThat(request2.getStatus(), is(Status.OPEN));
+        assertThat(paperMedicalRecordIdentifier.getIdentifier(), is("A00008"));
+        verify(mockIdentifierSourceService, never()).generateIdentifier(any(PatientIdentifierType.class), any(Location.class), anyString());
     }
 
+    @Test
+    public void createPaperRecords_shouldGenerateIdentifiersForEachBatchAtOnce() {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+
+        IdentifierSource source = new SequentialIdentifierGenerator();
+        AutoGenerationOption autoGenerationOption = new AutoGenerationOption();
+        autoGenerationOption.setSource(source);
+        when(mockIdentifierSourceService.getAutoGenerationOption(paperRecordIdentifierType, medicalRecordLocation))
+                .thenReturn(autoGenerationOption);
+
+        int numberOfPatients = PaperRecordConstants.CREATE_PAPER_RECORDS_BATCH_SIZE + 5;
+
+        List<Patient> patients = new ArrayList<Patient>();
+        List<String> identifiers = new ArrayList<String>();
+        for (int i = 1; i <= numberOfPatients; i++) {
+            Patient patient = new Patient();
+            patient.setId(i);
+            patients.add(patient);
+            identifiers.add("A" + i);
+        }
+
+        when(mockIdentifierSourceService.generateIdentifiers(source, PaperRecordConstants.CREATE_PAPER_RECORDS_BATCH_SIZE,
+                "generating new paper record identifier numbers"))
+                .thenReturn(identifiers.subList(0, PaperRecordConstants.CREATE_PAPER_RECORDS_BATCH_SIZE));
+        when(mockIdentifierSourceService.generateIdentifiers(source, 5, "generating new paper record identifier numbers"))
+                .thenReturn(identifiers.subList(PaperRecordConstants.CREATE_PAPER_RECORDS_BATCH_SIZE, numberOfPatients));
+
+        Map<Patient, PaperRecord> paperRecords = paperRecordService.createPaperRecords(patients, medicalRecordLocation);
+
+        assertThat(paperRecords.size(), is(numberOfPatients));
+        int i = 1;
+        for (Map.Entry<Patient, PaperRecord> entry : paperRecords.entrySet()) {
+            assertThat(entry.getKey().getId(), is(i));
+            assertThat(entry.getValue().getPatientIdentifier().getIdentifier(), is("A" + i));
+            assertThat(entry.getValue().getStatus(), is(PaperRecord.Status.PENDING_CREATION));
+            i++;
+        }
+
+        verify(mockIdentifierSourceService, never()).generateIdentifier(any(PatientIdentifierType.class), any(Location.class), anyString());
+        verify(mockPaperRecordDAO, times(numberOfPatients)).saveOrUpdate(any(PaperRecord.class));
+        verify(mockPaperRecordDAO, times(2)).flushAndEvict(anyCollectionOf(PaperRecord.class));
+    }
 
     @Test
-    public void createPaperMedicalRecordNumber_shouldSkipIdentifiersAlreadyInUse() {
+    public void createPaperRecords_shouldReturnExistingRecordInsteadOfCreatingNewOne() {
 
         Location medicalRecordLocation = createMedicalRecordLocation();
+
+        Patient patient = new Patient();
+        patient.setId(15);
         PatientIdentifier identifier = createIdentifier(medicalRecordLocation, "A00001");
+        patient.addIdentifier(identifier);
 
-        when(mockPatientService.getPatientIdentifiers("A00001", Collections.singletonList(paperRecordIdentifierType),
-                Collections.singletonList(medicalRecordLocation), null, null))
-                .thenReturn(Collections.singletonList(identifier));
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setPatientIdentifier(identifier);
+        paperRecord.setRecordLocation(medicalRecordLocation);
+        when(mockPaperRecordDAO.findPaperRecords(Collections.singletonList(patient), medicalRecordLocation))
+                .thenReturn(Collections.singletonList(paperRecord));
 
-        when(mockIdentifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation, "generating a new paper record identifier number")).thenReturn("A00001", "A00002");
+        Map<Patient, PaperRecord> paperRecords = paperRecordService.createPaperRecords(Arrays.asList(patient, patient), medicalRecordLocation);
 
-        PatientIdentifier paperMedicalRecordIdentifier = paperRecordService.createPaperRecord(new Patient(), medicalRecordLocation).getPatientIdentifier();
+        assertThat(paperRecords.size(), is(1));
+        assertThat(paperRecords.get(patient), is(paperRecord));
+        verify(mockPaperRecordDAO, never()).saveOrUpdate(any(PaperRecord.class));
+        verifyZeroInteractions(mockIdentifierSourceService);
+    }
 
-        assertThat(paperMedicalRecordIdentifier.getIdentifier(), is("A00002"));
+    @Test
+    public void refillPaperRecordIdentifierPool_shouldPreAllocateBlockOfIdentifiersSkippingThoseInUse() {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+
+        PaperRecordIdentifierPool paperRecordIdentifierPool = new PaperRecordIdentifierPool();
+        paperRecordService.setPaperRecordIdentifierPool(paperRecordIdentifierPool);
+
+        IdentifierSource source = new SequentialIdentifierGenerator();
+        AutoGenerationOption autoGenerationOption = new AutoGenerationOption();
+        autoGenerationOption.setSource(source);
+
+        when(mockPaperRecordProperties.getIdentifierPoolBlockSize()).thenReturn(3);
+        when(mockIdentifierSourceService.getAutoGenerationOption(paperRecordIdentifierType, medicalRecordLocation))
+                .thenReturn(autoGenerationOption);
+        when(mockIdentifierSourceService.generateIdentifiers(source, 3, "pre-allocating paper record identifier numbers"))
+                .thenReturn(Arrays.asList("A00001", "A00002", "A00003"));
+        when(mockPaperRecordDAO.findPaperRecordIdentifiersInUse(Arrays.asList("A00001", "A00002", "A00003"),
+                paperRecordIdentifierType, medicalRecordLocation)).thenReturn(Collections.singletonList("A00002"));
+
+        assertThat(paperRecordService.refillPaperRecordIdentifierPool(medicalRecordLocation), is(2));
+
+        assertThat(paperRecordIdentifierPool.take(medicalRecordLocation), is("A00001"));
+        assertThat(paperRecordIdentifierPool.take(medicalRecordLocation), is("A00003"));
+        assertNull(paperRecordIdentifierPool.take(medicalRecordLocation));
+    }
+
+    @Test
+    public void refillPaperRecordIdentifierPool_shouldDoNothingIfPoolDisabled() {
+
+        when(mockPaperRecordProperties.getIdentifierPoolBlockSize()).thenReturn(0);
+
+        assertThat(paperRecordService.refillPaperRecordIdentifierPool(createMedicalRecordLocation()), is(0));
+        verifyZeroInteractions(mockIdentifierSourceService);
     }
 
     // note that the getMedicalRecordLocation has been mocked out, so we are only testing the getArchivesLocation part here
@@ -1675,6 +2217,33 @@ public class PaperRecordServiceTest {
         return requestLocation;
     }
 
+    // makes the print job DAO assign ids to the jobs queued, and hand them back by id, as the database would
+    private Map<Integer, PaperRecordPrintJob> stubPrintJobQueue() {
+
+        final Map<Integer, PaperRecordPrintJob> printJobs = new HashMap<Integer, PaperRecordPrintJob>();
+
+        when(mockPaperRecordPrintJobDAO.saveOrUpdate(any(PaperRecordPrintJob.class))).thenAnswer(new Answer<PaperRecordPrintJob>() {
+            @Override
+            public PaperRecordPrintJob answer(InvocationOnMock invocation) throws Throwable {
+                PaperRecordPrintJob printJob = (PaperRecordPrintJob) invocation.getArguments()[0];
+                if (printJob.getPrintJobId() == null) {
+                    printJob.setPrintJobId(printJobs.size() + 1);
+                    printJobs.put(printJob.getPrintJobId(), printJob);
+                }
+                return printJob;
+            }
+        });
+
+        when(mockPaperRecordPrintJobDAO.getByIdForUpdate(any(Integer.class))).thenAnswer(new Answer<PaperRecordPrintJob>() {
+            @Override
+            public PaperRecordPrintJob answer(InvocationOnMock invocation) throws Throwable {
+                return printJobs.get(invocation.getArguments()[0]);
+            }
+        });
+
+        return printJobs;
+    }
+
     private PaperRecordRequest createPaperRecordRequest(Patient patient, Location medicalRecordLocation, String identifier,
                                                         Location requestLocation, PaperRecordRequest.Status paperRecordRequestStatus) {
 
@@ -1722,6 +2291,10 @@ public class PaperRecordServiceTest {
         return expectedMergeRequest;
     }
 
+    interface StoredFormatIdCardLabelTemplate extends IdCardLabelTemplate, StoredFormatLabelTemplate {
+
+    }
+
     private class PaperRecordServiceStub extends PaperRecordServiceImpl {
 
         private PatientIdentifierType paperRecordIdentifierType;
@@ -1761,37 +2334,25 @@ public class PaperRecordServiceTest {
         }
     }
 
-    private class IsAssignedTo extends ArgumentMatcher<PaperRecordRequest> {
-
-        private Person shouldBeAssignedTo;
-
-        private PaperRecordRequest.Status assignmentStatus;
+    private class IsPrintJob extends ArgumentMatcher<PaperRecordPrintJob> {
 
-        private String identifier;
+        private Location location;
 
-        public IsAssignedTo(Person shouldBeAssignedTo, PaperRecordRequest.Status assignmentStatus) {
-            this.shouldBeAssignedTo = shouldBeAssignedTo;
-            this.assignmentStatus = assignmentStatus;
-        }
+        private String data;
 
+        private Integer labelCount;
 
-        public IsAssignedTo(Person shouldBeAssignedTo, PaperRecordRequest.Status assignmentStatus, String identifier) {
-            this.shouldBeAssignedTo = shouldBeAssignedTo;
-            this.assignmentStatus = assignmentStatus;
-            this.identifier = identifier;
+        public IsPrintJob(Location location, String data, Integer labelCount) {
+            this.location = location;
+            this.data = data;
+            this.labelCount = labelCount;
         }
 
         @Override
         public boolean matches(Object o) {
-            PaperRecordRequest request = (PaperRecordRequest) o;
-            assertThat(request.getStatus(), is(assignmentStatus));
-            assertThat(request.getAssignee(), is(shouldBeAssignedTo));
-
-            if (identifier != null) {
-                assertThat(request.getPaperRecord().getPatientIdentifier().getIdentifier(), is(identifier));
-            }
-
-            return true;
+            PaperRecordPrintJob printJob = (PaperRecordPrintJob) o;
+            return location.equals(printJob.getLocation()) && data.equals(printJob.getData())
+                    && labelCount.equals(printJob.getLabelCount()) && printJob.getStatus() == PaperRecordPrintJob.Status.PENDING;
         }
     }
 
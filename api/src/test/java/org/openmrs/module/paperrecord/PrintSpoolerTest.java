@@ -0,0 +1,174 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.module.printer.Printer;
+import org.openmrs.module.printer.PrinterService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PrintSpoolerTest {
+
+    private PrinterService mockPrinterService;
+
+    private PrintSpooler printSpooler;
+
+    private Location archivesRoom;
+
+    private Location registrationDesk;
+
+    private Location outpatientClinic;
+
+    @Before
+    public void setup() {
+
+        archivesRoom = new Location(1);
+        registrationDesk = new Location(2);
+        outpatientClinic = new Location(3);
+
+        // the archives room and the registration desk share a printer
+        Printer sharedPrinter = new Printer();
+        sharedPrinter.setId(1);
+        Printer clinicPrinter = new Printer();
+        clinicPrinter.setId(2);
+
+        mockPrinterService = mock(PrinterService.class);
+        when(mockPrinterService.getDefaultPrinter(archivesRoom, Printer.Type.LABEL)).thenReturn(sharedPrinter);
+        when(mockPrinterService.getDefaultPrinter(registrationDesk, Printer.Type.LABEL)).thenReturn(sharedPrinter);
+        when(mockPrinterService.getDefaultPrinter(outpatientClinic, Printer.Type.LABEL)).thenReturn(clinicPrinter);
+
+        printSpooler = new PrintSpooler(mockPrinterService);
+    }
+
+    @Test
+    public void shouldCoalesceJobsForTheSamePrinterInOrder() {
+
+        PaperRecordPrintJob first = createPrintJob(archivesRoom, "first", 1);
+        PaperRecordPrintJob second = createPrintJob(outpatientClinic, "second", 1);
+        PaperRecordPrintJob third = createPrintJob(registrationDesk, "third", 3);
+
+        List<PrintSpooler.Spool> spools = printSpooler.spool(Arrays.asList(first, second, third));
+
+        assertThat(spools.size(), is(2));
+
+        assertThat(spools.get(0).getLocation(), is(archivesRoom));
+        assertThat(spools.get(0).getData(), is("firstthird"));
+        assertThat(spools.get(0).getPrintJobs(), is(Arrays.asList(first, third)));
+        assertThat(spools.get(0).getLabelCount(), is(4));
+
+        assertThat(spools.get(1).getLocation(), is(outpatientClinic));
+        assertThat(spools.get(1).getData(), is("second"));
+        assertThat(spools.get(1).getPrintJobs(), is(Arrays.asList(second)));
+    }
+
+    @Test
+    public void shouldNotCoalesceJobsWithDifferentEncodings() {
+
+        PaperRecordPrintJob first = createPrintJob(archivesRoom, "first", 1);
+        PaperRecordPrintJob second = createPrintJob(archivesRoom, "second", 1);
+        second.setEncoding("Windows-1252");
+
+        List<PrintSpooler.Spool> spools = printSpooler.spool(Arrays.asList(first, second));
+
+        assertThat(spools.size(), is(2));
+        assertThat(spools.get(1).getEncoding(), is("Windows-1252"));
+    }
+
+    @Test
+    public void shouldSplitWritesOnceMaxLabelsReachedButNeverSplitAJob() {
+
+        printSpooler.setMaxLabelsPerWrite(4);
+
+        List<PaperRecordPrintJob> printJobs = new ArrayList<PaperRecordPrintJob>();
+        printJobs.add(createPrintJob(archivesRoom, "a", 3));
+        printJobs.add(createPrintJob(archivesRoom, "b", 1));
+        printJobs.add(createPrintJob(archivesRoom, "c", 3));
+        printJobs.add(createPrintJob(archivesRoom, "d", 5));
+
+        List<PrintSpooler.Spool> spools = printSpooler.spool(printJobs);
+
+        assertThat(spools.size(), is(3));
+        assertThat(spools.get(0).getData(), is("ab"));
+        assertThat(spools.get(1).getData(), is("c"));
+        assertThat(spools.get(2).getData(), is("d"));
+        assertThat(spools.get(2).getLabelCount(), is(5));
+    }
+
+    @Test
+    public void shouldOnlyWaitOncePrinterHasMoreThanMaxQueuedLabels() {
+
+        printSpooler.setMillisPerLabel(100);
+        printSpooler.setMaxQueuedLabels(10);
+        printSpooler.setMaxWait(3000);
+
+        assertThat(printSpooler.queueLabels("printer-1", 4), is(0));
+        assertThat(printSpooler.queueLabels("printer-1", 6), is(0));
+
+        // (allowing for the printer having printed a label or two in the meantime)
+        assertThat(printSpooler.queueLabels("printer-1", 5), is(both(greaterThan(300)).and(lessThanOrEqualTo(500))));
+
+        // another printer's queue is tracked separately
+        assertThat(printSpooler.queueLabels("printer-2", 10), is(0));
+    }
+
+    @Test
+    public void shouldNotWaitLongerThanMaximum() {
+
+        printSpooler.setMillisPerLabel(100);
+        printSpooler.setMaxQueuedLabels(10);
+        printSpooler.setMaxWait(3000);
+
+        assertThat(printSpooler.queueLabels("printer-1", 100), is(3000));
+    }
+
+    @Test
+    public void shouldThrottleSpoolsForTheSamePrinterTogether() {
+
+        printSpooler.setMillisPerLabel(100);
+        printSpooler.setMaxQueuedLabels(2);
+
+        // the archives room and the registration desk share a printer, so the second write waits on the first
+        List<PrintSpooler.Spool> spools = printSpooler.spool(Arrays.asList(createPrintJob(archivesRoom, "first", 2)));
+        spools.addAll(printSpooler.spool(Arrays.asList(createPrintJob(registrationDesk, "second", 2))));
+        spools.addAll(printSpooler.spool(Arrays.asList(createPrintJob(outpatientClinic, "third", 2))));
+
+        assertThat(spools.get(0).queue(), is(0));
+        assertThat(spools.get(1).queue(), is(both(greaterThan(0)).and(lessThanOrEqualTo(200))));
+        assertThat(spools.get(2).queue(), is(0));
+    }
+
+    private PaperRecordPrintJob createPrintJob(Location location, String data, Integer labelCount) {
+        PaperRecordPrintJob printJob = new PaperRecordPrintJob();
+        printJob.setLocation(location);
+        printJob.setData(data);
+        printJob.setEncoding("UTF-8");
+        printJob.setLabelCount(labelCount);
+        return printJob;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.printer.Printer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrinterStoredFormatsTest {
+
+    private Printer printer;
+
+    @Before
+    public void setup() {
+        printer = new Printer();
+        printer.setId(1);
+        printer.setIpAddress("10.3.18.111");
+        printer.setPort("9100");
+    }
+
+    @Test
+    public void shouldTrustRecentlyStoredFormat() {
+
+        PrinterStoredFormats printerStoredFormats = new PrinterStoredFormats();
+        printerStoredFormats.stored(printer, "R:PR000001.ZPL");
+
+        assertTrue(printerStoredFormats.isStored(printer, "R:PR000001.ZPL"));
+        assertFalse(printerStoredFormats.isStored(printer, "R:ID000001.ZPL"));
+    }
+
+    @Test
+    public void shouldNotTrustFormatStoredLongerAgoThanMaxAge() {
+
+        PrinterStoredFormats printerStoredFormats = new PrinterStoredFormats(0);
+        printerStoredFormats.stored(printer, "R:PR000001.ZPL");
+
+        assertFalse(printerStoredFormats.isStored(printer, "R:PR000001.ZPL"));
+    }
+
+    @Test
+    public void shouldForgetFormatsWhenPrinterAddressChanges() {
+
+        PrinterStoredFormats printerStoredFormats = new PrinterStoredFormats();
+        printerStoredFormats.stored(printer, "R:PR000001.ZPL");
+
+        printer.setIpAddress("10.3.18.112");
+
+        assertFalse(printerStoredFormats.isStored(printer, "R:PR000001.ZPL"));
+    }
+
+    @Test
+    public void shouldForgetFormatsOfPrinter() {
+
+        PrinterStoredFormats printerStoredFormats = new PrinterStoredFormats();
+        printerStoredFormats.stored(printer, "R:PR000001.ZPL");
+
+        printerStoredFormats.forget(printer);
+
+        assertFalse(printerStoredFormats.isStored(printer, "R:PR000001.ZPL"));
+    }
+
+}
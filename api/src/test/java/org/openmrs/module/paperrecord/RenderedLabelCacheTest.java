@@ -0,0 +1,191 @@
+package org.openmrs.module.paperrecord;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.Patient;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.appframework.feature.FeatureToggleProperties;
+import org.openmrs.module.paperrecord.template.LabelTemplate;
+import org.openmrs.module.paperrecord.template.StoredFormatLabelTemplate;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Date;
+import java.util.Locale;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class RenderedLabelCacheTest {
+
+    private LabelTemplate template;
+
+    private Patient patient;
+
+    private RenderedLabelCache cache;
+
+    @Before
+    public void setup() {
+        mockStatic(Context.class);
+        when(Context.getLocale()).thenReturn(Locale.ENGLISH);
+
+        patient = new Patient(1);
+        patient.setDateCreated(new Date(1000));
+        patient.addName(new PersonName("Indiana", null, "Jones"));
+
+        template = mock(LabelTemplate.class);
+        when(template.generateLabel(patient, "A000001")).thenReturn("label for A000001");
+        when(template.generateLabel(patient, "A000002")).thenReturn("label for A000002");
+
+        cache = new RenderedLabelCache(2);
+    }
+
+    @Test
+    public void shouldOnlyRenderLabelOnce() {
+
+        assertThat(cache.getLabel(template, patient, "A000001"), is("label for A000001"));
+        assertThat(cache.getLabel(template, patient, "A000001"), is("label for A000001"));
+
+        verify(template, times(1)).generateLabel(patient, "A000001");
+        assertThat(cache.getHits(), is(1L));
+        assertThat(cache.getMisses(), is(1L));
+    }
+
+    @Test
+    public void shouldRenderLabelAgainForDifferentTemplateIdentifierOrLocale() {
+
+        LabelTemplate otherTemplate = mock(LabelTemplate.class);
+        when(otherTemplate.generateLabel(patient, "A000001")).thenReturn("other label for A000001");
+
+        cache.getLabel(template, patient, "A000001");
+        assertThat(cache.getLabel(otherTemplate, patient, "A000001"), is("other label for A000001"));
+        assertThat(cache.getLabel(template, patient, "A000002"), is("label for A000002"));
+
+        when(Context.getLocale()).thenReturn(Locale.FRENCH);
+        cache.getLabel(template, patient, "A000001");
+
+        verify(template, times(2)).generateLabel(patient, "A000001");
+        assertThat(cache.getHits(), is(0L));
+        assertThat(cache.getMisses(), is(4L));
+    }
+
+    @Test
+    public void shouldCacheStoredFormatLabelsSeparately() {
+
+        StoredFormatLabelTemplate storedFormatTemplate = mock(StoredFormatLabelTemplate.class);
+        when(storedFormatTemplate.generateLabel(patient, "A000001")).thenReturn("label for A000001");
+        when(storedFormatTemplate.generateStoredFormatLabel(patient, "A000001")).thenReturn("stored format label for A000001");
+
+        assertThat(cache.getLabel(storedFormatTemplate, patient, "A000001"), is("label for A000001"));
+        assertThat(cache.getStoredFormatLabel(storedFormatTemplate, patient, "A000001"), is("stored format label for A000001"));
+        assertThat(cache.getStoredFormatLabel(storedFormatTemplate, patient, "A000001"), is("stored format label for A000001"));
+
+        verify(storedFormatTemplate, times(1)).generateStoredFormatLabel(patient, "A000001");
+        assertThat(cache.getHits(), is(1L));
+        assertThat(cache.getMisses(), is(2L));
+    }
+
+    @Test
+    public void shouldRenderLabelAgainWhenPatientChanges() {
+
+        cache.getLabel(template, patient, "A000001");
+
+        patient.getPersonName().setDateChanged(new Date(2000));
+        cache.getLabel(template, patient, "A000001");
+
+        patient.addName(new PersonName("Henry", null, "Jones"));
+        cache.getLabel(template, patient, "A000001");
+
+        verify(template, times(3)).generateLabel(patient, "A000001");
+        assertThat(cache.getHits(), is(0L));
+    }
+
+    @Test
+    public void shouldRenderLabelAgainWhenCdiFeatureToggleChanges() {
+
+        FeatureToggleProperties featureToggles = mock(FeatureToggleProperties.class);
+        cache.setFeatureToggles(featureToggles);
+
+        cache.getLabel(template, patient, "A000001");
+
+        when(featureToggles.isFeatureEnabled("cdi")).thenReturn(true);
+        cache.getLabel(template, patient, "A000001");
+
+        verify(template, times(2)).generateLabel(patient, "A000001");
+        assertThat(cache.getHits(), is(0L));
+    }
+
+    @Test
+    public void shouldNotKeepLabelRenderedWhileCacheWasCleared() {
+
+        // the configuration changes while the label is being rendered
+        when(template.generateLabel(patient, "A000001")).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                cache.clear();
+                return "label for A000001";
+            }
+        });
+
+        cache.getLabel(template, patient, "A000001");
+
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedLabel() {
+
+        Patient otherPatient = new Patient(2);
+        when(template.generateLabel(otherPatient, "A000003")).thenReturn("label for A000003");
+
+        cache.getLabel(template, patient, "A000001");
+        cache.getLabel(template, patient, "A000002");
+        cache.getLabel(template, patient, "A000001");
+        cache.getLabel(template, otherPatient, "A000003");
+
+        assertThat(cache.size(), is(2));
+
+        cache.getLabel(template, patient, "A000001");
+        cache.getLabel(template, patient, "A000002");
+
+        verify(template, times(1)).generateLabel(patient, "A000001");
+        verify(template, times(2)).generateLabel(patient, "A000002");
+    }
+
+    @Test
+    public void shouldNotCacheLabelOfUnsavedPatient() {
+
+        Patient unsavedPatient = new Patient();
+        when(template.generateLabel(unsavedPatient, "A000001")).thenReturn("label for A000001");
+
+        cache.getLabel(template, unsavedPatient, "A000001");
+        cache.getLabel(template, unsavedPatient, "A000001");
+
+        verify(template, times(2)).generateLabel(unsavedPatient, "A000001");
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void shouldResetCountersWhenCleared() {
+
+        cache.getLabel(template, patient, "A000001");
+        cache.getLabel(template, patient, "A000001");
+        cache.clear();
+
+        assertThat(cache.size(), is(0));
+        assertThat(cache.getHits(), is(0L));
+        assertThat(cache.getMisses(), is(0L));
+    }
+
+}
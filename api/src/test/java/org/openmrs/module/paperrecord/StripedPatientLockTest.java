@@ -0,0 +1,123 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord;
+
+import org.junit.Test;
+import org.openmrs.Patient;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class StripedPatientLockTest {
+
+    private static final int NUM_THREADS = 25;
+
+    private static final int NUM_PATIENTS = 10000;
+
+    @Test
+    public void shouldAlwaysReturnSameLockForSamePatient() {
+
+        StripedPatientLock stripedPatientLock = new StripedPatientLock();
+
+        assertThat(stripedPatientLock.getLock(new Patient(7)), sameInstance(stripedPatientLock.getLock(new Patient(7))));
+        assertThat(stripedPatientLock.getLock(new Patient()), sameInstance(stripedPatientLock.getLock(new Patient())));
+    }
+
+    @Test
+    public void shouldNotCreateMoreLocksThanStripes() {
+
+        StripedPatientLock stripedPatientLock = new StripedPatientLock(16);
+
+        Map<Object, Object> distinctLocks = new IdentityHashMap<Object, Object>();
+        for (int patientId = 0; patientId < NUM_PATIENTS; patientId++) {
+            distinctLocks.put(stripedPatientLock.getLock(patientId), null);
+        }
+
+        assertThat(distinctLocks.size(), is(16));
+    }
+
+    @Test
+    public void shouldSpreadPatientsAcrossStripes() {
+
+        StripedPatientLock stripedPatientLock = new StripedPatientLock();
+
+        Map<Object, Integer> patientsPerLock = new IdentityHashMap<Object, Integer>();
+        for (int patientId = 0; patientId < NUM_PATIENTS; patientId++) {
+            Object lock = stripedPatientLock.getLock(patientId);
+            patientsPerLock.put(lock, patientsPerLock.containsKey(lock) ? patientsPerLock.get(lock) + 1 : 1);
+        }
+
+        assertThat(patientsPerLock.size(), is(StripedPatientLock.DEFAULT_NUMBER_OF_STRIPES));
+        for (Integer count : patientsPerLock.values()) {
+            assertThat(count, lessThanOrEqualTo(2 * NUM_PATIENTS / StripedPatientLock.DEFAULT_NUMBER_OF_STRIPES));
+        }
+    }
+
+    @Test
+    public void shouldSerializeConcurrentWorkOnEachPatient() throws Exception {
+
+        final StripedPatientLock stripedPatientLock = new StripedPatientLock();
+
+        // each thread "creates" a record for every patient, but only if no other thread has yet; if the locking
+        // works, each patient ends up with exactly one record, no matter how the threads interleave
+        final int[] recordsCreated = new int[NUM_PATIENTS];
+        final boolean[] recordExists = new boolean[NUM_PATIENTS];
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < NUM_THREADS; ++i) {
+            final int offset = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < NUM_PATIENTS; j++) {
+                        // start each thread at a different patient, so that threads contend on different stripes
+                        int patientId = (j + offset * 397) % NUM_PATIENTS;
+                        Lock lock = stripedPatientLock.getLock(patientId);
+                        lock.lock();
+                        try {
+                            if (!recordExists[patientId]) {
+                                Thread.yield();
+                                recordsCreated[patientId] = recordsCreated[patientId] + 1;
+                                recordExists[patientId] = true;
+                            }
+                        }
+                        finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int patientId = 0; patientId < NUM_PATIENTS; patientId++) {
+            assertThat(recordsCreated[patientId], is(1));
+        }
+    }
+
+}
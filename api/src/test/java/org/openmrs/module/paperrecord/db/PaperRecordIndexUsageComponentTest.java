@@ -0,0 +1,210 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.paperrecord.db;
+
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.connection.ConnectionProvider;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.hql.QueryTranslator;
+import org.hibernate.hql.ast.ASTQueryTranslatorFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.InputStream;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Verifies that the queries issued by the Hibernate*DAO classes are served by the indexes we add in liquibase.xml
+ * <p/>
+ * The test database is built from the hibernate mappings, not by liquibase, so the first test creates the (paper record)
+ * indexes defined in liquibase.xml on the test database itself, before the paper record test data is loaded (the paper
+ * record tables are empty until then, so there is nothing the DDL can commit); each test then has Hibernate translate one
+ * of the DAO queries to SQL and runs EXPLAIN against it, to make sure that no table is accessed via a table scan
+ */
+public class PaperRecordIndexUsageComponentTest extends BaseModuleContextSensitiveTest {
+
+    private static boolean indexesCreated = false;
+
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    @Before
+    public void beforeAllTests() throws Exception {
+        if (!indexesCreated) {
+            createIndexesFromLiquibaseChangeLog();
+            indexesCreated = true;
+        }
+        executeDataSet("paperRecordTestDataset.xml");
+    }
+
+    @Test
+    public void queueQueryShouldUseIndexes() throws Exception {
+        assertNoTableScan(HibernatePaperRecordRequestDAO.queueHql(HibernatePaperRecordRequestDAO.QUEUE_SELECT, null,
+                true, true, true));
+    }
+
+    @Test
+    public void queueRowsQueryShouldUseIndexes() throws Exception {
+        assertNoTableScan(HibernatePaperRecordRequestDAO.queueHql(HibernatePaperRecordRequestDAO.QUEUE_ROWS_SELECT,
+                HibernatePaperRecordRequestDAO.QUEUE_ROWS_NAME_CRITERIA, true, false, true));
+    }
+
+    @Test
+    public void requestsForPaperRecordQueryShouldUseIndexes() throws Exception {
+        assertNoTableScan(namedQuery("paperrecord.findPaperRecordRequestsByPaperRecord"));
+    }
+
+    @Test
+    public void mostRecentRequestsQueryShouldUseIndexes() throws Exception {
+        assertNoTableScan(namedQuery("paperrecord.findMostRecentPaperRecordRequests"));
+    }
+
+    @Test
+    public void requestsForPatientQueryShouldUseIndexes() throws Exception {
+        assertNoTableScan(namedQuery("paperrecord.findPaperRecordRequestsByPatient"));
+    }
+
+    @Test
+    public void paperRecordsForPatientQueryShouldUseIndexes() throws Exception {
+        assertNoTableScan(namedQuery("paperrecord.findPaperRecordsByPatient"));
+    }
+
+    @Test
+    public void paperRecordForIdentifierQueryShouldUseIndexes() throws Exception {
+        assertNoTableScan(namedQuery("paperrecord.findPaperRecordByPatientIdentifier"));
+    }
+
+    @Test
+    public void mergeRequestQueryShouldUseIndexes() throws Exception {
+        assertNoTableScan(namedQuery("paperrecord.findPaperRecordMergeRequestsAllLocations"));
+    }
+
+    private String namedQuery(String queryName) {
+        return sessionFactory.getCurrentSession().getNamedQuery(queryName).getQueryString();
+    }
+
+    private void assertNoTableScan(String hql) throws Exception {
+        String sql = toSql(hql);
+        String plan = explain(sql);
+        assertThat(sql + " => " + plan, plan, not(containsString("tableScan")));
+    }
+
+    private String toSql(String hql) {
+        QueryTranslator translator = new ASTQueryTranslatorFactory().createQueryTranslator(hql, hql, Collections.EMPTY_MAP,
+                (SessionFactoryImplementor) sessionFactory);
+        translator.compile(Collections.EMPTY_MAP, false);
+        return translator.getSQLString();
+    }
+
+    private String explain(String sql) throws Exception {
+
+        // H2 plans a statement when it is prepared, so the values bound don't change the plan; they just have to be set
+        PreparedStatement explain = getConnection().prepareStatement("EXPLAIN " + sql);
+        try {
+            for (int i = 1; i <= explain.getParameterMetaData().getParameterCount(); i++) {
+                explain.setObject(i, null);
+            }
+
+            ResultSet resultSet = explain.executeQuery();
+            assertThat(resultSet.next(), is(true));
+            return resultSet.getString(1);
+        }
+        finally {
+            explain.close();
+        }
+    }
+
+    private void createIndexesFromLiquibaseChangeLog() throws Exception {
+
+        List<String> createIndexStatements = new ArrayList<String>();
+
+        // other modules on the classpath have their own liquibase.xml, so we look at all of them and just pick out the paper record tables
+        Enumeration<URL> changeLogs = getClass().getClassLoader().getResources("liquibase.xml");
+
+        while (changeLogs.hasMoreElements()) {
+            InputStream in = changeLogs.nextElement().openStream();
+            try {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setValidating(false);
+                factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+                Document changeLog = factory.newDocumentBuilder().parse(in);
+
+                NodeList createIndexElements = changeLog.getElementsByTagName("createIndex");
+                for (int i = 0; i < createIndexElements.getLength(); i++) {
+                    Element createIndex = (Element) createIndexElements.item(i);
+
+                    if (createIndex.getAttribute("tableName").startsWith("paperrecord_")) {
+                        List<String> columns = new ArrayList<String>();
+                        NodeList columnElements = createIndex.getElementsByTagName("column");
+                        for (int j = 0; j < columnElements.getLength(); j++) {
+                            columns.add(((Element) columnElements.item(j)).getAttribute("name"));
+                        }
+
+                        createIndexStatements.add("CREATE " + ("true".equals(createIndex.getAttribute("unique")) ? "UNIQUE " : "")
+                                + "INDEX IF NOT EXISTS " + createIndex.getAttribute("indexName") + " ON "
+                                + createIndex.getAttribute("tableName") + " (" + StringUtils.join(columns, ", ") + ")");
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        assertThat(createIndexStatements.isEmpty(), is(false));
+
+        // DDL commits the transaction it runs in, so this runs on a connection of its own rather than the test's one
+        ConnectionProvider connectionProvider = ((SessionFactoryImplementor) sessionFactory).getConnectionProvider();
+        Connection connection = connectionProvider.getConnection();
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                for (String createIndexStatement : createIndexStatements) {
+                    statement.execute(createIndexStatement);
+                }
+            }
+            finally {
+                statement.close();
+            }
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+        }
+        finally {
+            connectionProvider.closeConnection(connection);
+        }
+    }
+
+}
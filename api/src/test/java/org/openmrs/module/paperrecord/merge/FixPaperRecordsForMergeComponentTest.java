@@ -1,5 +1,6 @@
 package org.openmrs.module.paperrecord.merge;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Location;
@@ -50,6 +51,9 @@ public class FixPaperRecordsForMergeComponentTest extends BaseModuleContextSensi
     public void before() throws Exception {
         executeDataSet("retrospectiveCheckinComponentTestDataset.xml");
 
+        // this uses a different dataset than the other tests, so don't use (or leave behind) a snapshot of theirs
+        paperRecordProperties.clearCache();
+
         // stub out the identifier service
         mockIdentifierSourceService = mock(IdentifierSourceService.class);
         paperRecordService.setIdentifierSourceService(mockIdentifierSourceService);
@@ -62,6 +66,11 @@ public class FixPaperRecordsForMergeComponentTest extends BaseModuleContextSensi
         new PaperRecordActivator().started();
     }
 
+    @After
+    public void after() {
+        paperRecordProperties.clearCache();
+    }
+
 
     @Test
     public void shouldCancelPendingPaperRecordRequestsAfterMerge() {
@@ -0,0 +1,144 @@
+package org.openmrs.module.paperrecord.template;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.PersonAddress;
+import org.openmrs.layout.web.address.AddressTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AddressLayoutTest {
+
+    private static final String LAYOUT_TOKEN = "<!-- addressToken -->";
+
+    private AddressTemplate layoutTemplate;
+
+    private AddressLayout addressLayout;
+
+    private PersonAddress address;
+
+    @Before
+    public void setup() {
+
+        List<List<Map<String, String>>> lines = new ArrayList<List<Map<String, String>>>();
+        lines.add(Arrays.asList(createToken("address2"), createToken("address1")));
+        lines.add(Arrays.asList(createLabel("Commune:"), createToken("cityVillage")));
+        lines.add(Arrays.asList(createToken("postalCode")));
+        lines.add(Arrays.asList(createToken("stateProvince"), createToken("country"), createToken("noSuchProperty")));
+
+        layoutTemplate = mock(AddressTemplate.class);
+        when(layoutTemplate.getLines()).thenReturn(lines);
+        when(layoutTemplate.getLayoutToken()).thenReturn(LAYOUT_TOKEN);
+
+        addressLayout = new AddressLayout() {
+            @Override
+            protected AddressTemplate getLayoutTemplate() {
+                return layoutTemplate;
+            }
+        };
+
+        address = new PersonAddress();
+        address.setAddress1("Cange");
+        address.setAddress2("2eme rue");
+        address.setCityVillage("Lascahobas");
+        address.setStateProvince("  ");
+        address.setCountry("Haiti");
+    }
+
+    @Test
+    public void shouldLayOutNonBlankPropertiesAndSkipBlankLines() {
+        assertThat(addressLayout.getLines(address), is(Arrays.asList("2eme rue, Cange", "Lascahobas", "Haiti")));
+    }
+
+    @Test
+    public void shouldOnlyCompileLayoutOnce() {
+
+        addressLayout.getLines(address);
+        addressLayout.getLines(address);
+
+        verify(layoutTemplate, times(1)).getLines();
+    }
+
+    @Test
+    public void shouldCompileLayoutAgainWhenAddressLayoutChanges() {
+
+        addressLayout.getLines(address);
+
+        List<List<Map<String, String>>> lines = new ArrayList<List<Map<String, String>>>();
+        lines.add(Arrays.asList(createToken("country")));
+        when(layoutTemplate.getLines()).thenReturn(lines);
+
+        addressLayout.globalPropertyDeleted("layout.address.format");
+        assertThat(addressLayout.getLines(address), is(Arrays.asList("Haiti")));
+    }
+
+    @Test
+    public void shouldNotKeepLayoutCompiledWhileAddressLayoutChanged() {
+
+        addressLayout = new AddressLayout() {
+
+            private boolean first = true;
+
+            @Override
+            protected AddressTemplate getLayoutTemplate() {
+                // the address layout changes while the first compile is under way
+                if (first) {
+                    first = false;
+                    globalPropertyDeleted("layout.address.format");
+                }
+                return layoutTemplate;
+            }
+        };
+
+        addressLayout.getLines(address);
+        addressLayout.getLines(address);
+        addressLayout.getLines(address);
+
+        verify(layoutTemplate, times(2)).getLines();
+    }
+
+    @Test
+    public void shouldLayOutAddressPropertiesWithoutDedicatedGetter() {
+
+        List<List<Map<String, String>>> lines = new ArrayList<List<Map<String, String>>>();
+        lines.add(Arrays.asList(createToken("cityVillage"), createToken("personAddressId")));
+        when(layoutTemplate.getLines()).thenReturn(lines);
+
+        address.setPersonAddressId(12);
+
+        assertThat(addressLayout.getLines(address), is(Arrays.asList("Lascahobas, 12")));
+    }
+
+    @Test
+    public void shouldReturnNoLinesIfLayoutNotConfigured() {
+        when(layoutTemplate.getLines()).thenReturn(null);
+        assertTrue(addressLayout.getLines(address).isEmpty());
+    }
+
+    private Map<String, String> createToken(String codeName) {
+        Map<String, String> token = new HashMap<String, String>();
+        token.put("isToken", LAYOUT_TOKEN);
+        token.put("codeName", codeName);
+        return token;
+    }
+
+    private Map<String, String> createLabel(String displayText) {
+        Map<String, String> label = new HashMap<String, String>();
+        label.put("isToken", "false");
+        label.put("displayText", displayText);
+        return label;
+    }
+
+}
@@ -11,7 +11,6 @@ import org.openmrs.PatientIdentifierType;
 import org.openmrs.PersonName;
 import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.appframework.feature.FeatureToggleProperties;
-import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.paperrecord.PaperRecordProperties;
 import org.openmrs.module.printer.Printer;
 import org.openmrs.module.printer.PrinterServiceImpl;
@@ -40,10 +39,8 @@ public class DefaultZplIdCardLabelTemplateTest {
         paperRecordIdentifierType.setUuid("097fbd00-81e0-11e2-9e96-0800200c9a66");
 
 
-        EmrApiProperties emrApiProperties = mock(EmrApiProperties.class);
-        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(primaryIdentifierType);
-
         PaperRecordProperties paperRecordProperties = mock(PaperRecordProperties.class);
+        when(paperRecordProperties.getPrimaryIdentifierType()).thenReturn(primaryIdentifierType);
         when(paperRecordProperties.getPaperRecordIdentifierType()).thenReturn(paperRecordIdentifierType);
 
         externalDossierIdentifierType = new PatientIdentifierType();
@@ -57,7 +54,6 @@ public class DefaultZplIdCardLabelTemplateTest {
         when(messageSourceService.getMessage("emr.archivesRoom.recordNumber.label")).thenReturn("Dossier ID");
 
         template = new DefaultZplIdCardLabelTemplate();
-        template.setEmrApiProperties(emrApiProperties);
         template.setPaperRecordProperties(paperRecordProperties);
         template.setMessageSourceService(messageSourceService);
         template.setFeatureToggles(featureToggles);
@@ -135,6 +131,39 @@ public class DefaultZplIdCardLabelTemplateTest {
 
     }
 
+    @Test
+    public void testGenerateStoredFormatLabelShouldOnlySendFieldsOfLabel() {
+
+        Patient patient = new Patient();
+
+        PatientIdentifier primaryIdentifier = new PatientIdentifier();
+        primaryIdentifier.setIdentifierType(primaryIdentifierType);
+        primaryIdentifier.setIdentifier("2F1406");
+        patient.addIdentifier(primaryIdentifier);
+
+        PatientIdentifier paperRecordIdentifier1 = new PatientIdentifier();
+        paperRecordIdentifier1.setIdentifierType(paperRecordIdentifierType);
+        paperRecordIdentifier1.setIdentifier("A002300");
+        Location location1 = new Location(1);
+        location1.setName("Mirebalais");
+        paperRecordIdentifier1.setLocation(location1);
+        patient.addIdentifier(paperRecordIdentifier1);
+
+        PersonName name = new PersonName();
+        name.setFamilyName("Jazayeri");
+        name.setGivenName("Ellen");
+        patient.addName(name);
+
+        String formatName = template.getStoredFormatName();
+        Assert.assertTrue(formatName.matches("R:ID[0-9A-F]{6}\\.ZPL"));
+        Assert.assertTrue(template.getStoredFormat().startsWith("^XA^IDR:ID*.ZPL^FS^XZ^XA^DF" + formatName + "^FS^CI28^PW1300^MTT"));
+
+        String data = template.generateStoredFormatLabel(patient, null);
+
+        Assert.assertEquals("^XA^CI28^XF" + formatName + "^FS^FN1^FDJazayeri, Ellen^FS^FN2^FD2F1406^FS^FN3^FDA 002300^FS"
+                + "^FN10^FDMirebalais Dossier ID^FS^XZ", data);
+    }
+
 
     // the following test requires that the label printer actually be online and available
     // (and that the ip address and port are set properly)
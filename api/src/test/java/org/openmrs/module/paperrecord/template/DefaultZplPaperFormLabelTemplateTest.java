@@ -13,7 +13,7 @@ import org.openmrs.PersonName;
 import org.openmrs.api.context.Context;
 import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.appframework.feature.FeatureToggleProperties;
-import org.openmrs.module.emrapi.EmrApiProperties;
+import org.openmrs.module.paperrecord.PaperRecordProperties;
 import org.openmrs.module.printer.Printer;
 import org.openmrs.module.printer.PrinterServiceImpl;
 import org.openmrs.module.printer.UnableToPrintViaSocketException;
@@ -49,14 +49,14 @@ public class DefaultZplPaperFormLabelTemplateTest {
         FeatureToggleProperties featureToggleProperties = mock(FeatureToggleProperties.class);
         when(featureToggleProperties.isFeatureEnabled("cdi")).thenReturn(true);
 
-        EmrApiProperties emrApiProperties = mock(EmrApiProperties.class);
+        PaperRecordProperties paperRecordProperties = mock(PaperRecordProperties.class);
         primaryIdentifierType = new PatientIdentifierType();
         primaryIdentifierType.setUuid("e0987dc0-460f-11e2-bcfd-0800200c9a66");
-        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(primaryIdentifierType);
+        when(paperRecordProperties.getPrimaryIdentifierType()).thenReturn(primaryIdentifierType);
 
         template = new DefaultZplPaperFormLabelTemplate();
         template.setMessageSourceService(messageSourceService);
-        template.setEmrApiProperties(emrApiProperties);
+        template.setPaperRecordProperties(paperRecordProperties);
         template.setFeatureToggles(featureToggleProperties);
 
     }
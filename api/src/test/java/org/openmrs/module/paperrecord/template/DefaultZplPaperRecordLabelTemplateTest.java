@@ -27,13 +27,14 @@ import org.openmrs.PersonName;
 import org.openmrs.api.context.Context;
 import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.appframework.feature.FeatureToggleProperties;
-import org.openmrs.module.emrapi.EmrApiProperties;
+import org.openmrs.module.paperrecord.PaperRecordProperties;
 import org.openmrs.module.printer.Printer;
 import org.openmrs.module.printer.PrinterServiceImpl;
 import org.openmrs.module.printer.UnableToPrintViaSocketException;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Locale;
 
@@ -62,17 +63,17 @@ public class DefaultZplPaperRecordLabelTemplateTest {
         when(messageSourceService.getMessage("coreapps.gender.M")).thenReturn("Male");
         when(messageSourceService.getMessage("coreapps.gender.F")).thenReturn("Female");
 
-        EmrApiProperties emrApiProperties = mock(EmrApiProperties.class);
+        PaperRecordProperties paperRecordProperties = mock(PaperRecordProperties.class);
         primaryIdentifierType = new PatientIdentifierType();
         primaryIdentifierType.setUuid("e0987dc0-460f-11e2-bcfd-0800200c9a66");
-        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(primaryIdentifierType);
+        when(paperRecordProperties.getPrimaryIdentifierType()).thenReturn(primaryIdentifierType);
 
         FeatureToggleProperties featureToggleProperties = mock(FeatureToggleProperties.class);
         when(featureToggleProperties.isFeatureEnabled("cdi")).thenReturn(true);
 
         template = new DefaultZplPaperRecordLabelTemplate();
         template.setMessageSourceService(messageSourceService);
-        template.setEmrApiProperties(emrApiProperties);
+        template.setPaperRecordProperties(paperRecordProperties);
         template.setFeatureToggles(featureToggleProperties);
     }
 
@@ -150,6 +151,42 @@ public class DefaultZplPaperRecordLabelTemplateTest {
 
     }
 
+    @Test
+    public void testGenerateStoredFormatLabelShouldOnlySendFieldsOfLabel() {
+
+        Patient patient = new Patient();
+        patient.setGender("F");
+
+        Calendar cal = Calendar.getInstance();
+        cal.set(2010, 11, 2);
+        patient.setBirthdate(cal.getTime());
+
+        PatientIdentifier primaryIdentifier = new PatientIdentifier();
+        primaryIdentifier.setIdentifierType(primaryIdentifierType);
+        primaryIdentifier.setIdentifier("ABC");
+        patient.addIdentifier(primaryIdentifier);
+
+        PersonName name = new PersonName();
+        name.setFamilyName("Jones");
+        name.setGivenName("Indiana");
+        patient.addName(name);
+
+        PersonAddress address = new PersonAddress();
+        patient.addAddress(address);
+
+        AddressLayout addressLayout = mock(AddressLayout.class);
+        when(addressLayout.getLines(address)).thenReturn(Arrays.asList("Cange", "Mirebalais"));
+        template.setAddressLayout(addressLayout);
+
+        String formatName = template.getStoredFormatName();
+        Assert.assertTrue(formatName.matches("R:PR[0-9A-F]{6}\\.ZPL"));
+        Assert.assertTrue(template.getStoredFormat().startsWith("^XA^IDR:PR*.ZPL^FS^XZ^XA^DF" + formatName + "^FS^CI28^PW1300^MTT"));
+
+        String data = template.generateStoredFormatLabel(patient, "A000123");
+        assertThat(data, is("^XA^CI28^XF" + formatName + "^FS^FN1^FDJones, Indiana^FS^FN3^FDABC^FS^FN4^FD02/Dec/2010, Female^FS"
+                + "^FN5^FDCange^FS^FN6^FDMirebalais^FS^FN11^FDA 000 123^FS^FN12^FDABC^FS^XZ"));
+    }
+
     // the following test requires that the label printer actually be online and available
     // (and that the ip address and port are set properly)
 
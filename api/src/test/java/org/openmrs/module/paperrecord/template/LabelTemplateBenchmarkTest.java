@@ -0,0 +1,155 @@
+package org.openmrs.module.paperrecord.template;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
+import org.openmrs.messagesource.MessageSourceService;
+import org.openmrs.module.appframework.feature.FeatureToggleProperties;
+import org.openmrs.module.paperrecord.PaperRecordProperties;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Calendar;
+import java.util.Locale;
+
+import static org.mockito.Matchers.anyString;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+/**
+ * Measures the time taken, and the memory allocated, to render each of the default labels
+ * <p/>
+ * This is skipped as part of the normal build; to run it:
+ * mvn test -Dtest=LabelTemplateBenchmarkTest -Dpaperrecord.benchmark=true [-Dpaperrecord.benchmark.labels=100000]
+ * <p/>
+ * This only uses the LabelTemplate interface, so the same test can be run against earlier versions of the templates to
+ * compare. Allocations are measured with com.sun.management.ThreadMXBean, so are only reported on JVMs that support it;
+ * note that the mocks (and PowerMock's instrumentation) add some overhead of their own to each label
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({Context.class})
+@PowerMockIgnore({"com.sun.management.*", "javax.management.*"})
+public class LabelTemplateBenchmarkTest {
+
+    private static final int DEFAULT_NUMBER_OF_LABELS = 20000;
+
+    private static final int WARM_UP_LABELS = 5000;
+
+    private int numberOfLabels;
+
+    private Patient patient;
+
+    private PaperRecordProperties paperRecordProperties;
+
+    private MessageSourceService messageSourceService;
+
+    private FeatureToggleProperties featureToggles;
+
+    @Before
+    public void setup() {
+
+        Assume.assumeTrue(Boolean.getBoolean("paperrecord.benchmark"));
+
+        numberOfLabels = Integer.getInteger("paperrecord.benchmark.labels", DEFAULT_NUMBER_OF_LABELS);
+
+        mockStatic(Context.class);
+        when(Context.getLocale()).thenReturn(new Locale("en"));
+
+        messageSourceService = mock(MessageSourceService.class);
+        when(messageSourceService.getMessage(anyString())).thenReturn("Dossier ID");
+
+        featureToggles = mock(FeatureToggleProperties.class);
+        when(featureToggles.isFeatureEnabled("cdi")).thenReturn(true);
+
+        PatientIdentifierType primaryIdentifierType = new PatientIdentifierType(1);
+        PatientIdentifierType paperRecordIdentifierType = new PatientIdentifierType(2);
+        PatientIdentifierType externalDossierIdentifierType = new PatientIdentifierType(3);
+
+        paperRecordProperties = mock(PaperRecordProperties.class);
+        when(paperRecordProperties.getPrimaryIdentifierType()).thenReturn(primaryIdentifierType);
+        when(paperRecordProperties.getPaperRecordIdentifierType()).thenReturn(paperRecordIdentifierType);
+        when(paperRecordProperties.getExternalDossierIdentifierType()).thenReturn(externalDossierIdentifierType);
+
+        patient = new Patient();
+        patient.setGender("F");
+        Calendar cal = Calendar.getInstance();
+        cal.set(1980, 5, 12);
+        patient.setBirthdate(cal.getTime());
+        patient.setBirthdateEstimated(false);
+        patient.addName(new PersonName("Indiana", null, "Jones"));
+
+        Location location = new Location(1);
+        location.setName("Mirebalais");
+
+        patient.addIdentifier(new PatientIdentifier("2F1406", primaryIdentifierType, location));
+        patient.addIdentifier(new PatientIdentifier("A000123", paperRecordIdentifierType, location));
+        patient.addIdentifier(new PatientIdentifier("A000456", paperRecordIdentifierType, location));
+    }
+
+    @Test
+    public void measureLabelRendering() {
+
+        DefaultZplPaperRecordLabelTemplate paperRecordLabelTemplate = new DefaultZplPaperRecordLabelTemplate();
+        paperRecordLabelTemplate.setPaperRecordProperties(paperRecordProperties);
+        paperRecordLabelTemplate.setMessageSourceService(messageSourceService);
+        paperRecordLabelTemplate.setFeatureToggles(featureToggles);
+        measure("paper record label", paperRecordLabelTemplate);
+
+        DefaultZplPaperFormLabelTemplate paperFormLabelTemplate = new DefaultZplPaperFormLabelTemplate();
+        paperFormLabelTemplate.setPaperRecordProperties(paperRecordProperties);
+        paperFormLabelTemplate.setMessageSourceService(messageSourceService);
+        paperFormLabelTemplate.setFeatureToggles(featureToggles);
+        measure("paper form label", paperFormLabelTemplate);
+
+        DefaultZplIdCardLabelTemplate idCardLabelTemplate = new DefaultZplIdCardLabelTemplate();
+        idCardLabelTemplate.setPaperRecordProperties(paperRecordProperties);
+        idCardLabelTemplate.setMessageSourceService(messageSourceService);
+        idCardLabelTemplate.setFeatureToggles(featureToggles);
+        measure("ID card label", idCardLabelTemplate);
+    }
+
+    private void measure(String description, LabelTemplate template) {
+
+        long length = 0;
+        for (int i = 0; i < WARM_UP_LABELS; i++) {
+            length += template.generateLabel(patient, "A000123").length();
+        }
+
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < numberOfLabels; i++) {
+            length += template.generateLabel(patient, "A000123").length();
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = getAllocatedBytes() - allocatedBefore;
+
+        System.out.println(String.format("%-20s %d labels in %d ms (%.0f ns/label)%s", description, numberOfLabels,
+                nanos / 1000000, (double) nanos / numberOfLabels,
+                allocatedBefore >= 0 ? String.format(", %d bytes allocated/label", allocated / numberOfLabels) : ""));
+
+        // (just so that the rendering can't be optimized away)
+        if (length == 0) {
+            throw new IllegalStateException("No labels rendered");
+        }
+    }
+
+    private long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+}
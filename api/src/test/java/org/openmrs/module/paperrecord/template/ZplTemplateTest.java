@@ -0,0 +1,95 @@
+package org.openmrs.module.paperrecord.template;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ZplTemplateTest {
+
+    @Test
+    public void shouldRenderLiteralsAndPlaceholders() {
+
+        ZplTemplate template = ZplTemplate.compile("^XA^FO${x},40^FD${name}^FS^FO${x},90^FD${name}^FS^XZ");
+        assertThat(template.getPlaceholders(), is(Arrays.asList("x", "name")));
+
+        CharSequence[] values = template.newValues();
+        values[template.getSlot("x")] = "100";
+        values[template.getSlot("name")] = new StringBuilder("Jones, Indiana");
+
+        String label = template.render(values);
+        assertThat(label, is("^XA^FO100,40^FDJones, Indiana^FS^FO100,90^FDJones, Indiana^FS^XZ"));
+        assertThat(template.getLength(values), is(label.length()));
+    }
+
+    @Test
+    public void shouldRenderNullValuesAsNothing() {
+
+        ZplTemplate template = ZplTemplate.compile("${field}^FO100,40^FDABC^FS${field}");
+        assertThat(template.render(template.newValues()), is("^FO100,40^FDABC^FS"));
+    }
+
+    @Test
+    public void shouldRenderTemplateWithoutPlaceholders() {
+
+        ZplTemplate template = ZplTemplate.compile("^XA^XZ");
+        assertThat(template.render(template.newValues()), is("^XA^XZ"));
+    }
+
+    @Test
+    public void shouldRenderOntoEndOfBuffer() {
+
+        ZplTemplate template = ZplTemplate.compile("^FD${line}^FS");
+        CharSequence[] values = template.newValues();
+        StringBuilder out = new StringBuilder("^XA");
+
+        values[0] = "one";
+        template.render(out, values);
+        values[0] = "two";
+        template.render(out, values);
+
+        assertThat(out.toString(), is("^XA^FDone^FS^FDtwo^FS"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailOnUnterminatedPlaceholder() {
+        ZplTemplate.compile("^FD${name^FS");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailOnPlaceholderWithoutName() {
+        ZplTemplate.compile("^FD${}^FS");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailOnUnknownPlaceholder() {
+        ZplTemplate.compile("^FD${name}^FS").getSlot("identifier");
+    }
+
+    @Test
+    public void shouldLoadAllTemplatesInResource() {
+
+        Map<String, ZplTemplate> templates = ZplTemplate.load("paperRecordLabel.zpl");
+        assertThat(templates.keySet().toString(), is("[label, addressLine, paperRecordIdentifier, storedFormat, storedFormatLabel, storedFormatField]"));
+
+        ZplTemplate addressLine = ZplTemplate.get(templates, "addressLine");
+        CharSequence[] values = addressLine.newValues();
+        values[addressLine.getSlot("verticalPosition")] = "250";
+        values[addressLine.getSlot("line")] = "Cange, Mirebalais";
+        assertThat(addressLine.render(values), is("^FO080,250^ATN^FDCange, Mirebalais^FS"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailOnMissingResource() {
+        ZplTemplate.load("noSuchLabel.zpl");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailOnMissingTemplate() {
+        ZplTemplate.get(ZplTemplate.load("idCardLabel.zpl"), "addressLine");
+    }
+
+}
@@ -1,14 +1,15 @@
 package org.openmrs.module.paperrecord.fragment.controller;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Person;
 import org.openmrs.module.appui.UiSessionContext;
-import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.patient.PatientDomainWrapper;
-import org.openmrs.module.paperrecord.PaperRecord;
 import org.openmrs.module.paperrecord.PaperRecordMergeRequest;
 import org.openmrs.module.paperrecord.PaperRecordRequest;
+import org.openmrs.module.paperrecord.PaperRecordRequestPageToken;
+import org.openmrs.module.paperrecord.PaperRecordRequestQueueRow;
 import org.openmrs.module.paperrecord.PaperRecordService;
 import org.openmrs.module.paperrecord.UnableToPrintLabelException;
 import org.openmrs.ui.framework.SimpleObject;
@@ -22,7 +23,9 @@ import org.springframework.web.bind.annotation.RequestParam;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public class ArchivesRoomFragmentController {
 
@@ -37,34 +40,20 @@ public class ArchivesRoomFragmentController {
 
     private DateFormat dateAndTimeFormat = new SimpleDateFormat("dd/MM HH:mm");
 
-    public List<SimpleObject> getOpenRecordsToPull(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
-                                                   @SpringBean("emrApiProperties") EmrApiProperties emrApiProperties,
-                                                   UiSessionContext uiSessionContext,
-                                                   UiUtils ui) {
-
-        List<PaperRecordRequest> requests = paperRecordService.getOpenPaperRecordRequestsToPull(uiSessionContext.getSessionLocation());
-        List<SimpleObject> results = new ArrayList<SimpleObject>();
-
-        if (requests != null && requests.size() > 0) {
-            results = convertPaperRecordRequestsToSimpleObjects(requests, paperRecordService, emrApiProperties, ui);
-        }
-
-        return results;
+    public Object getOpenRecordsToPull(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
+                                       @RequestParam(value = "pageToken", required = false) String pageToken,
+                                       @RequestParam(value = "pageSize", required = false) Integer pageSize,
+                                       UiSessionContext uiSessionContext,
+                                       UiUtils ui) {
+        return getQueue(paperRecordService, PaperRecordRequest.Status.OPEN, false, pageToken, pageSize, uiSessionContext, ui);
     }
 
-    public List<SimpleObject> getOpenRecordsToCreate(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
-                                                     @SpringBean("emrApiProperties") EmrApiProperties emrApiProperties,
-                                                     UiSessionContext uiSessionContext,
-                                                     UiUtils ui) {
-
-        List<PaperRecordRequest> requests = paperRecordService.getOpenPaperRecordRequestsToCreate(uiSessionContext.getSessionLocation());
-        List<SimpleObject> results = new ArrayList<SimpleObject>();
-
-        if (requests != null && requests.size() > 0) {
-            results = convertPaperRecordRequestsToSimpleObjects(requests, paperRecordService, emrApiProperties, ui);
-        }
-
-        return results;
+    public Object getOpenRecordsToCreate(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
+                                         @RequestParam(value = "pageToken", required = false) String pageToken,
+                                         @RequestParam(value = "pageSize", required = false) Integer pageSize,
+                                         UiSessionContext uiSessionContext,
+                                         UiUtils ui) {
+        return getQueue(paperRecordService, PaperRecordRequest.Status.OPEN, true, pageToken, pageSize, uiSessionContext, ui);
     }
 
     public List<SimpleObject> getOpenRecordsToMerge(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
@@ -81,32 +70,59 @@ public class ArchivesRoomFragmentController {
         return results;
     }
 
-    public List<SimpleObject> getAssignedRecordsToPull(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
-                                                       @SpringBean("emrApiProperties") EmrApiProperties emrApiProperties,
-                                                       UiSessionContext uiSessionContext,
-                                                       UiUtils ui) {
+    public Object getAssignedRecordsToPull(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
+                                           @RequestParam(value = "pageToken", required = false) String pageToken,
+                                           @RequestParam(value = "pageSize", required = false) Integer pageSize,
+                                           UiSessionContext uiSessionContext,
+                                           UiUtils ui) {
+        return getQueue(paperRecordService, PaperRecordRequest.Status.ASSIGNED, false, pageToken, pageSize, uiSessionContext, ui);
+    }
+
+    public Object getAssignedRecordsToCreate(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
+                                             @RequestParam(value = "pageToken", required = false) String pageToken,
+                                             @RequestParam(value = "pageSize", required = false) Integer pageSize,
+                                             UiSessionContext uiSessionContext,
+                                             UiUtils ui) {
+        return getQueue(paperRecordService, PaperRecordRequest.Status.ASSIGNED, true, pageToken, pageSize, uiSessionContext, ui);
+    }
+
+    // the page size is defaulted and capped by the service; a malformed page token (which can only come from a
+    // client) is reported as a failure rather than an error
+    private Object getQueue(PaperRecordService paperRecordService, PaperRecordRequest.Status status, boolean pendingCreation,
+                            String pageToken, Integer pageSize, UiSessionContext uiSessionContext, UiUtils ui) {
+
+        PaperRecordRequestPageToken parsedPageToken;
+        try {
+            parsedPageToken = PaperRecordRequestPageToken.parse(pageToken);
+        }
+        catch (IllegalArgumentException ex) {
+            log.warn("Invalid page token requested: " + pageToken);
+            return new FailureResult(ui.message("paperrecord.archivesRoom.error.invalidPageToken"));
+        }
+
+        List<PaperRecordRequestQueueRow> rows = paperRecordService.getPaperRecordRequestQueue(Collections.singletonList(status),
+                uiSessionContext.getSessionLocation(), pendingCreation, parsedPageToken, pageSize);
 
-        List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToPull(uiSessionContext.getSessionLocation());
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
-        if (requests != null && requests.size() > 0) {
-            results = convertPaperRecordRequestsToSimpleObjects(requests, paperRecordService, emrApiProperties, ui);
+        if (rows != null && rows.size() > 0) {
+            results = convertPaperRecordRequestQueueRowsToSimpleObjects(rows, ui);
         }
 
         return results;
     }
 
-    public List<SimpleObject> getAssignedRecordsToCreate(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
-                                                         @SpringBean("emrApiProperties") EmrApiProperties emrApiProperties,
-                                                         UiSessionContext uiSessionContext,
-                                                         UiUtils ui) {
+    public SimpleObject getQueueCounts(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
+                                       UiSessionContext uiSessionContext) {
 
-        List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToCreate(uiSessionContext.getSessionLocation());
-        List<SimpleObject> results = new ArrayList<SimpleObject>();
+        List<PaperRecordRequest.Status> open = Collections.singletonList(PaperRecordRequest.Status.OPEN);
+        List<PaperRecordRequest.Status> assigned = Collections.singletonList(PaperRecordRequest.Status.ASSIGNED);
 
-        if (requests != null && requests.size() > 0) {
-            results = convertPaperRecordRequestsToSimpleObjects(requests, paperRecordService, emrApiProperties, ui);
-        }
+        SimpleObject results = new SimpleObject();
+        results.put("openToPull", paperRecordService.countPaperRecordRequests(open, uiSessionContext.getSessionLocation(), false));
+        results.put("openToCreate", paperRecordService.countPaperRecordRequests(open, uiSessionContext.getSessionLocation(), true));
+        results.put("assignedToPull", paperRecordService.countPaperRecordRequests(assigned, uiSessionContext.getSessionLocation(), false));
+        results.put("assignedToCreate", paperRecordService.countPaperRecordRequests(assigned, uiSessionContext.getSessionLocation(), true));
 
         return results;
     }
@@ -118,13 +134,8 @@ public class ArchivesRoomFragmentController {
         Person assignTo = sessionContext.getCurrentUser().getPerson();
 
         try {
-            paperRecordService.assignRequests(requests, assignTo, sessionContext.getSessionLocation());
-            return new SuccessResult(ui.message("paperrecord.archivesRoom.pullRequests.message"));
-        }
-        catch (UnableToPrintLabelException ex) {
-            log.warn("Unable to assign pull requests: User " + sessionContext.getCurrentUser()
-                    + " unable to print paper record label at location " + sessionContext.getSessionLocation(), ex);
-            return new FailureResult(ui.message("paperrecord.archivesRoom.error.unableToPrintLabel"));
+            Map<String, List<String>> response = paperRecordService.assignRequests(requests, assignTo, sessionContext.getSessionLocation());
+            return assignmentResult(response, "paperrecord.archivesRoom.pullRequests.message", ui);
         }
         catch (IllegalStateException ex) {
             log.error("Unable to assign pull requests", ex);
@@ -140,13 +151,8 @@ public class ArchivesRoomFragmentController {
         Person assignTo = sessionContext.getCurrentUser().getPerson();
 
         try {
-            paperRecordService.assignRequests(requests, assignTo, sessionContext.getSessionLocation());
-            return new SuccessResult(ui.message("paperrecord.archivesRoom.createRequests.message"));
-        }
-        catch (UnableToPrintLabelException ex) {
-            log.warn("Unable to assign create requests: User " + sessionContext.getCurrentUser()
-                    + " unable to print paper record label at location " + sessionContext.getSessionLocation(), ex);
-            return new FailureResult(ui.message("paperrecord.archivesRoom.error.unableToPrintLabel"));
+            Map<String, List<String>> response = paperRecordService.assignRequests(requests, assignTo, sessionContext.getSessionLocation());
+            return assignmentResult(response, "paperrecord.archivesRoom.createRequests.message", ui);
         }
         catch (IllegalStateException ex) {
             log.error("Unable to assign create requests", ex);
@@ -156,6 +162,28 @@ public class ArchivesRoomFragmentController {
     }
 
 
+    // the requests that couldn't be assigned (because someone else had already claimed them, or they were no longer
+    // open) are reported back, so the user knows not to go looking for those records, as are the records whose labels
+    // haven't been printed yet (those are still assigned, and the labels are printed once the printer is available)
+    private FragmentActionResult assignmentResult(Map<String, List<String>> response, String successMessageCode, UiUtils ui) {
+
+        List<String> errors = response.get("error");
+
+        if (errors != null && !errors.isEmpty()) {
+            return new FailureResult(ui.message("paperrecord.archivesRoom.error.unableToAssignSomeRecords",
+                    StringUtils.join(errors, ", ")));
+        }
+
+        List<String> printErrors = response.get("printError");
+
+        if (printErrors != null && !printErrors.isEmpty()) {
+            return new FailureResult(ui.message("paperrecord.archivesRoom.error.labelsNotYetPrinted",
+                    StringUtils.join(printErrors, ", ")));
+        }
+
+        return new SuccessResult(ui.message(successMessageCode));
+    }
+
     public FragmentActionResult markPaperRecordsAsMerged(@RequestParam("mergeId") PaperRecordMergeRequest request,
                                                          @SpringBean("paperRecordService") PaperRecordService paperRecordService){
 
@@ -302,46 +330,37 @@ public class ArchivesRoomFragmentController {
 
     }
 
-    private List<SimpleObject> convertPaperRecordRequestsToSimpleObjects(List<PaperRecordRequest> requests,
-                                                                         PaperRecordService paperRecordService,
-                                                                         EmrApiProperties emrApiProperties, UiUtils ui) {
+    private List<SimpleObject> convertPaperRecordRequestQueueRowsToSimpleObjects(List<PaperRecordRequestQueueRow> rows, UiUtils ui) {
 
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
-        for (PaperRecordRequest request : requests) {
-             SimpleObject result = SimpleObject.fromObject(request, ui, "requestId", "requestLocation");
+        for (PaperRecordRequestQueueRow row : rows) {
+            SimpleObject result = new SimpleObject();
+
+            result.put("requestId", row.getRequestId());
+            result.put("requestLocation", ui.format(row.getRequestLocationName()));
+            result.put("identifier", ui.format(row.getDossierNumber()));
+            result.put("dateCreated", timeAndDateFormat.format(row.getDateCreated()));
+            result.put("dateCreatedSortable", row.getDateCreated());
+            result.put("patient", ui.format(row.getPatientName()));
 
-            // manually add the date, patient, paper record identifier, and patient identifier
-            result.put("identifier", ui.format(request.getPaperRecord().getPatientIdentifier().getIdentifier()));
-            result.put("dateCreated", timeAndDateFormat.format(request.getDateCreated()));
-            result.put("dateCreatedSortable", request.getDateCreated());
-            result.put("patient", ui.format(request.getPaperRecord().getPatientIdentifier().getPatient()));
+            // the token to pass back in order to fetch the page of requests that follows this one
+            result.put("pageToken", PaperRecordRequestPageToken.after(row).toString());
 
             // this should never be null, but ran into a random case a patient was merged and the requests for the non-preferred patient weren't cancelled
             // this just makes sure that if it happens again a NPE won't take down the system
-            if (request.getPaperRecord().getPatientIdentifier().getPatient().getPatientIdentifier(emrApiProperties.getPrimaryIdentifierType()) == null) {
+            if (row.getPatientPrimaryIdentifier() == null) {
                 log.error("Patient's primary identifier is null");
             }
             else {
-                result.put("patientIdentifier", ui.format(request.getPaperRecord().getPatientIdentifier().getPatient().getPatientIdentifier(emrApiProperties.getPrimaryIdentifierType()).getIdentifier()));
+                result.put("patientIdentifier", ui.format(row.getPatientPrimaryIdentifier()));
             }
 
-            // add the last sent and last sent date to any pending pull requests
-            if (PaperRecordRequest.PENDING_STATUSES.contains(request.getStatus()) && !request.getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION)) {
-
-                // note that we are just using this first paper in the case of multiple paper records
-                PaperRecordRequest lastSentRequest = paperRecordService.getMostRecentSentPaperRecordRequest(request.getPaperRecord());
-
-                // the second check here, where we confirm that the last send request is not equal to the request we are trying to display,
-                // is a hack to work around some transactional issues we were seeing: sometimes we were finding that a request was changed to "sent"
-                // in a different thread while this method was running, resulting in the same request being returned as the most recent request;
-                // ideally, the call to getMostRecentSentPaperRecordRequestsByIdentifier should not occur here, but during the same @Transactional block as when we fetch the main requests list
-                if (lastSentRequest != null && !lastSentRequest.equals(request)) {
-                    result.put("locationLastSent", ui.format(lastSentRequest.getRequestLocation()));
-                    result.put("dateLastSent", timeAndDateFormat.format(lastSentRequest.getDateStatusChanged()));
-                }
-
-           }
+            // add the last sent and last sent date to any pending pull requests (the service only sets these for pull requests)
+            if (row.getLocationLastSent() != null) {
+                result.put("locationLastSent", ui.format(row.getLocationLastSent()));
+                result.put("dateLastSent", timeAndDateFormat.format(row.getDateLastSent()));
+            }
 
             results.add(result);
         }
@@ -7,6 +7,7 @@ import org.openmrs.Patient;
 import org.openmrs.module.appui.UiSessionContext;
 import org.openmrs.module.paperrecord.PaperRecord;
 import org.openmrs.module.paperrecord.PaperRecordConstants;
+import org.openmrs.module.paperrecord.PaperRecordRequest;
 import org.openmrs.module.paperrecord.PaperRecordService;
 import org.openmrs.module.paperrecord.UnableToPrintLabelException;
 import org.openmrs.module.printer.Printer;
@@ -17,6 +18,7 @@ import org.openmrs.ui.framework.annotation.SpringBean;
 import org.springframework.web.bind.annotation.RequestParam;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -35,6 +37,26 @@ public class RequestPaperRecordFragmentController {
         return SimpleObject.create("message", ui.message("paperrecord.patientDashBoard.requestPaperRecord.successMessage"));
     }
 
+    /**
+     * Requests the paper records of a whole list of patients at once (ie, the pull list for a clinic session)
+     *
+     * @param ui
+     * @param patients
+     * @param location
+     * @param service
+     * @return
+     */
+    public SimpleObject requestPaperRecords(UiUtils ui,
+                                            @RequestParam("patientId[]") List<Patient> patients,
+                                            @RequestParam("locationId") Location location,
+                                            @SpringBean("paperRecordService") PaperRecordService service) {
+
+        Map<Patient, List<PaperRecordRequest>> requests = service.requestPaperRecords(patients, location, location);
+
+        return SimpleObject.create("message", ui.message("paperrecord.patientDashBoard.requestPaperRecords.successMessage", requests.size()),
+                "count", requests.size());
+    }
+
     /**
      * Assigned a dossier number (if necessary), and then prints out paper record label(s) and an ID card label at the specified location
      * If the printing completes successfully, the record is flagged as "active"
@@ -2,6 +2,7 @@ package org.openmrs.module.paperrecord.fragment.controller;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentMatcher;
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
@@ -10,9 +11,10 @@ import org.openmrs.Person;
 import org.openmrs.PersonName;
 import org.openmrs.User;
 import org.openmrs.module.appui.UiSessionContext;
-import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.paperrecord.PaperRecord;
 import org.openmrs.module.paperrecord.PaperRecordRequest;
+import org.openmrs.module.paperrecord.PaperRecordRequestPageToken;
+import org.openmrs.module.paperrecord.PaperRecordRequestQueueRow;
 import org.openmrs.module.paperrecord.PaperRecordService;
 import org.openmrs.ui.framework.SimpleObject;
 import org.openmrs.ui.framework.UiUtils;
@@ -24,7 +26,9 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
@@ -32,6 +36,7 @@ import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -45,8 +50,6 @@ public class ArchivesRoomFragmentControllerTest {
 
     private PaperRecordService paperRecordService;
 
-    private EmrApiProperties emrApiProperties;
-
     private UiSessionContext uiSessionContext;
 
     private User authenicatedUser;
@@ -67,7 +70,6 @@ public class ArchivesRoomFragmentControllerTest {
         ui = new TestUiUtils();
 
         paperRecordService = mock(PaperRecordService.class);
-        emrApiProperties = mock(EmrApiProperties.class);
         uiSessionContext = mock(UiSessionContext.class);
 
         authenicatedUserPerson = new Person();
@@ -206,11 +208,13 @@ public class ArchivesRoomFragmentControllerTest {
 
         List<PaperRecordRequest> requests = createSamplePullPaperRecordRequestList();
 
-        when(paperRecordService.getOpenPaperRecordRequestsToPull(sessionLocation)).thenReturn(requests);
-        when(paperRecordService.getMostRecentSentPaperRecordRequest(requests.get(0).getPaperRecord())).thenReturn(createSampleSentRequest());
-        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
+        List<PaperRecordRequestQueueRow> rows = toQueueRows(requests);
+        addLastSent(rows.get(0), createSampleSentRequest());
+
+        when(paperRecordService.getPaperRecordRequestQueue(Collections.singletonList(PaperRecordRequest.Status.OPEN), sessionLocation,
+                false, null, null)).thenReturn(rows);
 
-        List<SimpleObject> results = controller.getOpenRecordsToPull(paperRecordService, emrApiProperties, uiSessionContext, ui);
+        List<SimpleObject> results = (List<SimpleObject>) controller.getOpenRecordsToPull(paperRecordService, null, null, uiSessionContext, ui);
 
         assertProperPullResultsList(results);
     }
@@ -220,10 +224,10 @@ public class ArchivesRoomFragmentControllerTest {
 
         List<PaperRecordRequest> requests = createSampleCreatePaperRecordRequestList();
 
-        when(paperRecordService.getOpenPaperRecordRequestsToCreate(sessionLocation)).thenReturn(requests);
-        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
+        when(paperRecordService.getPaperRecordRequestQueue(Collections.singletonList(PaperRecordRequest.Status.OPEN), sessionLocation,
+                true, null, null)).thenReturn(toQueueRows(requests));
 
-        List<SimpleObject> results = controller.getOpenRecordsToCreate(paperRecordService, emrApiProperties, uiSessionContext, ui);
+        List<SimpleObject> results = (List<SimpleObject>) controller.getOpenRecordsToCreate(paperRecordService, null, null, uiSessionContext, ui);
 
         assertProperCreateResultsList(results);
     }
@@ -233,11 +237,13 @@ public class ArchivesRoomFragmentControllerTest {
 
         List<PaperRecordRequest> requests = createSamplePullPaperRecordRequestList();
 
-        when(paperRecordService.getAssignedPaperRecordRequestsToPull(sessionLocation)).thenReturn(requests);
-        when(paperRecordService.getMostRecentSentPaperRecordRequest(requests.get(0).getPaperRecord())).thenReturn(createSampleSentRequest());
-        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
+        List<PaperRecordRequestQueueRow> rows = toQueueRows(requests);
+        addLastSent(rows.get(0), createSampleSentRequest());
 
-        List<SimpleObject> results = controller.getAssignedRecordsToPull(paperRecordService, emrApiProperties, uiSessionContext, ui);
+        when(paperRecordService.getPaperRecordRequestQueue(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED), sessionLocation,
+                false, null, null)).thenReturn(rows);
+
+        List<SimpleObject> results = (List<SimpleObject>) controller.getAssignedRecordsToPull(paperRecordService, null, null, uiSessionContext, ui);
 
         assertProperPullResultsList(results);
     }
@@ -247,14 +253,54 @@ public class ArchivesRoomFragmentControllerTest {
 
         List<PaperRecordRequest> requests = createSampleCreatePaperRecordRequestList();
 
-        when(paperRecordService.getAssignedPaperRecordRequestsToCreate(sessionLocation)).thenReturn(requests);
-        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
+        when(paperRecordService.getPaperRecordRequestQueue(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED), sessionLocation,
+                true, null, null)).thenReturn(toQueueRows(requests));
 
-        List<SimpleObject> results = controller.getAssignedRecordsToCreate(paperRecordService, emrApiProperties, uiSessionContext, ui);
+        List<SimpleObject> results = (List<SimpleObject>) controller.getAssignedRecordsToCreate(paperRecordService, null, null, uiSessionContext, ui);
 
         assertProperCreateResultsList(results);
     }
 
+    @Test
+    public void testControllerShouldReturnPageOfOpenRequestsToCreate() throws Exception {
+
+        List<PaperRecordRequest> requests = createSampleCreatePaperRecordRequestList();
+        Date afterDate = new Date();
+
+        when(paperRecordService.getPaperRecordRequestQueue(eq(Collections.singletonList(PaperRecordRequest.Status.OPEN)), eq(sessionLocation),
+                eq(true), argThat(new IsPageToken(afterDate, 10)), eq(2))).thenReturn(toQueueRows(requests));
+
+        List<SimpleObject> results = (List<SimpleObject>) controller.getOpenRecordsToCreate(paperRecordService, afterDate.getTime() + ":10", 2,
+                uiSessionContext, ui);
+
+        assertProperCreateResultsList(results);
+        assertThat((String) results.get(1).get("pageToken"), is(requests.get(1).getDateCreated().getTime() + ":2"));
+    }
+
+    @Test
+    public void testControllerShouldFailOnMalformedPageToken() throws Exception {
+
+        Object result = controller.getOpenRecordsToPull(paperRecordService, "not a page token", 2, uiSessionContext, ui);
+
+        assertThat(result, instanceOf(FailureResult.class));
+    }
+
+    @Test
+    public void testControllerShouldReturnQueueCounts() throws Exception {
+
+        when(paperRecordService.countPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN), sessionLocation, false)).thenReturn(5L);
+        when(paperRecordService.countPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN), sessionLocation, true)).thenReturn(2L);
+        when(paperRecordService.countPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED), sessionLocation, false)).thenReturn(3L);
+        when(paperRecordService.countPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED), sessionLocation, true)).thenReturn(0L);
+
+        SimpleObject results = controller.getQueueCounts(paperRecordService, uiSessionContext);
+
+        assertThat((Long) results.get("openToPull"), is(5L));
+        assertThat((Long) results.get("openToCreate"), is(2L));
+        assertThat((Long) results.get("assignedToPull"), is(3L));
+        assertThat((Long) results.get("assignedToCreate"), is(0L));
+    }
+
     @Test
     public void testControllerShouldAssignRequests() throws Exception {
 
@@ -266,6 +312,37 @@ public class ArchivesRoomFragmentControllerTest {
         verify(paperRecordService).assignRequests(eq(requests), eq(authenicatedUser.getPerson()), eq(sessionLocation));
     }
 
+    @Test
+    public void testControllerShouldReportRequestsThatCouldNotBeAssigned() throws Exception {
+
+        List<PaperRecordRequest> requests = createSamplePullPaperRecordRequestList();
+
+        Map<String, List<String>> response = new HashMap<String, List<String>>();
+        response.put("success", new ArrayList<String>());
+        response.put("error", Collections.singletonList("ABC"));
+        when(paperRecordService.assignRequests(eq(requests), eq(authenicatedUser.getPerson()), eq(sessionLocation))).thenReturn(response);
+
+        FragmentActionResult result = controller.assignPullRequests(requests, paperRecordService, uiSessionContext, ui);
+
+        assertThat(result, instanceOf(FailureResult.class));
+    }
+
+    @Test
+    public void testControllerShouldReportRecordsWhoseLabelsWereNotPrinted() throws Exception {
+
+        List<PaperRecordRequest> requests = createSamplePullPaperRecordRequestList();
+
+        Map<String, List<String>> response = new HashMap<String, List<String>>();
+        response.put("success", Collections.singletonList("ABC"));
+        response.put("error", new ArrayList<String>());
+        response.put("printError", Collections.singletonList("ABC"));
+        when(paperRecordService.assignRequests(eq(requests), eq(authenicatedUser.getPerson()), eq(sessionLocation))).thenReturn(response);
+
+        FragmentActionResult result = controller.assignPullRequests(requests, paperRecordService, uiSessionContext, ui);
+
+        assertThat(result, instanceOf(FailureResult.class));
+    }
+
     private List<PaperRecordRequest> createSampleCreatePaperRecordRequestList() {
 
         Patient patient = new Patient();
@@ -451,6 +528,25 @@ public class ArchivesRoomFragmentControllerTest {
         return request;
     }
 
+    private List<PaperRecordRequestQueueRow> toQueueRows(List<PaperRecordRequest> requests) {
+
+        List<PaperRecordRequestQueueRow> rows = new ArrayList<PaperRecordRequestQueueRow>();
+
+        for (PaperRecordRequest request : requests) {
+            Patient patient = request.getPaperRecord().getPatientIdentifier().getPatient();
+            rows.add(new PaperRecordRequestQueueRow(request.getRequestId(), request.getDateCreated(), request.getDateStatusChanged(),
+                    request.getPaperRecord().getRecordId(), request.getPaperRecord().getPatientIdentifier().getIdentifier(), patient.getPersonName(),
+                    patient.getPatientIdentifier(patientIdentifierType).getIdentifier(), request.getRequestLocation().getName()));
+        }
+
+        return rows;
+    }
+
+    private void addLastSent(PaperRecordRequestQueueRow row, PaperRecordRequest sentRequest) {
+        row.setLocationLastSent(sentRequest.getRequestLocation().getName());
+        row.setDateLastSent(sentRequest.getDateStatusChanged());
+    }
+
     private void assertProperCreateResultsList(List<SimpleObject> results) {
 
         assertThat(results.size(), is(2));
@@ -502,4 +598,22 @@ public class ArchivesRoomFragmentControllerTest {
         assertFalse(result2.containsKey("locationLastSent"));
 
     }
+
+    private class IsPageToken extends ArgumentMatcher<PaperRecordRequestPageToken> {
+
+        private Date dateCreated;
+
+        private Integer requestId;
+
+        public IsPageToken(Date dateCreated, Integer requestId) {
+            this.dateCreated = dateCreated;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public boolean matches(Object o) {
+            PaperRecordRequestPageToken pageToken = (PaperRecordRequestPageToken) o;
+            return pageToken != null && pageToken.getDateCreated().equals(dateCreated) && pageToken.getRequestId().equals(requestId);
+        }
+    }
 }